@@ -13,12 +13,15 @@ LOCAL_CFLAGS := -O3 -DNDEBUG -fstrict-aliasing
 
 LOCAL_SRC_FILES := \
         feature_mos_jni.cpp \
+        feature_stab_jni.cpp \
         mosaic_renderer_jni.cpp \
         feature_mos/src/mosaic/trsMatrix.cpp \
         feature_mos/src/mosaic/AlignFeatures.cpp \
         feature_mos/src/mosaic/Blend.cpp \
         feature_mos/src/mosaic/Delaunay.cpp \
+        feature_mos/src/mosaic/ImageKernels.cpp \
         feature_mos/src/mosaic/ImageUtils.cpp \
+        feature_mos/src/mosaic/JpegWriter.cpp \
         feature_mos/src/mosaic/Mosaic.cpp \
         feature_mos/src/mosaic/Pyramid.cpp \
         feature_mos/src/mosaic_renderer/Renderer.cpp \
@@ -42,6 +45,11 @@ LOCAL_SRC_FILES := \
 
 ifeq ($(TARGET_ARCH), arm)
         LOCAL_SDK_VERSION := 9
+        # Only the NEON kernels are built with -mfpu=neon, and they are
+        # used if android_getCpuFeatures() reports NEON, so the library
+        # still runs on ARMv7 CPUs without it.
+        LOCAL_SRC_FILES += feature_mos/src/mosaic/ImageKernelsNeon.cpp.neon
+        LOCAL_STATIC_LIBRARIES += cpufeatures
 endif
 
 ifeq ($(TARGET_ARCH), x86)
@@ -67,6 +67,14 @@ public:
 
   // Obtain the TRS matrix from the last two frames
   int getLastTRS(double trs[3][3]);
+
+  // Change the translation a frame needs from the last accepted frame
+  // before it is accepted
+  void setStillThreshold(float thresh) { thresh_still = thresh; }
+  float getStillThreshold() { return thresh_still; }
+
+  // Number of feature matches which agreed with the last alignment
+  int getNumInliers() { return reg.GetNrInliers(); }
   char* getRegProfileString();
 
 protected:
@@ -19,26 +19,58 @@
 // $Id: Blend.cpp,v 1.22 2011/06/24 04:22:14 mbansal Exp $
 
 #include <string.h>
+#include <pthread.h>
 
 #include "Interp.h"
 #include "Blend.h"
 
 #include "Geometry.h"
+#include "ImageKernels.h"
 #include "trsMatrix.h"
 
 #include "Log.h"
 #define LOG_TAG "BLEND"
 
+// Limit of the first and the last bands, beyond any mosaic border.
+static const int BAND_UNBOUNDED = 1 << 20;
+
 Blend::Blend()
 {
   m_wb.blendingType = BLEND_TYPE_NONE;
+  m_nThreads = 1;
+  for (int i = 0; i < BLEND_MAX_THREADS; i++)
+  {
+      m_pFrameYPyr[i] = m_pFrameUPyr[i] = m_pFrameVPyr[i] = NULL;
+  }
+  m_nWorkers = 0;
+  m_workerStartFailed = false;
+  m_workGeneration = 0;
+  m_workPending = 0;
+  m_workQuit = false;
+  pthread_mutex_init(&m_workMutex, NULL);
+  pthread_cond_init(&m_workCond, NULL);
+  pthread_cond_init(&m_doneCond, NULL);
 }
 
 Blend::~Blend()
 {
-    if (m_pFrameVPyr) free(m_pFrameVPyr);
-    if (m_pFrameUPyr) free(m_pFrameUPyr);
-    if (m_pFrameYPyr) free(m_pFrameYPyr);
+    StopWorkers();
+    pthread_cond_destroy(&m_doneCond);
+    pthread_cond_destroy(&m_workCond);
+    pthread_mutex_destroy(&m_workMutex);
+    for (int i = 0; i < BLEND_MAX_THREADS; i++)
+    {
+        if (m_pFrameVPyr[i]) free(m_pFrameVPyr[i]);
+        if (m_pFrameUPyr[i]) free(m_pFrameUPyr[i]);
+        if (m_pFrameYPyr[i]) free(m_pFrameYPyr[i]);
+    }
+}
+
+void Blend::setThreadCount(int threads)
+{
+    if (threads < 1) threads = 1;
+    if (threads > BLEND_MAX_THREADS) threads = BLEND_MAX_THREADS;
+    m_nThreads = threads;
 }
 
 int Blend::initialize(int blendingType, int stripType, int frame_width, int frame_height)
@@ -57,15 +89,15 @@ int Blend::initialize(int blendingType, int stripType, int frame_width, int fram
 
     m_wb.roundoffOverlap = 1.5;
 
-    m_pFrameYPyr = NULL;
-    m_pFrameUPyr = NULL;
-    m_pFrameVPyr = NULL;
+    m_pFrameYPyr[0] = NULL;
+    m_pFrameUPyr[0] = NULL;
+    m_pFrameVPyr[0] = NULL;
 
-    m_pFrameYPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevs, (unsigned short) width, (unsigned short) height, BORDER);
-    m_pFrameUPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevsC, (unsigned short) (width), (unsigned short) (height), BORDER);
-    m_pFrameVPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevsC, (unsigned short) (width), (unsigned short) (height), BORDER);
+    m_pFrameYPyr[0] = PyramidShort::allocatePyramidPacked(m_wb.nlevs, (unsigned short) width, (unsigned short) height, BORDER);
+    m_pFrameUPyr[0] = PyramidShort::allocatePyramidPacked(m_wb.nlevsC, (unsigned short) (width), (unsigned short) (height), BORDER);
+    m_pFrameVPyr[0] = PyramidShort::allocatePyramidPacked(m_wb.nlevsC, (unsigned short) (width), (unsigned short) (height), BORDER);
 
-    if (!m_pFrameYPyr || !m_pFrameUPyr || !m_pFrameVPyr)
+    if (!m_pFrameYPyr[0] || !m_pFrameUPyr[0] || !m_pFrameVPyr[0])
     {
         LOGE("Error: Could not allocate pyramids for blending");
         return BLEND_RET_ERROR_MEMORY;
@@ -328,39 +360,39 @@ int Blend::MosaicSizeCheck(float sizeMultiplier, float heightMultiplier) {
    return BLEND_RET_OK;
 }
 
-int Blend::FillFramePyramid(MosaicFrame *mb)
+int Blend::FillFramePyramid(MosaicFrame *mb, int slot)
 {
+    PyramidShort *pFrameYPyr = m_pFrameYPyr[slot];
+    PyramidShort *pFrameUPyr = m_pFrameUPyr[slot];
+    PyramidShort *pFrameVPyr = m_pFrameVPyr[slot];
+
     ImageType mbY, mbU, mbV;
     // Lay this image, centered into the temporary buffer
     mbY = mb->image;
     mbU = mb->getU();
     mbV = mb->getV();
 
-    int h, w;
+    int h;
 
     for(h=0; h<height; h++)
     {
-        ImageTypeShort yptr = m_pFrameYPyr->ptr[h];
-        ImageTypeShort uptr = m_pFrameUPyr->ptr[h];
-        ImageTypeShort vptr = m_pFrameVPyr->ptr[h];
-
-        for(w=0; w<width; w++)
-        {
-            yptr[w] = (short) ((*(mbY++)) << 3);
-            uptr[w] = (short) ((*(mbU++)) << 3);
-            vptr[w] = (short) ((*(mbV++)) << 3);
-        }
+        ImageKernels::widenShift3(mbY, pFrameYPyr->ptr[h], width);
+        ImageKernels::widenShift3(mbU, pFrameUPyr->ptr[h], width);
+        ImageKernels::widenShift3(mbV, pFrameVPyr->ptr[h], width);
+        mbY += width;
+        mbU += width;
+        mbV += width;
     }
 
     // Spread the image through the border
-    PyramidShort::BorderSpread(m_pFrameYPyr, BORDER, BORDER, BORDER, BORDER);
-    PyramidShort::BorderSpread(m_pFrameUPyr, BORDER, BORDER, BORDER, BORDER);
-    PyramidShort::BorderSpread(m_pFrameVPyr, BORDER, BORDER, BORDER, BORDER);
+    PyramidShort::BorderSpread(pFrameYPyr, BORDER, BORDER, BORDER, BORDER);
+    PyramidShort::BorderSpread(pFrameUPyr, BORDER, BORDER, BORDER, BORDER);
+    PyramidShort::BorderSpread(pFrameVPyr, BORDER, BORDER, BORDER, BORDER);
 
     // Generate Laplacian pyramids
-    if (!PyramidShort::BorderReduce(m_pFrameYPyr, m_wb.nlevs) || !PyramidShort::BorderExpand(m_pFrameYPyr, m_wb.nlevs, -1) ||
-            !PyramidShort::BorderReduce(m_pFrameUPyr, m_wb.nlevsC) || !PyramidShort::BorderExpand(m_pFrameUPyr, m_wb.nlevsC, -1) ||
-            !PyramidShort::BorderReduce(m_pFrameVPyr, m_wb.nlevsC) || !PyramidShort::BorderExpand(m_pFrameVPyr, m_wb.nlevsC, -1))
+    if (!PyramidShort::BorderReduce(pFrameYPyr, m_wb.nlevs) || !PyramidShort::BorderExpand(pFrameYPyr, m_wb.nlevs, -1) ||
+            !PyramidShort::BorderReduce(pFrameUPyr, m_wb.nlevsC) || !PyramidShort::BorderExpand(pFrameUPyr, m_wb.nlevsC, -1) ||
+            !PyramidShort::BorderReduce(pFrameVPyr, m_wb.nlevsC) || !PyramidShort::BorderExpand(pFrameVPyr, m_wb.nlevsC, -1))
     {
         LOGE("Error: Could not generate Laplacian pyramids");
         return BLEND_RET_ERROR;
@@ -388,13 +420,29 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
       return BLEND_RET_ERROR_MEMORY;
     }
 
+    // Every thread needs its own frame pyramids.
+    for (int i = 1; i < m_nThreads; i++)
+    {
+        if (m_pFrameYPyr[i] && m_pFrameUPyr[i] && m_pFrameVPyr[i])
+            continue;
+        if (!m_pFrameYPyr[i])
+            m_pFrameYPyr[i] = PyramidShort::allocatePyramidPacked(m_wb.nlevs, (unsigned short) width, (unsigned short) height, BORDER);
+        if (!m_pFrameUPyr[i])
+            m_pFrameUPyr[i] = PyramidShort::allocatePyramidPacked(m_wb.nlevsC, (unsigned short) width, (unsigned short) height, BORDER);
+        if (!m_pFrameVPyr[i])
+            m_pFrameVPyr[i] = PyramidShort::allocatePyramidPacked(m_wb.nlevsC, (unsigned short) width, (unsigned short) height, BORDER);
+        if (!m_pFrameYPyr[i] || !m_pFrameUPyr[i] || !m_pFrameVPyr[i])
+        {
+            LOGE("Could not allocate pyramids for blending thread %d", i);
+            m_nThreads = i;
+            break;
+        }
+    }
+
     MosaicFrame *mb;
 
     CSite *esite = m_AllSites + nsite;
-    int site_idx;
 
-    // First go through each frame and for each mosaic pixel determine which frame it should come from
-    site_idx = 0;
     for(CSite *csite = m_AllSites; csite < esite; csite++)
     {
         if(cancelComputation)
@@ -409,11 +457,23 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
 
         mb->vcrect = mb->brect;
         ClipBlendRect(csite, mb->vcrect);
+    }
 
-        ComputeMask(csite, mb->vcrect, mb->brect, rect, imgMos, site_idx);
+    // The strips run across the panning direction, so the mosaic is split
+    // into bands along the strips. Each thread walks all the sites in order
+    // but only writes to its own band, which gives the same result as a
+    // single thread.
+    int bandAxis = m_wb.horizontal ? imgMos.Y.height : imgMos.Y.width;
+    m_work.sites = m_AllSites;
+    m_work.imgMos = &imgMos;
+    m_work.rect = &rect;
+    m_work.band_size = (bandAxis + m_nThreads - 1) / m_nThreads;
+    m_work.failed = false;
 
-        site_idx++;
-    }
+    // First go through each frame and for each mosaic pixel determine which frame it should come from
+    m_work.first_site = 0;
+    m_work.num_sites = nsite;
+    RunStage(STAGE_MASK);
 
     ////////// imgMos.Y, imgMos.V, imgMos.U are used as follows //////////////
     ////////////////////// THIN STRIP MODE ///////////////////////////////////
@@ -550,9 +610,10 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
 
     }
 
-    // Now perform the actual blending using the frame assignment determined above
-    site_idx = 0;
-    for(CSite *csite = m_AllSites; csite < esite; csite++)
+    // Now perform the actual blending using the frame assignment determined
+    // above. The pyramids of the next m_nThreads frames are built in
+    // parallel, then every thread blends them into its band.
+    for(int site_idx = 0; site_idx < nsite; site_idx += m_nThreads)
     {
         if(cancelComputation)
         {
@@ -562,17 +623,17 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
             return BLEND_RET_CANCELLED;
         }
 
-        mb = csite->getMb();
-
+        m_work.first_site = site_idx;
+        m_work.num_sites = min(m_nThreads, nsite - site_idx);
 
-        if(FillFramePyramid(mb)!=BLEND_RET_OK)
+        RunStage(STAGE_FILL);
+        if (m_work.failed)
             return BLEND_RET_ERROR;
 
-        ProcessPyramidForThisFrame(csite, mb->vcrect, mb->brect, rect, imgMos, mb->trs, site_idx);
+        RunStage(STAGE_BLEND);
 
-        progress += TIME_PERCENT_BLEND/nsite;
-
-        site_idx++;
+        for (int i = 0; i < m_work.num_sites; i++)
+            progress += TIME_PERCENT_BLEND/nsite;
     }
 
 
@@ -595,6 +656,144 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
     return BLEND_RET_OK;
 }
 
+void *Blend::WorkerThread(void *arg)
+{
+    WorkerArg *workerArg = (WorkerArg *) arg;
+    workerArg->blend->WorkerLoop(workerArg->thread, workerArg->generation);
+    return NULL;
+}
+
+void Blend::WorkerLoop(int thread, int generation)
+{
+    pthread_mutex_lock(&m_workMutex);
+    while (true)
+    {
+        while (!m_workQuit && m_workGeneration == generation)
+            pthread_cond_wait(&m_workCond, &m_workMutex);
+        if (m_workQuit)
+            break;
+        generation = m_workGeneration;
+        pthread_mutex_unlock(&m_workMutex);
+
+        // The thread count may have been lowered since the worker started.
+        if (thread < m_nThreads)
+            RunStageForThread(thread);
+
+        pthread_mutex_lock(&m_workMutex);
+        if (--m_workPending == 0)
+            pthread_cond_signal(&m_doneCond);
+    }
+    pthread_mutex_unlock(&m_workMutex);
+}
+
+// Starts the workers missing for m_nThreads. A new worker may only get to
+// run after the next stage is posted, so it is told which generation is
+// already done.
+void Blend::StartWorkers()
+{
+    while (m_nWorkers < m_nThreads - 1 && !m_workerStartFailed)
+    {
+        WorkerArg *arg = &m_workerArgs[m_nWorkers];
+        arg->blend = this;
+        arg->thread = m_nWorkers + 1;
+        arg->generation = m_workGeneration;
+        if (pthread_create(&m_workers[m_nWorkers], NULL, WorkerThread, arg) != 0)
+        {
+            // Do not try again for every stage. The bands of the missing
+            // threads are run by the caller instead.
+            LOGE("Could not start blending thread %d", arg->thread);
+            m_workerStartFailed = true;
+            break;
+        }
+        m_nWorkers++;
+    }
+}
+
+void Blend::StopWorkers()
+{
+    pthread_mutex_lock(&m_workMutex);
+    m_workQuit = true;
+    pthread_cond_broadcast(&m_workCond);
+    pthread_mutex_unlock(&m_workMutex);
+    for (int i = 0; i < m_nWorkers; i++)
+        pthread_join(m_workers[i], NULL);
+    m_nWorkers = 0;
+    m_workQuit = false;
+}
+
+void Blend::RunStage(int stage)
+{
+    m_work.stage = stage;
+    StartWorkers();
+
+    pthread_mutex_lock(&m_workMutex);
+    m_workPending = m_nWorkers;
+    m_workGeneration++;
+    pthread_cond_broadcast(&m_workCond);
+    pthread_mutex_unlock(&m_workMutex);
+
+    RunStageForThread(0);
+
+    // The bands do not overlap, so the bands of threads that could not be
+    // started can be run here.
+    for (int i = m_nWorkers + 1; i < m_nThreads; i++)
+        RunStageForThread(i);
+
+    pthread_mutex_lock(&m_workMutex);
+    while (m_workPending > 0)
+        pthread_cond_wait(&m_doneCond, &m_workMutex);
+    pthread_mutex_unlock(&m_workMutex);
+}
+
+void Blend::RunStageForThread(int thread)
+{
+    CSite *csite;
+    MosaicFrame *mb;
+
+    switch (m_work.stage)
+    {
+        case STAGE_MASK:
+            for (int i = 0; i < m_work.num_sites; i++)
+            {
+                int site_idx = m_work.first_site + i;
+                csite = m_work.sites + site_idx;
+                mb = csite->getMb();
+                ComputeMask(csite, mb->vcrect, mb->brect, *m_work.rect,
+                        *m_work.imgMos, site_idx, thread);
+            }
+            break;
+        case STAGE_FILL:
+            if (thread < m_work.num_sites)
+            {
+                mb = m_work.sites[m_work.first_site + thread].getMb();
+                if (FillFramePyramid(mb, thread) != BLEND_RET_OK)
+                    m_work.failed = true;
+            }
+            break;
+        case STAGE_BLEND:
+            for (int slot = 0; slot < m_work.num_sites; slot++)
+            {
+                int site_idx = m_work.first_site + slot;
+                csite = m_work.sites + site_idx;
+                mb = csite->getMb();
+                ProcessPyramidForThisFrame(csite, mb->vcrect, mb->brect,
+                        *m_work.rect, *m_work.imgMos, mb->trs, site_idx, slot, thread);
+            }
+            break;
+    }
+}
+
+// Returns the range of rows (or columns for a vertical mosaic) of the given
+// pyramid level that belong to a band. A pixel belongs to the band of its
+// position at level 0, so each pixel of each level is written by one thread.
+void Blend::GetBandLimits(int band, int scale, int &lo, int &hi)
+{
+    int lo0 = (band == 0) ? -BAND_UNBOUNDED : band * m_work.band_size;
+    int hi0 = (band == m_nThreads - 1) ? BAND_UNBOUNDED : (band + 1) * m_work.band_size;
+    lo = (lo0 + (1 << scale) - 1) >> scale;
+    hi = ((hi0 + (1 << scale) - 1) >> scale) - 1;
+}
+
 void Blend::CropFinalMosaic(YUVinfo &imgMos, MosaicRect &cropping_rect)
 {
     int i, j, k;
@@ -817,7 +1016,7 @@ void Blend::RoundingCroppingSizeToMultipleOf8(MosaicRect &rect) {
     rect.right -= residue;
 }
 
-void Blend::ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, int site_idx)
+void Blend::ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, int site_idx, int band)
 {
     PyramidShort *dptr = m_pMosaicYPyr;
 
@@ -847,6 +1046,19 @@ void Blend::ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, Mosai
     else if (t >= dptr->height + BORDER)
         t = dptr->height + BORDER - 1;
 
+    int lo, hi;
+    GetBandLimits(band, 0, lo, hi);
+    if (m_wb.horizontal)
+    {
+        if (b < lo) b = lo;
+        if (t > hi) t = hi;
+    }
+    else
+    {
+        if (l < lo) l = lo;
+        if (r > hi) r = hi;
+    }
+
     // Walk the Region of interest and populate the pyramid
     for (int j = b; j <= t; j++)
     {
@@ -887,16 +1099,16 @@ void Blend::ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, Mosai
     }
 }
 
-void Blend::ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx)
+void Blend::ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx, int slot, int band)
 {
     // Put the Region of interest (for all levels) into m_pMosaicYPyr
     double inv_trs[3][3];
     inv33d(trs, inv_trs);
 
     // Process each pyramid level
-    PyramidShort *sptr = m_pFrameYPyr;
-    PyramidShort *suptr = m_pFrameUPyr;
-    PyramidShort *svptr = m_pFrameVPyr;
+    PyramidShort *sptr = m_pFrameYPyr[slot];
+    PyramidShort *suptr = m_pFrameUPyr[slot];
+    PyramidShort *svptr = m_pFrameVPyr[slot];
 
     PyramidShort *dptr = m_pMosaicYPyr;
     PyramidShort *duptr = m_pMosaicUPyr;
@@ -931,6 +1143,19 @@ void Blend::ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRec
         else if (t >= dptr->height + BORDER)
             t = dptr->height + BORDER - 1;
 
+        int lo, hi;
+        GetBandLimits(band, dscale, lo, hi);
+        if (m_wb.horizontal)
+        {
+            if (b < lo) b = lo;
+            if (t > hi) t = hi;
+        }
+        else
+        {
+            if (l < lo) l = lo;
+            if (r > hi) r = hi;
+        }
+
         // Walk the Region of interest and populate the pyramid
         for (int j = b; j <= t; j++)
         {
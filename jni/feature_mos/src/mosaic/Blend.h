@@ -21,6 +21,8 @@
 #ifndef BLEND_H
 #define BLEND_H
 
+#include <pthread.h>
+
 #include "MosaicTypes.h"
 #include "Pyramid.h"
 #include "Delaunay.h"
@@ -28,6 +30,9 @@
 #define BLEND_RANGE_DEFAULT 6
 #define BORDER 8
 
+// Maximum number of threads used for blending.
+#define BLEND_MAX_THREADS 8
+
 // Percent of total mosaicing time spent on each of the following operations
 const float TIME_PERCENT_ALIGN = 20.0;
 const float TIME_PERCENT_BLEND = 75.0;
@@ -73,14 +78,20 @@ public:
 
   int initialize(int blendingType, int stripType, int frame_width, int frame_height);
 
+  // Sets the number of threads used by runBlend(). The mosaic is split into
+  // bands across the strips, one for each thread, so the result does not
+  // depend on the number of threads.
+  void setThreadCount(int threads);
+
   int runBlend(MosaicFrame **frames, MosaicFrame **rframes, int frames_size, ImageType &imageMosaicYVU,
         int &mosaicWidth, int &mosaicHeight, float &progress, bool &cancelComputation);
 
 protected:
 
-  PyramidShort *m_pFrameYPyr;
-  PyramidShort *m_pFrameUPyr;
-  PyramidShort *m_pFrameVPyr;
+  // One set of frame pyramids for each thread.
+  PyramidShort *m_pFrameYPyr[BLEND_MAX_THREADS];
+  PyramidShort *m_pFrameUPyr[BLEND_MAX_THREADS];
+  PyramidShort *m_pFrameVPyr[BLEND_MAX_THREADS];
 
   PyramidShort *m_pMosaicYPyr;
   PyramidShort *m_pMosaicUPyr;
@@ -94,6 +105,8 @@ protected:
   // Height and width of individual frames
   int width, height;
 
+  int m_nThreads;
+
    // Height and width of mosaic
   unsigned short Mwidth, Mheight;
 
@@ -105,10 +118,57 @@ protected:
   void AlignToMiddleFrame(MosaicFrame **frames, int frames_size);
 
   int  DoMergeAndBlend(MosaicFrame **frames, int nsite,  int width, int height, YUVinfo &imgMos, MosaicRect &rect, MosaicRect &cropping_rect, float &progress, bool &cancelComputation);
-  void ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, int site_idx);
-  void ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx);
-
-  int  FillFramePyramid(MosaicFrame *mb);
+  void ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, int site_idx, int band);
+  void ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx, int slot, int band);
+
+  int  FillFramePyramid(MosaicFrame *mb, int slot);
+
+  // Work shared by the blending threads. Thread i fills the frame pyramids
+  // in slot i and blends the sites into band i of the mosaic.
+  struct BlendWork {
+    int stage;
+    CSite *sites;
+    int first_site;
+    int num_sites;
+    YUVinfo *imgMos;
+    MosaicRect *rect;
+    int band_size;
+    bool failed;
+  } m_work;
+
+  static const int STAGE_MASK  = 0;
+  static const int STAGE_FILL  = 1;
+  static const int STAGE_BLEND = 2;
+
+  // The blending threads are started by the first stage that needs them
+  // and kept until the Blend is destroyed. Each stage is handed to them
+  // through m_workCond, and they report back through m_doneCond.
+  struct WorkerArg {
+    Blend *blend;
+    int thread;
+    // The last generation before the worker was started.
+    int generation;
+  };
+  pthread_t m_workers[BLEND_MAX_THREADS];
+  WorkerArg m_workerArgs[BLEND_MAX_THREADS];
+  // Worker i runs the stages for thread i + 1. Thread 0 is the caller.
+  int m_nWorkers;
+  bool m_workerStartFailed;
+  pthread_mutex_t m_workMutex;
+  pthread_cond_t m_workCond;
+  pthread_cond_t m_doneCond;
+  // Incremented for every stage, so that a worker runs each stage once.
+  int m_workGeneration;
+  int m_workPending;
+  bool m_workQuit;
+
+  static void *WorkerThread(void *arg);
+  void WorkerLoop(int thread, int generation);
+  void StartWorkers();
+  void StopWorkers();
+  void RunStage(int stage);
+  void RunStageForThread(int thread);
+  void GetBandLimits(int band, int scale, int &lo, int &hi);
 
   // TODO: need to add documentation about the parameters
   void ComputeBlendParameters(MosaicFrame **frames, int frames_size, int is360);
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// ImageKernels.cpp
+
+#include "ImageKernels.h"
+
+// SSE2 is always there when the compiler targets it. The NEON kernels are
+// built apart with NEON enabled, and only used if the CPU has it, since
+// some ARMv7 CPUs do not.
+#if defined(__SSE2__)
+#include <emmintrin.h>
+#define KERNELS_SSE2
+#elif defined(__arm__) && defined(ANDROID)
+#include <cpu-features.h>
+#include "ImageKernelsNeon.h"
+#define KERNELS_NEON
+#endif
+
+// The SIMD versions process the bulk of a row and leave the rest to the
+// scalar loops, which start at i. They never read past the last sample the
+// scalar version reads.
+
+static bool hasSimd()
+{
+#if defined(KERNELS_SSE2)
+    return true;
+#elif defined(KERNELS_NEON)
+    return android_getCpuFamily() == ANDROID_CPU_FAMILY_ARM
+            && (android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON) != 0;
+#else
+    return false;
+#endif
+}
+
+static const bool gSimdSupported = hasSimd();
+static bool gSimdEnabled = gSimdSupported;
+
+#if defined(KERNELS_SSE2)
+
+// Packs 16 ints of 0 to 255 into bytes.
+static inline __m128i packBytes(__m128i a, __m128i b, __m128i c, __m128i d)
+{
+    return _mm_packus_epi16(_mm_packs_epi32(a, b), _mm_packs_epi32(c, d));
+}
+
+// The shorts of the even and odd positions sign extended to ints.
+static inline __m128i evens32(__m128i x) { return _mm_srai_epi32(_mm_slli_epi32(x, 16), 16); }
+static inline __m128i odds32(__m128i x) { return _mm_srai_epi32(x, 16); }
+
+// Packs ints into shorts, wrapping around like a cast.
+static inline __m128i pack16(__m128i lo, __m128i hi)
+{
+    return _mm_packs_epi32(evens32(lo), evens32(hi));
+}
+
+// Lanes 1 to 4 and 2 to 5 of the 8 ints in x and y.
+static inline __m128i next1(__m128i x, __m128i y)
+{
+    return _mm_or_si128(_mm_srli_si128(x, 4), _mm_slli_si128(y, 12));
+}
+
+static inline __m128i next2(__m128i x, __m128i y)
+{
+    return _mm_or_si128(_mm_srli_si128(x, 8), _mm_slli_si128(y, 8));
+}
+
+static inline __m128i reduce32(__m128i a, __m128i b, __m128i c, __m128i d, __m128i e)
+{
+    __m128i sum = _mm_add_epi32(_mm_add_epi32(a, e), _mm_set1_epi32(8));
+    sum = _mm_add_epi32(sum, _mm_slli_epi32(_mm_add_epi32(b, d), 2));
+    __m128i c6 = _mm_add_epi32(_mm_slli_epi32(c, 2), _mm_slli_epi32(c, 1));
+    return _mm_srai_epi32(_mm_add_epi32(sum, c6), 4);
+}
+
+#endif
+
+const char *ImageKernels::simdName()
+{
+#if defined(KERNELS_SSE2)
+    return gSimdEnabled ? "SSE2" : "scalar";
+#elif defined(KERNELS_NEON)
+    return gSimdEnabled ? "NEON" : "scalar";
+#else
+    return "scalar";
+#endif
+}
+
+void ImageKernels::setSimdEnabled(bool enabled)
+{
+    gSimdEnabled = enabled && gSimdSupported;
+}
+
+void ImageKernels::splitYVUA(const ImageTypeBase *in, ImageType y, ImageType v,
+        ImageType u, int count)
+{
+    for (int i = 0; i < count; i++)
+    {
+        y[i] = in[4 * i];
+        v[i] = in[4 * i + 1];
+        u[i] = in[4 * i + 2];
+    }
+}
+
+void ImageKernels::splitVU(const ImageTypeBase *vu, ImageType v, ImageType u, int count)
+{
+    for (int i = 0; i < count; i += 2)
+    {
+        v[i] = v[i + 1] = vu[i];
+        u[i] = u[i + 1] = vu[i + 1];
+    }
+}
+
+void ImageKernels::mergeVU(const ImageTypeBase *v, const ImageTypeBase *u, ImageType vu,
+        int count)
+{
+    for (int i = 0; i < count; i += 2)
+    {
+        vu[i] = v[i];
+        vu[i + 1] = u[i];
+    }
+}
+
+void ImageKernels::subsample4(const ImageTypeBase *in, ImageType out, int count)
+{
+    int i = 0;
+#if defined(KERNELS_SSE2)
+    if (gSimdEnabled)
+    {
+        // The last vector reads 3 samples past in[4 * (i + 15)], so it must
+        // not hold the last output.
+        const __m128i mask = _mm_set1_epi32(0xff);
+        for (; i + 16 < count; i += 16)
+        {
+            const __m128i *src = (const __m128i *) (in + 4 * i);
+            _mm_storeu_si128((__m128i *) (out + i), packBytes(
+                    _mm_and_si128(_mm_loadu_si128(src), mask),
+                    _mm_and_si128(_mm_loadu_si128(src + 1), mask),
+                    _mm_and_si128(_mm_loadu_si128(src + 2), mask),
+                    _mm_and_si128(_mm_loadu_si128(src + 3), mask)));
+        }
+    }
+#elif defined(KERNELS_NEON)
+    if (gSimdEnabled)
+        i = subsample4Neon(in, out, count);
+#endif
+    for (; i < count; i++)
+        out[i] = in[4 * i];
+}
+
+void ImageKernels::widenShift3(const ImageTypeBase *in, ImageTypeShort out, int count)
+{
+    for (int i = 0; i < count; i++)
+        out[i] = (short) (in[i] << 3);
+}
+
+void ImageKernels::reduceRow(const ImageTypeShortBase *p, ImageTypeShort out, int count)
+{
+    int i = 0;
+#if defined(KERNELS_SSE2)
+    if (gSimdEnabled)
+    {
+        // Each vector reads up to p[2i + 21].
+        for (; i + 11 <= count; i += 8)
+        {
+            const __m128i *src = (const __m128i *) (p + 2 * i - 2);
+            __m128i a = _mm_loadu_si128(src);
+            __m128i b = _mm_loadu_si128(src + 1);
+            __m128i c = _mm_loadu_si128(src + 2);
+            // e0 holds p[2i-2], p[2i], p[2i+2], p[2i+4] and o0 the odd
+            // samples after them, and so on.
+            __m128i e0 = evens32(a), o0 = odds32(a);
+            __m128i e1 = evens32(b), o1 = odds32(b);
+            __m128i e2 = evens32(c), o2 = odds32(c);
+            __m128i lo = reduce32(e0, o0, next1(e0, e1), next1(o0, o1), next2(e0, e1));
+            __m128i hi = reduce32(e1, o1, next1(e1, e2), next1(o1, o2), next2(e1, e2));
+            _mm_storeu_si128((__m128i *) (out + i), pack16(lo, hi));
+        }
+    }
+#elif defined(KERNELS_NEON)
+    if (gSimdEnabled)
+        i = reduceRowNeon(p, out, count);
+#endif
+    for (; i < count; i++)
+    {
+        const ImageTypeShortBase *q = p + 2 * i;
+        out[i] = (short)((((int) q[-2]) + ((int) q[2]) + 8 +
+                    ((((int) q[-1]) + ((int) q[1])) << 2) +
+                    ((int) *q) * 6) >> 4);
+    }
+}
+
+void ImageKernels::reduceColumns(const ImageTypeShortBase *p, int pitch, ImageTypeShort out,
+        int count)
+{
+    int pitch2 = pitch << 1;
+    for (int i = 0; i < count; i++)
+    {
+        const ImageTypeShortBase *q = p + i;
+        out[i] = (short)((((int) q[-pitch2]) + ((int) q[pitch2]) + 8 +
+                    ((((int) q[-pitch]) + ((int) q[pitch])) << 2) +
+                    ((int) *q) * 6) >> 4);
+    }
+}
+
+void ImageKernels::expandColumns(const ImageTypeShortBase *p, int pitch, ImageTypeShort even,
+        ImageTypeShort odd, int count)
+{
+    for (int i = 0; i < count; i++)
+    {
+        int t1 = p[i];
+        int t2 = p[i + pitch];
+        even[i] = (short) ((6 * t1 + (p[i - pitch] + t2) + 4) >> 3);
+        odd[i] = (short) ((t1 + t2 + 1) >> 1);
+    }
+}
+
+void ImageKernels::expandRow(const ImageTypeShortBase *p, ImageTypeShort out, int count,
+        int mode)
+{
+    for (int i = 0; i < count; i++)
+    {
+        int t1 = p[i];
+        int t2 = p[i + 1];
+        out[2 * i] = (short) (out[2 * i] + (mode * ((6 * t1 + p[i - 1] + t2 + 4) >> 3)));
+        out[2 * i + 1] = (short) (out[2 * i + 1] + (mode * ((t1 + t2 + 1) >> 1)));
+    }
+}
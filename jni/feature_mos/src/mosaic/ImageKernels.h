@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// ImageKernels.h
+
+#ifndef IMAGE_KERNELS_H
+#define IMAGE_KERNELS_H
+
+#include "ImageUtils.h"
+
+/**
+ *  Row kernels of the colour conversions and of the pyramid filters.
+ *  subsample4() and reduceRow() also have SSE2 and NEON versions, which
+ *  give exactly the same results; the compiler vectorizes the other loops
+ *  as well as hand written code does. NEON is only used if the CPU has
+ *  it. The 16 bit results wrap around like the casts of the scalar
+ *  versions.
+ */
+class ImageKernels {
+
+public:
+
+  /**
+   *  Returns the name of the instruction set used by the kernels: "SSE2",
+   *  "NEON" or "scalar".
+   */
+  static const char *simdName();
+
+  /**
+   *  Selects the scalar kernels even if SIMD ones are available, for
+   *  testing and benchmarking. SIMD is enabled by default if the CPU
+   *  supports it.
+   */
+  static void setSimdEnabled(bool enabled);
+
+  /**
+   *  Splits interleaved YVUA pixels into Y, V and U planes.
+   */
+  static void splitYVUA(const ImageTypeBase *in, ImageType y, ImageType v, ImageType u,
+      int count);
+
+  /**
+   *  Splits a row of NV21 chroma into full width V and U rows, repeating
+   *  each sample twice. count is the width of the output rows and must be
+   *  even.
+   */
+  static void splitVU(const ImageTypeBase *vu, ImageType v, ImageType u, int count);
+
+  /**
+   *  Interleaves the samples of the even columns of V and U rows into a
+   *  row of NV21 chroma. count is the width of the input rows and must be
+   *  even.
+   */
+  static void mergeVU(const ImageTypeBase *v, const ImageTypeBase *u, ImageType vu,
+      int count);
+
+  /**
+   *  Takes every fourth sample: out[i] = in[4 * i] for i < count.
+   */
+  static void subsample4(const ImageTypeBase *in, ImageType out, int count);
+
+  /**
+   *  Converts samples to the fixed point of the pyramids: out[i] = in[i] << 3.
+   */
+  static void widenShift3(const ImageTypeBase *in, ImageTypeShort out, int count);
+
+  /**
+   *  Filters a row with [1 4 6 4 1] / 16 and halves it:
+   *  out[i] = (p[2i-2] + 4 p[2i-1] + 6 p[2i] + 4 p[2i+1] + p[2i+2] + 8) >> 4.
+   */
+  static void reduceRow(const ImageTypeShortBase *p, ImageTypeShort out, int count);
+
+  /**
+   *  Filters five rows, p[-2 pitch] to p[2 pitch], with [1 4 6 4 1] / 16
+   *  into one.
+   */
+  static void reduceColumns(const ImageTypeShortBase *p, int pitch, ImageTypeShort out,
+      int count);
+
+  /**
+   *  Doubles the height of the rows p[-pitch] to p[pitch] around the row
+   *  p: even[i] = (p[i-pitch] + 6 p[i] + p[i+pitch] + 4) >> 3 and
+   *  odd[i] = (p[i] + p[i+pitch] + 1) >> 1.
+   */
+  static void expandColumns(const ImageTypeShortBase *p, int pitch, ImageTypeShort even,
+      ImageTypeShort odd, int count);
+
+  /**
+   *  Doubles the width of a row and adds it to out, times mode:
+   *  out[2i] += mode * ((p[i-1] + 6 p[i] + p[i+1] + 4) >> 3) and
+   *  out[2i+1] += mode * ((p[i] + p[i+1] + 1) >> 1).
+   */
+  static void expandRow(const ImageTypeShortBase *p, ImageTypeShort out, int count,
+      int mode);
+};
+
+#endif
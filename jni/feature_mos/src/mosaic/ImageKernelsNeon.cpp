@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// ImageKernelsNeon.cpp
+
+#include "ImageKernelsNeon.h"
+
+#include <arm_neon.h>
+
+static inline int32x4_t reduce32(int32x4_t a, int32x4_t b, int32x4_t c, int32x4_t d,
+        int32x4_t e)
+{
+    int32x4_t sum = vaddq_s32(vaddq_s32(a, e), vdupq_n_s32(8));
+    sum = vaddq_s32(sum, vshlq_n_s32(vaddq_s32(b, d), 2));
+    return vshrq_n_s32(vmlaq_n_s32(sum, c, 6), 4);
+}
+
+// Filters 8 shorts in two halves of 4 ints. vmovn wraps around like a cast.
+static inline int16x8_t reduce16(int16x8_t a, int16x8_t b, int16x8_t c, int16x8_t d,
+        int16x8_t e)
+{
+    int32x4_t lo = reduce32(vmovl_s16(vget_low_s16(a)), vmovl_s16(vget_low_s16(b)),
+            vmovl_s16(vget_low_s16(c)), vmovl_s16(vget_low_s16(d)),
+            vmovl_s16(vget_low_s16(e)));
+    int32x4_t hi = reduce32(vmovl_s16(vget_high_s16(a)), vmovl_s16(vget_high_s16(b)),
+            vmovl_s16(vget_high_s16(c)), vmovl_s16(vget_high_s16(d)),
+            vmovl_s16(vget_high_s16(e)));
+    return vcombine_s16(vmovn_s32(lo), vmovn_s32(hi));
+}
+
+int subsample4Neon(const ImageTypeBase *in, ImageType out, int count)
+{
+    int i = 0;
+    // The last vector reads 3 samples past in[4 * (i + 15)], so it must not
+    // hold the last output.
+    for (; i + 16 < count; i += 16)
+        vst1q_u8(out + i, vld4q_u8(in + 4 * i).val[0]);
+    return i;
+}
+
+int reduceRowNeon(const ImageTypeShortBase *p, ImageTypeShort out, int count)
+{
+    int i = 0;
+    // Each vector reads up to p[2i + 29].
+    for (; i + 15 <= count; i += 8)
+    {
+        int16x8x2_t a = vld2q_s16(p + 2 * i - 2);
+        int16x8x2_t b = vld2q_s16(p + 2 * i + 14);
+        vst1q_s16(out + i, reduce16(a.val[0], a.val[1], vextq_s16(a.val[0], b.val[0], 1),
+                vextq_s16(a.val[1], b.val[1], 1), vextq_s16(a.val[0], b.val[0], 2)));
+    }
+    return i;
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// ImageKernelsNeon.h
+
+#ifndef IMAGE_KERNELS_NEON_H
+#define IMAGE_KERNELS_NEON_H
+
+#include "ImageUtils.h"
+
+// The NEON versions of the ImageKernels which are faster than the scalar
+// ones. They are built with NEON enabled, so they must only be called if
+// the CPU has it. Each processes the bulk of a row and returns the index
+// where the scalar loop has to go on.
+
+int subsample4Neon(const ImageTypeBase *in, ImageType out, int count);
+
+int reduceRowNeon(const ImageTypeShortBase *p, ImageTypeShort out, int count);
+
+#endif
@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// JpegWriter.cpp
+
+#include <string.h>
+
+#include "JpegWriter.h"
+
+#include "Log.h"
+#define LOG_TAG "JPEG_WRITER"
+
+// Position of each coefficient of a block (in natural order) in the zigzag
+// order.
+static const unsigned char kZigzag[64] = {
+    0, 1, 5, 6,14,15,27,28, 2, 4, 7,13,16,26,29,42,
+    3, 8,12,17,25,30,41,43, 9,11,18,24,31,40,44,53,
+   10,19,23,32,39,45,52,54,20,22,33,38,46,51,55,60,
+   21,34,37,47,50,56,59,61,35,36,48,49,57,58,62,63
+};
+
+// Quantization tables of the JPEG standard (Annex K.1), in natural order.
+static const unsigned char kLumaQuant[64] = {
+    16, 11, 10, 16, 24, 40, 51, 61, 12, 12, 14, 19, 26, 58, 60, 55,
+    14, 13, 16, 24, 40, 57, 69, 56, 14, 17, 22, 29, 51, 87, 80, 62,
+    18, 22, 37, 56, 68,109,103, 77, 24, 35, 55, 64, 81,104,113, 92,
+    49, 64, 78, 87,103,121,120,101, 72, 92, 95, 98,112,100,103, 99
+};
+
+static const unsigned char kChromaQuant[64] = {
+    17, 18, 24, 47, 99, 99, 99, 99, 18, 21, 26, 66, 99, 99, 99, 99,
+    24, 26, 56, 99, 99, 99, 99, 99, 47, 66, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99
+};
+
+// Huffman tables of the JPEG standard (Annex K.3): the number of codes of
+// each length from 1 to 16, followed by the symbols.
+static const unsigned char kLumaDCBits[16] = {0,1,5,1,1,1,1,1,1,0,0,0,0,0,0,0};
+static const unsigned char kChromaDCBits[16] = {0,3,1,1,1,1,1,1,1,1,1,0,0,0,0,0};
+static const unsigned char kDCValues[12] = {0,1,2,3,4,5,6,7,8,9,10,11};
+
+static const unsigned char kLumaACBits[16] = {0,2,1,3,3,2,4,3,5,5,4,4,0,0,1,0x7d};
+static const unsigned char kLumaACValues[162] = {
+    0x01,0x02,0x03,0x00,0x04,0x11,0x05,0x12,0x21,0x31,0x41,0x06,0x13,0x51,0x61,0x07,
+    0x22,0x71,0x14,0x32,0x81,0x91,0xa1,0x08,0x23,0x42,0xb1,0xc1,0x15,0x52,0xd1,0xf0,
+    0x24,0x33,0x62,0x72,0x82,0x09,0x0a,0x16,0x17,0x18,0x19,0x1a,0x25,0x26,0x27,0x28,
+    0x29,0x2a,0x34,0x35,0x36,0x37,0x38,0x39,0x3a,0x43,0x44,0x45,0x46,0x47,0x48,0x49,
+    0x4a,0x53,0x54,0x55,0x56,0x57,0x58,0x59,0x5a,0x63,0x64,0x65,0x66,0x67,0x68,0x69,
+    0x6a,0x73,0x74,0x75,0x76,0x77,0x78,0x79,0x7a,0x83,0x84,0x85,0x86,0x87,0x88,0x89,
+    0x8a,0x92,0x93,0x94,0x95,0x96,0x97,0x98,0x99,0x9a,0xa2,0xa3,0xa4,0xa5,0xa6,0xa7,
+    0xa8,0xa9,0xaa,0xb2,0xb3,0xb4,0xb5,0xb6,0xb7,0xb8,0xb9,0xba,0xc2,0xc3,0xc4,0xc5,
+    0xc6,0xc7,0xc8,0xc9,0xca,0xd2,0xd3,0xd4,0xd5,0xd6,0xd7,0xd8,0xd9,0xda,0xe1,0xe2,
+    0xe3,0xe4,0xe5,0xe6,0xe7,0xe8,0xe9,0xea,0xf1,0xf2,0xf3,0xf4,0xf5,0xf6,0xf7,0xf8,
+    0xf9,0xfa
+};
+
+static const unsigned char kChromaACBits[16] = {0,2,1,2,4,4,3,4,7,5,4,4,0,1,2,0x77};
+static const unsigned char kChromaACValues[162] = {
+    0x00,0x01,0x02,0x03,0x11,0x04,0x05,0x21,0x31,0x06,0x12,0x41,0x51,0x07,0x61,0x71,
+    0x13,0x22,0x32,0x81,0x08,0x14,0x42,0x91,0xa1,0xb1,0xc1,0x09,0x23,0x33,0x52,0xf0,
+    0x15,0x62,0x72,0xd1,0x0a,0x16,0x24,0x34,0xe1,0x25,0xf1,0x17,0x18,0x19,0x1a,0x26,
+    0x27,0x28,0x29,0x2a,0x35,0x36,0x37,0x38,0x39,0x3a,0x43,0x44,0x45,0x46,0x47,0x48,
+    0x49,0x4a,0x53,0x54,0x55,0x56,0x57,0x58,0x59,0x5a,0x63,0x64,0x65,0x66,0x67,0x68,
+    0x69,0x6a,0x73,0x74,0x75,0x76,0x77,0x78,0x79,0x7a,0x82,0x83,0x84,0x85,0x86,0x87,
+    0x88,0x89,0x8a,0x92,0x93,0x94,0x95,0x96,0x97,0x98,0x99,0x9a,0xa2,0xa3,0xa4,0xa5,
+    0xa6,0xa7,0xa8,0xa9,0xaa,0xb2,0xb3,0xb4,0xb5,0xb6,0xb7,0xb8,0xb9,0xba,0xc2,0xc3,
+    0xc4,0xc5,0xc6,0xc7,0xc8,0xc9,0xca,0xd2,0xd3,0xd4,0xd5,0xd6,0xd7,0xd8,0xd9,0xda,
+    0xe2,0xe3,0xe4,0xe5,0xe6,0xe7,0xe8,0xe9,0xea,0xf2,0xf3,0xf4,0xf5,0xf6,0xf7,0xf8,
+    0xf9,0xfa
+};
+
+// Scale factors of the AAN DCT.
+static const float kAanScale[8] = {
+    1.0f * 2.828427125f, 1.387039845f * 2.828427125f,
+    1.306562965f * 2.828427125f, 1.175875602f * 2.828427125f,
+    1.0f * 2.828427125f, 0.785694958f * 2.828427125f,
+    0.541196100f * 2.828427125f, 0.275899379f * 2.828427125f
+};
+
+static const int TABLE_Y_DC = 0;
+static const int TABLE_Y_AC = 1;
+static const int TABLE_C_DC = 2;
+static const int TABLE_C_AC = 3;
+
+static void BuildHuffmanCodes(const unsigned char *bits, const unsigned char *values,
+        unsigned short *codes, unsigned char *lengths)
+{
+    int code = 0;
+    int k = 0;
+    for (int len = 1; len <= 16; len++)
+    {
+        for (int i = 0; i < bits[len - 1]; i++)
+        {
+            codes[values[k]] = code++;
+            lengths[values[k]] = len;
+            k++;
+        }
+        code <<= 1;
+    }
+}
+
+static void ScaleQuantTable(const unsigned char *base, int quality,
+        unsigned char *zigzagTable, float *multipliers)
+{
+    int scale = (quality < 50) ? 5000 / quality : 200 - quality * 2;
+    for (int i = 0; i < 64; i++)
+    {
+        int q = (base[i] * scale + 50) / 100;
+        if (q < 1) q = 1;
+        else if (q > 255) q = 255;
+        zigzagTable[kZigzag[i]] = (unsigned char) q;
+    }
+    for (int row = 0; row < 8; row++)
+    {
+        for (int col = 0; col < 8; col++)
+        {
+            int i = row * 8 + col;
+            multipliers[i] = 1.0f / (zigzagTable[kZigzag[i]] * kAanScale[row] * kAanScale[col]);
+        }
+    }
+}
+
+// Number of bits needed for the magnitude of a coefficient.
+static inline int BitSize(int value)
+{
+    if (value < 0) value = -value;
+    int size = 0;
+    while (value >> size)
+        size++;
+    return size;
+}
+
+// One dimensional AAN forward DCT of 8 values, step elements apart.
+static inline void ForwardDCT(float *d, int step)
+{
+    float tmp0 = d[0] + d[7 * step];
+    float tmp7 = d[0] - d[7 * step];
+    float tmp1 = d[step] + d[6 * step];
+    float tmp6 = d[step] - d[6 * step];
+    float tmp2 = d[2 * step] + d[5 * step];
+    float tmp5 = d[2 * step] - d[5 * step];
+    float tmp3 = d[3 * step] + d[4 * step];
+    float tmp4 = d[3 * step] - d[4 * step];
+
+    // Even part
+    float tmp10 = tmp0 + tmp3;
+    float tmp13 = tmp0 - tmp3;
+    float tmp11 = tmp1 + tmp2;
+    float tmp12 = tmp1 - tmp2;
+
+    d[0] = tmp10 + tmp11;
+    d[4 * step] = tmp10 - tmp11;
+
+    float z1 = (tmp12 + tmp13) * 0.707106781f;
+    d[2 * step] = tmp13 + z1;
+    d[6 * step] = tmp13 - z1;
+
+    // Odd part
+    tmp10 = tmp4 + tmp5;
+    tmp11 = tmp5 + tmp6;
+    tmp12 = tmp6 + tmp7;
+
+    float z5 = (tmp10 - tmp12) * 0.382683433f;
+    float z2 = tmp10 * 0.541196100f + z5;
+    float z4 = tmp12 * 1.306562965f + z5;
+    float z3 = tmp11 * 0.707106781f;
+
+    float z11 = tmp7 + z3;
+    float z13 = tmp7 - z3;
+
+    d[5 * step] = z13 + z2;
+    d[3 * step] = z13 - z2;
+    d[step] = z11 + z4;
+    d[7 * step] = z11 - z4;
+}
+
+JpegWriter::JpegWriter()
+{
+    mFile = NULL;
+    memset(mCodes, 0, sizeof(mCodes));
+    memset(mLengths, 0, sizeof(mLengths));
+    BuildHuffmanCodes(kLumaDCBits, kDCValues, mCodes[TABLE_Y_DC], mLengths[TABLE_Y_DC]);
+    BuildHuffmanCodes(kLumaACBits, kLumaACValues, mCodes[TABLE_Y_AC], mLengths[TABLE_Y_AC]);
+    BuildHuffmanCodes(kChromaDCBits, kDCValues, mCodes[TABLE_C_DC], mLengths[TABLE_C_DC]);
+    BuildHuffmanCodes(kChromaACBits, kChromaACValues, mCodes[TABLE_C_AC], mLengths[TABLE_C_AC]);
+}
+
+JpegWriter::~JpegWriter()
+{
+}
+
+bool JpegWriter::begin(FILE *file, int width, int height, int quality)
+{
+    if (width <= 0 || height <= 0 || width > 65535 || height > 65535)
+    {
+        LOGE("Invalid JPEG size %d x %d", width, height);
+        return false;
+    }
+    if (quality < 1) quality = 1;
+    else if (quality > 100) quality = 100;
+
+    mFile = file;
+    mWidth = width;
+    mHeight = height;
+    mRowsWritten = 0;
+    mError = false;
+    mBitBuffer = 0;
+    mBitCount = 0;
+    mLastDC[0] = mLastDC[1] = mLastDC[2] = 0;
+    mOutSize = 0;
+
+    unsigned char yTable[64];
+    unsigned char cTable[64];
+    ScaleQuantTable(kLumaQuant, quality, yTable, mYQuant);
+    ScaleQuantTable(kChromaQuant, quality, cTable, mCQuant);
+
+    writeHeaders(yTable, cTable);
+    flushOut();
+    return !mError;
+}
+
+bool JpegWriter::writeBand(ImageType y, ImageType v, ImageType u, int stride, int rows)
+{
+    if (mFile == NULL || mError)
+        return false;
+    if (rows != BAND_ROWS && mRowsWritten + rows != mHeight)
+    {
+        LOGE("Band of %d rows at row %d", rows, mRowsWritten);
+        return false;
+    }
+    encodeMcuRow(y, v, u, stride, rows);
+    mRowsWritten += rows;
+    flushOut();
+    return !mError;
+}
+
+bool JpegWriter::end()
+{
+    if (mFile == NULL)
+        return false;
+    bool complete = (mRowsWritten == mHeight);
+    if (!complete)
+        LOGE("Only %d of %d rows were written", mRowsWritten, mHeight);
+
+    // Pad the last byte with ones.
+    putBits(0x7f, 7);
+    putByte(0xff);
+    putByte(0xd9);
+    flushOut();
+    mFile = NULL;
+    return complete && !mError;
+}
+
+void JpegWriter::putByte(unsigned char b)
+{
+    if (mOutSize == sizeof(mOut))
+        flushOut();
+    mOut[mOutSize++] = b;
+}
+
+void JpegWriter::putBytes(const unsigned char *data, int size)
+{
+    for (int i = 0; i < size; i++)
+        putByte(data[i]);
+}
+
+void JpegWriter::putBits(unsigned int bits, int count)
+{
+    mBitBuffer = (mBitBuffer << count) | bits;
+    mBitCount += count;
+    while (mBitCount >= 8)
+    {
+        unsigned char b = (unsigned char) (mBitBuffer >> (mBitCount - 8));
+        putByte(b);
+        // Stuff a zero byte after 0xff in the entropy coded data.
+        if (b == 0xff)
+            putByte(0);
+        mBitCount -= 8;
+    }
+    mBitBuffer &= (1 << mBitCount) - 1;
+}
+
+// Writes the low bits of a coefficient. Negative values are written as
+// their one's complement.
+void JpegWriter::putValue(int value, int size)
+{
+    if (size == 0)
+        return;
+    if (value < 0)
+        value--;
+    putBits(value & ((1 << size) - 1), size);
+}
+
+void JpegWriter::flushOut()
+{
+    if (mOutSize > 0 && !mError)
+    {
+        if (fwrite(mOut, 1, mOutSize, mFile) != (size_t) mOutSize)
+        {
+            LOGE("Cannot write the JPEG data");
+            mError = true;
+        }
+    }
+    mOutSize = 0;
+}
+
+void JpegWriter::writeHeaders(const unsigned char *yTable, const unsigned char *cTable)
+{
+    static const unsigned char soi[] = {
+        0xff, 0xd8,
+        // JFIF APP0 segment
+        0xff, 0xe0, 0x00, 0x10, 'J', 'F', 'I', 'F', 0x00, 0x01, 0x01,
+        0x00, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00
+    };
+    putBytes(soi, sizeof(soi));
+
+    static const unsigned char dqt[] = {0xff, 0xdb, 0x00, 0x84};
+    putBytes(dqt, sizeof(dqt));
+    putByte(0);
+    putBytes(yTable, 64);
+    putByte(1);
+    putBytes(cTable, 64);
+
+    // Baseline frame with 2x2 subsampled chroma.
+    const unsigned char sof[] = {
+        0xff, 0xc0, 0x00, 0x11, 0x08,
+        (unsigned char) (mHeight >> 8), (unsigned char) mHeight,
+        (unsigned char) (mWidth >> 8), (unsigned char) mWidth,
+        0x03, 0x01, 0x22, 0x00, 0x02, 0x11, 0x01, 0x03, 0x11, 0x01
+    };
+    putBytes(sof, sizeof(sof));
+
+    static const unsigned char dht[] = {0xff, 0xc4, 0x01, 0xa2};
+    putBytes(dht, sizeof(dht));
+    putByte(0x00);
+    putBytes(kLumaDCBits, 16);
+    putBytes(kDCValues, 12);
+    putByte(0x10);
+    putBytes(kLumaACBits, 16);
+    putBytes(kLumaACValues, 162);
+    putByte(0x01);
+    putBytes(kChromaDCBits, 16);
+    putBytes(kDCValues, 12);
+    putByte(0x11);
+    putBytes(kChromaACBits, 16);
+    putBytes(kChromaACValues, 162);
+
+    static const unsigned char sos[] = {
+        0xff, 0xda, 0x00, 0x0c, 0x03, 0x01, 0x00, 0x02, 0x11, 0x03, 0x11,
+        0x00, 0x3f, 0x00
+    };
+    putBytes(sos, sizeof(sos));
+}
+
+void JpegWriter::encodeBlock(float block[64], const float *quant, int component, int table)
+{
+    for (int i = 0; i < 64; i += 8)
+        ForwardDCT(block + i, 1);
+    for (int i = 0; i < 8; i++)
+        ForwardDCT(block + i, 8);
+
+    int coeffs[64];
+    for (int i = 0; i < 64; i++)
+    {
+        float value = block[i] * quant[i];
+        coeffs[kZigzag[i]] = (int) (value < 0 ? value - 0.5f : value + 0.5f);
+    }
+
+    const unsigned short *dcCodes = mCodes[table];
+    const unsigned char *dcLengths = mLengths[table];
+    const unsigned short *acCodes = mCodes[table + 1];
+    const unsigned char *acLengths = mLengths[table + 1];
+
+    // The DC coefficient is coded as the difference with the previous block.
+    int diff = coeffs[0] - mLastDC[component];
+    mLastDC[component] = coeffs[0];
+    int size = BitSize(diff);
+    putBits(dcCodes[size], dcLengths[size]);
+    putValue(diff, size);
+
+    int run = 0;
+    for (int i = 1; i < 64; i++)
+    {
+        int value = coeffs[i];
+        if (value == 0)
+        {
+            run++;
+            continue;
+        }
+        while (run >= 16)
+        {
+            putBits(acCodes[0xf0], acLengths[0xf0]);
+            run -= 16;
+        }
+        size = BitSize(value);
+        int symbol = (run << 4) | size;
+        putBits(acCodes[symbol], acLengths[symbol]);
+        putValue(value, size);
+        run = 0;
+    }
+
+    // End of block, unless the last coefficient was coded.
+    if (run > 0)
+        putBits(acCodes[0x00], acLengths[0x00]);
+}
+
+void JpegWriter::encodeMcuRow(ImageType y, ImageType v, ImageType u, int stride, int rows)
+{
+    float block[64];
+
+    for (int x0 = 0; x0 < mWidth; x0 += 16)
+    {
+        // Four luma blocks. Pixels past the edges repeat the last row and
+        // column.
+        for (int b = 0; b < 4; b++)
+        {
+            int bx = x0 + (b & 1) * 8;
+            int by = (b >> 1) * 8;
+            for (int r = 0; r < 8; r++)
+            {
+                int row = by + r;
+                if (row >= rows) row = rows - 1;
+                ImageType src = y + row * stride;
+                for (int c = 0; c < 8; c++)
+                {
+                    int col = bx + c;
+                    if (col >= mWidth) col = mWidth - 1;
+                    block[r * 8 + c] = src[col] - 128.0f;
+                }
+            }
+            encodeBlock(block, mYQuant, 0, TABLE_Y_DC);
+        }
+
+        // Cb (U) then Cr (V), averaged over 2x2 pixels.
+        for (int p = 0; p < 2; p++)
+        {
+            ImageType plane = (p == 0) ? u : v;
+            for (int r = 0; r < 8; r++)
+            {
+                int row0 = 2 * r;
+                int row1 = row0 + 1;
+                if (row0 >= rows) row0 = rows - 1;
+                if (row1 >= rows) row1 = rows - 1;
+                ImageType src0 = plane + row0 * stride;
+                ImageType src1 = plane + row1 * stride;
+                for (int c = 0; c < 8; c++)
+                {
+                    int col0 = x0 + 2 * c;
+                    int col1 = col0 + 1;
+                    if (col0 >= mWidth) col0 = mWidth - 1;
+                    if (col1 >= mWidth) col1 = mWidth - 1;
+                    int sum = src0[col0] + src0[col1] + src1[col0] + src1[col1];
+                    block[r * 8 + c] = ((sum + 2) >> 2) - 128.0f;
+                }
+            }
+            encodeBlock(block, mCQuant, p + 1, TABLE_C_DC);
+        }
+    }
+}
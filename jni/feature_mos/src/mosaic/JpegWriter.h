@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// JpegWriter.h
+
+#ifndef JPEG_WRITER_H
+#define JPEG_WRITER_H
+
+#include <stdio.h>
+
+#include "ImageUtils.h"
+
+/**
+ *  Baseline JPEG encoder which is fed a planar YVU image in horizontal
+ *  bands, so the whole image never needs to be converted or encoded in
+ *  memory at once. The output is 4:2:0 subsampled and is written to the
+ *  file as each band is encoded.
+ */
+class JpegWriter {
+
+public:
+
+  /**
+   *  Number of rows in a band. Every band but the last one must have this
+   *  many rows.
+   */
+  static const int BAND_ROWS = 16;
+
+  JpegWriter();
+  ~JpegWriter();
+
+  /**
+   *  Writes the JPEG headers.
+   *
+   *  Arguments:
+   *    file: Output file, left open by end()
+   *    width: Width of the image
+   *    height: Height of the image
+   *    quality: JPEG quality from 1 to 100
+   *  Returns false on a write error.
+   */
+  bool begin(FILE *file, int width, int height, int quality);
+
+  /**
+   *  Encodes the next band of the image.
+   *
+   *  Arguments:
+   *    y, v, u: First row of the band in each plane
+   *    stride: Distance between the rows of a plane
+   *    rows: Number of rows in the band
+   *  Returns false on a write error.
+   */
+  bool writeBand(ImageType y, ImageType v, ImageType u, int stride, int rows);
+
+  /**
+   *  Flushes the last bits and writes the end of image marker. Returns false
+   *  if the image is incomplete or on a write error.
+   */
+  bool end();
+
+private:
+
+  FILE *mFile;
+  int mWidth, mHeight;
+  int mRowsWritten;
+  bool mError;
+
+  // Quantization multipliers for the scaled DCT, in natural order.
+  float mYQuant[64];
+  float mCQuant[64];
+
+  // Huffman codes and lengths indexed by symbol: Y DC, Y AC, C DC, C AC.
+  unsigned short mCodes[4][256];
+  unsigned char mLengths[4][256];
+
+  unsigned int mBitBuffer;
+  int mBitCount;
+  int mLastDC[3];
+
+  unsigned char mOut[4096];
+  int mOutSize;
+
+  void putByte(unsigned char b);
+  void putBytes(const unsigned char *data, int size);
+  void putBits(unsigned int bits, int count);
+  void putValue(int value, int size);
+  void flushOut();
+
+  void writeHeaders(const unsigned char *yTable, const unsigned char *cTable);
+  void encodeBlock(float block[64], const float *quant, int component, int table);
+  void encodeMcuRow(ImageType y, ImageType v, ImageType u, int stride, int rows);
+};
+
+#endif
@@ -188,6 +188,21 @@ int Mosaic::addFrame(ImageType imageYVU)
     return ret;
 }
 
+int Mosaic::addAlignedFrame(ImageType imageYVU, double trs[3][3])
+{
+    if (frames_size >= max_frames)
+        return MOSAIC_RET_ERROR;
+
+    if(frames[frames_size]==NULL)
+        frames[frames_size] = new MosaicFrame(this->width,this->height,false);
+
+    MosaicFrame *frame = frames[frames_size];
+    frame->image = imageYVU;
+    memcpy(frame->trs, trs, sizeof(frame->trs));
+    frames_size++;
+
+    return MOSAIC_RET_OK;
+}
 
 int Mosaic::createMosaic(float &progress, bool &cancelComputation)
 {
@@ -231,6 +246,34 @@ int Mosaic::createMosaic(float &progress, bool &cancelComputation)
     return ret;
 }
 
+void Mosaic::setBlendThreadCount(int threads)
+{
+    if (blender != NULL)
+        blender->setThreadCount(threads);
+}
+
+int Mosaic::retainFrames(const ImageType *images, int count)
+{
+    int kept = 0;
+    for (int i = 0; i < frames_size; i++)
+    {
+        bool keep = false;
+        for (int j = 0; j < count && !keep; j++)
+            keep = (frames[i]->image == images[j]);
+
+        if (keep)
+        {
+            // Move the dropped frame past the end so that it can be reused.
+            MosaicFrame *frame = frames[kept];
+            frames[kept] = frames[i];
+            frames[i] = frame;
+            kept++;
+        }
+    }
+    frames_size = kept;
+    return frames_size;
+}
+
 ImageType Mosaic::getMosaic(int &width, int &height)
 {
     width = mosaicWidth;
@@ -104,6 +104,15 @@ public:
     */
   int addFrame(ImageType imageYVU);
 
+   /*!
+    *   Adds a YVU frame whose alignment is already known, without running
+    *   the aligner, e.g. a frame restored from a checkpoint.
+    *   \param imageYVU     Pointer to a YVU image.
+    *   \param trs          Transformation from the first frame to this one.
+    *   \return             Return code signifying success or failure.
+    */
+  int addAlignedFrame(ImageType imageYVU, double trs[3][3]);
+
    /*!
     *   Adds a RGB frame to the mosaic.
     *   \param imageRGB     Pointer to a RGB image.
@@ -118,6 +127,13 @@ public:
     */
   int createMosaic(float &progress, bool &cancelComputation);
 
+    /*!
+    *   Sets the number of threads used to blend the mosaic. The result is
+    *   the same for any number of threads. Call after initialize().
+    *   \param threads      Number of threads, 1 to BLEND_MAX_THREADS.
+    */
+  void setBlendThreadCount(int threads);
+
     /*!
     *   Obtains the resulting mosaic and its dimensions.
     *   \param width        Width of the resulting mosaic (returned)
@@ -132,6 +148,30 @@ public:
     */
   Align* getAligner() { return aligner; }
 
+    /*!
+    *   Drops the added frames whose image is not in the given list. The
+    *   alignment of the remaining frames is unchanged, and the dropped
+    *   frames are reused by later calls to addFrame().
+    *   \param images       Images of the frames to keep.
+    *   \param count        Number of images.
+    *   \return             Number of frames left.
+    */
+  int retainFrames(const ImageType *images, int count);
+
+    /*!
+    *   Obtains an added frame. Blending changes the transformations of the
+    *   frames, so they are only those of the alignment before
+    *   createMosaic().
+    *   \param i            Index of the frame, from 0 to getFrameCount() - 1.
+    *   \return             Pointer to the frame.
+    */
+  MosaicFrame* getFrame(int i) { return frames[i]; }
+
+    /*!
+    *   Obtains the number of added frames.
+    */
+  int getFrameCount() { return frames_size; }
+
     /*!
     *   Obtain initialization state.
     *
@@ -20,6 +20,7 @@
 #include <string.h>
 
 #include "Pyramid.h"
+#include "ImageKernels.h"
 
 // We allocate the entire pyramid into one contiguous storage. This makes
 // cleanup easier than fragmented stuff. In addition, we added a "pitch"
@@ -148,20 +149,15 @@ void PyramidShort::BorderSpread(PyramidShort *pyr, int left, int right,
 void PyramidShort::BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidShort *scr,
         int mode)
 {
-    int i,j;
+    int j;
     int off = in->border / 2;
 
     // Vertical Filter
     for (j = -off; j < in->height + off; j++) {
         int j2 = j * 2;
-        int limit = scr->width + scr->border;
-        for (i = -scr->border; i < limit; i++) {
-            int t1 = in->ptr[j][i];
-            int t2 = in->ptr[j+1][i];
-            scr->ptr[j2][i] = (short)
-                ((6 * t1 + (in->ptr[j-1][i] + t2) + 4) >> 3);
-            scr->ptr[j2+1][i] = (short)((t1 + t2 + 1) >> 1);
-        }
+        ImageKernels::expandColumns(in->ptr[j] - scr->border, in->pitch,
+                scr->ptr[j2] - scr->border, scr->ptr[j2+1] - scr->border,
+                scr->width + 2 * scr->border);
     }
 
     BorderSpread(scr, 0, 0, 3, 3);
@@ -169,16 +165,8 @@ void PyramidShort::BorderExpandOdd(PyramidShort *in, PyramidShort *out, PyramidS
     // Horizontal Filter
     int limit = out->height + out->border;
     for (j = -out->border; j < limit; j++) {
-        for (i = -off; i < scr->width + off; i++) {
-            int i2 = i * 2;
-            int t1 = scr->ptr[j][i];
-            int t2 = scr->ptr[j][i+1];
-            out->ptr[j][i2] = (short) (out->ptr[j][i2] +
-                    (mode * ((6 * t1 +
-                              scr->ptr[j][i-1] + t2 + 4) >> 3)));
-            out->ptr[j][i2+1] = (short) (out->ptr[j][i2+1] +
-                    (mode * ((t1 + t2 + 1) >> 1)));
-        }
+        ImageKernels::expandRow(scr->ptr[j] - off, out->ptr[j] - 2 * off,
+                scr->width + 2 * off, mode);
     }
 
 }
@@ -224,11 +212,7 @@ void PyramidShort::BorderReduceOdd(PyramidShort *in, PyramidShort *out, PyramidS
 
     // treat it as if the whole thing were the image
     for (; s < ls; s = ns, ns += scr->pitch, p = np, np += in->pitch) {
-        for (int w = width; w--; s++, p += 2) {
-            *s = (short)((((int) p[-2]) + ((int) p[2]) + 8 +    // 1
-                        ((((int) p[-1]) + ((int) p[1])) << 2) + // 4
-                        ((int) *p) * 6) >> 4);          // 6
-        }
+        ImageKernels::reduceRow(p, s, width);   // [1 4 6 4 1] / 16
     }
 
     BorderSpread(scr, 5, 4 + ((in->width ^ 1) & 1), 0, 0); //
@@ -241,11 +225,7 @@ void PyramidShort::BorderReduceOdd(PyramidShort *in, PyramidShort *out, PyramidS
     int pitch2 = pitch << 1;
     np = p + pitch2;
     for (; s < ls; s = ns, ns += out->pitch, p = np, np += pitch2) {
-        for (int w = out->pitch; w--; s++, p++) {
-            *s = (short)((((int) p[-pitch2]) + ((int) p[pitch2]) + 8 + // 1
-                        ((((int) p[-pitch]) + ((int) p[pitch])) << 2) + // 4
-                        ((int) *p) * 6) >> 4);              // 6
-        }
+        ImageKernels::reduceColumns(p, pitch, s, out->pitch);   // [1 4 6 4 1] / 16
     }
     BorderSpread(out, 0, 0, 5, 5);
 
@@ -17,15 +17,19 @@
 /*
 *
  */
+#include <math.h>
 #include <string.h>
 #include <jni.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <time.h>
+#include <pthread.h>
 #include <db_utilities_camera.h>
 
 #include "mosaic/AlignFeatures.h"
 #include "mosaic/Blend.h"
+#include "mosaic/ImageKernels.h"
+#include "mosaic/JpegWriter.h"
 #include "mosaic/Mosaic.h"
 #include "mosaic/Log.h"
 #define LOG_TAG "FEATURE_MOS_JNI"
@@ -40,6 +44,10 @@ char buffer[1024];
 
 const int MAX_FRAMES = 100;
 
+// Largest translation, as a fraction of the low-res frame size, required
+// between accepted frames once the frame slots have filled up.
+const float MAX_FRAME_SPACING = 0.25f;
+
 static double mTx;
 
 int tWidth[NR];
@@ -49,7 +57,7 @@ ImageType tImage[NR][MAX_FRAMES];// = {{ImageUtils::IMAGE_TYPE_NOIMAGE}}; // YVU
 Mosaic *mosaic[NR] = {NULL,NULL};
 ImageType resultYVU = ImageUtils::IMAGE_TYPE_NOIMAGE;
 ImageType resultBGR = ImageUtils::IMAGE_TYPE_NOIMAGE;
-float gTRS[11]; // 9 elements of the transformation, 1 for frame-number, 1 for alignment error code.
+float gTRS[12]; // 9 elements of the transformation, 1 for frame-number, 1 for alignment error code, 1 for inlier count.
 // Variables to keep track of the mosaic computation progress for both LR & HR.
 float gProgress[NR];
 // Variables to be able to cancel the mosaic computation when the GUI says so.
@@ -63,6 +71,7 @@ int mosaicWidth=0, mosaicHeight=0;
 //int blendingType = Blend::BLEND_TYPE_CYLPAN;
 int blendingType = Blend::BLEND_TYPE_HORZ;
 int stripType = Blend::STRIP_TYPE_THIN;
+int blendThreads = 1;
 bool high_res = false;
 bool quarter_res[NR] = {false,false};
 float thresh_still[NR] = {5.0f,0.0f};
@@ -85,6 +94,87 @@ now_ms(void)
 static int frame_number_HR = 0;
 static int frame_number_LR = 0;
 
+// The high-res frames are aligned on a worker thread while the capture is
+// going on, so that createMosaic(true) only has to blend them. The worker
+// aligns frames [hr_aligned, frame_number_HR) of mosaic[HR].
+static pthread_t hr_thread;
+static pthread_mutex_t hr_mutex = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t hr_cond = PTHREAD_COND_INITIALIZER;
+static bool hr_thread_running = false;
+static bool hr_thread_stop = false;
+static int hr_queued = 0;
+static int hr_aligned = 0;
+
+// Blending changes the alignment of the frames, so the alignment is copied
+// before blending for writeCheckpoint(). hr_snapshot_count is -1 until all
+// the frames have been aligned. hr_restored is set when loadCheckpoint()
+// has added the frames to mosaic[HR] already aligned. Guarded by hr_mutex.
+static ImageType hr_snapshot_images[MAX_FRAMES];
+static double hr_snapshot_trs[MAX_FRAMES][3][3];
+static int hr_snapshot_count = -1;
+static bool hr_restored = false;
+
+// A checkpoint starts with CHECKPOINT_HEADER_SIZE ints: the magic number,
+// the version, the frame width and height, the number of frames, whether
+// the frames are aligned, the blending type and the strip type. Each frame
+// follows, as its 3x3 transformation in doubles if the frames are aligned
+// and then its image in NV21 format. Numbers are in the native byte order.
+const int CHECKPOINT_MAGIC = 0x4b434e50; // "PNCK"
+const int CHECKPOINT_VERSION = 1;
+const int CHECKPOINT_HEADER_SIZE = 8;
+
+// Translation in low-res pixels a frame needs from the last accepted frame.
+// It starts at thresh_still[LR] and doubles each time the slots fill up.
+static float frame_spacing = 0.0f;
+
+// During the capture a worker thread blends each newly accepted low-res
+// frame into a canvas at the position of its alignment, so that the
+// growing panorama can be shown, and so that createMosaic(false) can
+// return the canvas instead of blending all the frames after the capture.
+// Each frame replaces the canvas past the seam halfway between its center
+// and the center of the frame before, with a cross-fade across the seam,
+// which gives the thin strips of Blend for a sweep. Only the frames
+// accepted since the last pass are blended, so the work per frame does not
+// grow with the panorama. Unlike Blend, the frames are placed by their
+// translation only and are not blended over a pyramid, which is good
+// enough for the low-res review. lr_mutex guards the accepted low-res
+// frames, frame_number_LR and the live_* state.
+
+// Limit of the canvas size in low-res pixels, against a bad alignment.
+const int LIVE_MOSAIC_MAX_SIZE = 4096;
+// Half the width of the cross-fade across a seam, in low-res pixels.
+const int LIVE_MOSAIC_FADE = 4;
+// The canvas has the Y, V and U planes and a plane which is nonzero where
+// a frame has been blended.
+const int LIVE_MOSAIC_PLANES = ImageUtils::IMAGE_TYPE_NUM_CHANNELS + 1;
+
+static double tTRS[MAX_FRAMES][3][3]; // Alignment of the accepted frames
+static pthread_t live_thread;
+static pthread_mutex_t lr_mutex = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t lr_cond = PTHREAD_COND_INITIALIZER;
+static bool live_thread_running = false;
+static bool live_thread_stop = false;
+// Planar YVU canvas whose top left pixel is at live_x0, live_y0 in the
+// coordinates of the first frame.
+static ImageType live_canvas = ImageUtils::IMAGE_TYPE_NOIMAGE;
+static int live_x0 = 0, live_y0 = 0;
+static int live_canvas_width = 0, live_canvas_height = 0;
+// The part of the canvas covered by frames, and the part covered by all
+// of them, in the same coordinates.
+static int live_left = 0, live_top = 0, live_right = 0, live_bottom = 0;
+static int live_inner_left = 0, live_inner_top = 0;
+static int live_inner_right = 0, live_inner_bottom = 0;
+// The center of the last frame blended, in the same coordinates.
+static double live_last_cx = 0.0, live_last_cy = 0.0;
+static int live_count = 0;          // Frames blended into the canvas
+static bool live_complete = true;   // Whether every frame is in the canvas
+static double live_blend_ms = 0.0;  // Time taken by the last pass
+static int live_blend_frames = 0;   // Frames blended by the last pass
+// The time taken by the frames of the capture, for the log.
+static double live_total_ms = 0.0;
+static double live_max_ms = 0.0;
+static int live_total_frames = 0;
+
 int Init(int mID, int nmax)
 {
         double  t0, t1, time_c;
@@ -110,6 +200,7 @@ int Init(int mID, int nmax)
         {
                 mosaic[mID]->initialize(blendingType, stripType, tWidth[mID], tHeight[mID],
                         nmax, quarter_res[mID], thresh_still[mID]);
+                mosaic[mID]->setBlendThreadCount(blendThreads);
         }
 
         t1 = now_ms();
@@ -121,44 +212,25 @@ int Init(int mID, int nmax)
 void GenerateQuarterResImagePlanar(ImageType im, int input_w, int input_h,
         ImageType &out)
 {
-    ImageType imp;
-    ImageType outp;
-
-    int count = 0;
+    int count = (input_w + H2L_FACTOR - 1) / H2L_FACTOR;
 
-    for (int j = 0; j < input_h; j += H2L_FACTOR)
+    // Subsample the Y, V and U planes.
+    for (int plane = 0; plane < 3; plane++)
     {
-        imp = im + j * input_w;
-        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
-
-        for (int i = 0; i < input_w; i += H2L_FACTOR)
+        for (int j = plane * input_h; j < (plane + 1) * input_h; j += H2L_FACTOR)
         {
-            *outp++ = *(imp + i);
-            count++;
-        }
-    }
-
-    for (int j = input_h; j < 2 * input_h; j += H2L_FACTOR)
-    {
-        imp = im + j * input_w;
-        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
+            ImageType imp = im + j * input_w;
+            ImageType outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
 
-        for (int i = 0; i < input_w; i += H2L_FACTOR)
-        {
-            *outp++ = *(imp + i);
-            count++;
-        }
-    }
-
-    for (int j = 2 * input_h; j < 3 * input_h; j += H2L_FACTOR)
-    {
-        imp = im + j * input_w;
-        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
-
-        for (int i = 0; i < input_w; i += H2L_FACTOR)
-        {
-            *outp++ = *(imp + i);
-            count++;
+            if (H2L_FACTOR == 4)
+            {
+                ImageKernels::subsample4(imp, outp, count);
+            }
+            else
+            {
+                for (int i = 0; i < count; i++)
+                    outp[i] = imp[i * H2L_FACTOR];
+            }
         }
     }
 }
@@ -206,6 +278,467 @@ int Finalize(int mID)
     return ret;
 }
 
+static void* AlignHighResThread(void* arg)
+{
+    pthread_mutex_lock(&hr_mutex);
+    while (true)
+    {
+        while (!hr_thread_stop && hr_aligned == hr_queued)
+            pthread_cond_wait(&hr_cond, &hr_mutex);
+        if (hr_thread_stop)
+            break;
+        int k = hr_aligned;
+        pthread_mutex_unlock(&hr_mutex);
+
+        AddFrame(HR, k, NULL);
+
+        pthread_mutex_lock(&hr_mutex);
+        hr_aligned = k + 1;
+        pthread_cond_broadcast(&hr_cond);
+    }
+    pthread_mutex_unlock(&hr_mutex);
+    return NULL;
+}
+
+// Waits for the frame being aligned and stops the high-res worker.
+static void StopHighResAlignment()
+{
+    if (!hr_thread_running)
+        return;
+    pthread_mutex_lock(&hr_mutex);
+    hr_thread_stop = true;
+    pthread_cond_broadcast(&hr_cond);
+    pthread_mutex_unlock(&hr_mutex);
+    pthread_join(hr_thread, NULL);
+    hr_thread_running = false;
+}
+
+static void StartHighResAlignment()
+{
+    StopHighResAlignment();
+    Init(HR, MAX_FRAMES);
+    hr_thread_stop = false;
+    hr_queued = 0;
+    hr_aligned = 0;
+    if (pthread_create(&hr_thread, NULL, AlignHighResThread, NULL) == 0)
+        hr_thread_running = true;
+    else
+        LOGE("Cannot start the high-res alignment thread");
+}
+
+// Copies the alignment of the frames of mosaic[HR] for writeCheckpoint().
+static void SnapshotHighResAlignment()
+{
+    pthread_mutex_lock(&hr_mutex);
+    int count = mosaic[HR]->getFrameCount();
+    for (int i = 0; i < count; i++)
+    {
+        MosaicFrame *frame = mosaic[HR]->getFrame(i);
+        hr_snapshot_images[i] = frame->image;
+        memcpy(hr_snapshot_trs[i], frame->trs, sizeof(frame->trs));
+    }
+    hr_snapshot_count = count;
+    pthread_mutex_unlock(&hr_mutex);
+}
+
+static void ResetLiveCanvas();
+
+// Allocates the images of slot k unless they are allocated already.
+static bool AllocateFrame(int k)
+{
+    if (tImage[LR][k] == NULL)
+        tImage[LR][k] = ImageUtils::allocateImage(tWidth[LR], tHeight[LR],
+                ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    if (tImage[HR][k] == NULL)
+        tImage[HR][k] = ImageUtils::allocateImage(tWidth[HR], tHeight[HR],
+                ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    return tImage[LR][k] != NULL && tImage[HR][k] != NULL;
+}
+
+// Drops every other accepted frame, keeping the first and the last one, and
+// doubles the spacing required between the frames accepted from now on.
+// Returns false if the spacing cannot grow any more.
+static bool DecimateFrames()
+{
+    float max_spacing = MAX_FRAME_SPACING *
+            (tWidth[LR] < tHeight[LR] ? tWidth[LR] : tHeight[LR]);
+    if (frame_spacing >= max_spacing)
+        return false;
+
+    // Both mosaics have to hold the same frames, so let the worker catch up
+    // and keep it waiting while the frames are moved.
+    pthread_mutex_lock(&hr_mutex);
+    while (hr_thread_running && hr_aligned < hr_queued)
+        pthread_cond_wait(&hr_cond, &hr_mutex);
+
+    pthread_mutex_lock(&lr_mutex);
+    int count = frame_number_HR;
+    int kept = 0;
+    for (int k = 0; k < count; k++)
+    {
+        if ((k & 1) == 0 || k == count - 1)
+        {
+            // The dropped images move to the free slots past the end.
+            for (int mID = 0; mID < NR; mID++)
+            {
+                ImageType image = tImage[mID][kept];
+                tImage[mID][kept] = tImage[mID][k];
+                tImage[mID][k] = image;
+            }
+            memcpy(tTRS[kept], tTRS[k], sizeof(tTRS[k]));
+            kept++;
+        }
+    }
+
+    mosaic[LR]->retainFrames(tImage[LR], kept);
+    if (hr_thread_running)
+    {
+        mosaic[HR]->retainFrames(tImage[HR], kept);
+        hr_queued = hr_aligned = kept;
+    }
+    frame_number_HR = frame_number_LR = kept;
+    // The seams move with the frames, so the kept frames are blended again.
+    ResetLiveCanvas();
+    pthread_mutex_unlock(&lr_mutex);
+
+    frame_spacing = frame_spacing < 0.5f ? 1.0f : 2.0f * frame_spacing;
+    if (frame_spacing > max_spacing)
+        frame_spacing = max_spacing;
+    mosaic[LR]->getAligner()->setStillThreshold(frame_spacing);
+    pthread_mutex_unlock(&hr_mutex);
+
+    LOGV("DecimateFrames: %d -> %d frames, spacing %g", count, kept,
+            frame_spacing);
+    return true;
+}
+
+// Makes sure that the slot of the next frame can be used.
+static bool MakeRoomForFrame()
+{
+    if (frame_number_HR >= MAX_FRAMES && !DecimateFrames())
+        return false;
+    return AllocateFrame(frame_number_HR);
+}
+
+// Makes the canvas cover the given rectangle, keeping its content. It grows
+// by at least a frame at a time, so it is copied only a few times during a
+// capture. Returns false if it would get too large.
+static bool GrowLiveCanvas(int x, int y, int width, int height)
+{
+    int x0 = x, y0 = y, x1 = x + width, y1 = y + height;
+    if (live_canvas != ImageUtils::IMAGE_TYPE_NOIMAGE)
+    {
+        x0 = live_x0;
+        y0 = live_y0;
+        x1 = live_x0 + live_canvas_width;
+        y1 = live_y0 + live_canvas_height;
+        if (x >= x0 && y >= y0 && x + width <= x1 && y + height <= y1)
+            return true;
+        if (x < x0) x0 = (x0 - x > width) ? x : x0 - width;
+        if (y < y0) y0 = (y0 - y > height) ? y : y0 - height;
+        if (x + width > x1) x1 = (x + width - x1 > width) ? x + width : x1 + width;
+        if (y + height > y1) y1 = (y + height - y1 > height) ? y + height : y1 + height;
+    }
+    int w = x1 - x0, h = y1 - y0;
+    if (w > LIVE_MOSAIC_MAX_SIZE || h > LIVE_MOSAIC_MAX_SIZE)
+        return false;
+
+    ImageType canvas = ImageUtils::allocateImage(w, h, LIVE_MOSAIC_PLANES);
+    if (canvas == ImageUtils::IMAGE_TYPE_NOIMAGE)
+        return false;
+    // Black and not covered where no frame has been blended.
+    memset(canvas, 16, w * h);
+    memset(canvas + w * h, 128, 2 * w * h);
+    memset(canvas + 3 * w * h, 0, w * h);
+    if (live_canvas != ImageUtils::IMAGE_TYPE_NOIMAGE)
+    {
+        int size = live_canvas_width * live_canvas_height;
+        ImageType dst = canvas + (live_y0 - y0) * w + (live_x0 - x0);
+        for (int c = 0; c < LIVE_MOSAIC_PLANES; c++)
+        {
+            for (int j = 0; j < live_canvas_height; j++)
+            {
+                memcpy(dst + c * w * h + j * w,
+                        live_canvas + c * size + j * live_canvas_width, live_canvas_width);
+            }
+        }
+        ImageUtils::freeImage(live_canvas);
+    }
+    live_canvas = canvas;
+    live_x0 = x0;
+    live_y0 = y0;
+    live_canvas_width = w;
+    live_canvas_height = h;
+    return true;
+}
+
+// Blends accepted frame k into the canvas, placed at the position of its
+// center. The frames are nearly translations of each other at low res.
+// Returns false if the frame could not be placed.
+static bool BlendLiveFrame(int k)
+{
+    int w = tWidth[LR], h = tHeight[LR];
+    double (*trs)[3] = tTRS[k];
+    double z = trs[2][0] * w / 2 + trs[2][1] * h / 2 + trs[2][2];
+    if (z == 0.0)
+        return false;
+    double cx = (trs[0][0] * w / 2 + trs[0][1] * h / 2 + trs[0][2]) / z;
+    double cy = (trs[1][0] * w / 2 + trs[1][1] * h / 2 + trs[1][2]) / z;
+    if (fabs(cx) > LIVE_MOSAIC_MAX_SIZE || fabs(cy) > LIVE_MOSAIC_MAX_SIZE)
+        return false;
+    int x = (int) floor(cx - w / 2.0 + 0.5);
+    int y = (int) floor(cy - h / 2.0 + 0.5);
+    if (!GrowLiveCanvas(x, y, w, h))
+    {
+        LOGV("Frame %d at %d,%d is out of the live mosaic", k, x, y);
+        return false;
+    }
+
+    // The signed distance of a pixel from the seam, towards this frame, is
+    // d0 + i * dx + j * dy at column i and row j of the frame. The first
+    // frame has no seam.
+    bool first = (live_right <= live_left);
+    double nx = cx - live_last_cx, ny = cy - live_last_cy;
+    double length = sqrt(nx * nx + ny * ny);
+    double dx = 0.0, dy = 0.0, d0 = LIVE_MOSAIC_FADE;
+    if (!first && length > 0.0)
+    {
+        dx = nx / length;
+        dy = ny / length;
+        d0 = (x + 0.5 - (cx + live_last_cx) / 2) * dx + (y + 0.5 - (cy + live_last_cy) / 2) * dy;
+    }
+
+    int size = live_canvas_width * live_canvas_height;
+    ImageType dst = live_canvas + (y - live_y0) * live_canvas_width + (x - live_x0);
+    ImageType src = tImage[LR][k];
+    for (int j = 0; j < h; j++)
+    {
+        ImageType Y = dst + j * live_canvas_width;
+        ImageType V = Y + size;
+        ImageType U = V + size;
+        ImageType covered = U + size;
+        ImageType sY = src + j * w;
+        ImageType sV = sY + w * h;
+        ImageType sU = sV + w * h;
+        double d = d0 + j * dy;
+        for (int i = 0; i < w; i++, d += dx)
+        {
+            // The weight of the frame, in 1/256, ramps up across the seam.
+            int a = (int) ((d + LIVE_MOSAIC_FADE) * 256 / (2 * LIVE_MOSAIC_FADE));
+            if (a >= 256 || !covered[i])
+            {
+                Y[i] = sY[i];
+                V[i] = sV[i];
+                U[i] = sU[i];
+                covered[i] = 1;
+            }
+            else if (a > 0)
+            {
+                Y[i] = (unsigned char) ((Y[i] * (256 - a) + sY[i] * a + 128) >> 8);
+                V[i] = (unsigned char) ((V[i] * (256 - a) + sV[i] * a + 128) >> 8);
+                U[i] = (unsigned char) ((U[i] * (256 - a) + sU[i] * a + 128) >> 8);
+            }
+        }
+    }
+    live_last_cx = cx;
+    live_last_cy = cy;
+
+    if (first)
+    {
+        live_left = live_inner_left = x;
+        live_top = live_inner_top = y;
+        live_right = live_inner_right = x + w;
+        live_bottom = live_inner_bottom = y + h;
+    }
+    else
+    {
+        if (x < live_left) live_left = x;
+        if (y < live_top) live_top = y;
+        if (x + w > live_right) live_right = x + w;
+        if (y + h > live_bottom) live_bottom = y + h;
+        if (x > live_inner_left) live_inner_left = x;
+        if (y > live_inner_top) live_inner_top = y;
+        if (x + w < live_inner_right) live_inner_right = x + w;
+        if (y + h < live_inner_bottom) live_inner_bottom = y + h;
+    }
+    return true;
+}
+
+// Blends the frames accepted since the last pass. Called with lr_mutex.
+static void BlendLiveFrames()
+{
+    int count = frame_number_LR;
+    if (live_count == count)
+        return;
+    double t0 = now_ms();
+    for (int k = live_count; k < count; k++)
+    {
+        if (!BlendLiveFrame(k))
+            live_complete = false;
+    }
+    live_blend_ms = now_ms() - t0;
+    live_blend_frames = count - live_count;
+    live_count = count;
+
+    double frame_ms = live_blend_ms / live_blend_frames;
+    if (frame_ms > live_max_ms)
+        live_max_ms = frame_ms;
+    live_total_ms += live_blend_ms;
+    live_total_frames += live_blend_frames;
+}
+
+static void* LiveMosaicThread(void* arg)
+{
+    pthread_mutex_lock(&lr_mutex);
+    while (true)
+    {
+        while (!live_thread_stop && frame_number_LR == live_count)
+            pthread_cond_wait(&lr_cond, &lr_mutex);
+        if (live_thread_stop)
+            break;
+
+        // The frames are blended under lr_mutex, because DecimateFrames()
+        // may move them. A low-res frame is small, so the capture is not
+        // held up for long.
+        BlendLiveFrames();
+    }
+    pthread_mutex_unlock(&lr_mutex);
+    return NULL;
+}
+
+// Stops the live mosaic worker. The canvas is kept.
+static void StopLiveMosaic()
+{
+    if (!live_thread_running)
+        return;
+    pthread_mutex_lock(&lr_mutex);
+    live_thread_stop = true;
+    pthread_cond_broadcast(&lr_cond);
+    pthread_mutex_unlock(&lr_mutex);
+    pthread_join(live_thread, NULL);
+    live_thread_running = false;
+    if (live_total_frames > 0)
+    {
+        LOGV("Live mosaic: %d frames blended, %g ms a frame on average, %g ms at most",
+                live_total_frames, live_total_ms / live_total_frames, live_max_ms);
+    }
+}
+
+// Empties the canvas, so that the accepted frames are blended again.
+// Called with lr_mutex, or while the worker is stopped.
+static void ResetLiveCanvas()
+{
+    ImageUtils::freeImage(live_canvas);
+    live_canvas = ImageUtils::IMAGE_TYPE_NOIMAGE;
+    live_canvas_width = live_canvas_height = 0;
+    live_left = live_top = live_right = live_bottom = 0;
+    live_inner_left = live_inner_top = live_inner_right = live_inner_bottom = 0;
+    live_count = 0;
+    live_complete = true;
+}
+
+static void FreeLiveMosaic()
+{
+    StopLiveMosaic();
+    ResetLiveCanvas();
+    live_blend_ms = 0.0;
+    live_blend_frames = 0;
+    live_total_ms = 0.0;
+    live_max_ms = 0.0;
+    live_total_frames = 0;
+}
+
+// Makes the canvas the low-res mosaic, cropped like Blend crops a sweep: to
+// the frames at both ends along it, and to the part covered by every frame
+// across it. The frames which the worker has not got to are blended first.
+// Returns false if the canvas does not hold every frame, so the mosaic has
+// to be blended from the frames.
+static bool TakeLiveMosaic()
+{
+    pthread_mutex_lock(&lr_mutex);
+    BlendLiveFrames();
+    bool horizontal = (live_right - live_left) - tWidth[LR]
+            >= (live_bottom - live_top) - tHeight[LR];
+    int left = horizontal ? live_left : live_inner_left;
+    int right = horizontal ? live_right : live_inner_right;
+    int top = horizontal ? live_inner_top : live_top;
+    int bottom = horizontal ? live_inner_bottom : live_bottom;
+    // Like Blend, make the size a multiple of 8.
+    int width = (right - left) & ~7;
+    int height = (bottom - top) & ~7;
+    bool ok = live_complete && live_count > 0 && live_count == frame_number_LR
+            && width > 0 && height > 0;
+    ImageType image = ImageUtils::IMAGE_TYPE_NOIMAGE;
+    if (ok)
+        image = ImageUtils::allocateImage(width, height, ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    if (image != ImageUtils::IMAGE_TYPE_NOIMAGE)
+    {
+        int size = live_canvas_width * live_canvas_height;
+        ImageType src = live_canvas + (top - live_y0) * live_canvas_width + (left - live_x0);
+        for (int c = 0; c < ImageUtils::IMAGE_TYPE_NUM_CHANNELS; c++)
+        {
+            for (int j = 0; j < height; j++)
+            {
+                memcpy(image + (c * height + j) * width,
+                        src + c * size + j * live_canvas_width, width);
+            }
+        }
+        resultYVU = image;
+        mosaicWidth = width;
+        mosaicHeight = height;
+    }
+    pthread_mutex_unlock(&lr_mutex);
+    return image != ImageUtils::IMAGE_TYPE_NOIMAGE;
+}
+
+static void StartLiveMosaic()
+{
+    FreeLiveMosaic();
+    live_thread_stop = false;
+    if (pthread_create(&live_thread, NULL, LiveMosaicThread, NULL) == 0)
+        live_thread_running = true;
+    else
+        LOGE("Cannot start the live mosaic thread");
+}
+
+// Hands a newly accepted high-res frame to the worker.
+static void QueueHighResFrame(int count)
+{
+    pthread_mutex_lock(&hr_mutex);
+    hr_queued = count;
+    pthread_cond_broadcast(&hr_cond);
+    pthread_mutex_unlock(&hr_mutex);
+}
+
+// Counts the frame just added to mosaic[LR] as accepted and hands it to
+// the workers.
+static void AcceptFrame()
+{
+    pthread_mutex_lock(&lr_mutex);
+    mosaic[LR]->getAligner()->getLastTRS(tTRS[frame_number_LR]);
+    frame_number_LR++;
+    frame_number_HR++;
+    pthread_cond_broadcast(&lr_cond);
+    pthread_mutex_unlock(&lr_mutex);
+
+    QueueHighResFrame(frame_number_HR);
+}
+
+// Converts a planar YVU image to NV21, taking the chroma of the even rows
+// and columns.
+static void YVUtoNV21(ImageType nv21, ImageType yvu, int width, int height)
+{
+    ImageType V = yvu + width * height;
+    ImageType U = V + width * height;
+    memcpy(nv21, yvu, width * height);
+    ImageType VU = nv21 + width * height;
+    for (int j = 0; j < height / 2; j++)
+    {
+        ImageKernels::mergeVU(V + (2 * j) * width, U + (2 * j) * width, VU + j * width,
+                width);
+    }
+}
+
 void YUV420toYVU24(ImageType yvu24, ImageType yuv420sp, int width, int height)
 {
     int frameSize = width * height;
@@ -249,25 +782,16 @@ void YUV420toYVU24_NEW(ImageType yvu24, ImageType yuv420sp, int width,
 
     for (int j = 0; j < height; j += 2)
     {
-        unsigned char u = 0, v = 0;
         int uvp = frameSize + (j >> 1) * width;
         ovp = yvu24 + frameSize + j * width;
         oup = ovp + frameSize;
 
         ImageType iuvp = yuv420sp + uvp;
 
-        for (int i = 0; i < width; i += 2)
-        {
-            v = *iuvp++;
-            u = *iuvp++;
-
-            *ovp++ = v;
-            *oup++ = u;
-
-            *ovp++ = v;
-            *oup++ = u;
+        ImageKernels::splitVU(iuvp, ovp, oup, width);
+        ovp += width;
+        oup += width;
 
-        }
         memcpy(ovp, ovp - width, width * sizeof(unsigned char));
         memcpy(oup, oup - width, width * sizeof(unsigned char));
     }
@@ -282,13 +806,8 @@ JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_allocateMosaicMemory(
     tWidth[LR] = int(width / H2L_FACTOR);
     tHeight[LR] = int(height / H2L_FACTOR);
 
-    for(int i=0; i<MAX_FRAMES; i++)
-    {
-            tImage[LR][i] = ImageUtils::allocateImage(tWidth[LR], tHeight[LR],
-                    ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
-            tImage[HR][i] = ImageUtils::allocateImage(tWidth[HR], tHeight[HR],
-                    ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
-    }
+    // The frames are allocated by AllocateFrame() as they are accepted, so
+    // a short sweep only takes the memory it needs.
 
     AllocateTextureMemory(tWidth[HR], tHeight[HR], tWidth[LR], tHeight[LR]);
 }
@@ -296,10 +815,20 @@ JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_allocateMosaicMemory(
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_freeMosaicMemory(
         JNIEnv* env, jobject thiz)
 {
+    StopHighResAlignment();
+    FreeLiveMosaic();
+
+    pthread_mutex_lock(&hr_mutex);
+    hr_snapshot_count = -1;
+    hr_restored = false;
+    pthread_mutex_unlock(&hr_mutex);
+
     for(int i = 0; i < MAX_FRAMES; i++)
     {
         ImageUtils::freeImage(tImage[LR][i]);
         ImageUtils::freeImage(tImage[HR][i]);
+        tImage[LR][i] = NULL;
+        tImage[HR][i] = NULL;
     }
 
     FreeTextureMemory();
@@ -352,13 +881,8 @@ void ConvertYVUAiToPlanarYVU(unsigned char *planar, unsigned char *in, int width
     unsigned char* Vptr = planar + planeSize;
     unsigned char* Uptr = Vptr + planeSize;
 
-    for (int i = 0; i < planeSize; i++)
-    {
-        *Yptr++ = *in++;
-        *Vptr++ = *in++;
-        *Uptr++ = *in++;
-        in++;   // Alpha
-    }
+    // Drops the alpha.
+    ImageKernels::splitYVUA(in, Yptr, Vptr, Uptr, planeSize);
 }
 
 JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImageFromGPU(
@@ -368,7 +892,7 @@ JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImageFromG
     t0 = now_ms();
     int ret_code = Mosaic::MOSAIC_RET_OK;
 
-    if(frame_number_HR<MAX_FRAMES && frame_number_LR<MAX_FRAMES)
+    if(MakeRoomForFrame())
     {
         double last_tx = mTx;
 
@@ -388,8 +912,7 @@ JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImageFromG
                     tWidth[HR], tHeight[HR]);
             sem_post(&gPreviewImage_semaphore);
 
-            frame_number_LR++;
-            frame_number_HR++;
+            AcceptFrame();
         }
     }
     else
@@ -402,33 +925,44 @@ JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImageFromG
 
     gTRS[9] = frame_number_HR;
     gTRS[10] = ret_code;
+    gTRS[11] = mosaic[LR]->getAligner()->getNumInliers();
 
-    jfloatArray bytes = env->NewFloatArray(11);
+    jfloatArray bytes = env->NewFloatArray(12);
     if(bytes != 0)
     {
-        env->SetFloatArrayRegion(bytes, 0, 11, (jfloat*) gTRS);
+        env->SetFloatArrayRegion(bytes, 0, 12, (jfloat*) gTRS);
     }
     return bytes;
 }
 
 
 
-JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImage(
-        JNIEnv* env, jobject thiz, jbyteArray photo_data)
+// Adds an NV21 frame, given either as a Java array or as the address of a
+// direct buffer.
+static jfloatArray SetSourceImage(JNIEnv* env, jbyteArray photo_data,
+        ImageType direct_pixels)
 {
     double  t0, t1, time_c;
     t0 = now_ms();
 
     int ret_code = Mosaic::MOSAIC_RET_OK;
 
-    if(frame_number_HR<MAX_FRAMES && frame_number_LR<MAX_FRAMES)
+    if(MakeRoomForFrame())
     {
-        jbyte *pixels = env->GetByteArrayElements(photo_data, 0);
+        if (direct_pixels != NULL)
+        {
+            YUV420toYVU24_NEW(tImage[HR][frame_number_HR], direct_pixels,
+                    tWidth[HR], tHeight[HR]);
+        }
+        else
+        {
+            jbyte *pixels = env->GetByteArrayElements(photo_data, 0);
 
-        YUV420toYVU24_NEW(tImage[HR][frame_number_HR], (ImageType)pixels,
-                tWidth[HR], tHeight[HR]);
+            YUV420toYVU24_NEW(tImage[HR][frame_number_HR], (ImageType)pixels,
+                    tWidth[HR], tHeight[HR]);
 
-        env->ReleaseByteArrayElements(photo_data, pixels, 0);
+            env->ReleaseByteArrayElements(photo_data, pixels, JNI_ABORT);
+        }
 
         double last_tx = mTx;
 
@@ -446,8 +980,7 @@ JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImage(
 
         if(ret_code == Mosaic::MOSAIC_RET_OK || ret_code == Mosaic::MOSAIC_RET_FEW_INLIERS)
         {
-            frame_number_LR++;
-            frame_number_HR++;
+            AcceptFrame();
         }
 
     }
@@ -461,15 +994,48 @@ JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImage(
 
     gTRS[9] = frame_number_HR;
     gTRS[10] = ret_code;
+    gTRS[11] = mosaic[LR]->getAligner()->getNumInliers();
 
-    jfloatArray bytes = env->NewFloatArray(11);
+    jfloatArray bytes = env->NewFloatArray(12);
     if(bytes != 0)
     {
-        env->SetFloatArrayRegion(bytes, 0, 11, (jfloat*) gTRS);
+        env->SetFloatArrayRegion(bytes, 0, 12, (jfloat*) gTRS);
     }
     return bytes;
 }
 
+JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImage(
+        JNIEnv* env, jobject thiz, jbyteArray photo_data)
+{
+    return SetSourceImage(env, photo_data, NULL);
+}
+
+// Returns the address of a direct buffer of at least the given size, or
+// throws IllegalArgumentException and returns NULL.
+static ImageType GetDirectBuffer(JNIEnv* env, jobject buffer, jlong size)
+{
+    ImageType address = (ImageType) env->GetDirectBufferAddress(buffer);
+    if (address == NULL || env->GetDirectBufferCapacity(buffer) < size)
+    {
+        jclass exception = env->FindClass("java/lang/IllegalArgumentException");
+        if (exception != NULL)
+            env->ThrowNew(exception, address == NULL ? "buffer is not direct"
+                    : "buffer is too small");
+        return NULL;
+    }
+    return address;
+}
+
+JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImageBuffer(
+        JNIEnv* env, jobject thiz, jobject buffer)
+{
+    ImageType pixels = GetDirectBuffer(env, buffer,
+            (jlong) tWidth[HR] * tHeight[HR] * 3 / 2);
+    if (pixels == NULL)
+        return 0;
+    return SetSourceImage(env, NULL, pixels);
+}
+
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setBlendingType(
         JNIEnv* env, jobject thiz, jint type)
 {
@@ -482,9 +1048,17 @@ JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setStripType(
     stripType = int(type);
 }
 
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setBlendThreadCount(
+        JNIEnv* env, jobject thiz, jint threads)
+{
+    blendThreads = int(threads);
+}
+
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_reset(
         JNIEnv* env, jobject thiz)
 {
+    StopLiveMosaic();
+
     frame_number_HR = 0;
     frame_number_LR = 0;
 
@@ -494,7 +1068,15 @@ JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_reset(
     gCancelComputation[LR] = false;
     gCancelComputation[HR] = false;
 
+    pthread_mutex_lock(&hr_mutex);
+    hr_snapshot_count = -1;
+    hr_restored = false;
+    pthread_mutex_unlock(&hr_mutex);
+
     Init(LR,MAX_FRAMES);
+    frame_spacing = thresh_still[LR];
+    StartHighResAlignment();
+    StartLiveMosaic();
 }
 
 JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_reportProgress(
@@ -518,6 +1100,10 @@ JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_createMosaic(
 
     int ret;
 
+    // No more frames come in. Do not let the live mosaic take CPU time
+    // from the stitching.
+    StopLiveMosaic();
+
     if(high_res)
     {
         LOGV("createMosaic() - High-Res Mode");
@@ -526,14 +1112,42 @@ JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_createMosaic(
         gProgress[HR] = 0.0;
         t0 = now_ms();
 
-        Init(HR, frame_number_HR);
-
-        for(int k = 0; k < frame_number_HR; k++)
+        if (hr_restored)
+        {
+            LOGV("Using the alignment of the checkpoint");
+        }
+        else if (!hr_thread_running)
+        {
+            // The worker could not be started. Align everything here.
+            Init(HR, frame_number_HR);
+            for(int k = 0; k < frame_number_HR; k++)
+            {
+                if (gCancelComputation[HR])
+                    break;
+                AddFrame(HR, k, NULL);
+                gProgress[HR] += TIME_PERCENT_ALIGN/frame_number_HR;
+            }
+        }
+        else
         {
-            if (gCancelComputation[HR])
-                break;
-            AddFrame(HR, k, NULL);
-            gProgress[HR] += TIME_PERCENT_ALIGN/frame_number_HR;
+            // Most of the frames are aligned already. Wait for the rest.
+            pthread_mutex_lock(&hr_mutex);
+            while (hr_aligned < frame_number_HR && !gCancelComputation[HR])
+            {
+                gProgress[HR] = TIME_PERCENT_ALIGN * hr_aligned / frame_number_HR;
+                struct timespec deadline;
+                clock_gettime(CLOCK_REALTIME, &deadline);
+                // Wake up now and then to check for cancellation.
+                deadline.tv_nsec += 50000000;
+                if (deadline.tv_nsec >= 1000000000)
+                {
+                    deadline.tv_sec++;
+                    deadline.tv_nsec -= 1000000000;
+                }
+                pthread_cond_timedwait(&hr_cond, &hr_mutex, &deadline);
+            }
+            pthread_mutex_unlock(&hr_mutex);
+            StopHighResAlignment();
         }
 
         if (gCancelComputation[HR])
@@ -548,6 +1162,7 @@ JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_createMosaic(
             time_c = t1 - t0;
             LOGV("AlignAll - %d frames [HR]: %g ms", frame_number_HR, time_c);
 
+            SnapshotHighResAlignment();
             ret = Finalize(HR);
 
             gProgress[HR] = 100.0;
@@ -560,7 +1175,17 @@ JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_createMosaic(
         LOGV("createMosaic() - Low-Res Mode");
         gProgress[LR] = TIME_PERCENT_ALIGN;
 
-        ret = Finalize(LR);
+        double t0 = now_ms();
+        if (TakeLiveMosaic())
+        {
+            LOGV("Low-res mosaic from the live mosaic: %d x %d, %g ms", mosaicWidth,
+                    mosaicHeight, now_ms() - t0);
+            ret = Mosaic::MOSAIC_RET_OK;
+        }
+        else
+        {
+            ret = Finalize(LR);
+        }
 
         gProgress[LR] = 100.0;
     }
@@ -664,6 +1289,340 @@ JNIEXPORT jbyteArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaicNV21(
     return bytes;
 }
 
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_getFinalMosaicSize(
+        JNIEnv* env, jobject thiz, jintArray size)
+{
+    jint dims[2] = {mosaicWidth, mosaicHeight};
+    env->SetIntArrayRegion(size, 0, 2, dims);
+}
+
+JNIEXPORT jboolean JNICALL Java_com_android_camera_Mosaic_getFinalMosaicBuffer(
+        JNIEnv* env, jobject thiz, jobject buffer)
+{
+    int width = mosaicWidth;
+    int height = mosaicHeight;
+    int imageSize = width * height;
+
+    jint* image = (jint*) GetDirectBuffer(env, buffer, (jlong) imageSize * 4);
+    if (image == NULL)
+        return JNI_FALSE;
+
+    resultBGR = ImageUtils::allocateImage(width, height,
+            ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    if (resultBGR == NULL)
+    {
+        LOGE("Error in creating the image.");
+        return JNI_FALSE;
+    }
+    ImageUtils::yvu2bgr(resultBGR, resultYVU, width, height);
+
+    for (int i = 0; i < imageSize; i++)
+    {
+        image[i] = (0xFF<<24) | (resultBGR[i*3+2]<<16) | (resultBGR[i*3+1]<<8) |
+                resultBGR[i*3];
+    }
+
+    ImageUtils::freeImage(resultBGR);
+    return JNI_TRUE;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_android_camera_Mosaic_getFinalMosaicNV21Buffer(
+        JNIEnv* env, jobject thiz, jobject buffer)
+{
+    int width = mosaicWidth;
+    int height = mosaicHeight;
+
+    ImageType nv21 = GetDirectBuffer(env, buffer, (jlong) width * height * 3 / 2);
+    if (nv21 == NULL)
+        return JNI_FALSE;
+
+    YVUtoNV21(nv21, resultYVU, width, height);
+
+    LOGV("MosBytes: %d, W = %d, H = %d", width * height * 3 / 2, width, height);
+    ImageUtils::freeImage(resultYVU);
+    return JNI_TRUE;
+}
+
+// Converts the covered part of the live canvas to RGBA, with the same
+// coefficients as ImageUtils::yvu2bgr().
+static void LiveCanvasToRGBA(unsigned char *rgba)
+{
+    int size = live_canvas_width * live_canvas_height;
+    for (int j = live_top; j < live_bottom; j++)
+    {
+        int offset = (j - live_y0) * live_canvas_width + (live_left - live_x0);
+        ImageType yp = live_canvas + offset;
+        ImageType vp = yp + size;
+        ImageType up = vp + size;
+        for (int i = live_left; i < live_right; i++)
+        {
+            int y = 298 * (*yp++ - 16);
+            int v = *vp++ - 128;
+            int u = *up++ - 128;
+            int r = (y + 409 * v + 128) >> 8;
+            int g = (y - 208 * v - 100 * u + 128) >> 8;
+            int b = (y + 517 * u + 128) >> 8;
+            *rgba++ = (unsigned char) (r < 0 ? 0 : (r > 255 ? 255 : r));
+            *rgba++ = (unsigned char) (g < 0 ? 0 : (g > 255 ? 255 : g));
+            *rgba++ = (unsigned char) (b < 0 ? 0 : (b > 255 ? 255 : b));
+            *rgba++ = 0xff;
+        }
+    }
+}
+
+JNIEXPORT jboolean JNICALL Java_com_android_camera_Mosaic_getLiveMosaicBuffer(
+        JNIEnv* env, jobject thiz, jobject buffer, jintArray info)
+{
+    bool copied = false;
+
+    pthread_mutex_lock(&lr_mutex);
+    int width = live_right - live_left;
+    int height = live_bottom - live_top;
+    jint values[5] = {width, height, live_count,
+            (jint) (live_blend_ms * 1000.0), live_blend_frames};
+    if (width > 0 && buffer != NULL)
+    {
+        unsigned char *rgba = (unsigned char *) env->GetDirectBufferAddress(buffer);
+        if (rgba != NULL && env->GetDirectBufferCapacity(buffer) >= (jlong) width * height * 4)
+        {
+            LiveCanvasToRGBA(rgba);
+            copied = true;
+        }
+    }
+    pthread_mutex_unlock(&lr_mutex);
+
+    env->SetIntArrayRegion(info, 0, 5, values);
+    return copied ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_writeFinalMosaicJpeg(
+        JNIEnv* env, jobject thiz, jstring path, jint quality)
+{
+    int width = mosaicWidth;
+    int height = mosaicHeight;
+
+    const char *filename = env->GetStringUTFChars(path, NULL);
+    FILE *file = fopen(filename, "wb");
+    if (file == NULL)
+    {
+        LOGE("Cannot open %s", filename);
+        env->ReleaseStringUTFChars(path, filename);
+        ImageUtils::freeImage(resultYVU);
+        return 0;
+    }
+    env->ReleaseStringUTFChars(path, filename);
+
+    // Encode the planar YVU mosaic one band at a time, so no other copy of
+    // the whole mosaic is made.
+    double t0 = now_ms();
+    ImageType Y = resultYVU;
+    ImageType V = Y + width * height;
+    ImageType U = V + width * height;
+
+    JpegWriter writer;
+    bool ok = writer.begin(file, width, height, quality);
+    for (int row = 0; ok && row < height; row += JpegWriter::BAND_ROWS)
+    {
+        int rows = height - row;
+        if (rows > JpegWriter::BAND_ROWS)
+            rows = JpegWriter::BAND_ROWS;
+        int offset = row * width;
+        ok = writer.writeBand(Y + offset, V + offset, U + offset, width, rows);
+    }
+    ok = writer.end() && ok;
+    ok = (fclose(file) == 0) && ok;
+    ImageUtils::freeImage(resultYVU);
+    LOGV("WriteFinalMosaicJpeg: %d x %d, %g ms", width, height, now_ms() - t0);
+
+    if (!ok)
+        return 0;
+
+    jint dims[2] = {width, height};
+    jintArray result = env->NewIntArray(2);
+    if (result != 0)
+    {
+        env->SetIntArrayRegion(result, 0, 2, dims);
+    }
+    return result;
+}
+
+// Opens a checkpoint and reads its header, checking that the file holds
+// all the frames. Returns NULL if the file is not a complete checkpoint.
+static FILE* OpenCheckpoint(JNIEnv* env, jstring path, int header[])
+{
+    const char *filename = env->GetStringUTFChars(path, NULL);
+    FILE *file = fopen(filename, "rb");
+    if (file == NULL)
+    {
+        LOGE("Cannot open %s", filename);
+        env->ReleaseStringUTFChars(path, filename);
+        return NULL;
+    }
+
+    bool ok = fread(header, sizeof(int), CHECKPOINT_HEADER_SIZE, file)
+            == (size_t) CHECKPOINT_HEADER_SIZE;
+    ok = ok && header[0] == CHECKPOINT_MAGIC && header[1] == CHECKPOINT_VERSION
+            && header[2] > 0 && header[3] > 0 && header[4] > 0
+            && header[4] <= MAX_FRAMES;
+    if (ok)
+    {
+        long frame_size = (long) header[2] * header[3] * 3 / 2;
+        if (header[5])
+            frame_size += 9 * sizeof(double);
+        long expected = CHECKPOINT_HEADER_SIZE * sizeof(int) + frame_size * header[4];
+        ok = fseek(file, 0, SEEK_END) == 0 && ftell(file) == expected
+                && fseek(file, CHECKPOINT_HEADER_SIZE * sizeof(int), SEEK_SET) == 0;
+    }
+    if (!ok)
+    {
+        LOGE("%s is not a complete checkpoint", filename);
+        fclose(file);
+        file = NULL;
+    }
+    env->ReleaseStringUTFChars(path, filename);
+    return file;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_android_camera_Mosaic_writeCheckpoint(
+        JNIEnv* env, jobject thiz, jstring path)
+{
+    int width = tWidth[HR];
+    int height = tHeight[HR];
+
+    // createMosaic(true) may be aligning or blending on another thread, so
+    // take the frames under the lock. Their images are not changed and
+    // stay allocated until freeMosaicMemory().
+    ImageType images[MAX_FRAMES];
+    double trs[MAX_FRAMES][3][3];
+    pthread_mutex_lock(&hr_mutex);
+    bool aligned = hr_snapshot_count >= 0;
+    int count = aligned ? hr_snapshot_count : frame_number_HR;
+    for (int k = 0; k < count; k++)
+    {
+        images[k] = aligned ? hr_snapshot_images[k] : tImage[HR][k];
+        if (aligned)
+            memcpy(trs[k], hr_snapshot_trs[k], sizeof(trs[k]));
+    }
+    pthread_mutex_unlock(&hr_mutex);
+
+    if (count <= 0)
+        return JNI_FALSE;
+
+    const char *filename = env->GetStringUTFChars(path, NULL);
+    FILE *file = fopen(filename, "wb");
+    if (file == NULL)
+    {
+        LOGE("Cannot open %s", filename);
+        env->ReleaseStringUTFChars(path, filename);
+        return JNI_FALSE;
+    }
+    env->ReleaseStringUTFChars(path, filename);
+
+    double t0 = now_ms();
+    int header[CHECKPOINT_HEADER_SIZE] = {CHECKPOINT_MAGIC, CHECKPOINT_VERSION,
+            width, height, count, aligned ? 1 : 0, blendingType, stripType};
+    int frame_size = width * height * 3 / 2;
+    unsigned char *nv21 = new unsigned char[frame_size];
+
+    bool ok = fwrite(header, sizeof(header), 1, file) == 1;
+    for (int k = 0; ok && k < count; k++)
+    {
+        if (aligned)
+            ok = fwrite(trs[k], sizeof(trs[k]), 1, file) == 1;
+        YVUtoNV21(nv21, images[k], width, height);
+        ok = ok && fwrite(nv21, frame_size, 1, file) == 1;
+    }
+    delete[] nv21;
+    ok = (fclose(file) == 0) && ok;
+    LOGV("WriteCheckpoint: %d frames, aligned %d, %g ms", count, aligned, now_ms() - t0);
+
+    return ok ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_android_camera_Mosaic_getCheckpointSize(
+        JNIEnv* env, jobject thiz, jstring path, jintArray size)
+{
+    int header[CHECKPOINT_HEADER_SIZE];
+    FILE *file = OpenCheckpoint(env, path, header);
+    if (file == NULL)
+        return JNI_FALSE;
+    fclose(file);
+
+    jint dims[2] = {header[2], header[3]};
+    env->SetIntArrayRegion(size, 0, 2, dims);
+    return JNI_TRUE;
+}
+
+JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_loadCheckpoint(
+        JNIEnv* env, jobject thiz, jstring path)
+{
+    int header[CHECKPOINT_HEADER_SIZE];
+    FILE *file = OpenCheckpoint(env, path, header);
+    if (file == NULL)
+        return -1;
+
+    int width = header[2];
+    int height = header[3];
+    int count = header[4];
+    bool aligned = header[5] != 0;
+    if (width != tWidth[HR] || height != tHeight[HR])
+    {
+        LOGE("Checkpoint of %dx%d frames, memory allocated for %dx%d",
+                width, height, tWidth[HR], tHeight[HR]);
+        fclose(file);
+        return -1;
+    }
+
+    // Only the high-res frames are restored. The low-res mosaic is not
+    // needed to finish the panorama.
+    StopLiveMosaic();
+    StopHighResAlignment();
+    frame_number_HR = 0;
+    frame_number_LR = 0;
+    gProgress[HR] = 0.0;
+    gCancelComputation[HR] = false;
+    blendingType = header[6];
+    stripType = header[7];
+    pthread_mutex_lock(&hr_mutex);
+    hr_snapshot_count = -1;
+    hr_restored = false;
+    pthread_mutex_unlock(&hr_mutex);
+    if (aligned)
+        Init(HR, MAX_FRAMES);
+
+    double t0 = now_ms();
+    int frame_size = width * height * 3 / 2;
+    unsigned char *nv21 = new unsigned char[frame_size];
+    bool ok = true;
+    for (int k = 0; ok && k < count; k++)
+    {
+        double trs[3][3];
+        ok = AllocateFrame(k);
+        if (ok && aligned)
+            ok = fread(trs, sizeof(trs), 1, file) == 1;
+        ok = ok && fread(nv21, frame_size, 1, file) == 1;
+        if (ok)
+        {
+            YUV420toYVU24_NEW(tImage[HR][k], nv21, width, height);
+            if (aligned)
+                ok = mosaic[HR]->addAlignedFrame(tImage[HR][k], trs)
+                        == Mosaic::MOSAIC_RET_OK;
+        }
+    }
+    delete[] nv21;
+    fclose(file);
+    LOGV("LoadCheckpoint: %d frames, aligned %d, %g ms", count, aligned, now_ms() - t0);
+
+    if (!ok)
+        return -1;
+
+    pthread_mutex_lock(&hr_mutex);
+    hr_restored = aligned;
+    pthread_mutex_unlock(&hr_mutex);
+    frame_number_HR = count;
+    return count;
+}
+
 #ifdef __cplusplus
 }
 #endif
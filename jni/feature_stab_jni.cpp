@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Registration of preview frames for VideoStabilizer. The luma of each frame
+ * is downsampled and registered with dbreg against a reference frame which
+ * is updated every few frames. dbreg's motion smoothing, which runs
+ * db_StabilizationSmoother, keeps a display reference which follows the low
+ * frequency motion of the camera, and the transformation from the display
+ * reference to the current frame is returned, so that the hand shake can be
+ * cancelled by warping the frame with it.
+ */
+#include <string.h>
+#include <jni.h>
+#include <pthread.h>
+#include <db_utilities_camera.h>
+
+#include "dbreg/dbreg.h"
+#include "mosaic/ImageKernels.h"
+#include "mosaic/ImageUtils.h"
+#include "mosaic/Log.h"
+#define LOG_TAG "FEATURE_STAB_JNI"
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+// The motion of a hand held camera is mostly a translation and a roll.
+const int STAB_MOTION_MODEL = DB_HOMOGRAPHY_TYPE_R_T;
+const int STAB_MAX_ITERATIONS = 20;
+const unsigned int STAB_REFERENCE_UPDATE_PERIOD = 3;
+const int STAB_NR_CORNERS = 300;
+const double STAB_MAX_DISPARITY = 0.1;
+
+// Frames matched on fewer corners than this are not trusted, and the
+// display reference is reset to them.
+const int STAB_MIN_INLIERS = 12;
+
+// All the state is guarded by stab_mutex, as freeRegistration() may be called while
+// a frame is being registered.
+static pthread_mutex_t stab_mutex = PTHREAD_MUTEX_INITIALIZER;
+static db_FrameToReferenceRegistration *stab_reg = NULL;
+static ImageType stab_image = ImageUtils::IMAGE_TYPE_NOIMAGE;
+static ImageType *stab_rows = NULL;
+static int stab_width, stab_height;     // size of the preview frames
+static int stab_factor;                 // downsampling factor
+static int stab_small_width, stab_small_height;
+
+static void ReleaseStabilizer()
+{
+    delete stab_reg;
+    stab_reg = NULL;
+    delete[] stab_rows;
+    stab_rows = NULL;
+    if (stab_image != ImageUtils::IMAGE_TYPE_NOIMAGE)
+    {
+        ImageUtils::freeImage(stab_image);
+        stab_image = ImageUtils::IMAGE_TYPE_NOIMAGE;
+    }
+}
+
+// Takes every stab_factor-th sample of every stab_factor-th row of the
+// luma plane.
+static void DownsampleLuma(const unsigned char *luma)
+{
+    for (int j = 0; j < stab_small_height; j++)
+    {
+        const unsigned char *in = luma + j * stab_factor * stab_width;
+        ImageType out = stab_rows[j];
+        if (stab_factor == 4)
+        {
+            ImageKernels::subsample4(in, out, stab_small_width);
+        }
+        else
+        {
+            for (int i = 0; i < stab_small_width; i++)
+                out[i] = in[i * stab_factor];
+        }
+    }
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_VideoStabilizer_initRegistration(
+        JNIEnv* env, jobject thiz, jint width, jint height, jint maxWidth,
+        jfloat smoothingGain)
+{
+    pthread_mutex_lock(&stab_mutex);
+    ReleaseStabilizer();
+
+    stab_width = width;
+    stab_height = height;
+    stab_factor = (width + maxWidth - 1) / maxWidth;
+    if (stab_factor < 1) stab_factor = 1;
+    stab_small_width = width / stab_factor;
+    stab_small_height = height / stab_factor;
+
+    stab_image = ImageUtils::allocateImage(stab_small_width, stab_small_height, 1);
+    stab_rows = ImageUtils::imageTypeToRowPointers(stab_image, stab_small_width,
+            stab_small_height);
+
+    stab_reg = new db_FrameToReferenceRegistration();
+    stab_reg->Init(stab_small_width, stab_small_height, STAB_MOTION_MODEL,
+            STAB_MAX_ITERATIONS, false, false, DB_POINT_STANDARDDEV,
+            STAB_REFERENCE_UPDATE_PERIOD, true, smoothingGain,
+            DB_DEFAULT_NR_SAMPLES, DB_DEFAULT_CHUNK_SIZE, STAB_NR_CORNERS,
+            STAB_MAX_DISPARITY, false, 5, 5);
+
+    LOGI("Stabilizer registers %dx%d frames at %dx%d", stab_width, stab_height,
+            stab_small_width, stab_small_height);
+    pthread_mutex_unlock(&stab_mutex);
+}
+
+JNIEXPORT jboolean JNICALL Java_com_android_camera_VideoStabilizer_addFrame(
+        JNIEnv* env, jobject thiz, jbyteArray frame, jfloatArray transform)
+{
+    pthread_mutex_lock(&stab_mutex);
+    if (stab_reg == NULL ||
+            env->GetArrayLength(frame) < stab_width * stab_height ||
+            env->GetArrayLength(transform) < 9)
+    {
+        pthread_mutex_unlock(&stab_mutex);
+        return JNI_FALSE;
+    }
+
+    jbyte *pixels = env->GetByteArrayElements(frame, 0);
+    DownsampleLuma((const unsigned char *) pixels);
+    env->ReleaseByteArrayElements(frame, pixels, JNI_ABORT);
+
+    double H[9];
+    bool reference = !stab_reg->AddFrame(stab_rows, H);
+    if (!reference && stab_reg->GetNrInliers() < STAB_MIN_INLIERS)
+    {
+        // The scene changed too much to be matched. Start over from this
+        // frame rather than follow a bad alignment.
+        stab_reg->AddFrame(stab_rows, H, true);
+        stab_reg->ResetDisplayReference();
+        reference = true;
+    }
+    stab_reg->Get_H_dref_to_ins(H);
+
+    // Express the transformation in coordinates normalized by the frame
+    // size, which do not depend on the downsampling.
+    double w = stab_small_width, h = stab_small_height;
+    jfloat normalized[9];
+    normalized[0] = H[0];
+    normalized[1] = H[1] * h / w;
+    normalized[2] = H[2] / w;
+    normalized[3] = H[3] * w / h;
+    normalized[4] = H[4];
+    normalized[5] = H[5] / h;
+    normalized[6] = H[6] * w;
+    normalized[7] = H[7] * h;
+    normalized[8] = H[8];
+    env->SetFloatArrayRegion(transform, 0, 9, normalized);
+
+    pthread_mutex_unlock(&stab_mutex);
+    return reference ? JNI_FALSE : JNI_TRUE;
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_VideoStabilizer_freeRegistration(
+        JNIEnv* env, jobject thiz)
+{
+    pthread_mutex_lock(&stab_mutex);
+    ReleaseStabilizer();
+    pthread_mutex_unlock(&stab_mutex);
+}
+
+#ifdef __cplusplus
+}
+#endif
@@ -14,6 +14,7 @@
  * limitations under the License.
  */
 
+#include <stdlib.h>
 #include <time.h>
 #include <sys/types.h>
 #include <sys/stat.h>
@@ -57,13 +58,15 @@ int main(int argc, char **argv)
 
     const char *basename;
     const char *filename;
+    int threads = 1;
 
-    if (argc != 3) {
-        printf("Usage: %s input_dir output_filename\n", argv[0]);
+    if (argc != 3 && argc != 4) {
+        printf("Usage: %s input_dir output_filename [blend_threads]\n", argv[0]);
         return 0;
     } else {
         basename = argv[1];
         filename = argv[2];
+        if (argc == 4) threads = atoi(argv[3]);
     }
 
     // Load the images outside the computational kernel
@@ -75,7 +78,7 @@ int main(int argc, char **argv)
         return 1;
     }
 
-    printf("%d frames loaded\n", totalFrames);
+    printf("%d frames loaded, blending with %d thread(s)\n", totalFrames, threads);
 
 
     // Interesting stuff is here
@@ -83,6 +86,7 @@ int main(int argc, char **argv)
         Mosaic mosaic;
 
         mosaic.initialize(blendingType, stripType, width, height, -1, false, 0);
+        mosaic.setBlendThreadCount(threads);
 
         clock_gettime(CLOCK_MONOTONIC, &t1);
         for (int i = 0; i < totalFrames; i++) {
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Host replacement for the NDK log header. Only errors are printed, so
+// that the verbose logging of the library does not skew the timings.
+
+#ifndef HOST_ANDROID_LOG_H
+#define HOST_ANDROID_LOG_H
+
+#include <stdio.h>
+
+enum {
+    ANDROID_LOG_SILENT = 0,
+    ANDROID_LOG_INFO = 1,
+    ANDROID_LOG_ERROR = 2,
+};
+
+#define __android_log_print(priority, tag, ...) \
+    ((priority) == ANDROID_LOG_ERROR ? \
+            (fprintf(stderr, "%s: ", tag), fprintf(stderr, __VA_ARGS__), \
+            fputc('\n', stderr)) : 0)
+
+#endif
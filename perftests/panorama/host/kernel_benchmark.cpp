@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Times the scalar and SIMD versions of the ImageKernels conversions and of
+// the pyramid construction on a preview sized frame, and checks that they
+// give the same results.
+//
+// Usage: kernel_benchmark [width height [iterations]]
+// Exits with 1 if a SIMD result differs from the scalar one.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/time.h>
+
+#include "ImageKernels.h"
+#include "Pyramid.h"
+
+static const int BORDER = 8;
+static const int LEVELS = 5;
+
+static double nowMs()
+{
+    struct timeval tv;
+    gettimeofday(&tv, NULL);
+    return tv.tv_sec * 1000.0 + tv.tv_usec / 1000.0;
+}
+
+struct Buffers
+{
+    int width, height;
+    unsigned char *yvua;    // Interleaved YVUA, like the GPU frames
+    unsigned char *nv21;
+    unsigned char *planar;  // Planar YVU
+    unsigned char *small;   // Quarter resolution planar YVU
+    PyramidShort *pyramid;
+};
+
+static void fillRandom(unsigned char *data, int size)
+{
+    // Smooth noise, so the pyramid levels look like an image.
+    int value = 128;
+    for (int i = 0; i < size; i++)
+    {
+        value += rand() % 17 - 8;
+        if (value < 0) value = 0;
+        if (value > 255) value = 255;
+        data[i] = (unsigned char) value;
+    }
+}
+
+static void runConversions(Buffers &b)
+{
+    int size = b.width * b.height;
+    unsigned char *y = b.planar, *v = y + size, *u = v + size;
+    ImageKernels::splitYVUA(b.yvua, y, v, u, size);
+    for (int j = 0; j < b.height; j += 2)
+        ImageKernels::splitVU(b.nv21 + size + (j / 2) * b.width, v + j * b.width,
+                u + j * b.width, b.width);
+    for (int j = 0; j < b.height / 2; j++)
+        ImageKernels::mergeVU(v + 2 * j * b.width, u + 2 * j * b.width,
+                b.nv21 + size + j * b.width, b.width);
+    int smallWidth = b.width / 4, smallHeight = b.height / 4;
+    for (int plane = 0; plane < 3; plane++)
+        for (int j = 0; j < smallHeight; j++)
+            ImageKernels::subsample4(b.planar + plane * size + 4 * j * b.width,
+                    b.small + (plane * smallHeight + j) * smallWidth, smallWidth);
+}
+
+static void runPyramid(Buffers &b)
+{
+    for (int j = 0; j < b.height; j++)
+        ImageKernels::widenShift3(b.planar + j * b.width, b.pyramid->ptr[j], b.width);
+    PyramidShort::BorderSpread(b.pyramid, BORDER, BORDER, BORDER, BORDER);
+    PyramidShort::BorderReduce(b.pyramid, LEVELS);
+    PyramidShort::BorderExpand(b.pyramid, LEVELS, -1);
+    PyramidShort::BorderExpand(b.pyramid, LEVELS, 1);
+}
+
+static void allocate(Buffers &b, int width, int height)
+{
+    b.width = width;
+    b.height = height;
+    b.yvua = new unsigned char[width * height * 4];
+    b.nv21 = new unsigned char[width * height * 3 / 2];
+    b.planar = new unsigned char[width * height * 3];
+    b.small = new unsigned char[(width / 4) * (height / 4) * 3];
+    b.pyramid = PyramidShort::allocatePyramidPacked(LEVELS, width, height, BORDER);
+}
+
+static void release(Buffers &b)
+{
+    delete[] b.yvua;
+    delete[] b.nv21;
+    delete[] b.planar;
+    delete[] b.small;
+    PyramidShort::freeImage(b.pyramid);
+}
+
+static unsigned int pyramidStorage(int width, int height)
+{
+    int lines;
+    return PyramidShort::calcStorage(width, height, 2 * BORDER, LEVELS, &lines);
+}
+
+static bool same(const char *name, const void *a, const void *b, size_t size)
+{
+    if (memcmp(a, b, size) == 0)
+        return true;
+    printf("FAIL: %s differs between scalar and SIMD\n", name);
+    return false;
+}
+
+// Runs the kernels on two copies of the same input, one with each version,
+// and compares the outputs.
+static bool check(int width, int height)
+{
+    Buffers scalar, simd;
+    allocate(scalar, width, height);
+    allocate(simd, width, height);
+    srand(1);
+    fillRandom(scalar.yvua, width * height * 4);
+    fillRandom(scalar.nv21, width * height * 3 / 2);
+    memcpy(simd.yvua, scalar.yvua, width * height * 4);
+    memcpy(simd.nv21, scalar.nv21, width * height * 3 / 2);
+
+    ImageKernels::setSimdEnabled(false);
+    runConversions(scalar);
+    runPyramid(scalar);
+    ImageKernels::setSimdEnabled(true);
+    runConversions(simd);
+    runPyramid(simd);
+
+    // The pyramid levels are packed after the level and row pointers.
+    int lines;
+    PyramidShort::calcStorage(width, height, 2 * BORDER, LEVELS, &lines);
+    size_t headerSize = sizeof(PyramidShort) * LEVELS + sizeof(short *) * lines;
+    bool ok = same("NV21", scalar.nv21, simd.nv21, width * height * 3 / 2)
+            & same("planar YVU", scalar.planar, simd.planar, width * height * 3)
+            & same("subsampled YVU", scalar.small, simd.small,
+                    (width / 4) * (height / 4) * 3)
+            & same("pyramid", (char *) scalar.pyramid + headerSize,
+                    (char *) simd.pyramid + headerSize,
+                    pyramidStorage(width, height) * sizeof(short));
+    release(scalar);
+    release(simd);
+    return ok;
+}
+
+static void measure(int width, int height, int iterations, double *conversionMs,
+        double *pyramidMs)
+{
+    Buffers b;
+    allocate(b, width, height);
+    srand(1);
+    fillRandom(b.yvua, width * height * 4);
+    fillRandom(b.nv21, width * height * 3 / 2);
+
+    double t0 = nowMs();
+    for (int i = 0; i < iterations; i++)
+        runConversions(b);
+    double t1 = nowMs();
+    for (int i = 0; i < iterations; i++)
+        runPyramid(b);
+    double t2 = nowMs();
+    *conversionMs = (t1 - t0) / iterations;
+    *pyramidMs = (t2 - t1) / iterations;
+    release(b);
+}
+
+int main(int argc, char **argv)
+{
+    int width = argc > 2 ? atoi(argv[1]) : 640;
+    int height = argc > 2 ? atoi(argv[2]) : 360;
+    int iterations = argc > 3 ? atoi(argv[3]) : 200;
+    if (width < 8 || height < 8 || (width & 1) || (height & 1))
+    {
+        fprintf(stderr, "NV21 frames need an even width and height of at least 8\n");
+        return 2;
+    }
+
+    ImageKernels::setSimdEnabled(true);
+    printf("%dx%d frame, %d iterations, %s kernels\n", width, height, iterations,
+            ImageKernels::simdName());
+
+    // Sizes which are not multiples of the vector width exercise the scalar
+    // tails.
+    bool ok = check(width, height) && check(width - 2, height - 2);
+    if (ok)
+        printf("PASS: SIMD results are identical to the scalar ones\n");
+
+    double scalar[2], simd[2];
+    ImageKernels::setSimdEnabled(false);
+    measure(width, height, iterations, &scalar[0], &scalar[1]);
+    ImageKernels::setSimdEnabled(true);
+    measure(width, height, iterations, &simd[0], &simd[1]);
+    printf("Conversions: scalar %.3f ms, SIMD %.3f ms, %.2fx\n",
+            scalar[0], simd[0], scalar[0] / simd[0]);
+    printf("Pyramid: scalar %.3f ms, SIMD %.3f ms, %.2fx\n",
+            scalar[1], simd[1], scalar[1] / simd[1]);
+    return ok ? 0 : 1;
+}
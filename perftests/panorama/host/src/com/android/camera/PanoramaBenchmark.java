@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stitches the benchmark frames through the Mosaic JNI interface on the
+ * host, reports the align, review and stitch times and compares the mosaic
+ * with a golden image. Like PanoramaModule, it makes the low-res mosaic for
+ * the review before the high-res one. The golden image is compared with a tolerance since the
+ * floating point results differ slightly between compilers and machines.
+ *
+ * Usage: PanoramaBenchmark input_basename golden.ppm [--iterations n]
+ *        [--threads n] [--min-psnr db] [--output file.ppm]
+ *        [--review-output file.ppm] [--update-golden]
+ *
+ * Exits with 1 if the mosaic does not match the golden image.
+ */
+public class PanoramaBenchmark {
+    private static final int DEFAULT_ITERATIONS = 10;
+    private static final double DEFAULT_MIN_PSNR = 30.0;
+
+    private int mWidth;
+    private int mHeight;
+    private final List<ByteBuffer> mFrames = new ArrayList<ByteBuffer>();
+
+    private int mMosaicWidth;
+    private int mMosaicHeight;
+    private byte[] mMosaicRgb;
+
+    private int mReviewWidth;
+    private int mReviewHeight;
+    private byte[] mReviewRgb;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: PanoramaBenchmark input_basename golden.ppm"
+                    + " [--iterations n] [--threads n] [--min-psnr db]"
+                    + " [--output file.ppm] [--review-output file.ppm] [--update-golden]");
+            System.exit(2);
+        }
+        int iterations = DEFAULT_ITERATIONS;
+        int threads = 1;
+        double minPsnr = DEFAULT_MIN_PSNR;
+        String output = null;
+        String reviewOutput = null;
+        boolean updateGolden = false;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--iterations")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--min-psnr")) {
+                minPsnr = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--output")) {
+                output = args[++i];
+            } else if (args[i].equals("--review-output")) {
+                reviewOutput = args[++i];
+            } else if (args[i].equals("--update-golden")) {
+                updateGolden = true;
+            } else {
+                throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        PanoramaBenchmark benchmark = new PanoramaBenchmark();
+        benchmark.loadFrames(args[0]);
+        System.out.println(benchmark.mFrames.size() + " frames loaded");
+
+        double[] alignTimes = new double[iterations];
+        double[] reviewTimes = new double[iterations];
+        double[] stitchTimes = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            double[] times = benchmark.run(threads);
+            alignTimes[i] = times[0];
+            reviewTimes[i] = times[1];
+            stitchTimes[i] = times[2];
+            System.out.printf("Iteration %d: %dx%d mosaic created: %.2f seconds (%.2f + %.2f),"
+                    + " %dx%d review: %.3f seconds%n",
+                    i, benchmark.mMosaicWidth, benchmark.mMosaicHeight,
+                    times[0] + times[2], times[0], times[2],
+                    benchmark.mReviewWidth, benchmark.mReviewHeight, times[1]);
+        }
+        double[] totalTimes = new double[iterations];
+        for (int i = 0; i < iterations; i++) totalTimes[i] = alignTimes[i] + stitchTimes[i];
+        printStats("Align", alignTimes);
+        printStats("Review", reviewTimes);
+        printStats("Stitch", stitchTimes);
+        printStats("Total", totalTimes);
+
+        if (output != null) {
+            writePpm(output, benchmark.mMosaicRgb, benchmark.mMosaicWidth,
+                    benchmark.mMosaicHeight);
+        }
+        if (reviewOutput != null) {
+            writePpm(reviewOutput, benchmark.mReviewRgb, benchmark.mReviewWidth,
+                    benchmark.mReviewHeight);
+        }
+        if (updateGolden) {
+            writePpm(args[1], benchmark.mMosaicRgb, benchmark.mMosaicWidth,
+                    benchmark.mMosaicHeight);
+            System.out.println("Golden image updated: " + args[1]);
+        } else if (!benchmark.compareWithGolden(args[1], minPsnr)) {
+            System.exit(1);
+        }
+    }
+
+    private static void printStats(String name, double[] times) {
+        double[] sorted = times.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%s: median %.3f s, p95 %.3f s%n", name,
+                percentile(sorted, 50), percentile(sorted, 95));
+    }
+
+    // Nearest rank percentile of sorted values.
+    private static double percentile(double[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private void loadFrames(String basename) throws IOException {
+        for (int i = 1; ; i++) {
+            File file = new File(String.format("%s_%03d.ppm", basename, i));
+            if (!file.exists()) break;
+            int[] size = new int[2];
+            byte[] rgb = readPpm(file, size);
+            if (mFrames.isEmpty()) {
+                mWidth = size[0];
+                mHeight = size[1];
+            } else if (size[0] != mWidth || size[1] != mHeight) {
+                throw new IOException(file + " has a different size");
+            }
+            ByteBuffer frame = ByteBuffer.allocateDirect(mWidth * mHeight * 3 / 2);
+            rgbToNv21(rgb, mWidth, mHeight, frame);
+            mFrames.add(frame);
+        }
+        if (mFrames.isEmpty()) throw new IOException("No frames found for " + basename);
+    }
+
+    // Returns the align, review and stitch times in seconds, and keeps the
+    // mosaics.
+    private double[] run(int threads) {
+        Mosaic mosaic = new Mosaic();
+        mosaic.setBlendingType(Mosaic.BLENDTYPE_HORIZONTAL);
+        mosaic.setStripType(Mosaic.STRIPTYPE_WIDE);
+        mosaic.setBlendThreadCount(threads);
+        mosaic.allocateMosaicMemory(mWidth, mHeight);
+        mosaic.reset();
+
+        long start = System.nanoTime();
+        for (ByteBuffer frame : mFrames) {
+            mosaic.setSourceImageBuffer(frame);
+        }
+        long aligned = System.nanoTime();
+        int[] size = new int[2];
+        mReviewRgb = createMosaic(mosaic, false, size);
+        mReviewWidth = size[0];
+        mReviewHeight = size[1];
+        long reviewed = System.nanoTime();
+        mMosaicRgb = createMosaic(mosaic, true, size);
+        mMosaicWidth = size[0];
+        mMosaicHeight = size[1];
+        long stitched = System.nanoTime();
+        mosaic.freeMosaicMemory();
+
+        return new double[] {(aligned - start) / 1e9, (reviewed - aligned) / 1e9,
+                (stitched - reviewed) / 1e9};
+    }
+
+    // Returns the mosaic in RGB, and its size in size.
+    private static byte[] createMosaic(Mosaic mosaic, boolean highRes, int[] size) {
+        int ret = mosaic.createMosaic(highRes);
+        if (ret != Mosaic.MOSAIC_RET_OK) {
+            throw new RuntimeException("createMosaic() returned " + ret);
+        }
+        mosaic.getFinalMosaicSize(size);
+        ByteBuffer nv21 = ByteBuffer.allocateDirect(size[0] * size[1] * 3 / 2);
+        if (!mosaic.getFinalMosaicNV21Buffer(nv21)) {
+            throw new RuntimeException("getFinalMosaicNV21Buffer() failed");
+        }
+        return nv21ToRgb(nv21, size[0], size[1]);
+    }
+
+    private boolean compareWithGolden(String golden, double minPsnr) throws IOException {
+        int[] size = new int[2];
+        byte[] expected = readPpm(new File(golden), size);
+        if (size[0] != mMosaicWidth || size[1] != mMosaicHeight) {
+            System.out.printf("FAIL: mosaic is %dx%d, golden image is %dx%d%n",
+                    mMosaicWidth, mMosaicHeight, size[0], size[1]);
+            return false;
+        }
+
+        double squaredError = 0;
+        int maxError = 0;
+        for (int i = 0; i < expected.length; i++) {
+            int error = Math.abs((expected[i] & 0xFF) - (mMosaicRgb[i] & 0xFF));
+            squaredError += error * error;
+            maxError = Math.max(maxError, error);
+        }
+        double psnr = squaredError == 0 ? Double.POSITIVE_INFINITY
+                : 10 * Math.log10(255.0 * 255.0 * expected.length / squaredError);
+        boolean pass = psnr >= minPsnr;
+        System.out.printf("%s: PSNR %.2f dB (minimum %.2f dB), max difference %d%n",
+                pass ? "PASS" : "FAIL", psnr, minPsnr, maxError);
+        return pass;
+    }
+
+    private static void writePpm(String path, byte[] rgb, int width, int height)
+            throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(path));
+        try {
+            out.write(("P6\n" + width + " " + height + "\n255\n").getBytes("US-ASCII"));
+            out.write(rgb);
+        } finally {
+            out.close();
+        }
+    }
+
+    // Reads a binary PPM with 8 bits per channel.
+    private static byte[] readPpm(File file, int[] size) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            if (!readToken(in).equals("P6")) throw new IOException(file + " is not a P6 PPM");
+            size[0] = Integer.parseInt(readToken(in));
+            size[1] = Integer.parseInt(readToken(in));
+            if (!readToken(in).equals("255")) throw new IOException(file + " is not 8 bit");
+            byte[] rgb = new byte[size[0] * size[1] * 3];
+            int read = 0;
+            while (read < rgb.length) {
+                int n = in.read(rgb, read, rgb.length - read);
+                if (n < 0) throw new IOException(file + " is truncated");
+                read += n;
+            }
+            return rgb;
+        } finally {
+            in.close();
+        }
+    }
+
+    // Reads a header token, skipping white space and comments, and the one
+    // white space character after it.
+    private static String readToken(InputStream in) throws IOException {
+        StringBuilder token = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '#' && token.length() == 0) {
+                while ((c = in.read()) != -1 && c != '\n') {}
+            } else if (Character.isWhitespace(c)) {
+                if (token.length() > 0) break;
+            } else {
+                token.append((char) c);
+            }
+        }
+        return token.toString();
+    }
+
+    // BT.601 video range, the format of the camera preview frames.
+    private static void rgbToNv21(byte[] rgb, int width, int height, ByteBuffer nv21) {
+        int frameSize = width * height;
+        for (int i = 0; i < frameSize; i++) {
+            int r = rgb[i * 3] & 0xFF;
+            int g = rgb[i * 3 + 1] & 0xFF;
+            int b = rgb[i * 3 + 2] & 0xFF;
+            nv21.put(i, (byte) (16 + ((66 * r + 129 * g + 25 * b + 128) >> 8)));
+        }
+        for (int j = 0; j < height / 2; j++) {
+            for (int i = 0; i < width / 2; i++) {
+                int r = 0, g = 0, b = 0;
+                for (int k = 0; k < 4; k++) {
+                    int p = ((2 * j + k / 2) * width + 2 * i + k % 2) * 3;
+                    r += rgb[p] & 0xFF;
+                    g += rgb[p + 1] & 0xFF;
+                    b += rgb[p + 2] & 0xFF;
+                }
+                r /= 4;
+                g /= 4;
+                b /= 4;
+                int vu = frameSize + j * width + 2 * i;
+                nv21.put(vu, (byte) (128 + ((112 * r - 94 * g - 18 * b + 128) >> 8)));
+                nv21.put(vu + 1, (byte) (128 + ((-38 * r - 74 * g + 112 * b + 128) >> 8)));
+            }
+        }
+    }
+
+    private static byte[] nv21ToRgb(ByteBuffer nv21, int width, int height) {
+        int frameSize = width * height;
+        byte[] rgb = new byte[frameSize * 3];
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int vu = frameSize + (j / 2) * width + (i & ~1);
+                int c = (nv21.get(j * width + i) & 0xFF) - 16;
+                int e = (nv21.get(vu) & 0xFF) - 128;
+                int d = (nv21.get(vu + 1) & 0xFF) - 128;
+                int p = (j * width + i) * 3;
+                rgb[p] = clamp((298 * c + 409 * e + 128) >> 8);
+                rgb[p + 1] = clamp((298 * c - 100 * d - 208 * e + 128) >> 8);
+                rgb[p + 2] = clamp((298 * c + 516 * d + 128) >> 8);
+            }
+        }
+        return rgb;
+    }
+
+    private static byte clamp(int value) {
+        return (byte) Math.max(0, Math.min(255, value));
+    }
+}
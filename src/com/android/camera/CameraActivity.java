@@ -35,6 +35,7 @@ import android.widget.FrameLayout;
 
 import com.android.camera.ui.CameraSwitcher;
 import com.android.gallery3d.app.PhotoPage;
+import com.android.gallery3d.common.ApiHelper;
 import com.android.gallery3d.util.LightCycleHelper;
 
 public class CameraActivity extends ActivityBase
@@ -53,6 +54,9 @@ public class CameraActivity extends ActivityBase
     private Drawable[] mDrawables;
     private int mCurrentModuleIndex;
     private MotionEvent mDown;
+    private long mModuleSwitchStartTime;
+    // Time from the module switch to the first frame of the new preview.
+    private long mModuleSwitchTime = -1;
 
     private MyOrientationEventListener mOrientationListener;
     // The degrees of the device rotated clockwise from its natural orientation.
@@ -157,11 +161,18 @@ public class CameraActivity extends ActivityBase
     }
 
     private void doChangeCamera(int i) {
+        mModuleSwitchStartTime = System.currentTimeMillis();
         boolean canReuse = canReuseScreenNail();
-        CameraHolder.instance().keep();
+        boolean handOff = canHandOffPreview(i);
+        if (handOff) {
+            CameraHolder.instance().keepPreview();
+        } else {
+            CameraHolder.instance().keep();
+        }
         closeModule(mCurrentModule);
         mCurrentModuleIndex = i;
-        Util.mSwitchCamera = true;
+        // The adopted preview keeps using the current surface texture.
+        if (!handOff) Util.mSwitchCamera = true;
         switch (i) {
             case VIDEO_MODULE_INDEX:
                 mCurrentModule = new VideoModule();
@@ -186,6 +197,7 @@ public class CameraActivity extends ActivityBase
 
         @Override
         public void run() {
+            mModuleSwitchTime = System.currentTimeMillis() - mModuleSwitchStartTime;
             runOnUiThread(mFadeInCameraScreenNail);
         }
     };
@@ -430,6 +442,19 @@ public class CameraActivity extends ActivityBase
                 || mCurrentModuleIndex == VIDEO_MODULE_INDEX;
     }
 
+    // Photo and video modules share the camera screen nail, so the running
+    // preview can be handed off between them without restarting it.
+    private boolean canHandOffPreview(int nextIndex) {
+        if (!ApiHelper.HAS_SURFACE_TEXTURE || !canReuseScreenNail()) return false;
+        if (nextIndex != PHOTO_MODULE_INDEX && nextIndex != VIDEO_MODULE_INDEX) {
+            return false;
+        }
+        if (mCurrentModule instanceof VideoModule) {
+            return ((VideoModule) mCurrentModule).canHandOffPreview();
+        }
+        return true;
+    }
+
     @Override
     public boolean isPanoramaActivity() {
         return (mCurrentModuleIndex == PANORAMA_MODULE_INDEX);
@@ -461,6 +486,15 @@ public class CameraActivity extends ActivityBase
                 ((PhotoModule)mCurrentModule).mJpegCallbackFinishTime : -1;
     }
 
+    public long getModuleSwitchTime() {
+        return mModuleSwitchTime;
+    }
+
+    public long getEffectSwitchTime() {
+        return (mCurrentModule instanceof VideoModule) ?
+                ((VideoModule) mCurrentModule).mEffectSwitchTime : -1;
+    }
+
     public long getCaptureStartTime() {
         return (mCurrentModule instanceof PhotoModule) ?
                 ((PhotoModule)mCurrentModule).mCaptureStartTime : -1;
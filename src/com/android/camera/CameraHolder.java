@@ -25,6 +25,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.camera.CameraManager.CameraProxy;
@@ -33,6 +34,8 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * The class is used to hold an {@code android.hardware.Camera} instance.
@@ -45,6 +48,13 @@ import java.util.Date;
  * android.hardware.Camera}.
  *
  * <p>This is used in switching between different modules.
+ *
+ * <p>If {@code keepPreview()} is called instead of {@code keep()}, the
+ * preview is left running in {@code release()}. The next module then calls
+ * {@code adoptPreview()} with its parameters. Until then the camera keeps the
+ * parameters of the running preview, which the module starts from. They are
+ * set once, and only if some key differs, and the preview keeps running
+ * unless one of those keys requires a restart.
  */
 public class CameraHolder {
     private static final String TAG = "CameraHolder";
@@ -61,6 +71,16 @@ public class CameraHolder {
     private static CameraProxy mMockCamera[];
     private static CameraInfo mMockCameraInfo[];
 
+    // Keys which cannot be changed while the preview is running. If the next
+    // module needs a different value for any of them, the handed off preview
+    // has to be restarted.
+    private static final String[] PREVIEW_RESTART_KEYS = {
+            "preview-size", "preview-format", "video-size", "cam_mode", "cam-mode"};
+    private boolean mKeepPreview;  // true if release() should not stop preview
+    private boolean mPreviewKept;  // true if the held camera is still previewing
+    // The parameters the kept preview is running with.
+    private Parameters mPreviewParameters;
+
     /* Debug double-open issue */
     private static final boolean DEBUG_OPEN_RELEASE = true;
     private static class OpenReleaseState {
@@ -202,6 +222,7 @@ public class CameraHolder {
             mCameraDevice.release();
             mCameraDevice = null;
             mCameraId = -1;
+            clearKeptPreview();
         }
         if (mCameraDevice == null) {
             try {
@@ -219,6 +240,11 @@ public class CameraHolder {
                 throw new CameraHardwareException(e);
             }
             mParameters = mCameraDevice.getParameters();
+        } else if (mPreviewKept) {
+            // The preview is still running, so do not reconnect, and leave its
+            // parameters alone. adoptPreview() sets the ones of the module,
+            // which would otherwise flip to the defaults and back.
+            Log.v(TAG, "open camera " + cameraId + " with the kept preview");
         } else {
             try {
                 mCameraDevice.reconnect();
@@ -262,12 +288,21 @@ public class CameraHolder {
         if (now < mKeepBeforeTime) {
             if (mCameraOpened) {
                 mCameraOpened = false;
-                mCameraDevice.stopPreview();
+                if (mKeepPreview) {
+                    mPreviewKept = true;
+                    mPreviewParameters = mCameraDevice.getParameters();
+                } else {
+                    clearKeptPreview();
+                    mCameraDevice.stopPreview();
+                }
             }
+            mKeepPreview = false;
             mHandler.sendEmptyMessageDelayed(RELEASE_CAMERA,
                     mKeepBeforeTime - now);
             return;
         }
+        mKeepPreview = false;
+        clearKeptPreview();
         mCameraOpened = false;
         mCameraDevice.release();
         mCameraDevice = null;
@@ -288,6 +323,87 @@ public class CameraHolder {
         mKeepBeforeTime = System.currentTimeMillis() + time;
     }
 
+    /**
+     * Like {@code keep()}, but the preview is also left running in the next
+     * {@code release()} so the next module can adopt it.
+     */
+    public synchronized void keepPreview() {
+        keep();
+        mKeepPreview = true;
+    }
+
+    /**
+     * Returns true if the current module should leave the preview and its
+     * surface alone when closing the camera.
+     */
+    public synchronized boolean isKeepingPreview() {
+        return mKeepPreview;
+    }
+
+    /**
+     * Returns true if the opened camera is still running the preview that
+     * was handed off by the previous module.
+     */
+    public synchronized boolean hasKeptPreview() {
+        return mCameraOpened && mPreviewKept;
+    }
+
+    /**
+     * Applies the parameters to the camera with the kept preview. They are
+     * set once, and not at all if no key differs from the running preview.
+     * If a key which requires a restart differs, the preview is stopped
+     * first.
+     *
+     * @return true if the preview is still running and the caller must not
+     *         start it again.
+     */
+    public synchronized boolean adoptPreview(Parameters params) {
+        if (!hasKeptPreview()) {
+            if (mCameraDevice != null) mCameraDevice.setParameters(params);
+            return false;
+        }
+        Parameters running = mPreviewParameters;
+        clearKeptPreview();
+        for (String key : PREVIEW_RESTART_KEYS) {
+            if (!TextUtils.equals(running.get(key), params.get(key))) {
+                Log.v(TAG, "restart handed off preview, " + key + " changed");
+                mCameraDevice.stopPreview();
+                mCameraDevice.setParameters(params);
+                return false;
+            }
+        }
+        applyDelta(running, params);
+        return true;
+    }
+
+    private void clearKeptPreview() {
+        mPreviewKept = false;
+        mPreviewParameters = null;
+    }
+
+    // Sets all the parameters, but only if some key differs from the current
+    // ones.
+    private void applyDelta(Parameters current, Parameters params) {
+        Map<String, String> from = split(current.flatten());
+        Map<String, String> to = split(params.flatten());
+        int changed = 0;
+        for (Map.Entry<String, String> e : to.entrySet()) {
+            if (!e.getValue().equals(from.get(e.getKey()))) changed++;
+        }
+        Log.v(TAG, "handed off preview, " + changed + " parameters changed");
+        if (changed > 0) mCameraDevice.setParameters(params);
+    }
+
+    private static Map<String, String> split(String flattened) {
+        HashMap<String, String> map = new HashMap<String, String>();
+        for (String kv : flattened.split(";")) {
+            int pos = kv.indexOf('=');
+            if (pos == -1) continue;
+            map.put(kv.substring(0, pos), kv.substring(pos + 1));
+        }
+        return map;
+    }
+
     public int getBackCameraId() {
         return mBackCameraId;
     }
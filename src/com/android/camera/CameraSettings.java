@@ -80,6 +80,8 @@ public class CameraSettings {
     public static final String KEY_PERSISTENT_NOHANDS = "pref_nohands_persistent_key";
     public static final String KEY_VIDEO_HDR = "pref_video_hdr_key";
     public static final String KEY_SHUTTER_SPEED = "pref_shutter_speed_key";
+    public static final String KEY_VIDEO_SEGMENT = "pref_video_segment_key";
+    public static final String KEY_VIDEO_PREROLL = "pref_video_preroll_key";
 
     public static final String EXPOSURE_DEFAULT_VALUE = "0";
     public static final String VALUE_ON = "on";
@@ -532,6 +534,8 @@ public class CameraSettings {
             return EffectsRecorder.EFFECT_GOOFY_FACE;
         } else if (effectSelection.startsWith("backdropper")) {
             return EffectsRecorder.EFFECT_BACKDROPPER;
+        } else if (effectSelection.startsWith("stabilizer")) {
+            return EffectsRecorder.EFFECT_STABILIZER;
         }
         Log.e(TAG, "Invalid effect selection: " + effectSelection);
         return EffectsRecorder.EFFECT_NONE;
@@ -563,6 +567,14 @@ public class CameraSettings {
             // Parameter is a string that either encodes the URI to use,
             // or specifies 'gallery'.
             return effectParameter;
+        } else if (effectSelection.startsWith("stabilizer")) {
+            // Parameter is the percentage of the width and of the height
+            // cropped on each side.
+            try {
+                return Integer.parseInt(effectParameter);
+            } catch (NumberFormatException e) {
+                // Fall through to the error below.
+            }
         }
 
         Log.e(TAG, "Invalid effect selection: " + effectSelection);
@@ -672,12 +684,17 @@ public class CameraSettings {
                 EffectsRecorder.isEffectSupported(EffectsRecorder.EFFECT_BACKDROPPER) &&
                 Util.isAutoExposureLockSupported(mParameters) &&
                 Util.isAutoWhiteBalanceLockSupported(mParameters);
+        // The stabilized region is not mirrored for front cameras.
+        boolean stabilizerSupported =
+                EffectsRecorder.isEffectSupported(EffectsRecorder.EFFECT_STABILIZER) &&
+                mCameraInfo[mCameraId].facing == CameraInfo.CAMERA_FACING_BACK;
 
         ArrayList<String> supported = new ArrayList<String>();
         for (CharSequence value : values) {
             String effectSelection = value.toString();
             if (!goofyFaceSupported && effectSelection.startsWith("goofy_face")) continue;
             if (!backdropperSupported && effectSelection.startsWith("backdropper")) continue;
+            if (!stabilizerSupported && effectSelection.startsWith("stabilizer")) continue;
             supported.add(effectSelection);
         }
 
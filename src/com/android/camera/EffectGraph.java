@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.graphics.SurfaceTexture;
+
+/**
+ * The graph of filters which EffectsRecorder runs between the camera, the
+ * display and the recorder. Each effect is loaded into a {@code Runner};
+ * the filters of a runner are addressed by their name in the graph, such as
+ * "display" and "recorder", and their inputs by the input name.
+ *
+ * <p>A graph is created for one preview session with the recording size,
+ * and reports to its {@code Listener} until it is closed.
+ *
+ * <p>This is a typed facade over the filter framework, which the app can
+ * only reach by reflection. {@link FilterFrameworkGraph} is its only
+ * implementation: the reflection is kept in that class and its lookups are
+ * cached, but the effects are still run through it. There is no backend
+ * which runs the effects without the framework.
+ */
+public interface EffectGraph {
+    /**
+     * Callbacks of the graph. They come on the processing threads of the
+     * graph, never from within a call to the graph.
+     */
+    public interface Listener {
+        // The source of a running graph has a texture for the camera to
+        // preview into, or null when the source has closed.
+        public void onSourceReady(SurfaceTexture source);
+
+        // The backdropper effect has learnt the background.
+        public void onLearningDone();
+
+        // The recorder has finished writing the recording.
+        public void onRecordingDone();
+
+        // A runner has stopped, because of an error if error is true.
+        public void onRunnerDone(boolean error);
+    }
+
+    public interface Runner {
+        // Starts the runner. The source reports when it is ready.
+        public void run();
+
+        // Stops the runner. onRunnerDone() is called when it has stopped.
+        public void stop();
+
+        // Returns the error which stopped the runner, or null.
+        public Exception getError();
+
+        public void setInputValue(String filter, String input, Object value);
+
+        // Sets an input which takes a quadrilateral, given by its bottom
+        // left, bottom right, top left and top right corners as x and y
+        // pairs in texture coordinates.
+        public void setInputRegion(String filter, String input, float[] corners);
+
+        // Makes the display filter drop its reference to the preview
+        // surface texture, which is no longer valid.
+        public void disconnectDisplay();
+
+        // Frees the filters of a stopped runner.
+        public void tearDown();
+    }
+
+    /**
+     * Sets the surface texture which the graphs loaded from now on display
+     * into.
+     */
+    public void setPreview(SurfaceTexture texture, int width, int height, int orientation);
+
+    /**
+     * Loads the graph of an effect, one of the EffectsRecorder.EFFECT_*
+     * constants.
+     */
+    public Runner load(int effect);
+
+    /**
+     * Stops reporting to the listener, and frees what the graph holds
+     * besides its runners.
+     */
+    public void close();
+}
@@ -24,99 +24,31 @@ import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.gallery3d.common.ApiHelper;
 
 import java.io.FileDescriptor;
-import java.io.IOException;
-import java.io.Serializable;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 
 /**
  * Encapsulates the mobile filter framework components needed to record video
  * with effects applied. Modeled after MediaRecorder.
+ *
+ * <p>The effects run on the filter framework, through the {@code EffectGraph}
+ * facade, so this class makes no reflective calls itself.
  */
 @TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB) // uses SurfaceTexture
 public class EffectsRecorder {
     private static final String TAG = "EffectsRecorder";
 
-    private static Class<?> sClassFilter;
-    private static Method sFilterIsAvailable;
-    private static EffectsRecorder sEffectsRecorder;
-    // The index of the current effects recorder.
-    private static int sEffectsRecorderIndex;
-
-    private static boolean sReflectionInited = false;
-
-    private static Class<?> sClsLearningDoneListener;
-    private static Class<?> sClsOnRunnerDoneListener;
-    private static Class<?> sClsOnRecordingDoneListener;
-    private static Class<?> sClsSurfaceTextureSourceListener;
-
-    private static Method sFilterSetInputValue;
-
-    private static Constructor<?> sCtPoint;
-    private static Constructor<?> sCtQuad;
-
-    private static Method sLearningDoneListenerOnLearningDone;
-
-    private static Method sObjectEquals;
-    private static Method sObjectToString;
-
-    private static Class<?> sClsGraphRunner;
-    private static Method sGraphRunnerGetGraph;
-    private static Method sGraphRunnerSetDoneCallback;
-    private static Method sGraphRunnerRun;
-    private static Method sGraphRunnerGetError;
-    private static Method sGraphRunnerStop;
-
-    private static Method sFilterGraphGetFilter;
-    private static Method sFilterGraphTearDown;
-
-    private static Method sOnRunnerDoneListenerOnRunnerDone;
-
-    private static Class<?> sClsGraphEnvironment;
-    private static Constructor<?> sCtGraphEnvironment;
-    private static Method sGraphEnvironmentCreateGLEnvironment;
-    private static Method sGraphEnvironmentGetRunner;
-    private static Method sGraphEnvironmentAddReferences;
-    private static Method sGraphEnvironmentLoadGraph;
-    private static Method sGraphEnvironmentGetContext;
-
-    private static Method sFilterContextGetGLEnvironment;
-    private static Method sGLEnvironmentIsActive;
-    private static Method sGLEnvironmentActivate;
-    private static Method sGLEnvironmentDeactivate;
-    private static Method sSurfaceTextureTargetDisconnect;
-    private static Method sOnRecordingDoneListenerOnRecordingDone;
-    private static Method sSurfaceTextureSourceListenerOnSurfaceTextureSourceReady;
-
-    private Object mLearningDoneListener;
-    private Object mRunnerDoneCallback;
-    private Object mSourceReadyCallback;
-    // A callback to finalize the media after the recording is done.
-    private Object mRecordingDoneListener;
-
-    static {
-        try {
-            sClassFilter = Class.forName("android.filterfw.core.Filter");
-            sFilterIsAvailable = sClassFilter.getMethod("isAvailable",
-                    String.class);
-        } catch (ClassNotFoundException ex) {
-            Log.v(TAG, "Can't find the class android.filterfw.core.Filter");
-        } catch (NoSuchMethodException e) {
-            Log.v(TAG, "Can't find the method Filter.isAvailable");
-        }
-    }
-
     public static final int  EFFECT_NONE        = 0;
     public static final int  EFFECT_GOOFY_FACE  = 1;
     public static final int  EFFECT_BACKDROPPER = 2;
+    public static final int  EFFECT_STABILIZER  = 3;
 
     public static final int  EFFECT_GF_SQUEEZE     = 0;
     public static final int  EFFECT_GF_BIG_EYES    = 1;
@@ -158,11 +90,53 @@ public class EffectsRecorder {
     private EffectsListener mEffectsListener;
 
     private Object mEffectParameter;
+    // Corners of the region of the frames shown and recorded by the
+    // stabilizer effect, as returned by VideoStabilizer.getRegion(), or
+    // null for the whole frame.
+    private float[] mStabilizedRegion;
+
+    private EffectGraph mGraph;
+    private EffectGraph.Runner mRunner = null;
+    private EffectGraph.Runner mOldRunner = null;
+    private int mOldEffect = EFFECT_NONE;
+    // False if mOldRunner cannot be run again once stopped.
+    private boolean mKeepOldRunner;
+
+    // Number of stopped runners of the current graph which are kept loaded,
+    // so that switching back to their effect does not load the graph again.
+    private static final int MAX_IDLE_RUNNERS = 2;
+    // The idle runners by effect, least recently stopped first.
+    private final LinkedHashMap<Integer, EffectGraph.Runner> mIdleRunners =
+            new LinkedHashMap<Integer, EffectGraph.Runner>();
+
+    // Start of the effect switch in progress, or 0.
+    private long mSwitchStartTime;
+    private boolean mSwitchReusedRunner;
+    // Time from the start of the last effect switch to its preview, or -1.
+    private long mEffectSwitchTime = -1;
+
+    // Receives the callbacks of the graphs on their processing threads.
+    private final EffectGraph.Listener mGraphListener = new EffectGraph.Listener() {
+        @Override
+        public void onSourceReady(SurfaceTexture source) {
+            invokeOnSurfaceTextureSourceReady(source);
+        }
 
-    private Object mGraphEnv;
-    private int mGraphId;
-    private Object mRunner = null;
-    private Object mOldRunner = null;
+        @Override
+        public void onLearningDone() {
+            invokeOnLearningDone();
+        }
+
+        @Override
+        public void onRecordingDone() {
+            invokeOnRecordingDone();
+        }
+
+        @Override
+        public void onRunnerDone(boolean error) {
+            invokeOnRunnerDone(error);
+        }
+    };
 
     private SurfaceTexture mTextureSource;
 
@@ -181,133 +155,12 @@ public class EffectsRecorder {
      * Some effects require libraries not available on all devices
      */
     public static boolean isEffectSupported(int effectId) {
-        if (sFilterIsAvailable == null)  return false;
-
-        try {
-            switch (effectId) {
-                case EFFECT_GOOFY_FACE:
-                    return (Boolean) sFilterIsAvailable.invoke(null,
-                            "com.google.android.filterpacks.facedetect.GoofyRenderFilter");
-                case EFFECT_BACKDROPPER:
-                    return (Boolean) sFilterIsAvailable.invoke(null,
-                            "android.filterpacks.videoproc.BackDropperFilter");
-                default:
-                    return false;
-            }
-        } catch (Exception ex) {
-            Log.e(TAG, "Fail to check filter", ex);
-        }
-        return false;
+        return FilterFrameworkGraph.isEffectSupported(effectId);
     }
 
     public EffectsRecorder(Context context) {
         if (mLogVerbose) Log.v(TAG, "EffectsRecorder created (" + this + ")");
 
-        if (!sReflectionInited) {
-            try {
-                sFilterSetInputValue = sClassFilter.getMethod("setInputValue",
-                        new Class[] {String.class, Object.class});
-
-                Class<?> clsPoint = Class.forName("android.filterfw.geometry.Point");
-                sCtPoint = clsPoint.getConstructor(new Class[] {float.class,
-                        float.class});
-
-                Class<?> clsQuad = Class.forName("android.filterfw.geometry.Quad");
-                sCtQuad = clsQuad.getConstructor(new Class[] {clsPoint, clsPoint,
-                        clsPoint, clsPoint});
-
-                Class<?> clsBackDropperFilter = Class.forName(
-                        "android.filterpacks.videoproc.BackDropperFilter");
-                sClsLearningDoneListener = Class.forName(
-                        "android.filterpacks.videoproc.BackDropperFilter$LearningDoneListener");
-                sLearningDoneListenerOnLearningDone = sClsLearningDoneListener
-                        .getMethod("onLearningDone", new Class[] {clsBackDropperFilter});
-
-                sObjectEquals = Object.class.getMethod("equals", new Class[] {Object.class});
-                sObjectToString = Object.class.getMethod("toString");
-
-                sClsOnRunnerDoneListener = Class.forName(
-                        "android.filterfw.core.GraphRunner$OnRunnerDoneListener");
-                sOnRunnerDoneListenerOnRunnerDone = sClsOnRunnerDoneListener.getMethod(
-                        "onRunnerDone", new Class[] {int.class});
-
-                sClsGraphRunner = Class.forName("android.filterfw.core.GraphRunner");
-                sGraphRunnerGetGraph = sClsGraphRunner.getMethod("getGraph");
-                sGraphRunnerSetDoneCallback = sClsGraphRunner.getMethod(
-                        "setDoneCallback", new Class[] {sClsOnRunnerDoneListener});
-                sGraphRunnerRun = sClsGraphRunner.getMethod("run");
-                sGraphRunnerGetError = sClsGraphRunner.getMethod("getError");
-                sGraphRunnerStop = sClsGraphRunner.getMethod("stop");
-
-                Class<?> clsFilterContext = Class.forName("android.filterfw.core.FilterContext");
-                sFilterContextGetGLEnvironment = clsFilterContext.getMethod(
-                        "getGLEnvironment");
-
-                Class<?> clsFilterGraph = Class.forName("android.filterfw.core.FilterGraph");
-                sFilterGraphGetFilter = clsFilterGraph.getMethod("getFilter",
-                        new Class[] {String.class});
-                sFilterGraphTearDown = clsFilterGraph.getMethod("tearDown",
-                        new Class[] {clsFilterContext});
-
-                sClsGraphEnvironment = Class.forName("android.filterfw.GraphEnvironment");
-                sCtGraphEnvironment = sClsGraphEnvironment.getConstructor();
-                sGraphEnvironmentCreateGLEnvironment = sClsGraphEnvironment.getMethod(
-                        "createGLEnvironment");
-                sGraphEnvironmentGetRunner = sClsGraphEnvironment.getMethod(
-                        "getRunner", new Class[] {int.class, int.class});
-                sGraphEnvironmentAddReferences = sClsGraphEnvironment.getMethod(
-                        "addReferences", new Class[] {Object[].class});
-                sGraphEnvironmentLoadGraph = sClsGraphEnvironment.getMethod(
-                        "loadGraph", new Class[] {Context.class, int.class});
-                sGraphEnvironmentGetContext = sClsGraphEnvironment.getMethod(
-                        "getContext");
-
-                Class<?> clsGLEnvironment = Class.forName("android.filterfw.core.GLEnvironment");
-                sGLEnvironmentIsActive = clsGLEnvironment.getMethod("isActive");
-                sGLEnvironmentActivate = clsGLEnvironment.getMethod("activate");
-                sGLEnvironmentDeactivate = clsGLEnvironment.getMethod("deactivate");
-
-                Class<?> clsSurfaceTextureTarget = Class.forName(
-                        "android.filterpacks.videosrc.SurfaceTextureTarget");
-                sSurfaceTextureTargetDisconnect = clsSurfaceTextureTarget.getMethod(
-                        "disconnect", new Class[] {clsFilterContext});
-
-                sClsOnRecordingDoneListener = Class.forName(
-                        "android.filterpacks.videosink.MediaEncoderFilter$OnRecordingDoneListener");
-                sOnRecordingDoneListenerOnRecordingDone =
-                        sClsOnRecordingDoneListener.getMethod("onRecordingDone");
-
-                sClsSurfaceTextureSourceListener = Class.forName(
-                        "android.filterpacks.videosrc.SurfaceTextureSource$SurfaceTextureSourceListener");
-                sSurfaceTextureSourceListenerOnSurfaceTextureSourceReady =
-                        sClsSurfaceTextureSourceListener.getMethod(
-                                "onSurfaceTextureSourceReady",
-                                new Class[] {SurfaceTexture.class});
-            } catch (Exception ex) {
-                throw new RuntimeException(ex);
-            }
-
-            sReflectionInited = true;
-        }
-
-        sEffectsRecorderIndex++;
-        Log.v(TAG, "Current effects recorder index is " + sEffectsRecorderIndex);
-        sEffectsRecorder = this;
-        SerializableInvocationHandler sih = new SerializableInvocationHandler(
-                sEffectsRecorderIndex);
-        mLearningDoneListener = Proxy.newProxyInstance(
-                sClsLearningDoneListener.getClassLoader(),
-                new Class[] {sClsLearningDoneListener}, sih);
-        mRunnerDoneCallback = Proxy.newProxyInstance(
-                sClsOnRunnerDoneListener.getClassLoader(),
-                new Class[] {sClsOnRunnerDoneListener}, sih);
-        mSourceReadyCallback = Proxy.newProxyInstance(
-                sClsSurfaceTextureSourceListener.getClassLoader(),
-                new Class[] {sClsSurfaceTextureSourceListener}, sih);
-        mRecordingDoneListener =  Proxy.newProxyInstance(
-                sClsOnRecordingDoneListener.getClassLoader(),
-                new Class[] {sClsOnRecordingDoneListener}, sih);
-
         mContext = context;
         mHandler = new Handler(Looper.getMainLooper());
         mSoundPlayer = SoundClips.getPlayer(context);
@@ -483,39 +336,71 @@ public class EffectsRecorder {
 
     private void setFaceDetectOrientation() {
         if (mCurrentEffect == EFFECT_GOOFY_FACE) {
-            Object rotateFilter = getGraphFilter(mRunner, "rotate");
-            Object metaRotateFilter = getGraphFilter(mRunner, "metarotate");
-            setInputValue(rotateFilter, "rotation", mOrientationHint);
+            mRunner.setInputValue("rotate", "rotation", mOrientationHint);
             int reverseDegrees = (360 - mOrientationHint) % 360;
-            setInputValue(metaRotateFilter, "rotation", reverseDegrees);
+            mRunner.setInputValue("metarotate", "rotation", reverseDegrees);
         }
     }
 
     private void setRecordingOrientation() {
         if (mState != STATE_RECORD && mRunner != null) {
-            Object bl = newInstance(sCtPoint, new Object[] {0, 0});
-            Object br = newInstance(sCtPoint, new Object[] {1, 0});
-            Object tl = newInstance(sCtPoint, new Object[] {0, 1});
-            Object tr = newInstance(sCtPoint, new Object[] {1, 1});
-            Object recordingRegion;
-            if (mCameraFacing == Camera.CameraInfo.CAMERA_FACING_BACK) {
-                // The back camera is not mirrored, so use a identity transform
-                recordingRegion = newInstance(sCtQuad, new Object[] {bl, br, tl, tr});
+            setRecordingRegion();
+        }
+    }
+
+    // Sets the region of the frames which is recorded, and shown for the
+    // stabilizer effect: the whole frames, or the stabilized region.
+    private void setRecordingRegion() {
+        float[] corners = (mCurrentEffect == EFFECT_STABILIZER && mStabilizedRegion != null)
+                ? mStabilizedRegion : VideoStabilizer.getRegion(0);
+        float[] recordingRegion;
+        if (mCameraFacing == Camera.CameraInfo.CAMERA_FACING_BACK) {
+            // The back camera is not mirrored, so use a identity transform
+            recordingRegion = corners;
+        } else {
+            // Recording region needs to be tweaked for front cameras, since they
+            // mirror their preview
+            if (mOrientationHint == 0 || mOrientationHint == 180) {
+                // Horizontal flip in landscape: br, bl, tr, tl
+                recordingRegion = reorderCorners(corners, 1, 0, 3, 2);
             } else {
-                // Recording region needs to be tweaked for front cameras, since they
-                // mirror their preview
-                if (mOrientationHint == 0 || mOrientationHint == 180) {
-                    // Horizontal flip in landscape
-                    recordingRegion = newInstance(sCtQuad, new Object[] {br, bl, tr, tl});
-                } else {
-                    // Horizontal flip in portrait
-                    recordingRegion = newInstance(sCtQuad, new Object[] {tl, tr, bl, br});
-                }
+                // Horizontal flip in portrait: tl, tr, bl, br
+                recordingRegion = reorderCorners(corners, 2, 3, 0, 1);
             }
-            Object recorder = getGraphFilter(mRunner, "recorder");
-            setInputValue(recorder, "inputRegion", recordingRegion);
+        }
+        mRunner.setInputRegion("recorder", "inputRegion", recordingRegion);
+        if (mCurrentEffect == EFFECT_STABILIZER) {
+            mRunner.setInputRegion("display", "sourceQuad", corners);
+        }
+    }
+
+    // Returns the corners of a region in the given order of its bl, br, tl
+    // and tr corners.
+    private static float[] reorderCorners(float[] corners, int... order) {
+        float[] reordered = new float[8];
+        for (int i = 0; i < 4; i++) {
+            reordered[2 * i] = corners[2 * order[i]];
+            reordered[2 * i + 1] = corners[2 * order[i] + 1];
+        }
+        return reordered;
+    }
+
+    /**
+     * Sets the region of the frames shown and recorded by the stabilizer
+     * effect, as computed by VideoStabilizer. Unlike the other settings, it
+     * can be changed while recording.
+     */
+    public synchronized void setStabilizedRegion(float[] corners) {
+        if (mState == STATE_RELEASED) {
+            throw new RuntimeException(
+                    "setStabilizedRegion called on an already released recorder!");
+        }
+        mStabilizedRegion = corners;
+        if (mRunner != null && mCurrentEffect == EFFECT_STABILIZER) {
+            setRecordingRegion();
         }
     }
+
     public void setOrientationHint(int degrees) {
         switch (mState) {
             case STATE_RELEASED:
@@ -576,10 +461,7 @@ public class EffectsRecorder {
         mErrorListener = errorListener;
     }
 
-    private void initializeFilterFramework() {
-        mGraphEnv = newInstance(sCtGraphEnvironment);
-        invoke(mGraphEnv, sGraphEnvironmentCreateGLEnvironment);
-
+    private void initializeGraph() {
         int videoFrameWidth = mProfile.videoFrameWidth;
         int videoFrameHeight = mProfile.videoFrameHeight;
         if (mCameraDisplayOrientation == 90 || mCameraDisplayOrientation == 270) {
@@ -588,17 +470,14 @@ public class EffectsRecorder {
             videoFrameHeight = tmp;
         }
 
-        invoke(mGraphEnv, sGraphEnvironmentAddReferences,
-                new Object[] {new Object[] {
-                "textureSourceCallback", mSourceReadyCallback,
-                "recordingWidth", videoFrameWidth,
-                "recordingHeight", videoFrameHeight,
-                "recordingProfile", mProfile,
-                "learningDoneListener", mLearningDoneListener,
-                "recordingDoneListener", mRecordingDoneListener}});
+        // The graph of a previous preview is not closed, so that its runner
+        // can still report that it has stopped.
+        mGraph = new FilterFrameworkGraph(mContext, mGraphListener, mProfile,
+                videoFrameWidth, videoFrameHeight);
         mRunner = null;
-        mGraphId = -1;
         mCurrentEffect = EFFECT_NONE;
+        // Idle runners of the previous graph are not used again.
+        tearDownIdleRunners();
     }
 
     private synchronized void initializeEffect(boolean forceReset) {
@@ -606,78 +485,70 @@ public class EffectsRecorder {
             mCurrentEffect != mEffect ||
             mCurrentEffect == EFFECT_BACKDROPPER) {
 
-            invoke(mGraphEnv, sGraphEnvironmentAddReferences,
-                    new Object[] {new Object[] {
-                    "previewSurfaceTexture", mPreviewSurfaceTexture,
-                    "previewWidth", mPreviewWidth,
-                    "previewHeight", mPreviewHeight,
-                    "orientation", mOrientationHint}});
+            mGraph.setPreview(mPreviewSurfaceTexture, mPreviewWidth, mPreviewHeight,
+                    mOrientationHint);
             if (mState == STATE_PREVIEW ||
                     mState == STATE_STARTING_PREVIEW) {
                 // Switching effects while running. Inform video camera.
                 sendMessage(mCurrentEffect, EFFECT_MSG_SWITCHING_EFFECT);
             }
 
-            switch (mEffect) {
-                case EFFECT_GOOFY_FACE:
-                    mGraphId = (Integer) invoke(mGraphEnv,
-                            sGraphEnvironmentLoadGraph,
-                            new Object[] {mContext, R.raw.goofy_face});
-                    break;
-                case EFFECT_BACKDROPPER:
-                    sendMessage(EFFECT_BACKDROPPER, EFFECT_MSG_STARTED_LEARNING);
-                    mGraphId = (Integer) invoke(mGraphEnv,
-                            sGraphEnvironmentLoadGraph,
-                            new Object[] {mContext, R.raw.backdropper});
-                    break;
-                default:
-                    throw new RuntimeException("Unknown effect ID" + mEffect + "!");
+            if (mEffect == EFFECT_BACKDROPPER) {
+                sendMessage(EFFECT_BACKDROPPER, EFFECT_MSG_STARTED_LEARNING);
+            }
+            if (forceReset) {
+                // The loaded graphs display into the previous preview
+                // surface texture.
+                tearDownIdleRunners();
             }
-            mCurrentEffect = mEffect;
-
             mOldRunner = mRunner;
-            mRunner = invoke(mGraphEnv, sGraphEnvironmentGetRunner,
-                    new Object[] {mGraphId,
-                    getConstant(sClsGraphEnvironment, "MODE_ASYNCHRONOUS")});
-            invoke(mRunner, sGraphRunnerSetDoneCallback, new Object[] {mRunnerDoneCallback});
+            mOldEffect = mCurrentEffect;
+            mKeepOldRunner = !forceReset;
+            mRunner = mIdleRunners.remove(mEffect);
+            mSwitchReusedRunner = (mRunner != null);
+            if (mRunner == null) mRunner = mGraph.load(mEffect);
+            mCurrentEffect = mEffect;
             if (mLogVerbose) {
                 Log.v(TAG, "New runner: " + mRunner
-                      + ". Old runner: " + mOldRunner);
+                      + ". Old runner: " + mOldRunner
+                      + ". Reused: " + mSwitchReusedRunner);
             }
             if (mState == STATE_PREVIEW ||
                     mState == STATE_STARTING_PREVIEW) {
                 // Switching effects while running. Stop existing runner.
                 // The stop callback will take care of starting new runner.
+                mSwitchStartTime = SystemClock.uptimeMillis();
                 mCameraDevice.stopPreview();
                 mCameraDevice.setPreviewTextureAsync(null);
-                invoke(mOldRunner, sGraphRunnerStop);
+                mOldRunner.stop();
             }
         }
 
         switch (mCurrentEffect) {
             case EFFECT_GOOFY_FACE:
                 tryEnableVideoStabilization(true);
-                Object goofyFilter = getGraphFilter(mRunner, "goofyrenderer");
-                setInputValue(goofyFilter, "currentEffect",
+                mRunner.setInputValue("goofyrenderer", "currentEffect",
                         ((Integer) mEffectParameter).intValue());
                 break;
             case EFFECT_BACKDROPPER:
                 tryEnableVideoStabilization(false);
-                Object backgroundSrc = getGraphFilter(mRunner, "background");
                 if (ApiHelper.HAS_EFFECTS_RECORDING_CONTEXT_INPUT) {
                     // Set the context first before setting sourceUrl to
                     // guarantee the content URI get resolved properly.
-                    setInputValue(backgroundSrc, "context", mContext);
+                    mRunner.setInputValue("background", "context", mContext);
                 }
-                setInputValue(backgroundSrc, "sourceUrl", mEffectParameter);
+                mRunner.setInputValue("background", "sourceUrl", mEffectParameter);
                 // For front camera, the background video needs to be mirrored in the
                 // backdropper filter
                 if (mCameraFacing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-                    Object replacer = getGraphFilter(mRunner, "replacer");
-                    setInputValue(replacer, "mirrorBg", true);
+                    mRunner.setInputValue("replacer", "mirrorBg", true);
                     if (mLogVerbose) Log.v(TAG, "Setting the background to be mirrored");
                 }
                 break;
+            case EFFECT_STABILIZER:
+                // The hardware stabilization would fight the software one.
+                tryEnableVideoStabilization(false);
+                break;
             default:
                 break;
         }
@@ -720,24 +591,16 @@ public class EffectsRecorder {
             throw new RuntimeException("No camera to record from!");
         }
 
-        if (mLogVerbose) Log.v(TAG, "Initializing filter framework and running the graph.");
-        initializeFilterFramework();
+        if (mLogVerbose) Log.v(TAG, "Initializing the effect graph and running it.");
+        initializeGraph();
 
         initializeEffect(true);
 
         mState = STATE_STARTING_PREVIEW;
-        invoke(mRunner, sGraphRunnerRun);
+        mRunner.run();
         // Rest of preview startup handled in mSourceReadyCallback
     }
 
-    private Object invokeObjectEquals(Object proxy, Object[] args) {
-        return Boolean.valueOf(proxy == args[0]);
-    }
-
-    private Object invokeObjectToString() {
-        return "Proxy-" + toString();
-    }
-
     private void invokeOnLearningDone() {
         if (mLogVerbose) Log.v(TAG, "Learning done callback triggered");
         // Called in a processing thread, so have to post message back to UI
@@ -746,8 +609,7 @@ public class EffectsRecorder {
         enable3ALocks(true);
     }
 
-    private void invokeOnRunnerDone(Object[] args) {
-        int runnerDoneResult = (Integer) args[0];
+    private void invokeOnRunnerDone(boolean error) {
         synchronized (EffectsRecorder.this) {
             if (mLogVerbose) {
                 Log.v(TAG,
@@ -755,34 +617,32 @@ public class EffectsRecorder {
                       + ", mRunner " + mRunner
                       + ", mOldRunner " + mOldRunner + ")");
             }
-            if (runnerDoneResult ==
-                    (Integer) getConstant(sClsGraphRunner, "RESULT_ERROR")) {
+            if (error) {
                 // Handle error case
                 Log.e(TAG, "Error running filter graph!");
                 Exception e = null;
                 if (mRunner != null) {
-                    e = (Exception) invoke(mRunner, sGraphRunnerGetError);
+                    e = mRunner.getError();
                 } else if (mOldRunner != null) {
-                    e = (Exception) invoke(mOldRunner, sGraphRunnerGetError);
+                    e = mOldRunner.getError();
                 }
                 raiseError(e);
             }
+            boolean previewing = (mState == STATE_PREVIEW ||
+                    mState == STATE_STARTING_PREVIEW);
             if (mOldRunner != null) {
-                // Tear down old graph if available
-                if (mLogVerbose) Log.v(TAG, "Tearing down old graph.");
-                Object glEnv = getContextGLEnvironment(mGraphEnv);
-                if (glEnv != null && !(Boolean) invoke(glEnv, sGLEnvironmentIsActive)) {
-                    invoke(glEnv, sGLEnvironmentActivate);
-                }
-                getGraphTearDown(mOldRunner,
-                        invoke(mGraphEnv, sGraphEnvironmentGetContext));
-                if (glEnv != null && (Boolean) invoke(glEnv, sGLEnvironmentIsActive)) {
-                    invoke(glEnv, sGLEnvironmentDeactivate);
+                if (previewing && mKeepOldRunner && !error) {
+                    // Keep the old graph loaded for switching back to it
+                    keepIdleRunner(mOldEffect, mOldRunner);
+                } else {
+                    // Tear down old graph if available
+                    if (mLogVerbose) Log.v(TAG, "Tearing down old graph.");
+                    mOldRunner.tearDown();
                 }
                 mOldRunner = null;
             }
-            if (mState == STATE_PREVIEW ||
-                    mState == STATE_STARTING_PREVIEW) {
+            if (!previewing) tearDownIdleRunners();
+            if (previewing) {
                 // Switching effects, start up the new runner
                 if (mLogVerbose) {
                     Log.v(TAG, "Previous effect halted. Running graph again. state: "
@@ -800,12 +660,10 @@ public class EffectsRecorder {
                 // the end of a normal recording session. In such a case, the graph
                 // does not restart and hence the learner does not re-learn. So we
                 // do not want to show the learning dialogue then.
-                if (runnerDoneResult == (Integer) getConstant(
-                        sClsGraphRunner, "RESULT_ERROR")
-                        && mCurrentEffect == EFFECT_BACKDROPPER) {
+                if (error && mCurrentEffect == EFFECT_BACKDROPPER) {
                     sendMessage(EFFECT_BACKDROPPER, EFFECT_MSG_STARTED_LEARNING);
                 }
-                invoke(mRunner, sGraphRunnerRun);
+                mRunner.run();
             } else if (mState != STATE_RELEASED) {
                 // Shutting down effects
                 if (mLogVerbose) Log.v(TAG, "Runner halted, restoring direct preview");
@@ -817,8 +675,7 @@ public class EffectsRecorder {
         }
     }
 
-    private void invokeOnSurfaceTextureSourceReady(Object[] args) {
-        SurfaceTexture source = (SurfaceTexture) args[0];
+    private void invokeOnSurfaceTextureSourceReady(SurfaceTexture source) {
         if (mLogVerbose) Log.v(TAG, "SurfaceTexture ready callback received");
         synchronized (EffectsRecorder.this) {
             mTextureSource = source;
@@ -870,6 +727,12 @@ public class EffectsRecorder {
 
             mState = STATE_PREVIEW;
 
+            if (mSwitchStartTime != 0) {
+                mEffectSwitchTime = SystemClock.uptimeMillis() - mSwitchStartTime;
+                mSwitchStartTime = 0;
+                Log.v(TAG, "Effect switch took " + mEffectSwitchTime + "ms, "
+                        + (mSwitchReusedRunner ? "graph reused" : "graph loaded"));
+            }
             if (mLogVerbose) Log.v(TAG, "Start preview/effect switch complete");
 
             // Sending a message to listener that preview is complete
@@ -877,6 +740,36 @@ public class EffectsRecorder {
         }
     }
 
+    // Keeps a stopped runner for its effect, and tears down the least
+    // recently stopped runner beyond MAX_IDLE_RUNNERS.
+    private void keepIdleRunner(int effect, EffectGraph.Runner runner) {
+        EffectGraph.Runner replaced = mIdleRunners.put(effect, runner);
+        if (replaced != null) replaced.tearDown();
+        if (mIdleRunners.size() > MAX_IDLE_RUNNERS) {
+            Iterator<EffectGraph.Runner> it = mIdleRunners.values().iterator();
+            EffectGraph.Runner eldest = it.next();
+            it.remove();
+            if (mLogVerbose) Log.v(TAG, "Tearing down idle graph " + eldest);
+            eldest.tearDown();
+        }
+    }
+
+    private void tearDownIdleRunners() {
+        for (EffectGraph.Runner runner : mIdleRunners.values()) {
+            runner.tearDown();
+        }
+        mIdleRunners.clear();
+    }
+
+    /**
+     * Returns the time in ms from the start of the last effect switch until
+     * the preview of the new effect ran, or -1 if no effect has been
+     * switched while previewing.
+     */
+    public synchronized long getEffectSwitchTime() {
+        return mEffectSwitchTime;
+    }
+
     private void invokeOnRecordingDone() {
         // Forward the callback to the VideoModule object (as an asynchronous event).
         if (mLogVerbose) Log.v(TAG, "Recording done callback triggered");
@@ -904,17 +797,16 @@ public class EffectsRecorder {
             startPreview();
         }
 
-        Object recorder = getGraphFilter(mRunner, "recorder");
         if (mFd != null) {
-            setInputValue(recorder, "outputFileDescriptor", mFd);
+            mRunner.setInputValue("recorder", "outputFileDescriptor", mFd);
         } else {
-            setInputValue(recorder, "outputFile", mOutputFile);
+            mRunner.setInputValue("recorder", "outputFile", mOutputFile);
         }
         // It is ok to set the audiosource without checking for timelapse here
         // since that check will be done in the MediaEncoderFilter itself
-        setInputValue(recorder, "audioSource", MediaRecorder.AudioSource.CAMCORDER);
-        setInputValue(recorder, "recordingProfile", mProfile);
-        setInputValue(recorder, "orientationHint", mOrientationHint);
+        mRunner.setInputValue("recorder", "audioSource", MediaRecorder.AudioSource.CAMCORDER);
+        mRunner.setInputValue("recorder", "recordingProfile", mProfile);
+        mRunner.setInputValue("recorder", "orientationHint", mOrientationHint);
         // Important to set the timelapseinterval to 0 if the capture rate is not >0
         // since the recorder does not get created every time the recording starts.
         // The recorder infers whether the capture is timelapsed based on the value of
@@ -922,22 +814,22 @@ public class EffectsRecorder {
         boolean captureTimeLapse = mCaptureRate > 0;
         if (captureTimeLapse) {
             double timeBetweenFrameCapture = 1 / mCaptureRate;
-            setInputValue(recorder, "timelapseRecordingIntervalUs",
+            mRunner.setInputValue("recorder", "timelapseRecordingIntervalUs",
                     (long) (1000000 * timeBetweenFrameCapture));
 
         } else {
-            setInputValue(recorder, "timelapseRecordingIntervalUs", 0L);
+            mRunner.setInputValue("recorder", "timelapseRecordingIntervalUs", 0L);
         }
 
         if (mInfoListener != null) {
-            setInputValue(recorder, "infoListener", mInfoListener);
+            mRunner.setInputValue("recorder", "infoListener", mInfoListener);
         }
         if (mErrorListener != null) {
-            setInputValue(recorder, "errorListener", mErrorListener);
+            mRunner.setInputValue("recorder", "errorListener", mErrorListener);
         }
-        setInputValue(recorder, "maxFileSize", mMaxFileSize);
-        setInputValue(recorder, "maxDurationMs", mMaxDurationMs);
-        setInputValue(recorder, "recording", true);
+        mRunner.setInputValue("recorder", "maxFileSize", mMaxFileSize);
+        mRunner.setInputValue("recorder", "maxDurationMs", mMaxDurationMs);
+        mRunner.setInputValue("recorder", "recording", true);
         mSoundPlayer.play(SoundClips.START_VIDEO_RECORDING);
         mState = STATE_RECORD;
     }
@@ -956,8 +848,7 @@ public class EffectsRecorder {
             default:
                 break;
         }
-        Object recorder = getGraphFilter(mRunner, "recorder");
-        setInputValue(recorder, "recording", false);
+        mRunner.setInputValue("recorder", "recording", false);
         mSoundPlayer.play(SoundClips.STOP_VIDEO_RECORDING);
         mState = STATE_PREVIEW;
     }
@@ -967,9 +858,7 @@ public class EffectsRecorder {
     public synchronized void disconnectDisplay() {
         if (mLogVerbose) Log.v(TAG, "Disconnecting the graph from the " +
             "SurfaceTexture");
-        Object display = getGraphFilter(mRunner, "display");
-        invoke(display, sSurfaceTextureTargetDisconnect, new Object[] {
-                invoke(mGraphEnv, sGraphEnvironmentGetContext)});
+        mRunner.disconnectDisplay();
     }
 
     // The VideoModule will call this to notify that the camera is being
@@ -1021,7 +910,7 @@ public class EffectsRecorder {
 
         mState = STATE_CONFIGURE;
         mOldRunner = mRunner;
-        invoke(mRunner, sGraphRunnerStop);
+        mRunner.stop();
         mRunner = null;
         // Rest of stop and release handled in mRunnerDoneCallback
     }
@@ -1080,39 +969,6 @@ public class EffectsRecorder {
         }
     }
 
-    static class SerializableInvocationHandler
-            implements InvocationHandler, Serializable {
-        private final int mEffectsRecorderIndex;
-        public SerializableInvocationHandler(int index) {
-            mEffectsRecorderIndex = index;
-        }
-
-        @Override
-        public Object invoke(Object proxy, Method method, Object[] args)
-                throws Throwable {
-            if (sEffectsRecorder == null) return null;
-            if (mEffectsRecorderIndex != sEffectsRecorderIndex) {
-                Log.v(TAG, "Ignore old callback " + mEffectsRecorderIndex);
-                return null;
-            }
-            if (method.equals(sObjectEquals)) {
-                return sEffectsRecorder.invokeObjectEquals(proxy, args);
-            } else if (method.equals(sObjectToString)) {
-                return sEffectsRecorder.invokeObjectToString();
-            } else if (method.equals(sLearningDoneListenerOnLearningDone)) {
-                sEffectsRecorder.invokeOnLearningDone();
-            } else if (method.equals(sOnRunnerDoneListenerOnRunnerDone)) {
-                sEffectsRecorder.invokeOnRunnerDone(args);
-            } else if (method.equals(
-                    sSurfaceTextureSourceListenerOnSurfaceTextureSourceReady)) {
-                sEffectsRecorder.invokeOnSurfaceTextureSourceReady(args);
-            } else if (method.equals(sOnRecordingDoneListenerOnRecordingDone)) {
-                sEffectsRecorder.invokeOnRecordingDone();
-            }
-            return null;
-        }
-    }
-
     // Indicates that all camera/recording activity needs to halt
     public synchronized void release() {
         if (mLogVerbose) Log.v(TAG, "Releasing (" + this + ")");
@@ -1128,10 +984,14 @@ public class EffectsRecorder {
                     mSoundPlayer.release();
                     mSoundPlayer = null;
                 }
+                tearDownIdleRunners();
                 mState = STATE_RELEASED;
                 break;
         }
-        sEffectsRecorder = null;
+        if (mGraph != null) {
+            mGraph.close();
+            mGraph = null;
+        }
     }
 
     private void sendMessage(final int effect, final int msg) {
@@ -1159,81 +1019,4 @@ public class EffectsRecorder {
             });
         }
     }
-
-    // invoke method on receiver with no arguments
-    private Object invoke(Object receiver, Method method) {
-        try {
-            return method.invoke(receiver);
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-
-    // invoke method on receiver with arguments
-    private Object invoke(Object receiver, Method method, Object[] args) {
-        try {
-            return method.invoke(receiver, args);
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-
-    private void setInputValue(Object receiver, String key, Object value) {
-        try {
-            sFilterSetInputValue.invoke(receiver, new Object[] {key, value});
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-
-    private Object newInstance(Constructor<?> ct, Object[] initArgs) {
-        try {
-            return ct.newInstance(initArgs);
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-
-    private Object newInstance(Constructor<?> ct) {
-        try {
-            return ct.newInstance();
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-
-    private Object getGraphFilter(Object receiver, String name) {
-        try {
-            return sFilterGraphGetFilter.invoke(sGraphRunnerGetGraph
-                    .invoke(receiver), new Object[] {name});
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-
-    private Object getContextGLEnvironment(Object receiver) {
-        try {
-            return sFilterContextGetGLEnvironment
-                    .invoke(sGraphEnvironmentGetContext.invoke(receiver));
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-
-    private void getGraphTearDown(Object receiver, Object filterContext) {
-        try {
-            sFilterGraphTearDown.invoke(sGraphRunnerGetGraph.invoke(receiver),
-                    new Object[]{filterContext});
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-
-    private Object getConstant(Class<?> cls, String name) {
-        try {
-            return cls.getDeclaredField(name).get(null);
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
-        }
-    }
 }
@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.Context;
+import android.graphics.SurfaceTexture;
+import android.media.CamcorderProfile;
+import android.util.Log;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+
+/**
+ * An EffectGraph which runs the graphs of res/raw on the mobile filter
+ * framework.
+ *
+ * <p>The filter framework is not part of the SDK the app is built against,
+ * so it is reached by reflection. The classes, methods and constants are
+ * looked up once per process, the filters of a runner are looked up once per
+ * runner, and each callback of the framework has its own proxy, so that a
+ * callback is forwarded to the listener without matching the method.
+ */
+public class FilterFrameworkGraph implements EffectGraph {
+    private static final String TAG = "FilterFrameworkGraph";
+
+    private static Method sFilterIsAvailable;
+
+    static {
+        try {
+            Class<?> clsFilter = Class.forName("android.filterfw.core.Filter");
+            sFilterIsAvailable = clsFilter.getMethod("isAvailable", String.class);
+        } catch (ClassNotFoundException ex) {
+            Log.v(TAG, "Can't find the class android.filterfw.core.Filter");
+        } catch (NoSuchMethodException e) {
+            Log.v(TAG, "Can't find the method Filter.isAvailable");
+        }
+    }
+
+    private static boolean sReflectionInited = false;
+
+    private static Class<?> sClsLearningDoneListener;
+    private static Class<?> sClsOnRunnerDoneListener;
+    private static Class<?> sClsOnRecordingDoneListener;
+    private static Class<?> sClsSurfaceTextureSourceListener;
+
+    private static Method sFilterSetInputValue;
+
+    private static Constructor<?> sCtPoint;
+    private static Constructor<?> sCtQuad;
+    private static Field sFieldPointX;
+    private static Field sFieldPointY;
+
+    private static Method sGraphRunnerGetGraph;
+    private static Method sGraphRunnerSetDoneCallback;
+    private static Method sGraphRunnerRun;
+    private static Method sGraphRunnerGetError;
+    private static Method sGraphRunnerStop;
+    private static int sGraphRunnerResultError;
+
+    private static Method sFilterGraphGetFilter;
+    private static Method sFilterGraphTearDown;
+
+    private static Constructor<?> sCtGraphEnvironment;
+    private static Method sGraphEnvironmentCreateGLEnvironment;
+    private static Method sGraphEnvironmentGetRunner;
+    private static Method sGraphEnvironmentAddReferences;
+    private static Method sGraphEnvironmentLoadGraph;
+    private static Method sGraphEnvironmentGetContext;
+    private static int sGraphEnvironmentModeAsynchronous;
+
+    private static Method sFilterContextGetGLEnvironment;
+    private static Method sGLEnvironmentIsActive;
+    private static Method sGLEnvironmentActivate;
+    private static Method sGLEnvironmentDeactivate;
+    private static Method sSurfaceTextureTargetDisconnect;
+
+    // The quads built for each region input, which are used in turn. The
+    // framework ignores a value equal to the one it has, and may still be
+    // reading the previous quad when the next region is set.
+    private static final int REGION_QUADS = 3;
+
+    // The callbacks of the filter framework.
+    private static final int CALLBACK_LEARNING_DONE = 0;
+    private static final int CALLBACK_RUNNER_DONE = 1;
+    private static final int CALLBACK_SOURCE_READY = 2;
+    private static final int CALLBACK_RECORDING_DONE = 3;
+
+    private final Context mContext;
+    private final Object mGraphEnv;
+    private final Object mFilterContext;
+    private final Object mRunnerDoneCallback;
+    // Cleared by close(), so that the proxies, which the framework may keep
+    // for a while, do not hold on to the listener.
+    private volatile Listener mListener;
+
+    /** Determine if a given effect is supported at runtime
+     * Some effects require libraries not available on all devices
+     */
+    public static boolean isEffectSupported(int effectId) {
+        if (sFilterIsAvailable == null)  return false;
+
+        try {
+            switch (effectId) {
+                case EffectsRecorder.EFFECT_GOOFY_FACE:
+                    return (Boolean) sFilterIsAvailable.invoke(null,
+                            "com.google.android.filterpacks.facedetect.GoofyRenderFilter");
+                case EffectsRecorder.EFFECT_BACKDROPPER:
+                    return (Boolean) sFilterIsAvailable.invoke(null,
+                            "android.filterpacks.videoproc.BackDropperFilter");
+                case EffectsRecorder.EFFECT_STABILIZER:
+                    return (Boolean) sFilterIsAvailable.invoke(null,
+                            "android.filterpacks.videosink.MediaEncoderFilter");
+                default:
+                    return false;
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, "Fail to check filter", ex);
+        }
+        return false;
+    }
+
+    private static synchronized void initReflection() {
+        if (sReflectionInited) return;
+        try {
+            Class<?> clsFilter = Class.forName("android.filterfw.core.Filter");
+            sFilterSetInputValue = clsFilter.getMethod("setInputValue",
+                    new Class[] {String.class, Object.class});
+
+            Class<?> clsPoint = Class.forName("android.filterfw.geometry.Point");
+            sCtPoint = clsPoint.getConstructor(new Class[] {float.class,
+                    float.class});
+            sFieldPointX = clsPoint.getField("x");
+            sFieldPointY = clsPoint.getField("y");
+
+            Class<?> clsQuad = Class.forName("android.filterfw.geometry.Quad");
+            sCtQuad = clsQuad.getConstructor(new Class[] {clsPoint, clsPoint,
+                    clsPoint, clsPoint});
+
+            sClsLearningDoneListener = Class.forName(
+                    "android.filterpacks.videoproc.BackDropperFilter$LearningDoneListener");
+
+            sClsOnRunnerDoneListener = Class.forName(
+                    "android.filterfw.core.GraphRunner$OnRunnerDoneListener");
+
+            Class<?> clsGraphRunner = Class.forName("android.filterfw.core.GraphRunner");
+            sGraphRunnerGetGraph = clsGraphRunner.getMethod("getGraph");
+            sGraphRunnerSetDoneCallback = clsGraphRunner.getMethod(
+                    "setDoneCallback", new Class[] {sClsOnRunnerDoneListener});
+            sGraphRunnerRun = clsGraphRunner.getMethod("run");
+            sGraphRunnerGetError = clsGraphRunner.getMethod("getError");
+            sGraphRunnerStop = clsGraphRunner.getMethod("stop");
+            sGraphRunnerResultError = clsGraphRunner.getDeclaredField("RESULT_ERROR")
+                    .getInt(null);
+
+            Class<?> clsFilterContext = Class.forName("android.filterfw.core.FilterContext");
+            sFilterContextGetGLEnvironment = clsFilterContext.getMethod(
+                    "getGLEnvironment");
+
+            Class<?> clsFilterGraph = Class.forName("android.filterfw.core.FilterGraph");
+            sFilterGraphGetFilter = clsFilterGraph.getMethod("getFilter",
+                    new Class[] {String.class});
+            sFilterGraphTearDown = clsFilterGraph.getMethod("tearDown",
+                    new Class[] {clsFilterContext});
+
+            Class<?> clsGraphEnvironment = Class.forName("android.filterfw.GraphEnvironment");
+            sCtGraphEnvironment = clsGraphEnvironment.getConstructor();
+            sGraphEnvironmentCreateGLEnvironment = clsGraphEnvironment.getMethod(
+                    "createGLEnvironment");
+            sGraphEnvironmentGetRunner = clsGraphEnvironment.getMethod(
+                    "getRunner", new Class[] {int.class, int.class});
+            sGraphEnvironmentAddReferences = clsGraphEnvironment.getMethod(
+                    "addReferences", new Class[] {Object[].class});
+            sGraphEnvironmentLoadGraph = clsGraphEnvironment.getMethod(
+                    "loadGraph", new Class[] {Context.class, int.class});
+            sGraphEnvironmentGetContext = clsGraphEnvironment.getMethod(
+                    "getContext");
+            sGraphEnvironmentModeAsynchronous = clsGraphEnvironment
+                    .getDeclaredField("MODE_ASYNCHRONOUS").getInt(null);
+
+            Class<?> clsGLEnvironment = Class.forName("android.filterfw.core.GLEnvironment");
+            sGLEnvironmentIsActive = clsGLEnvironment.getMethod("isActive");
+            sGLEnvironmentActivate = clsGLEnvironment.getMethod("activate");
+            sGLEnvironmentDeactivate = clsGLEnvironment.getMethod("deactivate");
+
+            Class<?> clsSurfaceTextureTarget = Class.forName(
+                    "android.filterpacks.videosrc.SurfaceTextureTarget");
+            sSurfaceTextureTargetDisconnect = clsSurfaceTextureTarget.getMethod(
+                    "disconnect", new Class[] {clsFilterContext});
+
+            sClsOnRecordingDoneListener = Class.forName(
+                    "android.filterpacks.videosink.MediaEncoderFilter$OnRecordingDoneListener");
+
+            sClsSurfaceTextureSourceListener = Class.forName(
+                    "android.filterpacks.videosrc.SurfaceTextureSource$SurfaceTextureSourceListener");
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+        sReflectionInited = true;
+    }
+
+    public FilterFrameworkGraph(Context context, Listener listener,
+            CamcorderProfile profile, int recordingWidth, int recordingHeight) {
+        initReflection();
+        mContext = context;
+        mListener = listener;
+        mRunnerDoneCallback = newCallback(sClsOnRunnerDoneListener, CALLBACK_RUNNER_DONE);
+
+        mGraphEnv = newInstance(sCtGraphEnvironment, new Object[0]);
+        invoke(mGraphEnv, sGraphEnvironmentCreateGLEnvironment);
+        mFilterContext = invoke(mGraphEnv, sGraphEnvironmentGetContext);
+        invoke(mGraphEnv, sGraphEnvironmentAddReferences,
+                new Object[] {new Object[] {
+                "textureSourceCallback", newCallback(sClsSurfaceTextureSourceListener,
+                        CALLBACK_SOURCE_READY),
+                "recordingWidth", recordingWidth,
+                "recordingHeight", recordingHeight,
+                "recordingProfile", profile,
+                "learningDoneListener", newCallback(sClsLearningDoneListener,
+                        CALLBACK_LEARNING_DONE),
+                "recordingDoneListener", newCallback(sClsOnRecordingDoneListener,
+                        CALLBACK_RECORDING_DONE)}});
+    }
+
+    @Override
+    public void setPreview(SurfaceTexture texture, int width, int height, int orientation) {
+        invoke(mGraphEnv, sGraphEnvironmentAddReferences,
+                new Object[] {new Object[] {
+                "previewSurfaceTexture", texture,
+                "previewWidth", width,
+                "previewHeight", height,
+                "orientation", orientation}});
+    }
+
+    @Override
+    public Runner load(int effect) {
+        int graphResource;
+        switch (effect) {
+            case EffectsRecorder.EFFECT_GOOFY_FACE:
+                graphResource = R.raw.goofy_face;
+                break;
+            case EffectsRecorder.EFFECT_BACKDROPPER:
+                graphResource = R.raw.backdropper;
+                break;
+            case EffectsRecorder.EFFECT_STABILIZER:
+                graphResource = R.raw.stabilizer;
+                break;
+            default:
+                throw new RuntimeException("Unknown effect ID" + effect + "!");
+        }
+        int graphId = (Integer) invoke(mGraphEnv, sGraphEnvironmentLoadGraph,
+                new Object[] {mContext, graphResource});
+        Object runner = invoke(mGraphEnv, sGraphEnvironmentGetRunner,
+                new Object[] {graphId, sGraphEnvironmentModeAsynchronous});
+        invoke(runner, sGraphRunnerSetDoneCallback, new Object[] {mRunnerDoneCallback});
+        return new GraphRunner(runner);
+    }
+
+    @Override
+    public void close() {
+        mListener = null;
+    }
+
+    private class GraphRunner implements Runner {
+        private final Object mRunner;
+        private final Object mGraph;
+        private final HashMap<String, Object> mFilters = new HashMap<String, Object>();
+        private final HashMap<String, RegionInput> mRegions = new HashMap<String, RegionInput>();
+
+        GraphRunner(Object runner) {
+            mRunner = runner;
+            mGraph = invoke(runner, sGraphRunnerGetGraph);
+        }
+
+        @Override
+        public void run() {
+            invoke(mRunner, sGraphRunnerRun);
+        }
+
+        @Override
+        public void stop() {
+            invoke(mRunner, sGraphRunnerStop);
+        }
+
+        @Override
+        public Exception getError() {
+            return (Exception) invoke(mRunner, sGraphRunnerGetError);
+        }
+
+        @Override
+        public void setInputValue(String filter, String input, Object value) {
+            invoke(getFilter(filter), sFilterSetInputValue, new Object[] {input, value});
+        }
+
+        // The stabilizer sets its region for each frame, so the quads are
+        // built once and then only their points are set.
+        @Override
+        public void setInputRegion(String filter, String input, float[] corners) {
+            String key = filter + "." + input;
+            RegionInput region = mRegions.get(key);
+            if (region == null) {
+                region = new RegionInput();
+                mRegions.put(key, region);
+            }
+            int k = region.next;
+            region.next = (k + 1) % REGION_QUADS;
+            Object[] points = region.points[k];
+            if (region.quads[k] == null) {
+                for (int i = 0; i < 4; i++) {
+                    points[i] = newInstance(sCtPoint,
+                            new Object[] {corners[2 * i], corners[2 * i + 1]});
+                }
+                region.quads[k] = newInstance(sCtQuad, points);
+            } else {
+                for (int i = 0; i < 4; i++) {
+                    setFloat(points[i], sFieldPointX, corners[2 * i]);
+                    setFloat(points[i], sFieldPointY, corners[2 * i + 1]);
+                }
+            }
+            setInputValue(filter, input, region.quads[k]);
+        }
+
+        @Override
+        public void disconnectDisplay() {
+            invoke(getFilter("display"), sSurfaceTextureTargetDisconnect,
+                    new Object[] {mFilterContext});
+        }
+
+        @Override
+        public void tearDown() {
+            Object glEnv = invoke(mFilterContext, sFilterContextGetGLEnvironment);
+            if (glEnv != null && !(Boolean) invoke(glEnv, sGLEnvironmentIsActive)) {
+                invoke(glEnv, sGLEnvironmentActivate);
+            }
+            invoke(mGraph, sFilterGraphTearDown, new Object[] {mFilterContext});
+            if (glEnv != null && (Boolean) invoke(glEnv, sGLEnvironmentIsActive)) {
+                invoke(glEnv, sGLEnvironmentDeactivate);
+            }
+        }
+
+        private Object getFilter(String name) {
+            Object filter = mFilters.get(name);
+            if (filter == null) {
+                filter = invoke(mGraph, sFilterGraphGetFilter, new Object[] {name});
+                mFilters.put(name, filter);
+            }
+            return filter;
+        }
+
+        @Override
+        public String toString() {
+            return mRunner.toString();
+        }
+    }
+
+    private static class RegionInput {
+        final Object[] quads = new Object[REGION_QUADS];
+        final Object[][] points = new Object[REGION_QUADS][4];
+        int next;
+    }
+
+    private Object newCallback(Class<?> cls, int callback) {
+        return Proxy.newProxyInstance(cls.getClassLoader(), new Class[] {cls},
+                new CallbackHandler(callback));
+    }
+
+    // Forwards one callback of the framework to the listener.
+    private class CallbackHandler implements InvocationHandler {
+        private final int mCallback;
+
+        CallbackHandler(int callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+                String name = method.getName();
+                if (name.equals("equals")) return Boolean.valueOf(proxy == args[0]);
+                if (name.equals("hashCode")) return System.identityHashCode(proxy);
+                return "Proxy-" + FilterFrameworkGraph.this;
+            }
+            Listener listener = mListener;
+            if (listener == null) {
+                Log.v(TAG, "Ignore callback of closed graph " + mCallback);
+                return null;
+            }
+            switch (mCallback) {
+                case CALLBACK_LEARNING_DONE:
+                    listener.onLearningDone();
+                    break;
+                case CALLBACK_RUNNER_DONE:
+                    listener.onRunnerDone((Integer) args[0] == sGraphRunnerResultError);
+                    break;
+                case CALLBACK_SOURCE_READY:
+                    listener.onSourceReady((SurfaceTexture) args[0]);
+                    break;
+                case CALLBACK_RECORDING_DONE:
+                    listener.onRecordingDone();
+                    break;
+            }
+            return null;
+        }
+    }
+
+    // invoke method on receiver with no arguments
+    private static Object invoke(Object receiver, Method method) {
+        try {
+            return method.invoke(receiver);
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // invoke method on receiver with arguments
+    private static Object invoke(Object receiver, Method method, Object[] args) {
+        try {
+            return method.invoke(receiver, args);
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static void setFloat(Object receiver, Field field, float value) {
+        try {
+            field.setFloat(receiver, value);
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static Object newInstance(Constructor<?> ct, Object[] initArgs) {
+        try {
+            return ct.newInstance(initArgs);
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
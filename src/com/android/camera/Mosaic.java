@@ -16,6 +16,8 @@
 
 package com.android.camera;
 
+import java.nio.ByteBuffer;
+
 /**
  * The Java interface to JNI calls regarding mosaic stitching.
  *
@@ -116,14 +118,28 @@ public class Mosaic {
      * image to t is computed and returned.
      *
      * @param pixels source image of NV21 format.
-     * @return Float array of length 11; first 9 entries correspond to the 3x3
+     * @return Float array of length 12; first 9 entries correspond to the 3x3
      *         transformation matrix between the first frame and the passed frame;
      *         the 10th entry is the number of the passed frame, where the counting
-     *         starts from 1; and the 11th entry is the returning code, whose value
-     *         is one of those MOSAIC_RET_* returning flags defined above.
+     *         starts from 1; the 11th entry is the returning code, whose value
+     *         is one of those MOSAIC_RET_* returning flags defined above; and the
+     *         12th entry is the number of feature matches that agreed with the
+     *         alignment.
      */
     public native float[] setSourceImage(byte[] pixels);
 
+    /**
+     * Same as setSourceImage(byte[]), but reads the frame from a direct buffer
+     * without copying it to or from the Java heap.
+     *
+     * @param pixels direct buffer holding a source image of NV21 format,
+     *        starting at address 0 regardless of the buffer's position.
+     * @return Same as setSourceImage(byte[]).
+     * @throws IllegalArgumentException if the buffer is not direct or is too
+     *         small for a frame.
+     */
+    public native float[] setSourceImageBuffer(ByteBuffer pixels);
+
     /**
      * This is an alternative to the setSourceImage function above. This should
      * be called when the image data is already on the native side in a fixed
@@ -131,11 +147,13 @@ public class Mosaic {
      * using glReadPixels directly from GPU memory (where it is accessed by
      * an associated SurfaceTexture).
      *
-     * @return Float array of length 11; first 9 entries correspond to the 3x3
+     * @return Float array of length 12; first 9 entries correspond to the 3x3
      *         transformation matrix between the first frame and the passed frame;
      *         the 10th entry is the number of the passed frame, where the counting
-     *         starts from 1; and the 11th entry is the returning code, whose value
-     *         is one of those MOSAIC_RET_* returning flags defined above.
+     *         starts from 1; the 11th entry is the returning code, whose value
+     *         is one of those MOSAIC_RET_* returning flags defined above; and the
+     *         12th entry is the number of feature matches that agreed with the
+     *         alignment.
      */
     public native float[] setSourceImageFromGPU();
 
@@ -154,6 +172,14 @@ public class Mosaic {
      */
     public native void setStripType(int type);
 
+    /**
+     * Set the number of threads used to blend the mosaic. The mosaic is the
+     * same for any number of threads. Takes effect at the next reset().
+     *
+     * @param threads the number of blending threads, from 1 to 8.
+     */
+    public native void setBlendThreadCount(int threads);
+
     /**
      * Tell the native layer to create the final mosaic after all the input frame
      * data have been collected.
@@ -163,6 +189,8 @@ public class Mosaic {
      *        which is based on the original images set in setSourceImage().
      *        False means generating a low-resolution version -
      *        which is based on 1/4 downscaled images from the original images.
+     *        It is the panorama of getLiveMosaicBuffer() when that holds every
+     *        frame, so it takes little time.
      * @return Returns a status code suggesting if the mosaic building was
      *        successful, in error, or was cancelled by the user.
      */
@@ -187,6 +215,101 @@ public class Mosaic {
      */
     public native byte[] getFinalMosaicNV21();
 
+    /**
+     * Get the size of the created mosaic.
+     *
+     * @param size an array of at least 2 integers which receives MosaicWidth
+     *        and MosaicHeight respectively.
+     */
+    public native void getFinalMosaicSize(int[] size);
+
+    /**
+     * Same as getFinalMosaic(), but writes the ARGB_8888 pixels into a direct
+     * buffer in native byte order instead of allocating an array.
+     *
+     * @param image direct buffer of at least MosaicWidth*MosaicHeight*4 bytes.
+     * @return Returns false if the mosaic cannot be converted.
+     * @throws IllegalArgumentException if the buffer is not direct or is too
+     *         small.
+     */
+    public native boolean getFinalMosaicBuffer(ByteBuffer image);
+
+    /**
+     * Same as getFinalMosaicNV21(), but writes the NV21 pixels into a direct
+     * buffer instead of allocating an array. Like getFinalMosaicNV21(), this
+     * can only be called once for each created mosaic.
+     *
+     * @param image direct buffer of at least MosaicWidth*MosaicHeight*1.5 bytes.
+     * @return Returns true on success.
+     * @throws IllegalArgumentException if the buffer is not direct or is too
+     *         small.
+     */
+    public native boolean getFinalMosaicNV21Buffer(ByteBuffer image);
+
+    /**
+     * Get a preview of the panorama of the frames accepted so far. During the
+     * capture each new low-res frame is blended in the background into the
+     * panorama at its aligned position, so the preview grows with the
+     * panorama at a constant cost per frame. createMosaic(false) returns the
+     * same panorama, cropped, instead of blending the low-res frames again.
+     *
+     * @param image direct buffer which receives the preview in RGBA format,
+     *        4 bytes per pixel, or null to only get the info.
+     * @param info an array of at least 5 integers which receives the width,
+     *        height and number of frames of the preview, the time taken by
+     *        the last update in microseconds and the number of frames it
+     *        added.
+     * @return Returns false if there is no preview yet or the buffer is too
+     *         small for it.
+     */
+    public native boolean getLiveMosaicBuffer(ByteBuffer image, int[] info);
+
+    /**
+     * Write the created mosaic to a JPEG file. The mosaic is encoded and
+     * written in horizontal bands, so no copy of the whole mosaic is made.
+     * Like getFinalMosaicNV21(), this can only be called once for each
+     * created mosaic.
+     *
+     * @param path the file to write.
+     * @param quality the JPEG quality from 1 to 100.
+     * @return Returns the width and height of the mosaic, or null if the file
+     *         cannot be written.
+     */
+    public native int[] writeFinalMosaicJpeg(String path, int quality);
+
+    /**
+     * Write the high-res frames to a checkpoint file, with their alignment if
+     * they have all been aligned, so that the mosaic can be finished after a
+     * restart with loadCheckpoint(). This can be called while createMosaic(true)
+     * is running on another thread, but not after freeMosaicMemory().
+     *
+     * @param path the file to write.
+     * @return Returns false if there are no frames or the file cannot be
+     *         written.
+     */
+    public native boolean writeCheckpoint(String path);
+
+    /**
+     * Get the size of the frames of a checkpoint.
+     *
+     * @param path the checkpoint file.
+     * @param size an array of at least 2 integers which receives the width and
+     *        height of the frames.
+     * @return Returns false if the file is not a complete checkpoint.
+     */
+    public native boolean getCheckpointSize(String path, int[] size);
+
+    /**
+     * Replace the captured frames with those of a checkpoint written by
+     * writeCheckpoint(), so that createMosaic(true) creates its mosaic. The
+     * memory must be allocated for the size of the checkpoint frames.
+     *
+     * @param path the checkpoint file.
+     * @return Returns the number of frames, or -1 if the checkpoint cannot be
+     *         read.
+     */
+    public native int loadCheckpoint(String path);
+
     /**
      * Reset the state of the frame arrays which maintain the captured frame data.
      * Also re-initializes the native mosaic object to make it ready for capturing a new mosaic.
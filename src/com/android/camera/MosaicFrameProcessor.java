@@ -16,8 +16,12 @@
 
 package com.android.camera;
 
+import android.graphics.Bitmap;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+
 /**
  * Class to handle the processing of each frame by Mosaicer.
  */
@@ -26,11 +30,23 @@ public class MosaicFrameProcessor {
     private static final int NUM_FRAMES_IN_BUFFER = 2;
     private static final int MAX_NUMBER_OF_FRAMES = 100;
     private static final int MOSAIC_RET_CODE_INDEX = 10;
+    private static final int NUM_INLIERS_INDEX = 11;
     private static final int FRAME_COUNT_INDEX = 9;
     private static final int X_COORD_INDEX = 2;
     private static final int Y_COORD_INDEX = 5;
     private static final int HR_TO_LR_DOWNSAMPLE_FACTOR = 4;
     private static final int WINDOW_SIZE = 3;
+    private static final int TELEMETRY_CAPACITY = 256;
+
+    // Alignment runs on the UI thread, so it may take at most this share of
+    // the time between preview frames. Frames beyond that are only shown.
+    private static final float ALIGNMENT_LOAD_TARGET = 0.6f;
+    private static final int MAX_FRAMES_PER_ALIGNMENT = 4;
+    // Largest translation between aligned frames, as a fraction of the frame
+    // size, so that the aligner still finds enough overlap.
+    private static final float MAX_TRANSLATION_PER_ALIGNMENT = 0.1f;
+    // Weight of the newest sample in the frame time averages.
+    private static final float TIME_SMOOTHING = 0.25f;
 
     private Mosaic mMosaicer;
     private boolean mIsMosaicMemoryAllocated = false;
@@ -56,9 +72,29 @@ public class MosaicFrameProcessor {
 
     private ProgressListener mProgressListener;
 
+    private final PanningTelemetry mTelemetry = new PanningTelemetry(TELEMETRY_CAPACITY);
+    private long mLastFrameTime;
+    private long mFrameStartTime;
+    // Moving averages in milliseconds.
+    private float mFrameInterval;
+    private float mAlignmentTime;
+    // Align one preview frame out of this many.
+    private int mFramesPerAlignment = 1;
+    private int mFramesSinceAlignment;
+
     private int mPreviewWidth;
     private int mPreviewHeight;
     private int mPreviewBufferSize;
+    // The memory is allocated for the checkpoint size while a checkpoint is
+    // being finished, and for the preview size otherwise.
+    private int mAllocatedWidth;
+    private int mAllocatedHeight;
+
+    // Reused for the final mosaic so that each capture doesn't allocate and
+    // collect a mosaic sized array.
+    private ByteBuffer mResultBuffer;
+    private ByteBuffer mLiveMosaicBuffer;
+    private Bitmap mLiveMosaicBitmap;
 
     private static MosaicFrameProcessor sMosaicFrameProcessor; // singleton
 
@@ -92,6 +128,7 @@ public class MosaicFrameProcessor {
         mPreviewBufferSize = bufSize;
         setupMosaicer(mPreviewWidth, mPreviewHeight, mPreviewBufferSize);
         setStripType(Mosaic.STRIPTYPE_WIDE);
+        mMosaicer.setBlendThreadCount(Runtime.getRuntime().availableProcessors());
         reset();
     }
 
@@ -100,6 +137,9 @@ public class MosaicFrameProcessor {
             mMosaicer.freeMosaicMemory();
             mIsMosaicMemoryAllocated = false;
         }
+        mResultBuffer = null;
+        mLiveMosaicBuffer = null;
+        mLiveMosaicBitmap = null;
         synchronized (this) {
             notify();
         }
@@ -118,9 +158,21 @@ public class MosaicFrameProcessor {
 
         if (mIsMosaicMemoryAllocated) throw new RuntimeException("MosaicFrameProcessor in use!");
         mIsMosaicMemoryAllocated = true;
+        mAllocatedWidth = previewWidth;
+        mAllocatedHeight = previewHeight;
         mMosaicer.allocateMosaicMemory(previewWidth, previewHeight);
     }
 
+    private void reallocateIfNeeded(int width, int height) {
+        if (!mIsMosaicMemoryAllocated
+                || (mAllocatedWidth == width && mAllocatedHeight == height)) {
+            return;
+        }
+        mMosaicer.freeMosaicMemory();
+        mIsMosaicMemoryAllocated = false;
+        setupMosaicer(width, height, mPreviewBufferSize);
+    }
+
     public void reset() {
         // reset() can be called even if MosaicFrameProcessor is not initialized.
         // Only counters will be changed.
@@ -139,6 +191,14 @@ public class MosaicFrameProcessor {
             mDeltaX[i] = 0f;
             mDeltaY[i] = 0f;
         }
+        mTelemetry.clear();
+        mLastFrameTime = 0;
+        mFrameStartTime = 0;
+        mFrameInterval = 0;
+        mAlignmentTime = 0;
+        mFramesPerAlignment = 1;
+        mFramesSinceAlignment = 0;
+        reallocateIfNeeded(mPreviewWidth, mPreviewHeight);
         mMosaicer.reset();
     }
 
@@ -150,6 +210,132 @@ public class MosaicFrameProcessor {
         return mMosaicer.getFinalMosaicNV21();
     }
 
+    /**
+     * Gets the created mosaic in NV21 format.
+     *
+     * @param size receives the width and height of the mosaic.
+     * @return a buffer owned by this class, with the image between 0 and its
+     *         limit, which is only valid until the next call. Returns null if
+     *         the mosaic is empty or cannot be read.
+     */
+    public ByteBuffer getFinalMosaicNV21Buffer(int[] size) {
+        mMosaicer.getFinalMosaicSize(size);
+        if (size[0] <= 0 || size[1] <= 0) return null;
+
+        int length = size[0] * size[1] * 3 / 2;
+        if (mResultBuffer == null || mResultBuffer.capacity() < length) {
+            mResultBuffer = null;
+            mResultBuffer = ByteBuffer.allocateDirect(length);
+        }
+        if (!mMosaicer.getFinalMosaicNV21Buffer(mResultBuffer)) return null;
+        mResultBuffer.clear();
+        mResultBuffer.limit(length);
+        return mResultBuffer;
+    }
+
+    // Gets the info of the live mosaic without copying it.
+    public void getLiveMosaicInfo(int[] info) {
+        mMosaicer.getLiveMosaicBuffer(null, info);
+    }
+
+    /**
+     * Gets a preview of the panorama of the frames accepted so far, for
+     * showing it as it grows.
+     *
+     * @param info receives the same values as Mosaic.getLiveMosaicBuffer().
+     * @return a bitmap owned by this class, which is only valid until the
+     *         next call. Returns null if there is no preview yet.
+     */
+    public Bitmap getLiveMosaicBitmap(int[] info) {
+        // The preview may grow between the calls, so allow for one retry.
+        for (int i = 0; i < 2; i++) {
+            if (mMosaicer.getLiveMosaicBuffer(mLiveMosaicBuffer, info)) {
+                if (mLiveMosaicBitmap == null || mLiveMosaicBitmap.getWidth() != info[0]
+                        || mLiveMosaicBitmap.getHeight() != info[1]) {
+                    mLiveMosaicBitmap = Bitmap.createBitmap(info[0], info[1],
+                            Bitmap.Config.ARGB_8888);
+                }
+                mLiveMosaicBuffer.clear();
+                mLiveMosaicBuffer.limit(info[0] * info[1] * 4);
+                mLiveMosaicBitmap.copyPixelsFromBuffer(mLiveMosaicBuffer);
+                return mLiveMosaicBitmap;
+            }
+            int length = info[0] * info[1] * 4;
+            if (length == 0) return null;
+            mLiveMosaicBuffer = null;
+            mLiveMosaicBuffer = ByteBuffer.allocateDirect(length);
+        }
+        return null;
+    }
+
+    public int[] writeFinalMosaicJpeg(String path, int quality) {
+        return mMosaicer.writeFinalMosaicJpeg(path, quality);
+    }
+
+    public boolean writeCheckpoint(String path) {
+        return mMosaicer.writeCheckpoint(path);
+    }
+
+    /**
+     * Replaces the captured frames with those of a checkpoint, so that
+     * createMosaic(true) finishes its panorama. If the checkpoint was taken
+     * at another preview size, the memory is allocated again for it until
+     * the next reset().
+     *
+     * @return false if the checkpoint cannot be read.
+     */
+    public boolean loadCheckpoint(String path) {
+        if (!mIsMosaicMemoryAllocated) return false;
+        int[] size = new int[2];
+        if (!mMosaicer.getCheckpointSize(path, size)) return false;
+        reallocateIfNeeded(size[0], size[1]);
+        return mMosaicer.loadCheckpoint(path) > 0;
+    }
+
+    public PanningTelemetry getTelemetry() {
+        return mTelemetry;
+    }
+
+    /**
+     * Called for each new preview frame while capturing. Decides whether
+     * the frame is aligned, depending on how long alignment takes compared
+     * to the preview frame rate and on how fast the camera pans.
+     *
+     * @return true if the frame should be transferred to the mosaicer and
+     *         passed to processFrame(), false if it should only be shown.
+     */
+    public boolean onPreviewFrame() {
+        long now = SystemClock.uptimeMillis();
+        if (mLastFrameTime != 0) {
+            mFrameInterval = smooth(mFrameInterval, now - mLastFrameTime);
+        }
+        mLastFrameTime = now;
+        mFrameStartTime = now;
+        mFramesSinceAlignment++;
+
+        if (mFirstRun || mFramesSinceAlignment >= mFramesPerAlignment) return true;
+        mTelemetry.add(now, mTranslationLastX, mTranslationLastY, 0,
+                PanningTelemetry.FRAME_SKIPPED, 0);
+        return false;
+    }
+
+    private static float smooth(float average, float sample) {
+        if (average == 0) return sample;
+        return average + TIME_SMOOTHING * (sample - average);
+    }
+
+    private void updateFramesPerAlignment() {
+        int frames = 1;
+        if (mFrameInterval > 0) {
+            frames = (int) Math.ceil(mAlignmentTime / (mFrameInterval * ALIGNMENT_LOAD_TARGET));
+        }
+        float panningRate = Math.max(mPanningRateX, mPanningRateY);
+        if (panningRate > 0) {
+            frames = Math.min(frames, (int) (MAX_TRANSLATION_PER_ALIGNMENT / panningRate));
+        }
+        mFramesPerAlignment = Math.max(1, Math.min(frames, MAX_FRAMES_PER_ALIGNMENT));
+    }
+
     // Processes the last filled image frame through the mosaicer and
     // updates the UI to show progress.
     // When done, processes and displays the final mosaic.
@@ -169,13 +355,21 @@ public class MosaicFrameProcessor {
         if (mCurrProcessFrameIdx != mLastProcessFrameIdx) {
             mLastProcessFrameIdx = mCurrProcessFrameIdx;
 
-            // TODO: make the termination condition regarding reaching
-            // MAX_NUMBER_OF_FRAMES solely determined in the library.
+            // The library drops every other frame when it runs out of frame
+            // slots, so the frame count only reaches MAX_NUMBER_OF_FRAMES once
+            // the frames are as far apart as the library allows.
             if (mTotalFrameCount < MAX_NUMBER_OF_FRAMES) {
                 // If we are still collecting new frames for the current mosaic,
                 // process the new frame.
                 calculateTranslationRate();
 
+                long now = SystemClock.uptimeMillis();
+                if (mFrameStartTime != 0) {
+                    mAlignmentTime = smooth(mAlignmentTime, now - mFrameStartTime);
+                    mFrameStartTime = 0;
+                }
+                updateFramesPerAlignment();
+
                 // Publish progress of the ongoing processing
                 if (mProgressListener != null) {
                     mProgressListener.onProgress(false, mPanningRateX, mPanningRateY,
@@ -199,6 +393,22 @@ public class MosaicFrameProcessor {
         float translationCurrX = frameData[X_COORD_INDEX];
         float translationCurrY = frameData[Y_COORD_INDEX];
 
+        int result = PanningTelemetry.FRAME_STILL;
+        if (ret_code == Mosaic.MOSAIC_RET_OK || ret_code == Mosaic.MOSAIC_RET_FEW_INLIERS) {
+            result = PanningTelemetry.FRAME_ACCEPTED;
+        } else if (ret_code == Mosaic.MOSAIC_RET_LOW_TEXTURE) {
+            result = PanningTelemetry.FRAME_LOW_TEXTURE;
+        }
+        long now = SystemClock.uptimeMillis();
+        mTelemetry.add(mFrameStartTime != 0 ? mFrameStartTime : now,
+                translationCurrX, translationCurrY, (int) frameData[NUM_INLIERS_INDEX],
+                result, mFrameStartTime != 0 ? now - mFrameStartTime : 0);
+
+        // The frames skipped since the last aligned frame count towards the
+        // panning rate, so that it stays a rate per preview frame.
+        int frames = Math.max(1, mFramesSinceAlignment);
+        mFramesSinceAlignment = 0;
+
         if (mFirstRun) {
             // First time: no need to update delta values.
             mTranslationLastX = translationCurrX;
@@ -212,8 +422,8 @@ public class MosaicFrameProcessor {
         int idx = mOldestIdx;
         mTotalTranslationX -= mDeltaX[idx];
         mTotalTranslationY -= mDeltaY[idx];
-        mDeltaX[idx] = Math.abs(translationCurrX - mTranslationLastX);
-        mDeltaY[idx] = Math.abs(translationCurrY - mTranslationLastY);
+        mDeltaX[idx] = Math.abs(translationCurrX - mTranslationLastX) / frames;
+        mDeltaY[idx] = Math.abs(translationCurrY - mTranslationLastY) / frames;
         mTotalTranslationX += mDeltaX[idx];
         mTotalTranslationY += mDeltaY[idx];
 
@@ -65,6 +65,7 @@ public class MosaicPreviewRenderer {
         public static final int MSG_SHOW_PREVIEW_FRAME = 2;
         public static final int MSG_ALIGN_FRAME_SYNC = 3;
         public static final int MSG_RELEASE = 4;
+        public static final int MSG_SHOW_WARPED_FRAME = 5;
 
         public EGLHandler(Looper looper) {
             super(looper);
@@ -91,6 +92,9 @@ public class MosaicPreviewRenderer {
                 case MSG_RELEASE:
                     doRelease();
                     break;
+                case MSG_SHOW_WARPED_FRAME:
+                    doShowWarpedFrame();
+                    break;
             }
         }
 
@@ -108,6 +112,19 @@ public class MosaicPreviewRenderer {
             mEgl.eglSwapBuffers(mEglDisplay, mEglSurface);
         }
 
+        // Same as doAlignFrame() without giving the frame to the mosaicer,
+        // so the frame is warped with the last alignment.
+        private void doShowWarpedFrame() {
+            mInputSurfaceTexture.updateTexImage();
+            mInputSurfaceTexture.getTransformMatrix(mTransformMatrix);
+
+            MosaicRenderer.setWarping(true);
+            MosaicRenderer.preprocess(mTransformMatrix);
+            MosaicRenderer.updateMatrix();
+            draw();
+            mEgl.eglSwapBuffers(mEglDisplay, mEglSurface);
+        }
+
         private void doShowPreviewFrame() {
             mInputSurfaceTexture.updateTexImage();
             mInputSurfaceTexture.getTransformMatrix(mTransformMatrix);
@@ -218,6 +235,11 @@ public class MosaicPreviewRenderer {
         mEglHandler.sendMessageSync(EGLHandler.MSG_ALIGN_FRAME_SYNC);
     }
 
+    // Shows a frame during capture without aligning it.
+    public void showWarpedFrame() {
+        mEglHandler.sendEmptyMessage(EGLHandler.MSG_SHOW_WARPED_FRAME);
+    }
+
     public SurfaceTexture getInputSurfaceTexture() {
         return mInputSurfaceTexture;
     }
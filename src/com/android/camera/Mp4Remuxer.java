@@ -0,0 +1,811 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Copies an MPEG-2 transport stream of H.264 video and AAC audio into an
+ * MP4 file, which can carry the rotation of the video.
+ *
+ * <p>A transport stream has no place for the orientation hint which
+ * MediaRecorder writes into MP4 files, so a recording which has been
+ * streamed is remuxed before it is stored. The samples are copied as they
+ * are; the parameter sets go into the sample description.
+ */
+public class Mp4Remuxer {
+    private static final int PACKET_SIZE = 188;
+    private static final int SYNC_BYTE = 0x47;
+    private static final int STREAM_TYPE_AAC = 0x0f;
+    private static final int STREAM_TYPE_H264 = 0x1b;
+    private static final int NAL_IDR = 5;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final int NAL_ACCESS_UNIT_DELIMITER = 9;
+    private static final int MOVIE_TIME_SCALE = 1000;
+    private static final int PES_TIME_SCALE = 90000;
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final int[] AAC_SAMPLE_RATES = {
+        96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350,
+    };
+
+    // The samples of a stream, and the PES packet which is assembled.
+    private static class Track {
+        final boolean video;
+        byte[] pes = new byte[64 * 1024];
+        int pesLength = -1;  // -1 until the start of a PES packet
+        long lastTime = -1;
+
+        int count;
+        int[] sizes = new int[1024];
+        long[] offsets = new long[1024];
+        // The decoding times and the presentation offsets, in 90kHz units.
+        long[] times = new long[1024];
+        int[] timeOffsets = new int[1024];
+        boolean[] syncs = new boolean[1024];
+        long firstPresentationTime = -1;
+
+        // The AAC configuration, from the first ADTS header.
+        int profile;
+        int sampleRateIndex = -1;
+        int channels;
+        byte[] pending = new byte[0];
+
+        Track(boolean video) {
+            this.video = video;
+        }
+
+        void append(byte[] data, int offset, int length) {
+            if (pesLength + length > pes.length) {
+                pes = Arrays.copyOf(pes, Math.max(pes.length * 2, pesLength + length));
+            }
+            System.arraycopy(data, offset, pes, pesLength, length);
+            pesLength += length;
+        }
+
+        void addSample(long offset, int size, long time, int timeOffset, boolean sync) {
+            if (count == sizes.length) {
+                int n = count * 2;
+                sizes = Arrays.copyOf(sizes, n);
+                offsets = Arrays.copyOf(offsets, n);
+                times = Arrays.copyOf(times, n);
+                timeOffsets = Arrays.copyOf(timeOffsets, n);
+                syncs = Arrays.copyOf(syncs, n);
+            }
+            sizes[count] = size;
+            offsets[count] = offset;
+            times[count] = time;
+            timeOffsets[count] = timeOffset;
+            syncs[count] = sync;
+            count++;
+        }
+
+        // Undoes the wrap around of the 33 bit PES times.
+        long unwrap(long time) {
+            if (lastTime >= 0) {
+                while (time < lastTime - (1L << 32)) time += 1L << 33;
+            }
+            lastTime = time;
+            return time;
+        }
+
+        // The presentation offsets are stored relative to the smallest one,
+        // as they cannot be negative.
+        int getMinTimeOffset() {
+            int min = timeOffsets[0];
+            for (int i = 1; i < count; i++) min = Math.min(min, timeOffsets[i]);
+            return min;
+        }
+
+        int getTimeScale() {
+            return video ? PES_TIME_SCALE : AAC_SAMPLE_RATES[sampleRateIndex];
+        }
+
+        // In the time scale of the track.
+        long getDuration() {
+            if (!video) return (long) count * AAC_FRAME_SAMPLES;
+            return times[count - 1] - times[0] + getSampleDuration(count - 1);
+        }
+
+        int getSampleDuration(int i) {
+            if (i + 1 < count) return (int) Math.max(times[i + 1] - times[i], 1);
+            // The last frame lasts as long as the one before.
+            return (i > 0) ? getSampleDuration(i - 1) : PES_TIME_SCALE / 30;
+        }
+    }
+
+    private final int mRotation;
+    private OutputStream mOut;
+    private long mPosition;
+    private int mPmtPid = -1;
+    private int mVideoPid = -1;
+    private int mAudioPid = -1;
+    private final Track mVideo = new Track(true);
+    private final Track mAudio = new Track(false);
+    private byte[] mSps;
+    private byte[] mPps;
+
+    /**
+     * Copies the transport stream {@code src} into the MP4 file {@code dst},
+     * whose video is shown rotated clockwise by {@code rotation} degrees.
+     * Throws if the stream has no H.264 video or cannot be parsed.
+     */
+    public static void remux(String src, String dst, int rotation) throws IOException {
+        new Mp4Remuxer(rotation).run(src, dst);
+    }
+
+    private Mp4Remuxer(int rotation) {
+        mRotation = rotation;
+    }
+
+    private void run(String src, String dst) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(src), 64 * 1024);
+        FileOutputStream file = new FileOutputStream(dst);
+        try {
+            mOut = new BufferedOutputStream(file, 64 * 1024);
+            writeBox(createFtyp());
+            // The size of the media data is filled in at the end. It is
+            // 64 bit, as a long recording may pass 4GB.
+            long mdatStart = mPosition;
+            DataOutputStream header = new DataOutputStream(mOut);
+            header.writeInt(1);
+            header.writeBytes("mdat");
+            header.writeLong(0);
+            mPosition += 16;
+
+            byte[] packet = new byte[PACKET_SIZE];
+            while (readPacket(in, packet)) {
+                if ((packet[0] & 0xff) != SYNC_BYTE) throw new IOException("Lost sync");
+                parsePacket(packet);
+            }
+            endPes(mVideo);
+            endPes(mAudio);
+            if (mVideo.count == 0 || mSps == null || mPps == null) {
+                throw new IOException("No H.264 video");
+            }
+
+            long mdatSize = mPosition - mdatStart;
+            writeBox(createMoov());
+            mOut.flush();
+            ByteBuffer size = ByteBuffer.allocate(8);
+            size.putLong(0, mdatSize);
+            file.getChannel().write(size, mdatStart + 8);
+        } finally {
+            in.close();
+            file.close();
+        }
+    }
+
+    private static boolean readPacket(InputStream in, byte[] packet) throws IOException {
+        int offset = 0;
+        while (offset < PACKET_SIZE) {
+            int n = in.read(packet, offset, PACKET_SIZE - offset);
+            // A partial packet at the end is dropped.
+            if (n < 0) return false;
+            offset += n;
+        }
+        return true;
+    }
+
+    private void parsePacket(byte[] packet) throws IOException {
+        boolean unitStart = (packet[1] & 0x40) != 0;
+        int pid = ((packet[1] & 0x1f) << 8) | (packet[2] & 0xff);
+        int control = (packet[3] >> 4) & 3;
+        if ((control & 1) == 0) return;  // no payload
+        int offset = 4;
+        if ((control & 2) != 0) offset += 1 + (packet[4] & 0xff);
+        if (offset >= PACKET_SIZE) return;
+
+        if (pid == 0) {
+            if (unitStart) parsePat(packet, offset + 1 + (packet[offset] & 0xff));
+        } else if (pid == mPmtPid) {
+            if (unitStart) parsePmt(packet, offset + 1 + (packet[offset] & 0xff));
+        } else if (pid == mVideoPid || pid == mAudioPid) {
+            Track track = (pid == mVideoPid) ? mVideo : mAudio;
+            if (unitStart) {
+                endPes(track);
+                track.pesLength = 0;
+            }
+            // Data before the first start of a PES packet is dropped.
+            if (track.pesLength >= 0) {
+                track.append(packet, offset, PACKET_SIZE - offset);
+            }
+        }
+    }
+
+    private void parsePat(byte[] packet, int p) {
+        if (p + 8 > PACKET_SIZE) return;
+        int end = Math.min(p + 3 + sectionLength(packet, p) - 4, PACKET_SIZE);
+        for (int i = p + 8; i + 4 <= end; i += 4) {
+            int program = ((packet[i] & 0xff) << 8) | (packet[i + 1] & 0xff);
+            if (program != 0) {
+                mPmtPid = ((packet[i + 2] & 0x1f) << 8) | (packet[i + 3] & 0xff);
+                return;
+            }
+        }
+    }
+
+    private void parsePmt(byte[] packet, int p) {
+        if (p + 12 > PACKET_SIZE) return;
+        int end = Math.min(p + 3 + sectionLength(packet, p) - 4, PACKET_SIZE);
+        int infoLength = ((packet[p + 10] & 0xf) << 8) | (packet[p + 11] & 0xff);
+        int i = p + 12 + infoLength;
+        while (i + 5 <= end) {
+            int type = packet[i] & 0xff;
+            int pid = ((packet[i + 1] & 0x1f) << 8) | (packet[i + 2] & 0xff);
+            if (type == STREAM_TYPE_H264 && mVideoPid < 0) mVideoPid = pid;
+            if (type == STREAM_TYPE_AAC && mAudioPid < 0) mAudioPid = pid;
+            i += 5 + (((packet[i + 3] & 0xf) << 8) | (packet[i + 4] & 0xff));
+        }
+    }
+
+    private static int sectionLength(byte[] packet, int p) {
+        return ((packet[p + 1] & 0xf) << 8) | (packet[p + 2] & 0xff);
+    }
+
+    // Copies the samples of the assembled PES packet into the media data.
+    private void endPes(Track track) throws IOException {
+        byte[] pes = track.pes;
+        int length = track.pesLength;
+        track.pesLength = -1;
+        if (length < 9 || pes[0] != 0 || pes[1] != 0 || pes[2] != 1) return;
+        int flags = pes[7] & 0xff;
+        int start = 9 + (pes[8] & 0xff);
+        if ((flags & 0x80) == 0 || start > length) return;  // no time
+        long pts = track.unwrap(readTime(pes, 9));
+        long dts = ((flags & 0x40) != 0) ? track.unwrap(readTime(pes, 14)) : pts;
+        int count = track.count;
+        if (track.video) {
+            writeAccessUnit(pes, start, length, dts, (int) (pts - dts));
+        } else {
+            writeAdtsFrames(pes, start, length);
+        }
+        if (count == 0 && track.count > 0) track.firstPresentationTime = pts;
+    }
+
+    private static long readTime(byte[] pes, int p) {
+        return (((long) pes[p] & 0x0e) << 29) | ((pes[p + 1] & 0xff) << 22)
+                | ((pes[p + 2] & 0xfe) << 14) | ((pes[p + 3] & 0xff) << 7)
+                | ((pes[p + 4] & 0xff) >> 1);
+    }
+
+    // Writes the NAL units of the access unit with their lengths in front,
+    // leaving out the parameter sets and the delimiters.
+    private void writeAccessUnit(byte[] data, int start, int end, long time, int timeOffset)
+            throws IOException {
+        long offset = mPosition;
+        boolean sync = false;
+        int nal = nextNal(data, start, end);
+        while (nal < end) {
+            int next = nextNal(data, nal, end);
+            // Drop the start code of the next unit, and the trailing zeros.
+            int nalEnd = (next < end) ? next - 3 : end;
+            while (nalEnd > nal && data[nalEnd - 1] == 0) nalEnd--;
+            int type = data[nal] & 0x1f;
+            if (type == NAL_SPS) {
+                if (mSps == null) mSps = Arrays.copyOfRange(data, nal, nalEnd);
+            } else if (type == NAL_PPS) {
+                if (mPps == null) mPps = Arrays.copyOfRange(data, nal, nalEnd);
+            } else if (type != NAL_ACCESS_UNIT_DELIMITER && nalEnd > nal) {
+                if (type == NAL_IDR) sync = true;
+                writeInt(nalEnd - nal);
+                write(data, nal, nalEnd - nal);
+            }
+            nal = next;
+        }
+        if (mPosition > offset) {
+            mVideo.addSample(offset, (int) (mPosition - offset), time, timeOffset, sync);
+        }
+    }
+
+    // Returns the position after the next start code, or end.
+    private static int nextNal(byte[] data, int from, int end) {
+        for (int i = from; i + 3 <= end; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) return i + 3;
+        }
+        return end;
+    }
+
+    // Writes the raw AAC frames. A frame may go on in the next PES packet.
+    private void writeAdtsFrames(byte[] pes, int start, int end) throws IOException {
+        Track track = mAudio;
+        byte[] data = new byte[track.pending.length + end - start];
+        System.arraycopy(track.pending, 0, data, 0, track.pending.length);
+        System.arraycopy(pes, start, data, track.pending.length, end - start);
+        int p = 0;
+        while (p + 7 <= data.length) {
+            if ((data[p] & 0xff) != 0xff || (data[p + 1] & 0xf0) != 0xf0) {
+                p++;  // look for the next header
+                continue;
+            }
+            int headerSize = ((data[p + 1] & 1) != 0) ? 7 : 9;
+            int frameSize = ((data[p + 3] & 3) << 11) | ((data[p + 4] & 0xff) << 3)
+                    | ((data[p + 5] & 0xff) >> 5);
+            if (frameSize < headerSize) {
+                p++;
+                continue;
+            }
+            if (p + frameSize > data.length) break;
+            if (track.sampleRateIndex < 0) {
+                int rateIndex = (data[p + 2] >> 2) & 0xf;
+                if (rateIndex >= AAC_SAMPLE_RATES.length) throw new IOException("AAC rate");
+                track.profile = (data[p + 2] >> 6) & 3;
+                track.sampleRateIndex = rateIndex;
+                track.channels = ((data[p + 2] & 1) << 2) | ((data[p + 3] >> 6) & 3);
+            }
+            track.addSample(mPosition, frameSize - headerSize, 0, 0, true);
+            write(data, p + headerSize, frameSize - headerSize);
+            p += frameSize;
+        }
+        track.pending = Arrays.copyOfRange(data, p, data.length);
+    }
+
+    private void write(byte[] data, int offset, int length) throws IOException {
+        mOut.write(data, offset, length);
+        mPosition += length;
+    }
+
+    private void writeInt(int value) throws IOException {
+        mOut.write(value >>> 24);
+        mOut.write(value >>> 16);
+        mOut.write(value >>> 8);
+        mOut.write(value);
+        mPosition += 4;
+    }
+
+    private void writeBox(Box box) throws IOException {
+        byte[] bytes = box.toByteArray();
+        write(bytes, 0, bytes.length);
+    }
+
+    // An ISO base media file box, which is built in memory.
+    private static class Box extends DataOutputStream {
+        Box(String type) throws IOException {
+            super(new ByteArrayOutputStream());
+            writeInt(0);  // the size is set in toByteArray()
+            writeBytes(type);
+        }
+
+        Box(String type, int version, int flags) throws IOException {
+            this(type);
+            writeInt((version << 24) | flags);
+        }
+
+        void add(Box child) throws IOException {
+            write(child.toByteArray());
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = ((ByteArrayOutputStream) out).toByteArray();
+            ByteBuffer.wrap(bytes).putInt(0, bytes.length);
+            return bytes;
+        }
+    }
+
+    private static Box createFtyp() throws IOException {
+        Box ftyp = new Box("ftyp");
+        ftyp.writeBytes("mp42");
+        ftyp.writeInt(0);
+        ftyp.writeBytes("isommp42");
+        return ftyp;
+    }
+
+    private Box createMoov() throws IOException {
+        boolean audio = mAudio.count > 0;
+        // The tracks start together in the movie, unless one starts later
+        // in the stream.
+        long start = mVideo.firstPresentationTime;
+        if (audio) start = Math.min(start, mAudio.firstPresentationTime);
+        long duration = getMovieDuration(mVideo, start);
+        if (audio) duration = Math.max(duration, getMovieDuration(mAudio, start));
+
+        Box moov = new Box("moov");
+        Box mvhd = new Box("mvhd", 0, 0);
+        mvhd.writeInt(0);  // creation time
+        mvhd.writeInt(0);  // modification time
+        mvhd.writeInt(MOVIE_TIME_SCALE);
+        mvhd.writeInt((int) duration);
+        mvhd.writeInt(0x00010000);  // rate
+        mvhd.writeShort(0x0100);  // volume
+        mvhd.write(new byte[10]);
+        writeMatrix(mvhd, 0);
+        mvhd.write(new byte[24]);
+        mvhd.writeInt(audio ? 3 : 2);  // next track id
+        moov.add(mvhd);
+        moov.add(createTrak(mVideo, 1, start));
+        if (audio) moov.add(createTrak(mAudio, 2, start));
+        return moov;
+    }
+
+    private static long getMovieDuration(Track track, long start) {
+        return toMovieTime(track.firstPresentationTime - start, PES_TIME_SCALE)
+                + toMovieTime(track.getDuration(), track.getTimeScale());
+    }
+
+    private static long toMovieTime(long time, int timeScale) {
+        return time * MOVIE_TIME_SCALE / timeScale;
+    }
+
+    private Box createTrak(Track track, int id, long start) throws IOException {
+        long duration = toMovieTime(track.getDuration(), track.getTimeScale());
+        Box trak = new Box("trak");
+        Box tkhd = new Box("tkhd", 0, 7);  // enabled, in movie and preview
+        tkhd.writeInt(0);  // creation time
+        tkhd.writeInt(0);  // modification time
+        tkhd.writeInt(id);
+        tkhd.writeInt(0);
+        tkhd.writeInt((int) duration);
+        tkhd.write(new byte[8]);
+        tkhd.writeShort(0);  // layer
+        tkhd.writeShort(0);  // alternate group
+        tkhd.writeShort(track.video ? 0 : 0x0100);  // volume
+        tkhd.writeShort(0);
+        writeMatrix(tkhd, track.video ? mRotation : 0);
+        int[] size = track.video ? parseSpsSize(mSps) : new int[2];
+        tkhd.writeInt(size[0] << 16);
+        tkhd.writeInt(size[1] << 16);
+        trak.add(tkhd);
+
+        // The edit list delays a track which starts later, and starts the
+        // video at the presentation time of its first frame.
+        Box edts = new Box("edts");
+        long delay = toMovieTime(track.firstPresentationTime - start, PES_TIME_SCALE);
+        Box elst = new Box("elst", 0, 0);
+        elst.writeInt(delay > 0 ? 2 : 1);
+        if (delay > 0) {
+            elst.writeInt((int) delay);
+            elst.writeInt(-1);  // empty
+            elst.writeInt(0x00010000);
+        }
+        elst.writeInt((int) duration);
+        elst.writeInt(track.video ? track.timeOffsets[0] - track.getMinTimeOffset() : 0);
+        elst.writeInt(0x00010000);
+        edts.add(elst);
+        trak.add(edts);
+
+        Box mdia = new Box("mdia");
+        Box mdhd = new Box("mdhd", 0, 0);
+        mdhd.writeInt(0);  // creation time
+        mdhd.writeInt(0);  // modification time
+        mdhd.writeInt(track.getTimeScale());
+        mdhd.writeInt((int) track.getDuration());
+        mdhd.writeShort(0x55c4);  // "und"
+        mdhd.writeShort(0);
+        mdia.add(mdhd);
+        Box hdlr = new Box("hdlr", 0, 0);
+        hdlr.writeInt(0);
+        hdlr.writeBytes(track.video ? "vide" : "soun");
+        hdlr.write(new byte[12]);
+        hdlr.writeBytes(track.video ? "VideoHandle" : "SoundHandle");
+        hdlr.writeByte(0);
+        mdia.add(hdlr);
+
+        Box minf = new Box("minf");
+        if (track.video) {
+            Box vmhd = new Box("vmhd", 0, 1);
+            vmhd.write(new byte[8]);
+            minf.add(vmhd);
+        } else {
+            Box smhd = new Box("smhd", 0, 0);
+            smhd.writeInt(0);
+            minf.add(smhd);
+        }
+        Box dinf = new Box("dinf");
+        Box dref = new Box("dref", 0, 0);
+        dref.writeInt(1);
+        dref.add(new Box("url ", 0, 1));  // in this file
+        dinf.add(dref);
+        minf.add(dinf);
+        minf.add(createStbl(track, size));
+        mdia.add(minf);
+        trak.add(mdia);
+        return trak;
+    }
+
+    // Writes the transformation of a clockwise rotation.
+    private static void writeMatrix(Box box, int rotation) throws IOException {
+        int cos = 0;
+        int sin = 0;
+        switch (rotation) {
+            case 90: sin = 0x10000; break;
+            case 180: cos = -0x10000; break;
+            case 270: sin = -0x10000; break;
+            default: cos = 0x10000; break;
+        }
+        box.writeInt(cos);
+        box.writeInt(sin);
+        box.writeInt(0);
+        box.writeInt(-sin);
+        box.writeInt(cos);
+        box.writeInt(0);
+        box.writeInt(0);
+        box.writeInt(0);
+        box.writeInt(0x40000000);
+    }
+
+    private Box createStbl(Track track, int[] size) throws IOException {
+        Box stbl = new Box("stbl");
+        Box stsd = new Box("stsd", 0, 0);
+        stsd.writeInt(1);
+        stsd.add(track.video ? createAvc1(size) : createMp4a(track));
+        stbl.add(stsd);
+
+        Box stts = new Box("stts", 0, 0);
+        if (track.video) {
+            writeRuns(stts, track, false);
+        } else {
+            stts.writeInt(1);
+            stts.writeInt(track.count);
+            stts.writeInt(AAC_FRAME_SAMPLES);
+        }
+        stbl.add(stts);
+
+        if (track.video) {
+            boolean reordered = false;
+            int syncCount = 0;
+            for (int i = 0; i < track.count; i++) {
+                if (track.timeOffsets[i] != track.timeOffsets[0]) reordered = true;
+                if (track.syncs[i]) syncCount++;
+            }
+            if (reordered) {
+                Box ctts = new Box("ctts", 0, 0);
+                writeRuns(ctts, track, true);
+                stbl.add(ctts);
+            }
+            // Without a sync sample table every sample is a sync sample.
+            if (syncCount < track.count) {
+                Box stss = new Box("stss", 0, 0);
+                stss.writeInt(syncCount);
+                for (int i = 0; i < track.count; i++) {
+                    if (track.syncs[i]) stss.writeInt(i + 1);
+                }
+                stbl.add(stss);
+            }
+        }
+
+        // Each sample is a chunk of its own, as the tracks are interleaved
+        // sample by sample.
+        Box stsc = new Box("stsc", 0, 0);
+        stsc.writeInt(1);
+        stsc.writeInt(1);  // first chunk
+        stsc.writeInt(1);  // samples per chunk
+        stsc.writeInt(1);  // sample description
+        stbl.add(stsc);
+
+        Box stsz = new Box("stsz", 0, 0);
+        stsz.writeInt(0);
+        stsz.writeInt(track.count);
+        for (int i = 0; i < track.count; i++) stsz.writeInt(track.sizes[i]);
+        stbl.add(stsz);
+
+        boolean large = track.offsets[track.count - 1] > 0xffffffffL;
+        Box stco = new Box(large ? "co64" : "stco", 0, 0);
+        stco.writeInt(track.count);
+        for (int i = 0; i < track.count; i++) {
+            if (large) {
+                stco.writeLong(track.offsets[i]);
+            } else {
+                stco.writeInt((int) track.offsets[i]);
+            }
+        }
+        stbl.add(stco);
+        return stbl;
+    }
+
+    // Writes the runs of equal sample durations, or of presentation offsets.
+    private static void writeRuns(Box box, Track track, boolean offsets) throws IOException {
+        int minOffset = track.getMinTimeOffset();
+        int[] counts = new int[track.count];
+        int[] values = new int[track.count];
+        int runs = 0;
+        for (int i = 0; i < track.count; i++) {
+            int value = offsets ? track.timeOffsets[i] - minOffset
+                    : track.getSampleDuration(i);
+            if (runs > 0 && values[runs - 1] == value) {
+                counts[runs - 1]++;
+            } else {
+                counts[runs] = 1;
+                values[runs++] = value;
+            }
+        }
+        box.writeInt(runs);
+        for (int i = 0; i < runs; i++) {
+            box.writeInt(counts[i]);
+            box.writeInt(values[i]);
+        }
+    }
+
+    private Box createAvc1(int[] size) throws IOException {
+        Box avc1 = new Box("avc1");
+        avc1.write(new byte[6]);
+        avc1.writeShort(1);  // data reference
+        avc1.write(new byte[16]);
+        avc1.writeShort(size[0]);
+        avc1.writeShort(size[1]);
+        avc1.writeInt(0x00480000);  // 72 dpi
+        avc1.writeInt(0x00480000);
+        avc1.writeInt(0);
+        avc1.writeShort(1);  // frame count
+        avc1.write(new byte[32]);  // compressor name
+        avc1.writeShort(0x18);  // depth
+        avc1.writeShort(-1);
+
+        Box avcC = new Box("avcC");
+        avcC.writeByte(1);  // version
+        avcC.writeByte(mSps[1]);  // profile
+        avcC.writeByte(mSps[2]);  // compatibility
+        avcC.writeByte(mSps[3]);  // level
+        avcC.writeByte(0xff);  // 4 byte lengths
+        avcC.writeByte(0xe1);  // one SPS
+        avcC.writeShort(mSps.length);
+        avcC.write(mSps);
+        avcC.writeByte(1);  // one PPS
+        avcC.writeShort(mPps.length);
+        avcC.write(mPps);
+        avc1.add(avcC);
+        return avc1;
+    }
+
+    private static Box createMp4a(Track track) throws IOException {
+        Box mp4a = new Box("mp4a");
+        mp4a.write(new byte[6]);
+        mp4a.writeShort(1);  // data reference
+        mp4a.write(new byte[8]);
+        mp4a.writeShort(track.channels);
+        mp4a.writeShort(16);  // sample size
+        mp4a.writeInt(0);
+        mp4a.writeInt(AAC_SAMPLE_RATES[track.sampleRateIndex] << 16);
+
+        // The elementary stream descriptor, whose decoder specific info is
+        // the audio specific config of the ADTS header.
+        Box esds = new Box("esds", 0, 0);
+        esds.writeByte(0x03);  // ES descriptor
+        esds.writeByte(25);
+        esds.writeShort(0);  // ES id
+        esds.writeByte(0);
+        esds.writeByte(0x04);  // decoder config descriptor
+        esds.writeByte(17);
+        esds.writeByte(0x40);  // MPEG-4 audio
+        esds.writeByte(0x15);  // audio stream
+        esds.write(new byte[11]);  // buffer size and bit rates
+        esds.writeByte(0x05);  // decoder specific info
+        esds.writeByte(2);
+        int objectType = track.profile + 1;
+        esds.writeByte((objectType << 3) | (track.sampleRateIndex >> 1));
+        esds.writeByte(((track.sampleRateIndex & 1) << 7) | (track.channels << 3));
+        esds.writeByte(0x06);  // SL config descriptor
+        esds.writeByte(1);
+        esds.writeByte(2);
+        mp4a.add(esds);
+        return mp4a;
+    }
+
+    // Returns the width and the height of the frames of the sequence
+    // parameter set.
+    private static int[] parseSpsSize(byte[] sps) {
+        BitReader r = new BitReader(sps);
+        r.skip(8);  // NAL header
+        int profile = r.read(8);
+        r.skip(16);  // constraints and level
+        r.readUe();  // id
+        int chromaFormat = 1;
+        if (profile == 100 || profile == 110 || profile == 122 || profile == 244
+                || profile == 44 || profile == 83 || profile == 86 || profile == 118
+                || profile == 128) {
+            chromaFormat = r.readUe();
+            if (chromaFormat == 3) r.skip(1);  // separate planes
+            r.readUe();  // luma depth
+            r.readUe();  // chroma depth
+            r.skip(1);
+            if (r.read(1) != 0) {  // scaling matrices
+                for (int i = 0; i < ((chromaFormat != 3) ? 8 : 12); i++) {
+                    if (r.read(1) != 0) skipScalingList(r, (i < 6) ? 16 : 64);
+                }
+            }
+        }
+        r.readUe();  // frame number bits
+        int orderType = r.readUe();
+        if (orderType == 0) {
+            r.readUe();
+        } else if (orderType == 1) {
+            r.skip(1);
+            r.readUe();
+            r.readUe();
+            int cycle = r.readUe();
+            for (int i = 0; i < cycle; i++) r.readUe();
+        }
+        r.readUe();  // reference frames
+        r.skip(1);
+        int width = (r.readUe() + 1) * 16;
+        int height = r.readUe() + 1;
+        int frameMbsOnly = r.read(1);
+        height *= (2 - frameMbsOnly) * 16;
+        if (frameMbsOnly == 0) r.skip(1);
+        r.skip(1);
+        if (r.read(1) != 0) {  // cropping
+            int unitX = (chromaFormat == 1 || chromaFormat == 2) ? 2 : 1;
+            int unitY = ((chromaFormat == 1) ? 2 : 1) * (2 - frameMbsOnly);
+            width -= unitX * (r.readUe() + r.readUe());
+            height -= unitY * (r.readUe() + r.readUe());
+        }
+        return new int[] {width, height};
+    }
+
+    private static void skipScalingList(BitReader r, int size) {
+        int last = 8;
+        int next = 8;
+        for (int i = 0; i < size; i++) {
+            if (next != 0) next = (last + r.readSe() + 256) % 256;
+            if (next != 0) last = next;
+        }
+    }
+
+    // Reads the bits of a NAL unit, skipping the emulation prevention bytes.
+    private static class BitReader {
+        private final byte[] mData;
+        private int mByte;
+        private int mBit;
+        private int mZeros;
+
+        BitReader(byte[] data) {
+            mData = data;
+        }
+
+        int read(int bits) {
+            int value = 0;
+            for (int i = 0; i < bits; i++) {
+                if (mBit == 0 && mZeros >= 2 && mByte < mData.length && mData[mByte] == 3) {
+                    mByte++;
+                    mZeros = 0;
+                }
+                int b = (mByte < mData.length) ? mData[mByte] & 0xff : 0;
+                value = (value << 1) | ((b >> (7 - mBit)) & 1);
+                if (++mBit == 8) {
+                    mZeros = (b == 0) ? mZeros + 1 : 0;
+                    mBit = 0;
+                    mByte++;
+                }
+            }
+            return value;
+        }
+
+        void skip(int bits) {
+            read(bits);
+        }
+
+        int readUe() {
+            int zeros = 0;
+            while (read(1) == 0 && zeros < 31) zeros++;
+            return (1 << zeros) - 1 + read(zeros);
+        }
+
+        int readSe() {
+            int value = readUe();
+            return ((value & 1) != 0) ? (value + 1) / 2 : -(value / 2);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes an H.264 video stream without audio to an MPEG-2 transport stream.
+ *
+ * <p>Each access unit goes into one PES packet, with an access unit
+ * delimiter in front. The program tables and the parameter sets are
+ * repeated before every sync frame, so that the stream can be played from
+ * any of them. The stream has a single program, whose clock reference is
+ * carried by the video: in the first packet of every access unit, and in
+ * packets of its own where the access units are further apart than the
+ * 100ms the clock reference may be apart at most.
+ */
+public class MpegTsWriter {
+    private static final int PACKET_SIZE = 188;
+    private static final int PAYLOAD_SIZE = PACKET_SIZE - 4;
+    private static final int SYNC_BYTE = 0x47;
+    private static final int PAT_PID = 0;
+    private static final int PMT_PID = 0x1000;
+    private static final int VIDEO_PID = 0x100;
+    private static final int PROGRAM_NUMBER = 1;
+    private static final int STREAM_TYPE_H264 = 0x1b;
+    private static final int STREAM_ID_VIDEO = 0xe0;
+    // The presentation times are ahead of the clock reference, so that the
+    // decoder has time to receive a frame before showing it.
+    private static final long PTS_DELAY = 9000;  // 100ms in 90kHz units
+    private static final long PCR_MAX_INTERVAL = 9000;  // 100ms in 90kHz units
+    private static final byte[] ACCESS_UNIT_DELIMITER = {0, 0, 0, 1, 0x09, (byte) 0xf0};
+
+    private final OutputStream mOut;
+    private final byte[] mPacket = new byte[PACKET_SIZE];
+    private int mPatCounter;
+    private int mPmtCounter;
+    private int mVideoCounter;
+    private byte[] mConfig;
+    private long mSize;
+    private long mLastPcr = -1;
+
+    public MpegTsWriter(OutputStream out) {
+        mOut = out;
+    }
+
+    /**
+     * Sets the SPS and PPS, with their start codes, which are written in
+     * front of every sync frame.
+     */
+    public void setConfig(byte[] config) {
+        mConfig = config;
+    }
+
+    /**
+     * Writes an access unit in Annex B format, which is presented at
+     * {@code timeUs} from the start of the stream.
+     */
+    public void writeAccessUnit(byte[] data, int length, long timeUs, boolean syncFrame)
+            throws IOException {
+        if (syncFrame) {
+            writePat();
+            writePmt();
+        }
+        long time = timeUs * 9 / 100;  // in 90kHz units
+        // Fill a long gap since the previous access unit with the clock.
+        while (mLastPcr >= 0 && time - mLastPcr > PCR_MAX_INTERVAL) {
+            mLastPcr += PCR_MAX_INTERVAL;
+            writePcr(mLastPcr);
+        }
+        mLastPcr = time;
+        byte[] header = createPesHeader(time + PTS_DELAY);
+        byte[] config = (syncFrame && mConfig != null) ? mConfig : new byte[0];
+        byte[][] parts = {header, ACCESS_UNIT_DELIMITER, config};
+        int total = header.length + ACCESS_UNIT_DELIMITER.length + config.length + length;
+
+        int part = 0;
+        int partOffset = 0;
+        int dataOffset = 0;
+        boolean first = true;
+        while (total > 0) {
+            // The first packet carries the clock reference.
+            int payload = Math.min(total, PAYLOAD_SIZE - (first ? 8 : 0));
+            int p = startPacket(VIDEO_PID, first, mVideoCounter++,
+                    PAYLOAD_SIZE - payload, first ? time : -1, first && syncFrame);
+            total -= payload;
+            // Copy the headers first, then the access unit.
+            while (payload > 0 && part < parts.length) {
+                int n = Math.min(payload, parts[part].length - partOffset);
+                System.arraycopy(parts[part], partOffset, mPacket, p, n);
+                p += n;
+                payload -= n;
+                partOffset += n;
+                if (partOffset == parts[part].length) {
+                    part++;
+                    partOffset = 0;
+                }
+            }
+            System.arraycopy(data, dataOffset, mPacket, p, payload);
+            dataOffset += payload;
+            writePacket();
+            first = false;
+        }
+    }
+
+    /** Returns the number of bytes written so far. */
+    public long getSize() {
+        return mSize;
+    }
+
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    // Writes a packet of the video which only carries the clock reference.
+    private void writePcr(long pcr) throws IOException {
+        // The continuity counter only counts the packets with a payload.
+        startPacket(VIDEO_PID, false, mVideoCounter - 1, PAYLOAD_SIZE, pcr, false);
+        writePacket();
+    }
+
+    // Writes the packet header and the adaptation field, which takes
+    // adaptationSize bytes including its length. The packet has no payload
+    // if the adaptation field takes all of it. Returns the offset of the
+    // payload.
+    private int startPacket(int pid, boolean unitStart, int counter, int adaptationSize,
+            long pcr, boolean randomAccess) {
+        int control = (adaptationSize == PAYLOAD_SIZE) ? 0x20
+                : (adaptationSize > 0) ? 0x30 : 0x10;
+        mPacket[0] = (byte) SYNC_BYTE;
+        mPacket[1] = (byte) ((unitStart ? 0x40 : 0) | (pid >> 8));
+        mPacket[2] = (byte) pid;
+        mPacket[3] = (byte) (control | (counter & 0x0f));
+        if (adaptationSize == 0) return 4;
+        mPacket[4] = (byte) (adaptationSize - 1);
+        int p = 5;
+        if (adaptationSize > 1) {
+            // Set the random access indicator and the PCR flag.
+            mPacket[p++] = (byte) ((randomAccess ? 0x40 : 0) | ((pcr >= 0) ? 0x10 : 0));
+            if (pcr >= 0) {
+                mPacket[p++] = (byte) (pcr >> 25);
+                mPacket[p++] = (byte) (pcr >> 17);
+                mPacket[p++] = (byte) (pcr >> 9);
+                mPacket[p++] = (byte) (pcr >> 1);
+                mPacket[p++] = (byte) (((pcr & 1) << 7) | 0x7e);
+                mPacket[p++] = 0;
+            }
+        }
+        // Stuffing.
+        while (p < 4 + adaptationSize) mPacket[p++] = (byte) 0xff;
+        return p;
+    }
+
+    private static byte[] createPesHeader(long pts) {
+        return new byte[] {
+            0, 0, 1, (byte) STREAM_ID_VIDEO,
+            // The length of a video PES packet may be left unspecified.
+            0, 0,
+            (byte) 0x80,
+            // Only the presentation time is given.
+            (byte) 0x80, 5,
+            (byte) (0x21 | ((pts >> 29) & 0x0e)),
+            (byte) (pts >> 22),
+            (byte) (((pts >> 14) & 0xfe) | 1),
+            (byte) (pts >> 7),
+            (byte) (((pts << 1) & 0xfe) | 1),
+        };
+    }
+
+    private void writePat() throws IOException {
+        byte[] section = {
+            0x00, (byte) 0xb0, 13, 0, 1, (byte) 0xc1, 0, 0,
+            0, PROGRAM_NUMBER, (byte) (0xe0 | (PMT_PID >> 8)), (byte) PMT_PID,
+        };
+        writeSection(PAT_PID, mPatCounter++, section);
+    }
+
+    private void writePmt() throws IOException {
+        byte[] section = {
+            0x02, (byte) 0xb0, 18, 0, PROGRAM_NUMBER, (byte) 0xc1, 0, 0,
+            // The clock reference is in the video, and there is no
+            // program info.
+            (byte) (0xe0 | (VIDEO_PID >> 8)), (byte) VIDEO_PID, (byte) 0xf0, 0,
+            STREAM_TYPE_H264, (byte) (0xe0 | (VIDEO_PID >> 8)), (byte) VIDEO_PID,
+            (byte) 0xf0, 0,
+        };
+        writeSection(PMT_PID, mPmtCounter++, section);
+    }
+
+    // Writes a table section, which must fit in one packet, with its CRC.
+    private void writeSection(int pid, int counter, byte[] section) throws IOException {
+        int p = startPacket(pid, true, counter, 0, -1, false);
+        mPacket[p++] = 0;  // pointer field
+        System.arraycopy(section, 0, mPacket, p, section.length);
+        p += section.length;
+        int crc = crc32(section);
+        mPacket[p++] = (byte) (crc >> 24);
+        mPacket[p++] = (byte) (crc >> 16);
+        mPacket[p++] = (byte) (crc >> 8);
+        mPacket[p++] = (byte) crc;
+        while (p < PACKET_SIZE) mPacket[p++] = (byte) 0xff;
+        writePacket();
+    }
+
+    private void writePacket() throws IOException {
+        mOut.write(mPacket);
+        mSize += PACKET_SIZE;
+    }
+
+    // The CRC-32 of MPEG-2 sections, which is not reflected.
+    private static int crc32(byte[] data) {
+        int crc = 0xffffffff;
+        for (byte b : data) {
+            crc ^= (b & 0xff) << 24;
+            for (int i = 0; i < 8; i++) {
+                crc = (crc < 0) ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+        }
+        return crc;
+    }
+}
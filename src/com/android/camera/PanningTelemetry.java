@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * Ring buffer of what happened to the most recent preview frames of a
+ * panorama capture. It is written on the UI thread by MosaicFrameProcessor
+ * and does not allocate once created.
+ */
+public class PanningTelemetry {
+    // What happened to a frame.
+    public static final int FRAME_ACCEPTED = 0;
+    // Aligned, but too close to the last accepted frame to be kept.
+    public static final int FRAME_STILL = 1;
+    // Aligned, but the frame had too few features.
+    public static final int FRAME_LOW_TEXTURE = 2;
+    // Not aligned, to keep the preview at the camera frame rate.
+    public static final int FRAME_SKIPPED = 3;
+    private static final int NUM_RESULTS = 4;
+
+    private final long[] mTimestamps;
+    private final float[] mTranslationX;
+    private final float[] mTranslationY;
+    private final int[] mInliers;
+    private final int[] mResults;
+    private final long[] mProcessingTimes;
+    private final int[] mResultCounts = new int[NUM_RESULTS];
+    private int mNext;
+    private int mSize;
+
+    public PanningTelemetry(int capacity) {
+        mTimestamps = new long[capacity];
+        mTranslationX = new float[capacity];
+        mTranslationY = new float[capacity];
+        mInliers = new int[capacity];
+        mResults = new int[capacity];
+        mProcessingTimes = new long[capacity];
+    }
+
+    public void clear() {
+        mNext = 0;
+        mSize = 0;
+        for (int i = 0; i < NUM_RESULTS; i++) mResultCounts[i] = 0;
+    }
+
+    /**
+     * Records a frame, overwriting the oldest one if the buffer is full.
+     *
+     * @param timestamp the uptime of the frame in milliseconds.
+     * @param translationX the horizontal translation of the frame from the
+     *        first frame, in low-res pixels.
+     * @param translationY the vertical translation.
+     * @param inliers the number of feature matches that agreed with the
+     *        alignment, 0 if the frame was skipped.
+     * @param result one of the FRAME_* values.
+     * @param processingTime the time taken to align the frame in milliseconds.
+     */
+    public void add(long timestamp, float translationX, float translationY, int inliers,
+            int result, long processingTime) {
+        int i = mNext;
+        mTimestamps[i] = timestamp;
+        mTranslationX[i] = translationX;
+        mTranslationY[i] = translationY;
+        mInliers[i] = inliers;
+        mResults[i] = result;
+        mProcessingTimes[i] = processingTime;
+        mResultCounts[result]++;
+        mNext = (i + 1) % mTimestamps.length;
+        if (mSize < mTimestamps.length) mSize++;
+    }
+
+    // The number of frames in the buffer.
+    public int size() {
+        return mSize;
+    }
+
+    // The number of frames with the given result since clear(), including
+    // the frames which are no longer in the buffer.
+    public int getResultCount(int result) {
+        return mResultCounts[result];
+    }
+
+    // The frames are indexed from 0, the oldest, to size() - 1.
+    private int slot(int index) {
+        if (index < 0 || index >= mSize) throw new IndexOutOfBoundsException();
+        return (mNext - mSize + index + mTimestamps.length) % mTimestamps.length;
+    }
+
+    public long getTimestamp(int index) {
+        return mTimestamps[slot(index)];
+    }
+
+    public float getTranslationX(int index) {
+        return mTranslationX[slot(index)];
+    }
+
+    public float getTranslationY(int index) {
+        return mTranslationY[slot(index)];
+    }
+
+    public int getInliers(int index) {
+        return mInliers[slot(index)];
+    }
+
+    public int getResult(int index) {
+        return mResults[slot(index)];
+    }
+
+    public long getProcessingTime(int index) {
+        return mProcessingTimes[slot(index)];
+    }
+
+    @Override
+    public String toString() {
+        return "accepted=" + mResultCounts[FRAME_ACCEPTED]
+                + ", still=" + mResultCounts[FRAME_STILL]
+                + ", low texture=" + mResultCounts[FRAME_LOW_TEXTURE]
+                + ", skipped=" + mResultCounts[FRAME_SKIPPED];
+    }
+}
@@ -41,6 +41,7 @@ import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
@@ -66,6 +67,7 @@ import com.android.gallery3d.ui.GLRootView;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.List;
@@ -96,6 +98,12 @@ public class PanoramaModule implements CameraModule,
     private static final int PREVIEW_ACTIVE = 1;
     private static final int CAPTURE_STATE_VIEWFINDER = 0;
     private static final int CAPTURE_STATE_MOSAIC = 1;
+    private static final int FINAL_MOSAIC_JPEG_QUALITY = 100;
+
+    // Checkpoints are named <time taken>_<orientation>.ckpt in this
+    // directory of the external cache.
+    private static final String CHECKPOINT_DIRECTORY = "panorama";
+    private static final String CHECKPOINT_SUFFIX = ".ckpt";
 
     private static final String GPS_DATE_FORMAT_STR = "yyyy:MM:dd";
     private static final String GPS_TIME_FORMAT_STR = "kk/1,mm/1,ss/1";
@@ -103,6 +111,8 @@ public class PanoramaModule implements CameraModule,
 
     // The unit of speed is degrees per frame.
     private static final float PANNING_SPEED_THRESHOLD = 2.5f;
+    // The interval in ms between the updates of the live mosaic.
+    private static final int LIVE_MOSAIC_UPDATE_INTERVAL = 500;
 
     private ContentResolver mContentResolver;
 
@@ -112,6 +122,11 @@ public class PanoramaModule implements CameraModule,
     private View mReviewLayout;
     private ImageView mReview;
     private View mCaptureIndicator;
+    // Shows the panorama captured so far in place of mCaptureIndicator.
+    private ImageView mLiveMosaicView;
+    private final Matrix mLiveMosaicMatrix = new Matrix();
+    private final int[] mLiveMosaicInfo = new int[5];
+    private long mLiveMosaicUpdateTime;
     private PanoProgressBar mPanoProgressBar;
     private PanoProgressBar mSavingProgressBar;
     private Matrix mProgressDirectionMatrix = new Matrix();
@@ -144,6 +159,8 @@ public class PanoramaModule implements CameraModule,
     private int mCaptureState;
     private PowerManager.WakeLock mPartialWakeLock;
     private MosaicFrameProcessor mMosaicFrameProcessor;
+    // NV21 copy of the last mosaic, reused since it is the size of a mosaic.
+    private byte[] mMosaicData;
     private boolean mMosaicFrameProcessorInitialized;
     private AsyncTask <Void, Void, Void> mWaitProcessorTask;
     private long mTimeTaken;
@@ -151,6 +168,14 @@ public class PanoramaModule implements CameraModule,
     private SurfaceTexture mCameraTexture;
     private boolean mThreadRunning;
     private boolean mCancelComputation;
+    // When the module is paused while the high-res mosaic is being saved,
+    // its frames are written to a checkpoint, so that the panorama can be
+    // finished on the next resume if the process is killed before it is
+    // saved. Guarded by mCheckpointLock.
+    private final Object mCheckpointLock = new Object();
+    private boolean mSavingHighRes;
+    private Thread mCheckpointThread;
+    private File mCheckpointFile;
     private float mHorizontalViewAngle;
     private float mVerticalViewAngle;
 
@@ -249,9 +274,11 @@ public class PanoramaModule implements CameraModule,
                 } else {
                     if (mCaptureState == CAPTURE_STATE_VIEWFINDER) {
                         mMosaicPreviewRenderer.showPreviewFrame();
-                    } else {
+                    } else if (mMosaicFrameProcessor.onPreviewFrame()) {
                         mMosaicPreviewRenderer.alignFrameSync();
                         mMosaicFrameProcessor.processFrame();
+                    } else {
+                        mMosaicPreviewRenderer.showWarpedFrame();
                     }
                 }
             }
@@ -495,6 +522,8 @@ public class PanoramaModule implements CameraModule,
         mShutterButton.setImageResource(R.drawable.btn_shutter_recording);
         mCaptureState = CAPTURE_STATE_MOSAIC;
         mCaptureIndicator.setVisibility(View.VISIBLE);
+        mLiveMosaicInfo[2] = 0;
+        mLiveMosaicUpdateTime = 0;
         showDirectionIndicators(PanoProgressBar.DIRECTION_NONE);
 
         mMosaicFrameProcessor.setProgressListener(new MosaicFrameProcessor.ProgressListener() {
@@ -512,6 +541,7 @@ public class PanoramaModule implements CameraModule,
                     float panningRateYInDegree = panningRateY * mVerticalViewAngle;
                     updateProgress(panningRateXInDegree, panningRateYInDegree,
                             accumulatedHorizontalAngle, accumulatedVerticalAngle);
+                    updateLiveMosaic();
                 }
             }
         });
@@ -528,6 +558,48 @@ public class PanoramaModule implements CameraModule,
         setupProgressDirectionMatrix();
     }
 
+    // Shows the panorama captured so far, at most every
+    // LIVE_MOSAIC_UPDATE_INTERVAL ms and only when frames were added.
+    private void updateLiveMosaic() {
+        long now = SystemClock.uptimeMillis();
+        if (now - mLiveMosaicUpdateTime < LIVE_MOSAIC_UPDATE_INTERVAL) return;
+        int frames = mLiveMosaicInfo[2];
+        mMosaicFrameProcessor.getLiveMosaicInfo(mLiveMosaicInfo);
+        if (mLiveMosaicInfo[2] == frames) return;
+        mLiveMosaicUpdateTime = now;
+
+        Bitmap bitmap = mMosaicFrameProcessor.getLiveMosaicBitmap(mLiveMosaicInfo);
+        int viewWidth = mLiveMosaicView.getWidth();
+        int viewHeight = mLiveMosaicView.getHeight();
+        if (bitmap == null || viewWidth == 0 || viewHeight == 0) return;
+
+        // The frames are in the orientation of the sensor, so they are
+        // rotated in portrait like the review.
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        mLiveMosaicMatrix.reset();
+        if (mActivity.getResources().getConfiguration().orientation
+                == Configuration.ORIENTATION_PORTRAIT) {
+            mLiveMosaicMatrix.postRotate(90);
+            mLiveMosaicMatrix.postTranslate(height, 0);
+            width = bitmap.getHeight();
+            height = bitmap.getWidth();
+        }
+        float scale = Math.min((float) viewWidth / width, (float) viewHeight / height);
+        mLiveMosaicMatrix.postScale(scale, scale);
+        mLiveMosaicMatrix.postTranslate((viewWidth - width * scale) / 2,
+                (viewHeight - height * scale) / 2);
+        mLiveMosaicView.setImageMatrix(mLiveMosaicMatrix);
+        // The bitmap is reused while its size is unchanged, so set it again
+        // to have the view redrawn.
+        mLiveMosaicView.setImageDrawable(null);
+        mLiveMosaicView.setImageBitmap(bitmap);
+        if (mLiveMosaicView.getVisibility() != View.VISIBLE) {
+            mCaptureIndicator.setVisibility(View.GONE);
+            mLiveMosaicView.setVisibility(View.VISIBLE);
+        }
+    }
+
     void setupProgressDirectionMatrix() {
         int degrees = Util.getDisplayRotation(mActivity);
         int cameraId = CameraHolder.instance().getBackCameraId();
@@ -539,10 +611,19 @@ public class PanoramaModule implements CameraModule,
     private void stopCapture(boolean aborted) {
         mCaptureState = CAPTURE_STATE_VIEWFINDER;
         mCaptureIndicator.setVisibility(View.GONE);
+        // Invisible rather than gone, so that its size is known for the
+        // next capture.
+        mLiveMosaicView.setVisibility(View.INVISIBLE);
+        mLiveMosaicView.setImageDrawable(null);
         hideTooFastIndication();
         hideDirectionIndicators();
 
         mMosaicFrameProcessor.setProgressListener(null);
+        Log.v(TAG, "Capture frames: " + mMosaicFrameProcessor.getTelemetry());
+        int[] liveInfo = new int[5];
+        mMosaicFrameProcessor.getLiveMosaicInfo(liveInfo);
+        Log.v(TAG, "Live mosaic: " + liveInfo[2] + " frames, last blend " + liveInfo[3]
+                + " us for " + liveInfo[4] + " new frames");
         stopCameraPreview();
 
         mCameraTexture.setOnFrameAvailableListener(null);
@@ -647,6 +728,7 @@ public class PanoramaModule implements CameraModule,
         mSavingProgressBar.setDoneColor(appRes.getColor(R.color.pano_progress_indication));
 
         mCaptureIndicator = mRootView.findViewById(R.id.pano_capture_indicator);
+        mLiveMosaicView = (ImageView) mRootView.findViewById(R.id.pano_live_mosaic);
 
         mReviewLayout = mRootView.findViewById(R.id.pano_review_layout);
         mReview = (ImageView) mRootView.findViewById(R.id.pano_reviewarea);
@@ -753,34 +835,188 @@ public class PanoramaModule implements CameraModule,
     }
 
     public void saveHighResMosaic() {
+        synchronized (mCheckpointLock) {
+            mSavingHighRes = true;
+        }
         runBackgroundThread(new Thread() {
             @Override
             public void run() {
-                mPartialWakeLock.acquire();
-                MosaicJpeg jpeg;
-                try {
-                    jpeg = generateFinalMosaic(true);
-                } finally {
-                    mPartialWakeLock.release();
-                }
+                int mosaicReturnCode = savePanorama(null, getCaptureOrientation());
+                // The panorama is saved, cancelled or cannot be created, so
+                // it will not be finished from the checkpoint.
+                deleteCheckpoint();
 
-                if (jpeg == null) {  // Cancelled by user.
+                if (mosaicReturnCode == Mosaic.MOSAIC_RET_CANCELLED) {  // Cancelled by user.
                     mMainHandler.sendEmptyMessage(MSG_RESET_TO_PREVIEW);
-                } else if (!jpeg.isValid) {  // Error when generating mosaic.
+                } else if (mosaicReturnCode == Mosaic.MOSAIC_RET_ERROR) {
                     mMainHandler.sendEmptyMessage(MSG_GENERATE_FINAL_MOSAIC_ERROR);
                 } else {
-                    int orientation = getCaptureOrientation();
-                    Uri uri = savePanorama(jpeg.data, jpeg.width, jpeg.height, orientation);
-                    if (uri != null) {
-                        mActivity.addSecureAlbumItemIfNeeded(false, uri);
-                        Util.broadcastNewPicture(mActivity, uri);
-                    }
                     mMainHandler.sendMessage(
                             mMainHandler.obtainMessage(MSG_RESET_TO_PREVIEW));
                 }
             }
         });
         reportProgress();
+        // The low-res mosaic may have been finished after onPause().
+        if (mPaused) checkpointHighResMosaic();
+    }
+
+    // Creates the high-res mosaic of the captured frames, or of the frames
+    // of the checkpoint if it is not null, writes it to a file and adds it
+    // to the media store. Returns Mosaic.MOSAIC_RET_CANCELLED if it is
+    // cancelled, Mosaic.MOSAIC_RET_ERROR if it cannot be created or saved
+    // and Mosaic.MOSAIC_RET_OK otherwise. Runs on a background thread.
+    private int savePanorama(String checkpoint, int orientation) {
+        mPartialWakeLock.acquire();
+        String filename = PanoUtil.createName(
+                mActivity.getResources().getString(R.string.pano_file_name_format),
+                mTimeTaken);
+        String filepath = Storage.getStorage().generateFilepath(filename);
+        int[] size = null;
+        int mosaicReturnCode = Mosaic.MOSAIC_RET_ERROR;
+        try {
+            if (checkpoint == null || mMosaicFrameProcessor.loadCheckpoint(checkpoint)) {
+                mosaicReturnCode = mMosaicFrameProcessor.createMosaic(true);
+            }
+            if (mosaicReturnCode != Mosaic.MOSAIC_RET_CANCELLED
+                    && mosaicReturnCode != Mosaic.MOSAIC_RET_ERROR) {
+                // Stream the mosaic to the file instead of holding
+                // the NV21 and JPEG copies of it in memory.
+                size = mMosaicFrameProcessor.writeFinalMosaicJpeg(
+                        filepath, FINAL_MOSAIC_JPEG_QUALITY);
+            }
+        } finally {
+            mPartialWakeLock.release();
+        }
+
+        if (mosaicReturnCode == Mosaic.MOSAIC_RET_CANCELLED) return mosaicReturnCode;
+        if (size == null) {  // Error when generating mosaic.
+            new File(filepath).delete();
+            return Mosaic.MOSAIC_RET_ERROR;
+        }
+        Uri uri = addPanorama(filename, filepath, size[0], size[1], orientation);
+        if (uri != null) {
+            mActivity.addSecureAlbumItemIfNeeded(false, uri);
+            Util.broadcastNewPicture(mActivity, uri);
+        }
+        return Mosaic.MOSAIC_RET_OK;
+    }
+
+    private File getCheckpointDirectory() {
+        File cache = mActivity.getExternalCacheDir();
+        return (cache == null) ? null : new File(cache, CHECKPOINT_DIRECTORY);
+    }
+
+    // Writes the checkpoint of the high-res mosaic being saved, unless it is
+    // saved already or the checkpoint is being written.
+    private void checkpointHighResMosaic() {
+        synchronized (mCheckpointLock) {
+            if (!mSavingHighRes || mCheckpointThread != null) return;
+            File dir = getCheckpointDirectory();
+            if (dir == null || !(dir.isDirectory() || dir.mkdirs())) return;
+            final File file = new File(dir,
+                    mTimeTaken + "_" + getCaptureOrientation() + CHECKPOINT_SUFFIX);
+            mCheckpointFile = file;
+            mCheckpointThread = new Thread() {
+                @Override
+                public void run() {
+                    // Write to a temporary file first, so that a checkpoint
+                    // is never left half written.
+                    File temp = new File(file.getPath() + ".tmp");
+                    mPartialWakeLock.acquire();
+                    try {
+                        if (!mMosaicFrameProcessor.writeCheckpoint(temp.getPath())
+                                || !temp.renameTo(file)) {
+                            Log.w(TAG, "Cannot write checkpoint " + file);
+                            temp.delete();
+                        }
+                    } finally {
+                        mPartialWakeLock.release();
+                    }
+                }
+            };
+            mCheckpointThread.start();
+        }
+    }
+
+    // Waits for the checkpoint of the saved high-res mosaic, if any, and
+    // deletes it. The frames cannot be freed before the checkpoint is
+    // written. Runs on the thread saving the mosaic.
+    private void deleteCheckpoint() {
+        Thread thread;
+        File file;
+        synchronized (mCheckpointLock) {
+            mSavingHighRes = false;
+            thread = mCheckpointThread;
+            file = mCheckpointFile;
+            mCheckpointThread = null;
+            mCheckpointFile = null;
+        }
+        if (thread == null) return;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                // Ignore.
+            }
+        }
+        file.delete();
+    }
+
+    // Finishes the oldest panorama left by a process which was killed while
+    // saving it. Returns false if there is none.
+    private boolean resumeCheckpointedPanorama() {
+        if (mPaused || mThreadRunning || !mMosaicFrameProcessorInitialized) return false;
+        File dir = getCheckpointDirectory();
+        File[] files = (dir == null) ? null : dir.listFiles();
+        if (files == null) return false;
+
+        File checkpoint = null;
+        long timeTaken = 0;
+        int orientation = 0;
+        for (File file : files) {
+            String name = file.getName();
+            String[] fields = name.endsWith(CHECKPOINT_SUFFIX)
+                    ? name.substring(0, name.length() - CHECKPOINT_SUFFIX.length()).split("_")
+                    : null;
+            try {
+                if (fields == null || fields.length != 2) throw new NumberFormatException();
+                long time = Long.parseLong(fields[0]);
+                if (checkpoint == null || time < timeTaken) {
+                    checkpoint = file;
+                    timeTaken = time;
+                    orientation = Integer.parseInt(fields[1]);
+                }
+            } catch (NumberFormatException e) {
+                // Left half written or not a checkpoint.
+                file.delete();
+            }
+        }
+        if (checkpoint == null) return false;
+
+        Log.v(TAG, "Finishing the panorama of " + checkpoint);
+        final File file = checkpoint;
+        final int finalOrientation = orientation;
+        mTimeTaken = timeTaken;
+        mCancelComputation = false;
+        mReview.setImageDrawable(null);
+        showFinalMosaic(null);
+        mActivity.hideUI();
+        runBackgroundThread(new Thread() {
+            @Override
+            public void run() {
+                int mosaicReturnCode = savePanorama(file.getPath(), finalOrientation);
+                if (mosaicReturnCode == Mosaic.MOSAIC_RET_ERROR) {
+                    Log.e(TAG, "Cannot finish the panorama of " + file);
+                }
+                // The checkpoint is only kept if the process is killed again
+                // before this. A panorama cancelled by the user is dropped.
+                file.delete();
+                mMainHandler.sendEmptyMessage(MSG_RESET_TO_PREVIEW);
+            }
+        });
+        reportProgress();
+        return true;
     }
 
     private void runBackgroundThread(Thread thread) {
@@ -862,33 +1098,27 @@ public class PanoramaModule implements CameraModule,
         mReviewLayout.setVisibility(View.VISIBLE);
     }
 
-    private Uri savePanorama(byte[] jpegData, int width, int height, int orientation) {
-        if (jpegData != null) {
-            String filename = PanoUtil.createName(
-                    mActivity.getResources().getString(R.string.pano_file_name_format), mTimeTaken);
-            String filepath = Storage.getStorage().writeFile(filename, jpegData);
-
-            // Add Exif tags.
-            try {
-                ExifInterface exif = new ExifInterface(filepath);
-                exif.setAttribute(ExifInterface.TAG_GPS_DATESTAMP,
-                        mGPSDateStampFormat.format(mTimeTaken));
-                exif.setAttribute(ExifInterface.TAG_GPS_TIMESTAMP,
-                        mGPSTimeStampFormat.format(mTimeTaken));
-                exif.setAttribute(ExifInterface.TAG_DATETIME,
-                        mDateTimeStampFormat.format(mTimeTaken));
-                exif.setAttribute(ExifInterface.TAG_ORIENTATION,
-                        getExifOrientation(orientation));
-                exif.saveAttributes();
-            } catch (IOException e) {
-                Log.e(TAG, "Cannot set EXIF for " + filepath, e);
-            }
-
-            int jpegLength = (int) (new File(filepath).length());
-            return Storage.getStorage().addImage(mContentResolver, filename, mTimeTaken,
-                    null, orientation, jpegLength, filepath, width, height);
+    private Uri addPanorama(String filename, String filepath, int width, int height,
+            int orientation) {
+        // Add Exif tags.
+        try {
+            ExifInterface exif = new ExifInterface(filepath);
+            exif.setAttribute(ExifInterface.TAG_GPS_DATESTAMP,
+                    mGPSDateStampFormat.format(mTimeTaken));
+            exif.setAttribute(ExifInterface.TAG_GPS_TIMESTAMP,
+                    mGPSTimeStampFormat.format(mTimeTaken));
+            exif.setAttribute(ExifInterface.TAG_DATETIME,
+                    mDateTimeStampFormat.format(mTimeTaken));
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION,
+                    getExifOrientation(orientation));
+            exif.saveAttributes();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot set EXIF for " + filepath, e);
         }
-        return null;
+
+        int jpegLength = (int) (new File(filepath).length());
+        return Storage.getStorage().addImage(mContentResolver, filename, mTimeTaken,
+                null, orientation, jpegLength, filepath, width, height);
     }
 
     private static String getExifOrientation(int orientation) {
@@ -940,6 +1170,7 @@ public class PanoramaModule implements CameraModule,
             stopCapture(true);
             reset();
         }
+        checkpointHighResMosaic();
 
         releaseCamera();
         mCameraTexture = null;
@@ -1035,6 +1266,7 @@ public class PanoramaModule implements CameraModule,
             // Camera must be initialized before MosaicFrameProcessor is
             // initialized. The preview size has to be decided by camera device.
             initMosaicFrameProcessorIfNeeded();
+            resumeCheckpointedPanorama();
             int w = mPreviewArea.getWidth();
             int h = mPreviewArea.getHeight();
             if (w != 0 && h != 0) {  // The layout has been calculated.
@@ -1064,29 +1296,30 @@ public class PanoramaModule implements CameraModule,
             return new MosaicJpeg();
         }
 
-        byte[] imageData = mMosaicFrameProcessor.getFinalMosaicNV21();
-        if (imageData == null) {
-            Log.e(TAG, "getFinalMosaicNV21() returned null.");
+        int[] size = new int[2];
+        ByteBuffer buffer = mMosaicFrameProcessor.getFinalMosaicNV21Buffer(size);
+        int width = size[0];
+        int height = size[1];
+        Log.v(TAG, "W = " + width + ", H = " + height);
+        if (buffer == null) {
+            // TODO: pop up an error message indicating that the final result is not generated.
+            Log.e(TAG, "getFinalMosaicNV21Buffer() failed, W = " + width + ", H = " + height);
             return new MosaicJpeg();
         }
 
-        int len = imageData.length - 8;
-        int width = (imageData[len + 0] << 24) + ((imageData[len + 1] & 0xFF) << 16)
-                + ((imageData[len + 2] & 0xFF) << 8) + (imageData[len + 3] & 0xFF);
-        int height = (imageData[len + 4] << 24) + ((imageData[len + 5] & 0xFF) << 16)
-                + ((imageData[len + 6] & 0xFF) << 8) + (imageData[len + 7] & 0xFF);
-        Log.v(TAG, "ImLength = " + (len) + ", W = " + width + ", H = " + height);
-
-        if (width <= 0 || height <= 0) {
-            // TODO: pop up an error message indicating that the final result is not generated.
-            Log.e(TAG, "width|height <= 0!!, len = " + (len) + ", W = " + width + ", H = " +
-                    height);
-            return new MosaicJpeg();
+        // YuvImage needs an array, so copy into one which is kept between
+        // mosaics instead of allocating one each time.
+        int length = buffer.remaining();
+        if (mMosaicData == null || mMosaicData.length < length) {
+            mMosaicData = null;
+            mMosaicData = new byte[length];
         }
+        byte[] imageData = mMosaicData;
+        buffer.get(imageData, 0, length);
 
         YuvImage yuvimage = new YuvImage(imageData, ImageFormat.NV21, width, height, null);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        yuvimage.compressToJpeg(new Rect(0, 0, width, height), 100, out);
+        yuvimage.compressToJpeg(new Rect(0, 0, width, height), FINAL_MOSAIC_JPEG_QUALITY, out);
         try {
             out.close();
         } catch (Exception e) {
@@ -1188,7 +1421,7 @@ public class PanoramaModule implements CameraModule,
             if (w != 0 && h != 0) {  // The layout has been calculated.
                 configMosaicPreview(w, h);
             }
-            resetToPreview();
+            if (!resumeCheckpointedPanorama()) resetToPreview();
         }
     }
 
@@ -28,8 +28,11 @@ import android.content.SharedPreferences.Editor;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
+import android.graphics.YuvImage;
 import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.Face;
 import android.hardware.Camera.FaceDetectionListener;
@@ -102,6 +105,9 @@ public class PhotoModule
     private static final String TAG = "CAM_PhotoModule";
 
     private boolean mRestartPreview = false;
+    // True if the preview handed off by the previous module is running with
+    // our parameters, so startPreview() does not need to restart it.
+    private boolean mPreviewAdopted = false;
     private boolean mAspectRatioChanged = false;
 
     // We number the request code from 1000 to avoid collision with Gallery.
@@ -213,6 +219,8 @@ public class PhotoModule
     // We use a thread in ImageSaver to do the work of saving images. This
     // reduces the shot-to-shot time.
     private ImageSaver mImageSaver;
+    // Recent preview frames for software ZSL. Null if it is not used.
+    private ZslFrameRing mZslFrameRing;
     // Similarly, we use a thread to generate the name of the picture and insert
     // it into MediaStore while picture taking is still in progress.
     private ImageNamer mImageNamer;
@@ -224,6 +232,16 @@ public class PhotoModule
         }
     };
 
+    // A software ZSL shot neither gets the picture callbacks nor restarts
+    // the preview, which take the next shot of a burst otherwise. This is
+    // posted after the shot, once onShutterButtonClick() has counted it.
+    private Runnable mZslBurstRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mSnapshotOnIdle && mBurstShotsDone > 0) onShutterButtonClick();
+        }
+    };
+
     private final StringBuilder mBuilder = new StringBuilder();
     private final Formatter mFormatter = new Formatter(mBuilder);
     private final Object[] mFormatterArgs = new Object[1];
@@ -1160,6 +1178,9 @@ public class PhotoModule
     // Each SaveRequest remembers the data needed to save an image.
     private static class SaveRequest {
         byte[] data;
+        // An NV21 preview frame to be encoded instead of data.
+        PreviewFramePool.Frame frame;
+        int quality;
         Uri uri;
         String title;
         Location loc;
@@ -1205,6 +1226,27 @@ public class PhotoModule
             r.width = width;
             r.height = height;
             r.orientation = orientation;
+            addRequest(r);
+        }
+
+        // Runs in main thread. The frame is encoded in the saver thread and
+        // then released.
+        public void addFrame(PreviewFramePool.Frame frame, int quality, Uri uri,
+                String title, Location loc, int orientation) {
+            SaveRequest r = new SaveRequest();
+            r.frame = frame;
+            r.quality = quality;
+            r.uri = uri;
+            r.title = title;
+            r.loc = (loc == null) ? null : new Location(loc);  // make a copy
+            r.width = frame.width;
+            r.height = frame.height;
+            r.orientation = orientation;
+            addRequest(r);
+        }
+
+        // Runs in main thread
+        private void addRequest(SaveRequest r) {
             synchronized (this) {
                 while (mQueue.size() >= QUEUE_LIMIT) {
                     try {
@@ -1241,7 +1283,15 @@ public class PhotoModule
                     r = mQueue.get(0);
                 }
 
-                if (mSceneMode == Util.SCENE_MODE_HDR && Util.needSamsungHDRFormat()) {
+                if (r.frame != null) {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    YuvImage image = new YuvImage(r.frame.data, ImageFormat.NV21,
+                            r.width, r.height, null);
+                    image.compressToJpeg(new Rect(0, 0, r.width, r.height), r.quality, baos);
+                    r.frame.release();
+                    r.frame = null;
+                    r.data = baos.toByteArray();
+                } else if (mSceneMode == Util.SCENE_MODE_HDR && Util.needSamsungHDRFormat()) {
                     ByteArrayOutputStream baos = new ByteArrayOutputStream();
                     Bitmap bm = Util.decodeYUV422P(r.data, r.width, r.height);
                     if (mJpegRotation != 0) {
@@ -1441,6 +1491,11 @@ public class PhotoModule
         mPostViewPictureCallbackTime = 0;
         mJpegImageData = null;
 
+        if (mZslFrameRing != null && mZslFrameRing.isStarted()
+                && captureFromZslFrameRing()) {
+            return true;
+        }
+
         final boolean animateBefore = (mSceneMode == Util.SCENE_MODE_HDR);
 
         if (animateBefore) {
@@ -1482,6 +1537,42 @@ public class PhotoModule
         return true;
     }
 
+    // Saves the recent preview frame closest to now instead of calling
+    // takePicture(), so there is no shutter lag and the preview keeps
+    // running. Returns false if there is no frame yet.
+    private boolean captureFromZslFrameRing() {
+        PreviewFramePool.Frame frame = mZslFrameRing.takeFrame(SystemClock.uptimeMillis());
+        if (frame == null) return false;
+        mShutterLag = 0;
+        mJpegRotation = Util.getJpegRotation(mCameraId, mOrientation);
+        animateFlash();
+        mImageNamer.prepareUri(mContentResolver, mCaptureStartTime,
+                frame.width, frame.height, mJpegRotation);
+        Uri uri = mImageNamer.getUri();
+        mActivity.addSecureAlbumItemIfNeeded(false, uri);
+        String title = mImageNamer.getTitle();
+        mImageSaver.addFrame(frame, mParameters.getJpegQuality(), uri, title,
+                mLocationManager.getCurrentLocation(), mJpegRotation);
+        mFocusManager.resetTouchFocus();
+        mActivity.updateStorageSpaceAndHint();
+        mHandler.post(mZslBurstRunnable);
+        return true;
+    }
+
+    // Software ZSL needs NV21 preview frames and cannot be used for HDR or
+    // the image capture intent, which need the full resolution picture.
+    private boolean useSoftwareZsl() {
+        return Util.enableSoftwareZSL() && !mIsImageCaptureIntent
+                && mSceneMode != Util.SCENE_MODE_HDR && !Util.getDoSoftwareHDRShot()
+                && mParameters.getPreviewFormat() == ImageFormat.NV21;
+    }
+
+    private void startZslFrameRing() {
+        if (!useSoftwareZsl()) return;
+        if (mZslFrameRing == null) mZslFrameRing = new ZslFrameRing();
+        mZslFrameRing.start(mCameraDevice, mParameters);
+    }
+
     @Override
     public void setFocusParameters() {
         setCameraParameters(UPDATE_PARAM_PREFERENCE);
@@ -2055,10 +2146,18 @@ public class PhotoModule
         if (mCameraDevice != null && mCameraState != PREVIEW_STOPPED) {
             mCameraDevice.cancelAutoFocus();
         }
-        stopPreview();
+        // If the next module adopts the running preview, leave the preview
+        // and its surface texture alone.
+        boolean handOff = CameraHolder.instance().isKeepingPreview();
+        if (handOff) {
+            if (mZslFrameRing != null) mZslFrameRing.stop();
+            setCameraState(PREVIEW_STOPPED);
+        } else {
+            stopPreview();
+        }
         // Close the camera now because other activities may need to use it.
         closeCamera();
-        if (Util.mSurfaceTexture != null) {
+        if (Util.mSurfaceTexture != null && !handOff) {
             ((CameraScreenNail) mActivity.mCameraScreenNail).releaseSurfaceTexture();
             Util.mSurfaceTexture = null;
         }
@@ -2467,7 +2566,18 @@ public class PhotoModule
             }
             mFocusManager.setAeAwbLock(false); // Unlock AE and AWB.
         }
-        setCameraParameters(UPDATE_PARAM_ALL);
+
+        // If the camera start up thread has adopted the handed off preview,
+        // the parameters are already applied.
+        if (!mPreviewAdopted) setCameraParameters(UPDATE_PARAM_ALL);
+        if (mPreviewAdopted) {
+            mPreviewAdopted = false;
+            mCameraDevice.setDisplayOrientation(mCameraDisplayOrientation);
+            Log.v(TAG, "adopted handed off preview");
+            mFocusManager.onPreviewStarted();
+            startZslFrameRing();
+            return;
+        }
 
         if (ApiHelper.HAS_SURFACE_TEXTURE) {
             mCameraDevice.setDisplayOrientation(mCameraDisplayOrientation);
@@ -2486,6 +2596,7 @@ public class PhotoModule
         // Set camera mode
         CameraSettings.setVideoMode(mParameters, false);
         mCameraDevice.setParameters(mParameters);
+        startZslFrameRing();
 
         if (mSnapshotOnIdle && (mBurstShotsDone > 0 && !mHDRShotInProgress)) {
             mHandler.post(mDoSnapRunnable);
@@ -2493,6 +2604,7 @@ public class PhotoModule
     }
 
     private void stopPreview() {
+        if (mZslFrameRing != null) mZslFrameRing.stop();
         if (mCameraDevice != null && mCameraState != PREVIEW_STOPPED) {
             Log.v(TAG, "stopPreview");
             mCameraDevice.stopPreview();
@@ -2766,7 +2878,12 @@ public class PhotoModule
         }
 
         CameraSettings.dumpParameters(mParameters);
-        mCameraDevice.setParameters(mParameters);
+        if (CameraHolder.instance().hasKeptPreview()) {
+            // The handed off preview only gets the parameters if they changed.
+            mPreviewAdopted = CameraHolder.instance().adoptPreview(mParameters);
+        } else {
+            mCameraDevice.setParameters(mParameters);
+        }
     }
 
     // If the Camera is idle, update the parameters immediately, otherwise
@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Keeps the last seconds of a recording in memory, so that a video can
+ * start before the record button was pressed.
+ *
+ * <p>A recorder writes an MPEG-2 transport stream into a pipe, which the
+ * buffer reads into a ring of a fixed size. {@code startWriting()} copies
+ * the stream to a file, starting from the H.264 sync frame which covers
+ * the pre-roll, and keeps copying the stream as it comes until
+ * {@code stopWriting()}. The ring is not overwritten before it has been
+ * copied; if the file cannot keep up, the recorder waits.
+ */
+public class PrerollBuffer {
+    private static final String TAG = "CAM_PrerollBuffer";
+    private static final int PACKET_SIZE = 188;
+    private static final int SYNC_BYTE = 0x47;
+    private static final int STREAM_TYPE_H264 = 0x1b;
+    private static final int NAL_IDR = 5;
+    private static final int NAL_SPS = 7;
+
+    public interface Listener {
+        // Copying to the file stopped before stopWriting(), because the file
+        // reached its size limit or because of an error. Called on the
+        // writer thread.
+        public void onWriteStopped(boolean error);
+    }
+
+    private static class SyncPoint {
+        final long position;
+        final long time;
+
+        SyncPoint(long position, long time) {
+            this.position = position;
+            this.time = time;
+        }
+    }
+
+    private final byte[] mRing;
+    private int mPrerollMs;
+    private Thread mReader;
+    private Writer mWriter;
+
+    // The positions are in bytes from the start of the stream. The ring
+    // holds the stream from mTail - mRing.length to mTail.
+    private long mTail;
+    private final ArrayDeque<SyncPoint> mSyncPoints = new ArrayDeque<SyncPoint>();
+    private int mPmtPid = -1;
+    private int mVideoPid = -1;
+    // The latest program association and program map tables, which a file
+    // needs before its first packet of video.
+    private byte[] mPat;
+    private byte[] mPmt;
+
+    /**
+     * Creates a buffer of at most {@code maxSize} bytes, or less if the
+     * heap is small.
+     */
+    public PrerollBuffer(int maxSize) {
+        long heapLimit = Runtime.getRuntime().maxMemory() / 4;
+        int size = (int) Math.min(maxSize, heapLimit);
+        mRing = new byte[size - size % PACKET_SIZE];
+    }
+
+    public int getCapacity() {
+        return mRing.length;
+    }
+
+    /**
+     * Starts reading the stream from {@code source}, which the buffer
+     * closes. The stream ends when the writer of the pipe closes it.
+     */
+    public synchronized void start(final ParcelFileDescriptor source, int prerollMs) {
+        if (mReader != null) throw new IllegalStateException("already started");
+        mPrerollMs = prerollMs;
+        mTail = 0;
+        mSyncPoints.clear();
+        mPmtPid = -1;
+        mVideoPid = -1;
+        mPat = null;
+        mPmt = null;
+        mReader = new Thread("PrerollReader") {
+            @Override
+            public void run() {
+                readStream(new ParcelFileDescriptor.AutoCloseInputStream(source));
+            }
+        };
+        mReader.start();
+    }
+
+    /**
+     * Waits until the stream has ended. The writer of the pipe must have
+     * closed it.
+     */
+    public void stop() {
+        Thread reader;
+        synchronized (this) {
+            reader = mReader;
+        }
+        if (reader == null) return;
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            // ignore
+        }
+        synchronized (this) {
+            mReader = null;
+        }
+    }
+
+    /**
+     * Starts copying the stream to {@code path}, which grows to at most
+     * {@code maxFileSize} bytes. Returns the length of the pre-roll in
+     * milliseconds; the copy starts from the next sync frame if there is
+     * none in the buffer yet.
+     */
+    public synchronized long startWriting(String path, long maxFileSize,
+            Listener listener) throws IOException {
+        if (mWriter != null) throw new IllegalStateException("already writing");
+        long now = SystemClock.uptimeMillis();
+        SyncPoint start = null;
+        // Start from the newest sync frame which covers the whole pre-roll,
+        // or the oldest one if none does.
+        for (SyncPoint point : mSyncPoints) {
+            if (start == null || point.time <= now - mPrerollMs) start = point;
+        }
+        mWriter = new Writer(new FileOutputStream(path), maxFileSize, listener);
+        long prerollMs = 0;
+        if (start != null) {
+            mWriter.mPosition = start.position;
+            prerollMs = now - start.time;
+        }
+        Log.v(TAG, "start writing with a pre-roll of " + prerollMs + "ms");
+        mWriter.start();
+        return prerollMs;
+    }
+
+    /**
+     * Stops copying once the stream read so far is in the file, and waits
+     * for the file to be closed. Throws if writing the file failed.
+     */
+    public void stopWriting() throws IOException {
+        Writer writer;
+        synchronized (this) {
+            writer = mWriter;
+            if (writer == null) return;
+            writer.mEnd = mTail;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            // ignore
+        }
+        synchronized (this) {
+            mWriter = null;
+        }
+        if (writer.mError != null) throw writer.mError;
+    }
+
+    // Runs in reader thread
+    private void readStream(InputStream in) {
+        byte[] packet = new byte[PACKET_SIZE];
+        try {
+            int offset = 0;
+            while (true) {
+                int n = in.read(packet, offset, PACKET_SIZE - offset);
+                if (n < 0) break;
+                offset += n;
+                if (offset < PACKET_SIZE) continue;
+                offset = 0;
+                if ((packet[0] & 0xff) != SYNC_BYTE) {
+                    // Lost the packet boundary. Skip to the next sync byte.
+                    Log.w(TAG, "lost sync");
+                    offset = resync(packet);
+                    continue;
+                }
+                append(packet, parsePacket(packet));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Fail to read the stream", e);
+        } catch (InterruptedException e) {
+            // ignore
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        synchronized (this) {
+            // Let the writer finish with what has been read.
+            if (mWriter != null && mWriter.mEnd < 0) mWriter.mEnd = mTail;
+            notifyAll();
+        }
+    }
+
+    // Moves the bytes from the next sync byte to the start of the packet,
+    // and returns how many were moved.
+    private static int resync(byte[] packet) {
+        for (int i = 1; i < PACKET_SIZE; i++) {
+            if ((packet[i] & 0xff) == SYNC_BYTE) {
+                System.arraycopy(packet, i, packet, 0, PACKET_SIZE - i);
+                return PACKET_SIZE - i;
+            }
+        }
+        return 0;
+    }
+
+    // Runs in reader thread
+    private synchronized void append(byte[] packet, boolean sync)
+            throws InterruptedException {
+        // Wait for the writer rather than overwrite what it has not copied.
+        while (mWriter != null && mWriter.mEnd < 0 && mWriter.mPosition >= 0
+                && mTail + PACKET_SIZE - mWriter.mPosition > mRing.length) {
+            wait();
+        }
+        System.arraycopy(packet, 0, mRing, (int) (mTail % mRing.length), PACKET_SIZE);
+        long now = SystemClock.uptimeMillis();
+        if (sync) {
+            mSyncPoints.addLast(new SyncPoint(mTail, now));
+            if (mWriter != null && mWriter.mPosition < 0 && mWriter.mEnd < 0) {
+                mWriter.mPosition = mTail;
+            }
+        }
+        mTail += PACKET_SIZE;
+
+        // Drop the sync points which are overwritten, and those before the
+        // newest one which covers the pre-roll.
+        while (!mSyncPoints.isEmpty()
+                && mSyncPoints.peekFirst().position < mTail - mRing.length) {
+            mSyncPoints.removeFirst();
+        }
+        while (mSyncPoints.size() > 1) {
+            Iterator<SyncPoint> it = mSyncPoints.iterator();
+            it.next();
+            if (it.next().time > now - mPrerollMs) break;
+            mSyncPoints.removeFirst();
+        }
+        notifyAll();
+    }
+
+    // Records the tables and returns true if the packet starts a sync frame
+    // of the video.
+    // Runs in reader thread
+    private boolean parsePacket(byte[] packet) {
+        boolean unitStart = (packet[1] & 0x40) != 0;
+        if (!unitStart) return false;
+        int pid = ((packet[1] & 0x1f) << 8) | (packet[2] & 0xff);
+        int control = (packet[3] >> 4) & 3;
+        if ((control & 1) == 0) return false;  // no payload
+        int offset = 4;
+        if ((control & 2) != 0) offset += 1 + (packet[4] & 0xff);
+        if (offset >= PACKET_SIZE) return false;
+
+        if (pid == 0) {
+            int pmtPid = parsePat(packet, offset);
+            if (pmtPid >= 0) {
+                mPmtPid = pmtPid;
+                synchronized (this) {
+                    mPat = packet.clone();
+                }
+            }
+        } else if (pid == mPmtPid) {
+            int videoPid = parsePmt(packet, offset);
+            if (videoPid >= 0) {
+                mVideoPid = videoPid;
+                synchronized (this) {
+                    mPmt = packet.clone();
+                }
+            }
+        } else if (pid == mVideoPid) {
+            return isSyncFrame(packet, offset);
+        }
+        return false;
+    }
+
+    // Returns the pid of the first program map table, or -1.
+    private static int parsePat(byte[] packet, int offset) {
+        int p = offset + 1 + (packet[offset] & 0xff);
+        if (p + 8 > PACKET_SIZE) return -1;
+        int end = Math.min(p + 3 + sectionLength(packet, p) - 4, PACKET_SIZE);
+        for (int i = p + 8; i + 4 <= end; i += 4) {
+            int program = ((packet[i] & 0xff) << 8) | (packet[i + 1] & 0xff);
+            if (program != 0) {
+                return ((packet[i + 2] & 0x1f) << 8) | (packet[i + 3] & 0xff);
+            }
+        }
+        return -1;
+    }
+
+    // Returns the pid of the H.264 stream of the program, or -1.
+    private static int parsePmt(byte[] packet, int offset) {
+        int p = offset + 1 + (packet[offset] & 0xff);
+        if (p + 12 > PACKET_SIZE) return -1;
+        int end = Math.min(p + 3 + sectionLength(packet, p) - 4, PACKET_SIZE);
+        int infoLength = ((packet[p + 10] & 0xf) << 8) | (packet[p + 11] & 0xff);
+        int i = p + 12 + infoLength;
+        while (i + 5 <= end) {
+            int type = packet[i] & 0xff;
+            int pid = ((packet[i + 1] & 0x1f) << 8) | (packet[i + 2] & 0xff);
+            if (type == STREAM_TYPE_H264) return pid;
+            i += 5 + (((packet[i + 3] & 0xf) << 8) | (packet[i + 4] & 0xff));
+        }
+        return -1;
+    }
+
+    private static int sectionLength(byte[] packet, int p) {
+        return ((packet[p + 1] & 0xf) << 8) | (packet[p + 2] & 0xff);
+    }
+
+    // Looks for a sequence parameter set or an IDR slice at the start of
+    // the PES packet. The recorder puts the parameter sets before each
+    // sync frame.
+    private static boolean isSyncFrame(byte[] packet, int offset) {
+        // Skip the PES header.
+        if (offset + 9 > PACKET_SIZE) return false;
+        int i = offset + 9 + (packet[offset + 8] & 0xff);
+        for (; i + 3 < PACKET_SIZE; i++) {
+            if (packet[i] == 0 && packet[i + 1] == 0 && packet[i + 2] == 1) {
+                int type = packet[i + 3] & 0x1f;
+                if (type == NAL_SPS || type == NAL_IDR) return true;
+                i += 2;
+            }
+        }
+        return false;
+    }
+
+    private class Writer extends Thread {
+        private final FileOutputStream mOut;
+        private final long mMaxFileSize;
+        private final Listener mListener;
+        // Guarded by the buffer. The position is -1 until the first sync
+        // frame, and the end is -1 until stopWriting().
+        long mPosition = -1;
+        long mEnd = -1;
+        volatile IOException mError;
+
+        Writer(FileOutputStream out, long maxFileSize, Listener listener) {
+            super("PrerollWriter");
+            mOut = out;
+            mMaxFileSize = maxFileSize;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            long written = 0;
+            boolean stopped = false;
+            try {
+                byte[] pat;
+                byte[] pmt;
+                synchronized (PrerollBuffer.this) {
+                    while (mPosition < 0 && mEnd < 0) PrerollBuffer.this.wait();
+                    pat = mPat;
+                    pmt = mPmt;
+                }
+                if (pat != null && pmt != null) {
+                    mOut.write(pat);
+                    mOut.write(pmt);
+                    written += 2 * PACKET_SIZE;
+                }
+                while (true) {
+                    long from, to;
+                    synchronized (PrerollBuffer.this) {
+                        while (mPosition >= 0 && mPosition == mTail && mEnd < 0) {
+                            PrerollBuffer.this.wait();
+                        }
+                        long end = (mEnd >= 0) ? Math.min(mEnd, mTail) : mTail;
+                        if (mPosition < 0 || mPosition >= end) break;
+                        from = mPosition;
+                        // Copy up to the end of the ring array at most.
+                        to = Math.min(end, from - from % mRing.length + mRing.length);
+                    }
+                    if (written + to - from > mMaxFileSize) {
+                        stopped = true;
+                        break;
+                    }
+                    // The reader does not overwrite the range before the
+                    // position moves past it.
+                    mOut.write(mRing, (int) (from % mRing.length), (int) (to - from));
+                    written += to - from;
+                    synchronized (PrerollBuffer.this) {
+                        mPosition = to;
+                        PrerollBuffer.this.notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Fail to write the stream", e);
+                mError = e;
+                stopped = true;
+            } catch (InterruptedException e) {
+                stopped = true;
+            } finally {
+                try {
+                    mOut.close();
+                } catch (IOException e) {
+                    if (mError == null) mError = e;
+                }
+                synchronized (PrerollBuffer.this) {
+                    // Let the reader go on without the writer.
+                    mEnd = Math.max(mPosition, 0);
+                    PrerollBuffer.this.notifyAll();
+                }
+            }
+            if (stopped) mListener.onWriteStopped(mError != null);
+        }
+    }
+}
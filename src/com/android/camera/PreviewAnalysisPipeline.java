@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera.Parameters;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.camera.CameraManager.CameraProxy;
+import com.android.camera.PreviewFramePool.Frame;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs registered analyzers on NV21 preview frames in a pool of worker
+ * threads.
+ *
+ * <p>Frames come from a {@code PreviewFramePool}, so no buffer is allocated
+ * per frame. Each analyzer is offered at most one frame per its target
+ * interval. While an analyzer is busy, only the newest offered frame is kept
+ * and older ones are released back to the pool. Results are delivered on the
+ * UI thread.
+ */
+public class PreviewAnalysisPipeline implements PreviewFramePool.FrameListener {
+    private static final String TAG = "CAM_PreviewAnalysis";
+    private static final int DEFAULT_THREAD_COUNT = 2;
+
+    public interface Analyzer {
+        // Called on a worker thread. The frame data is only valid during the
+        // call.
+        public Object analyze(Frame frame);
+
+        // Called on the UI thread with the return value of analyze().
+        public void onAnalysisResult(Object result);
+    }
+
+    private class AnalyzerSlot implements Runnable {
+        final Analyzer mAnalyzer;
+        final long mIntervalMs;
+        long mLastOfferTime;
+        Frame mPendingFrame;  // the newest frame not analyzed yet
+        boolean mRunning;     // true if a worker is running this analyzer
+        int mAnalyzedCount;
+        int mSkippedCount;
+
+        AnalyzerSlot(Analyzer analyzer, int targetFps) {
+            mAnalyzer = analyzer;
+            mIntervalMs = (targetFps > 0) ? 1000 / targetFps : 0;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Frame frame;
+                synchronized (PreviewAnalysisPipeline.this) {
+                    frame = mPendingFrame;
+                    mPendingFrame = null;
+                    if (frame == null || !mSlots.contains(this)) {
+                        if (frame != null) frame.release();
+                        mRunning = false;
+                        return;
+                    }
+                }
+                final Object result;
+                try {
+                    result = mAnalyzer.analyze(frame);
+                } finally {
+                    frame.release();
+                }
+                synchronized (PreviewAnalysisPipeline.this) {
+                    mAnalyzedCount++;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (PreviewAnalysisPipeline.this) {
+                            // Drop the results of removed analyzers.
+                            if (!mSlots.contains(AnalyzerSlot.this)) return;
+                        }
+                        mAnalyzer.onAnalysisResult(result);
+                    }
+                });
+            }
+        }
+    }
+
+    private final ArrayList<AnalyzerSlot> mSlots = new ArrayList<AnalyzerSlot>();
+    private final PreviewFramePool mFramePool;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private ExecutorService mExecutor;
+    private final int mThreadCount;
+
+    public PreviewAnalysisPipeline() {
+        this(DEFAULT_THREAD_COUNT);
+    }
+
+    public PreviewAnalysisPipeline(int threadCount) {
+        mThreadCount = threadCount;
+        // Each worker can hold one frame, and one more is needed for the
+        // newest pending frame and one for the camera.
+        mFramePool = new PreviewFramePool(threadCount + 2);
+    }
+
+    /**
+     * Registers an analyzer which is offered at most {@code targetFps}
+     * frames per second. A value of 0 offers every frame.
+     */
+    public synchronized void addAnalyzer(Analyzer analyzer, int targetFps) {
+        mSlots.add(new AnalyzerSlot(analyzer, targetFps));
+    }
+
+    public synchronized void removeAnalyzer(Analyzer analyzer) {
+        for (int i = mSlots.size() - 1; i >= 0; i--) {
+            AnalyzerSlot slot = mSlots.get(i);
+            if (slot.mAnalyzer != analyzer) continue;
+            mSlots.remove(i);
+            if (slot.mPendingFrame != null && !slot.mRunning) {
+                slot.mPendingFrame.release();
+                slot.mPendingFrame = null;
+            }
+        }
+    }
+
+    /**
+     * Starts receiving preview frames. The preview format must be NV21.
+     */
+    public void start(CameraProxy camera, Parameters params) {
+        if (params.getPreviewFormat() != ImageFormat.NV21) {
+            throw new IllegalArgumentException("preview format must be NV21");
+        }
+        synchronized (this) {
+            if (mExecutor == null) {
+                mExecutor = Executors.newFixedThreadPool(mThreadCount, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread("PreviewAnalysis") {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        };
+                    }
+                });
+            }
+        }
+        mFramePool.start(camera, params, this);
+    }
+
+    /**
+     * Stops receiving preview frames and shuts down the workers. Results of
+     * the frames being analyzed are still delivered.
+     */
+    public void stop() {
+        mFramePool.stop();
+        synchronized (this) {
+            for (AnalyzerSlot slot : mSlots) {
+                Log.v(TAG, slot.mAnalyzer + ": analyzed " + slot.mAnalyzedCount
+                        + ", skipped " + slot.mSkippedCount);
+                if (slot.mPendingFrame != null && !slot.mRunning) {
+                    slot.mPendingFrame.release();
+                    slot.mPendingFrame = null;
+                }
+            }
+            if (mExecutor != null) {
+                mExecutor.shutdown();
+                mExecutor = null;
+            }
+        }
+    }
+
+    public int getDroppedFrameCount() {
+        return mFramePool.getDroppedFrameCount();
+    }
+
+    @Override
+    public void onPreviewFrame(Frame frame) {
+        synchronized (this) {
+            for (AnalyzerSlot slot : mSlots) {
+                if (frame.timestamp - slot.mLastOfferTime < slot.mIntervalMs) continue;
+                slot.mLastOfferTime = frame.timestamp;
+                frame.acquire();
+                if (slot.mPendingFrame != null) {
+                    // The analyzer is busy. Keep the newest frame only.
+                    slot.mPendingFrame.release();
+                    slot.mSkippedCount++;
+                }
+                slot.mPendingFrame = frame;
+                if (!slot.mRunning && mExecutor != null) {
+                    slot.mRunning = true;
+                    mExecutor.execute(slot);
+                }
+            }
+        }
+        frame.release();
+    }
+}
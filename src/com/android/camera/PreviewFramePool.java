@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.PreviewCallback;
+import android.hardware.Camera.Size;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.camera.CameraManager.CameraProxy;
+
+/**
+ * A fixed ring of preview callback buffers for {@code
+ * CameraProxy.setPreviewCallbackWithBuffer}.
+ *
+ * <p>The buffers are sized from the preview size and format and allocated
+ * once in {@code start()}. Each preview frame is handed to the listener as a
+ * {@code Frame}; the buffer goes back to the camera when every consumer has
+ * called {@code Frame.release()}. If consumers hold all the other buffers,
+ * the frame is dropped and its buffer is returned to the camera right away,
+ * so the camera never stalls and nothing is allocated per frame.
+ */
+public class PreviewFramePool implements PreviewCallback {
+    private static final String TAG = "CAM_PreviewFramePool";
+    private static final int DEFAULT_BUFFER_COUNT = 3;
+
+    public interface FrameListener {
+        // Called on the thread which opened the camera. The listener must
+        // call release() on the frame when it no longer needs the data.
+        public void onPreviewFrame(Frame frame);
+    }
+
+    public class Frame {
+        public final byte[] data;
+        public int width;
+        public int height;
+        public int format;
+        // Time the frame was received, in SystemClock.uptimeMillis() base.
+        public long timestamp;
+        private int mRefCount;
+
+        private Frame(byte[] buffer) {
+            data = buffer;
+        }
+
+        /** Keeps the frame for one more consumer. */
+        public void acquire() {
+            synchronized (PreviewFramePool.this) {
+                mRefCount++;
+            }
+        }
+
+        /** Gives the buffer back to the pool once every consumer is done. */
+        public void release() {
+            synchronized (PreviewFramePool.this) {
+                if (mRefCount <= 0) throw new IllegalStateException("Frame already released");
+                if (--mRefCount > 0) return;
+                // Buffers of a previous allocation are left to the GC.
+                if (findFrame(data) == null) return;
+                mHeldCount--;
+                // Buffers of a stopped pool are queued again in start().
+                if (mCameraDevice != null) mCameraDevice.addCallbackBuffer(data);
+            }
+        }
+    }
+
+    private final int mBufferCount;
+    private Frame[] mFrames;
+    private CameraProxy mCameraDevice;
+    private FrameListener mListener;
+    private int mWidth;
+    private int mHeight;
+    private int mFormat;
+    // Number of frames held by consumers.
+    private int mHeldCount;
+    private int mDeliveredCount;
+    private int mDroppedCount;
+
+    public PreviewFramePool() {
+        this(DEFAULT_BUFFER_COUNT);
+    }
+
+    public PreviewFramePool(int bufferCount) {
+        // One buffer is always left with the camera.
+        if (bufferCount < 2) throw new IllegalArgumentException("bufferCount=" + bufferCount);
+        mBufferCount = bufferCount;
+    }
+
+    public static int getBufferSize(int width, int height, int format) {
+        if (format == ImageFormat.YV12) {
+            // YV12 rows are aligned to 16 bytes.
+            int yStride = (int) Math.ceil(width / 16.0) * 16;
+            int uvStride = (int) Math.ceil((yStride / 2) / 16.0) * 16;
+            return yStride * height + uvStride * height;
+        }
+        return width * height * ImageFormat.getBitsPerPixel(format) / 8;
+    }
+
+    /**
+     * Allocates the buffers for the current preview size and format, and
+     * queues them to the camera. The buffers are reused if the size has not
+     * changed.
+     */
+    public synchronized void start(CameraProxy camera, Parameters params,
+            FrameListener listener) {
+        Size size = params.getPreviewSize();
+        mWidth = size.width;
+        mHeight = size.height;
+        mFormat = params.getPreviewFormat();
+        int bufferSize = getBufferSize(mWidth, mHeight, mFormat);
+        if (mFrames == null || mFrames[0].data.length != bufferSize) {
+            Log.v(TAG, "allocate " + mBufferCount + " buffers of " + bufferSize + " bytes");
+            mFrames = new Frame[mBufferCount];
+            for (int i = 0; i < mBufferCount; i++) {
+                mFrames[i] = new Frame(new byte[bufferSize]);
+            }
+            mHeldCount = 0;
+        }
+        mCameraDevice = camera;
+        mListener = listener;
+        mDeliveredCount = 0;
+        mDroppedCount = 0;
+        mCameraDevice.setPreviewCallbackWithBuffer(this);
+        for (Frame frame : mFrames) {
+            // Frames still held by consumers are queued when released.
+            if (frame.mRefCount == 0) mCameraDevice.addCallbackBuffer(frame.data);
+        }
+    }
+
+    /**
+     * Stops the preview callbacks. Frames still held by consumers stay valid
+     * until they are released, but are not queued to the camera again.
+     */
+    public synchronized void stop() {
+        if (mCameraDevice == null) return;
+        mCameraDevice.setPreviewCallbackWithBuffer(null);
+        mCameraDevice = null;
+        mListener = null;
+        Log.v(TAG, "delivered " + mDeliveredCount + " frames, dropped " + mDroppedCount);
+    }
+
+    public synchronized boolean isStarted() {
+        return mCameraDevice != null;
+    }
+
+    public synchronized int getDeliveredFrameCount() {
+        return mDeliveredCount;
+    }
+
+    public synchronized int getDroppedFrameCount() {
+        return mDroppedCount;
+    }
+
+    public int getBufferCount() {
+        return mBufferCount;
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        Frame frame;
+        FrameListener listener;
+        synchronized (this) {
+            if (mCameraDevice == null || data == null) return;
+            frame = findFrame(data);
+            if (frame == null) return;
+            if (mHeldCount >= mBufferCount - 1) {
+                // Consumers hold every other buffer. Drop this frame so the
+                // camera always has a buffer to fill.
+                mDroppedCount++;
+                mCameraDevice.addCallbackBuffer(data);
+                return;
+            }
+            mHeldCount++;
+            mDeliveredCount++;
+            frame.mRefCount = 1;
+            frame.width = mWidth;
+            frame.height = mHeight;
+            frame.format = mFormat;
+            frame.timestamp = SystemClock.uptimeMillis();
+            listener = mListener;
+        }
+        listener.onPreviewFrame(frame);
+    }
+
+    private Frame findFrame(byte[] data) {
+        if (mFrames == null) return null;
+        for (Frame frame : mFrames) {
+            if (frame.data == data) return frame;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Watches how a recording is written while it runs.
+ *
+ * <p>The size of the output file is sampled every second on a thread of
+ * its own, because the storage may block when it is slow. From the samples
+ * the monitor computes the write rate, finds the times the file did not
+ * grow for too long, and estimates how long the recording can go on
+ * before the storage is full. The free space is sampled less often. The
+ * getters can be called on any thread. The clock, the file sizes and the
+ * free space come from a {@link Source}, which tests replace.
+ */
+public class RecordingMonitor {
+    private static final String TAG = "CAM_RecordingMonitor";
+    private static final int SAMPLE_INTERVAL_MS = 1000;
+    // The free space is sampled once every this many samples.
+    private static final int STORAGE_SAMPLE_COUNT = 5;
+    // The write rate is measured over this many samples.
+    private static final int WINDOW_SIZE = 5;
+
+    public interface Listener {
+        // The file has not grown for stallMs. Called once per stall, on the
+        // UI thread.
+        public void onWriteStalled(long stallMs);
+    }
+
+    public interface FrameCounter {
+        // Returns the number of frames the recording has dropped. Called on
+        // the monitor thread.
+        public int getDroppedFrameCount();
+    }
+
+    public interface Source {
+        public long uptimeMillis();
+        // Returns the size of the file at path in bytes.
+        public long getFileSize(String path);
+        // Returns the free space in bytes, or a negative value if the
+        // storage is not available.
+        public long getAvailableSpace();
+    }
+
+    private static final Source SYSTEM_SOURCE = new Source() {
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public long getFileSize(String path) {
+            return new File(path).length();
+        }
+
+        @Override
+        public long getAvailableSpace() {
+            return Storage.getStorage().getAvailableSpace();
+        }
+    };
+
+    private final long mExpectedRate;
+    private final long mStallTimeoutMs;
+    private final Listener mListener;
+    private final FrameCounter mFrameCounter;
+    private final Source mSource;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    // Guarded by this.
+    private String mPath;
+    // Counts the files, so that a sample of a previous file is dropped.
+    private int mFileIndex;
+    // The bytes written to the files before the current one.
+    private long mPreviousFilesBytes;
+    private long mFileBytes;
+    private long mStartTime;
+    private final long[] mSampleTimes = new long[WINDOW_SIZE + 1];
+    private final long[] mSampleBytes = new long[WINDOW_SIZE + 1];
+    private int mSampleCount;
+    private long mLastGrowthTime;
+    private boolean mStalled;
+    private int mStallCount;
+    private long mLongestStallMs;
+    private long mAvailableSpace = -1;
+    private long mStorageSampleTime;
+    private int mDroppedFrames = -1;
+
+    /**
+     * Creates a monitor for a recording which is expected to be written at
+     * {@code expectedRate} bytes per second. A stall is reported if the
+     * file does not grow for {@code stallTimeoutMs}; 0 turns this off, for
+     * recordings which are written in bursts far apart. {@code frameCounter}
+     * may be null if the dropped frames are not known.
+     */
+    public RecordingMonitor(long expectedRate, long stallTimeoutMs, Listener listener,
+            FrameCounter frameCounter) {
+        this(expectedRate, stallTimeoutMs, listener, frameCounter, SYSTEM_SOURCE);
+    }
+
+    public RecordingMonitor(long expectedRate, long stallTimeoutMs, Listener listener,
+            FrameCounter frameCounter, Source source) {
+        mExpectedRate = expectedRate;
+        mStallTimeoutMs = stallTimeoutMs;
+        mListener = listener;
+        mFrameCounter = frameCounter;
+        mSource = source;
+        mStartTime = source.uptimeMillis();
+        mLastGrowthTime = mStartTime;
+    }
+
+    /**
+     * Starts sampling the file at {@code path}, or only the free space if
+     * the path is null.
+     */
+    public synchronized void start(String path) {
+        if (mThread != null) throw new IllegalStateException("already started");
+        mPath = path;
+        mStartTime = mSource.uptimeMillis();
+        mLastGrowthTime = mStartTime;
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(mSampler);
+    }
+
+    /**
+     * Moves on to the next file of the recording. The bytes of the files
+     * before are still counted.
+     */
+    public synchronized void setFile(String path) {
+        mPreviousFilesBytes += mFileBytes;
+        mFileBytes = 0;
+        mPath = path;
+        mFileIndex++;
+    }
+
+    /** Stops sampling. The metrics keep their last values. */
+    public synchronized void stop() {
+        if (mThread == null) return;
+        mHandler.removeCallbacks(mSampler);
+        mThread.quit();
+        mThread = null;
+    }
+
+    private final Runnable mSampler = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+            synchronized (RecordingMonitor.this) {
+                if (mThread != null) mHandler.postDelayed(this, SAMPLE_INTERVAL_MS);
+            }
+        }
+    };
+
+    /**
+     * Takes a sample. This is done every second on the monitor thread while
+     * the monitor is started. A monitor which is not started samples the
+     * file given to {@link #setFile} only when this is called.
+     */
+    public void sample() {
+        String path;
+        int fileIndex;
+        boolean sampleStorage;
+        synchronized (this) {
+            path = mPath;
+            fileIndex = mFileIndex;
+            sampleStorage = (mSampleCount % STORAGE_SAMPLE_COUNT == 0);
+        }
+        // These may block, so do not hold the lock.
+        long fileBytes = (path != null) ? mSource.getFileSize(path) : 0;
+        long available = sampleStorage ? mSource.getAvailableSpace() : 0;
+        int dropped = (mFrameCounter != null) ? mFrameCounter.getDroppedFrameCount() : -1;
+
+        long stallMs = 0;
+        synchronized (this) {
+            // The file may have been moved to the next one meanwhile.
+            if (fileIndex != mFileIndex) return;
+            long now = mSource.uptimeMillis();
+            mFileBytes = Math.max(mFileBytes, fileBytes);
+            long bytes = mPreviousFilesBytes + mFileBytes;
+            int i = mSampleCount % mSampleTimes.length;
+            int last = (mSampleCount + mSampleTimes.length - 1) % mSampleTimes.length;
+            if (mSampleCount > 0 && bytes > mSampleBytes[last]) {
+                mLastGrowthTime = now;
+                mStalled = false;
+            } else if (path != null && mStallTimeoutMs > 0) {
+                long ms = now - mLastGrowthTime;
+                mLongestStallMs = Math.max(mLongestStallMs, ms);
+                if (!mStalled && ms >= mStallTimeoutMs) {
+                    mStalled = true;
+                    mStallCount++;
+                    stallMs = ms;
+                }
+            }
+            mSampleTimes[i] = now;
+            mSampleBytes[i] = bytes;
+            mSampleCount++;
+            // Storage reports negative values when it is not available.
+            if (sampleStorage && available >= 0) {
+                mAvailableSpace = available;
+                mStorageSampleTime = now;
+            }
+            mDroppedFrames = dropped;
+        }
+        if (stallMs > 0) {
+            Log.w(TAG, "The file has not grown for " + stallMs + "ms");
+            final long ms = stallMs;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onWriteStalled(ms);
+                }
+            });
+        }
+    }
+
+    /** Returns the bytes written so far. */
+    public synchronized long getBytesWritten() {
+        return mPreviousFilesBytes + mFileBytes;
+    }
+
+    /**
+     * Returns the write rate in bytes per second over the last seconds, or
+     * -1 if there are not enough samples yet.
+     */
+    public synchronized long getCurrentRate() {
+        if (mSampleCount < 2) return -1;
+        int n = Math.min(mSampleCount, mSampleTimes.length);
+        int newest = (mSampleCount - 1) % mSampleTimes.length;
+        int oldest = (mSampleCount - n) % mSampleTimes.length;
+        long ms = mSampleTimes[newest] - mSampleTimes[oldest];
+        if (ms <= 0) return -1;
+        return (mSampleBytes[newest] - mSampleBytes[oldest]) * 1000 / ms;
+    }
+
+    /**
+     * Returns the write rate in bytes per second since the start, or -1 if
+     * there are not enough samples yet.
+     */
+    public synchronized long getAverageRate() {
+        if (mSampleCount < 2) return -1;
+        int newest = (mSampleCount - 1) % mSampleTimes.length;
+        long ms = mSampleTimes[newest] - mStartTime;
+        if (ms <= 0) return -1;
+        return mSampleBytes[newest] * 1000 / ms;
+    }
+
+    public long getExpectedRate() {
+        return mExpectedRate;
+    }
+
+    /**
+     * Returns the time in ms the recording can go on until the free space
+     * is down to the low storage threshold, at the rate written since the
+     * start, or -1 if it is not known.
+     */
+    public synchronized long getRemainingTime() {
+        if (mAvailableSpace < 0) return -1;
+        long rate = getAverageRate();
+        if (rate <= 0) rate = mExpectedRate;
+        if (rate <= 0) return -1;
+        long bytes = Math.max(0, mAvailableSpace - Storage.LOW_STORAGE_THRESHOLD);
+        long sinceSample = mSource.uptimeMillis() - mStorageSampleTime;
+        return Math.max(0, bytes * 1000 / rate - sinceSample);
+    }
+
+    public synchronized boolean isStalled() {
+        return mStalled;
+    }
+
+    public synchronized int getStallCount() {
+        return mStallCount;
+    }
+
+    public synchronized long getLongestStall() {
+        return mLongestStallMs;
+    }
+
+    // Returns -1 if the dropped frames are not known.
+    public synchronized int getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    /** Returns the metrics in a line of text, for logs and bug reports. */
+    public synchronized String dump() {
+        return "written=" + getBytesWritten()
+                + ", rate=" + getCurrentRate()
+                + ", average=" + getAverageRate()
+                + ", expected=" + mExpectedRate
+                + ", available=" + mAvailableSpace
+                + ", remaining=" + getRemainingTime() + "ms"
+                + ", stalls=" + mStallCount
+                + ", longest stall=" + mLongestStallMs + "ms"
+                + (mStalled ? " (stalled)" : "")
+                + ", dropped frames=" + mDroppedFrames;
+    }
+}
@@ -233,7 +233,7 @@ public class Storage {
         return generateDCIM() + "/Camera";
     }
 
-    private String generateFilepath(String title) {
+    public String generateFilepath(String title) {
         return generateDirectory() + '/' + title + ".jpg";
     }
 
@@ -61,7 +61,10 @@ public class Thumbnail {
             float scale = (float) targetWidth / width;
             int w = Math.round(scale * width);
             int h = Math.round(scale * height);
-            bitmap = Bitmap.createScaledBitmap(bitmap, w, h, true);
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, w, h, true);
+            // Do not hold on to the full frame until it is collected.
+            if (scaled != bitmap) bitmap.recycle();
+            bitmap = scaled;
         }
         return bitmap;
     }
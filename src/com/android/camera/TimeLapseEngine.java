@@ -0,0 +1,543 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.Size;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.camera.CameraManager.CameraProxy;
+import com.android.camera.PreviewFramePool.Frame;
+import com.android.gallery3d.common.ApiHelper;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records a time lapse video from the preview frames, without keeping a
+ * MediaRecorder running between the frames.
+ *
+ * <p>The frames are taken by a {@link TimeLapseSchedule}. Due times which
+ * pass while the encoder is busy are skipped rather than filled with
+ * repeated frames. The frames are scaled to the size of the video, encoded
+ * to H.264 and written to an MPEG-2 transport stream, which can be written
+ * a frame at a time without an index. The video module copies it into an
+ * MP4 file when the recording is saved. Every frame taken is one frame of
+ * the video, so the length of the video is known exactly while recording.
+ */
+@TargetApi(ApiHelper.VERSION_CODES.JELLY_BEAN)
+public class TimeLapseEngine implements PreviewFramePool.FrameListener {
+    private static final String TAG = "CAM_TimeLapseEngine";
+    private static final String MIME_TYPE = "video/avc";
+    private static final int I_FRAME_INTERVAL = 1;  // seconds
+    private static final long INPUT_TIMEOUT_US = 100000;
+    private static final long END_OF_STREAM_TIMEOUT_US = 100000;
+    private static final int END_OF_STREAM_TRIES = 20;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    public interface Listener {
+        // The recording stopped before stop(), because the file reached its
+        // size limit or because of an error. Called on the engine thread.
+        public void onRecordingStopped(boolean error);
+    }
+
+    // The encoder and its input color format, found once.
+    private static String sCodecName;
+    private static int sColorFormat;
+    private static boolean sCodecChecked;
+
+    private final int mIntervalMs;
+    private final int mFrameRate;
+    private final int mBitRate;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRotation;
+    private final PreviewFramePool mFramePool = new PreviewFramePool();
+
+    // The part of the preview frames which is encoded, and the size of the
+    // video after it is rotated.
+    private int mCropX;
+    private int mCropY;
+    private int mCropWidth;
+    private int mCropHeight;
+    private int mVideoWidth;
+    private int mVideoHeight;
+    // For each column and row of the video, the column or row of the crop
+    // and the weight in 1/256 of the next one. The chroma is not filtered.
+    private int[] mLumaX;
+    private int[] mLumaWeightX;
+    private int[] mLumaY;
+    private int[] mLumaWeightY;
+    private int[] mChromaX;
+    private int[] mChromaY;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private Listener mListener;
+    private long mMaxFileSize;
+
+    // Accessed on the engine thread.
+    private MediaCodec mCodec;
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private byte[] mInput;
+    private byte[] mOutput = new byte[0];
+    private MpegTsWriter mWriter;
+    private IOException mError;
+
+    // The schedule, guarded by this.
+    private boolean mRecording;
+    private boolean mEncoding;
+    private final TimeLapseSchedule mSchedule;
+    private int mFrameCount;
+
+    /**
+     * Returns true if there is an H.264 encoder which takes the frames in a
+     * YUV 4:2:0 format this engine can convert to.
+     */
+    public static synchronized boolean isSupported() {
+        if (Build.VERSION.SDK_INT < ApiHelper.VERSION_CODES.JELLY_BEAN) return false;
+        if (!sCodecChecked) {
+            sCodecChecked = true;
+            findCodec();
+        }
+        return sCodecName != null;
+    }
+
+    private static void findCodec() {
+        for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (!info.isEncoder() || !supportsType(info, MIME_TYPE)) continue;
+            CodecCapabilities caps = info.getCapabilitiesForType(MIME_TYPE);
+            for (int format : caps.colorFormats) {
+                if (format == CodecCapabilities.COLOR_FormatYUV420SemiPlanar
+                        || format == CodecCapabilities.COLOR_FormatYUV420Planar) {
+                    sCodecName = info.getName();
+                    sColorFormat = format;
+                    Log.v(TAG, "Use " + sCodecName + ", color format " + format);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static boolean supportsType(MediaCodecInfo info, String type) {
+        for (String t : info.getSupportedTypes()) {
+            if (t.equalsIgnoreCase(type)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Creates an engine which takes a frame every {@code intervalMs}, and
+     * plays them at {@code frameRate}. The video is {@code width} x
+     * {@code height} like the camcorder profile, and its frames are rotated
+     * clockwise by {@code rotation} degrees.
+     */
+    public TimeLapseEngine(int intervalMs, int frameRate, int bitRate, int width, int height,
+            int rotation) {
+        mIntervalMs = intervalMs;
+        mFrameRate = frameRate;
+        mBitRate = bitRate;
+        mWidth = width;
+        mHeight = height;
+        mRotation = rotation;
+        mSchedule = new TimeLapseSchedule(intervalMs);
+    }
+
+    /**
+     * Starts recording the preview of {@code camera} to {@code path}. The
+     * preview must be running in NV21.
+     */
+    public void start(CameraProxy camera, Parameters params, String path, long maxFileSize,
+            Listener listener) throws IOException {
+        if (mThread != null) throw new IllegalStateException("already started");
+        if (!isSupported()) throw new IOException("No encoder");
+        if (params.getPreviewFormat() != ImageFormat.NV21) {
+            throw new IOException("Preview format " + params.getPreviewFormat());
+        }
+        // The video has the size of the profile, like one from
+        // MediaRecorder, even if the preview is smaller. The middle of the
+        // preview with the aspect ratio of the video is scaled to it.
+        Size size = params.getPreviewSize();
+        if ((long) size.width * mHeight > (long) size.height * mWidth) {
+            mCropWidth = (int) ((long) size.height * mWidth / mHeight) & ~1;
+            mCropHeight = size.height & ~1;
+        } else {
+            mCropWidth = size.width & ~1;
+            mCropHeight = (int) ((long) size.width * mHeight / mWidth) & ~1;
+        }
+        mCropX = ((size.width - mCropWidth) / 2) & ~1;
+        mCropY = ((size.height - mCropHeight) / 2) & ~1;
+        mLumaX = new int[mWidth];
+        mLumaWeightX = new int[mWidth];
+        mLumaY = new int[mHeight];
+        mLumaWeightY = new int[mHeight];
+        createScaleTable(mCropWidth, mLumaX, mLumaWeightX);
+        createScaleTable(mCropHeight, mLumaY, mLumaWeightY);
+        mChromaX = new int[mWidth / 2];
+        mChromaY = new int[mHeight / 2];
+        createScaleTable(mCropWidth / 2, mChromaX, null);
+        createScaleTable(mCropHeight / 2, mChromaY, null);
+        boolean portrait = (mRotation % 180 != 0);
+        mVideoWidth = portrait ? mHeight : mWidth;
+        mVideoHeight = portrait ? mWidth : mHeight;
+        mInput = new byte[mWidth * mHeight * 3 / 2];
+
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mVideoWidth, mVideoHeight);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, sColorFormat);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+        try {
+            mCodec = MediaCodec.createByCodecName(sCodecName);
+            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mCodec.start();
+        } catch (RuntimeException e) {
+            if (mCodec != null) mCodec.release();
+            mCodec = null;
+            throw new IOException("Cannot start " + sCodecName + ": " + e);
+        }
+        mInputBuffers = mCodec.getInputBuffers();
+        mOutputBuffers = mCodec.getOutputBuffers();
+        try {
+            mWriter = new MpegTsWriter(new BufferedOutputStream(
+                    new FileOutputStream(path), OUTPUT_BUFFER_SIZE));
+        } catch (IOException e) {
+            mCodec.stop();
+            mCodec.release();
+            mCodec = null;
+            throw e;
+        }
+        mMaxFileSize = maxFileSize;
+        mListener = listener;
+        mError = null;
+
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        synchronized (this) {
+            mRecording = true;
+            mEncoding = false;
+            mSchedule.start(SystemClock.uptimeMillis());
+            mFrameCount = 0;
+        }
+        mFramePool.start(camera, params, this);
+        Log.v(TAG, "Start " + mVideoWidth + "x" + mVideoHeight + " from " + mCropWidth + "x"
+                + mCropHeight + " of the preview, a frame every " + mIntervalMs + "ms");
+    }
+
+    /**
+     * Stops taking frames and finishes the file. Throws if the file could
+     * not be written or has no frames.
+     */
+    public void stop() throws IOException {
+        if (mThread == null) return;
+        synchronized (this) {
+            mRecording = false;
+        }
+        mFramePool.stop();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                finish();
+                Looper.myLooper().quit();
+            }
+        });
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        synchronized (this) {
+            Log.v(TAG, "Stop after " + mFrameCount + " frames, skipped "
+                    + mSchedule.getSkippedCount() + ", average delay "
+                    + mSchedule.getAverageDelay() + "ms");
+            if (mError == null && mFrameCount == 0) mError = new IOException("No frames");
+        }
+        if (mError != null) throw mError;
+    }
+
+    public int getVideoWidth() {
+        return mVideoWidth;
+    }
+
+    public int getVideoHeight() {
+        return mVideoHeight;
+    }
+
+    public synchronized int getFrameCount() {
+        return mFrameCount;
+    }
+
+    // Returns the number of due frames which were not taken.
+    public synchronized int getSkippedCount() {
+        return mSchedule.getSkippedCount();
+    }
+
+    /** Returns the length in ms of the video recorded so far. */
+    public synchronized long getVideoLength() {
+        return mFrameCount * 1000L / mFrameRate;
+    }
+
+    // Returns the average time in ms between the due times and the frames
+    // which were taken for them.
+    public synchronized long getAverageDelay() {
+        return mSchedule.getAverageDelay();
+    }
+
+    @Override
+    public void onPreviewFrame(final Frame frame) {
+        synchronized (this) {
+            if (!mRecording || mEncoding || !mSchedule.take(frame.timestamp)) {
+                frame.release();
+                return;
+            }
+            mEncoding = true;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                encodeFrame(frame);
+            }
+        });
+    }
+
+    private void encodeFrame(Frame frame) {
+        // The frame may have been taken just before stop().
+        if (mCodec == null) {
+            frame.release();
+            return;
+        }
+        boolean stopped = false;
+        try {
+            int index = mCodec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+            if (index >= 0) {
+                convertFrame(frame.data, frame.width, frame.height);
+                frame.release();
+                frame = null;
+                ByteBuffer buffer = mInputBuffers[index];
+                buffer.clear();
+                buffer.put(mInput);
+                long timeUs;
+                synchronized (this) {
+                    timeUs = mFrameCount * 1000000L / mFrameRate;
+                    mFrameCount++;
+                }
+                mCodec.queueInputBuffer(index, 0, mInput.length, timeUs, 0);
+            } else {
+                Log.w(TAG, "Encoder is busy, skip a frame");
+                synchronized (this) {
+                    mSchedule.skip();
+                }
+            }
+            drain(false);
+            if (mWriter.getSize() >= mMaxFileSize) {
+                Log.v(TAG, "Reached the size limit " + mMaxFileSize);
+                stopped = true;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write the video", e);
+            mError = e;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Cannot encode the frame", e);
+            mError = new IOException("Encoder error: " + e);
+        } finally {
+            if (frame != null) frame.release();
+        }
+        synchronized (this) {
+            mEncoding = false;
+            if (!mRecording) return;
+            if (mError != null || stopped) mRecording = false;
+        }
+        if (mError != null || stopped) mListener.onRecordingStopped(mError != null);
+    }
+
+    // Maps each of the positions of the video to the crop of the preview,
+    // with the centers of the first and last pixels lined up. The weights
+    // are those of the next pixel in the crop, if they are wanted.
+    private static void createScaleTable(int cropSize, int[] index, int[] weight) {
+        int size = index.length;
+        for (int i = 0; i < size; i++) {
+            // The position in 1/256 of a pixel.
+            long position = ((2L * i + 1) * cropSize * 256) / (2L * size) - 128;
+            position = Math.max(0, Math.min(position, (cropSize - 1) * 256L));
+            if (weight != null) {
+                index[i] = (int) (position >> 8);
+                weight[i] = (int) (position & 255);
+            } else {
+                index[i] = (int) ((position + 128) >> 8);
+            }
+        }
+    }
+
+    // Scales the crop of the NV21 frame into mInput in the color format of
+    // the encoder, rotated clockwise by mRotation.
+    private void convertFrame(byte[] data, int width, int height) {
+        int w = mWidth;
+        int h = mHeight;
+        for (int y = 0; y < h; y++) {
+            int top = (mCropY + mLumaY[y]) * width + mCropX;
+            int bottom = (mLumaY[y] + 1 < mCropHeight) ? top + width : top;
+            int wy = mLumaWeightY[y];
+            for (int x = 0; x < w; x++) {
+                int x0 = mLumaX[x];
+                int x1 = (x0 + 1 < mCropWidth) ? x0 + 1 : x0;
+                int wx = mLumaWeightX[x];
+                int upper = (data[top + x0] & 0xff) * (256 - wx) + (data[top + x1] & 0xff) * wx;
+                int lower = (data[bottom + x0] & 0xff) * (256 - wx)
+                        + (data[bottom + x1] & 0xff) * wx;
+                mInput[rotate(x, y, w, h, mVideoWidth)] =
+                        (byte) ((upper * (256 - wy) + lower * wy + 32768) >> 16);
+            }
+        }
+        // The chroma is subsampled by 2 both ways, and NV21 has V before U.
+        int lumaSize = w * h;
+        int chromaStart = width * height;
+        boolean semiPlanar = (sColorFormat == CodecCapabilities.COLOR_FormatYUV420SemiPlanar);
+        for (int y = 0; y < h / 2; y++) {
+            int in = chromaStart + (mCropY / 2 + mChromaY[y]) * width + mCropX;
+            for (int x = 0; x < w / 2; x++) {
+                int out = rotate(x, y, w / 2, h / 2, mVideoWidth / 2);
+                byte v = data[in + 2 * mChromaX[x]];
+                byte u = data[in + 2 * mChromaX[x] + 1];
+                if (semiPlanar) {
+                    mInput[lumaSize + 2 * out] = u;
+                    mInput[lumaSize + 2 * out + 1] = v;
+                } else {
+                    mInput[lumaSize + out] = u;
+                    mInput[lumaSize + lumaSize / 4 + out] = v;
+                }
+            }
+        }
+    }
+
+    // Returns the index in the rotated plane of the pixel at (x, y) in a
+    // plane of w x h.
+    private int rotate(int x, int y, int w, int h, int outWidth) {
+        switch (mRotation) {
+            case 90: return x * outWidth + (h - 1 - y);
+            case 180: return (h - 1 - y) * outWidth + (w - 1 - x);
+            case 270: return (w - 1 - x) * outWidth + y;
+            default: return y * outWidth + x;
+        }
+    }
+
+    // Writes the encoded frames which are ready. At the end of the stream,
+    // waits for the encoder to give out every frame.
+    private void drain(boolean endOfStream) throws IOException {
+        int tries = 0;
+        while (true) {
+            int index = mCodec.dequeueOutputBuffer(mBufferInfo,
+                    endOfStream ? END_OF_STREAM_TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) return;
+                if (++tries >= END_OF_STREAM_TRIES) {
+                    Log.w(TAG, "Encoder did not end the stream");
+                    return;
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mOutputBuffers = mCodec.getOutputBuffers();
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // Some encoders give the parameter sets only in the format.
+                MediaFormat format = mCodec.getOutputFormat();
+                if (format.containsKey("csd-0") && format.containsKey("csd-1")) {
+                    mWriter.setConfig(concat(format.getByteBuffer("csd-0"),
+                            format.getByteBuffer("csd-1")));
+                }
+            } else if (index >= 0) {
+                ByteBuffer buffer = mOutputBuffers[index];
+                int size = mBufferInfo.size;
+                if (mOutput.length < size) mOutput = new byte[size];
+                buffer.position(mBufferInfo.offset);
+                buffer.get(mOutput, 0, size);
+                mCodec.releaseOutputBuffer(index, false);
+                int flags = mBufferInfo.flags;
+                if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    byte[] config = new byte[size];
+                    System.arraycopy(mOutput, 0, config, 0, size);
+                    mWriter.setConfig(config);
+                } else if (size > 0) {
+                    mWriter.writeAccessUnit(mOutput, size, mBufferInfo.presentationTimeUs,
+                            (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+                }
+                if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) return;
+            }
+        }
+    }
+
+    private static byte[] concat(ByteBuffer a, ByteBuffer b) {
+        byte[] result = new byte[a.remaining() + b.remaining()];
+        a.get(result, 0, a.remaining());
+        b.get(result, result.length - b.remaining(), b.remaining());
+        return result;
+    }
+
+    // Ends the stream and closes the file. Called on the engine thread.
+    private void finish() {
+        try {
+            if (mError == null) {
+                int index = mCodec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+                if (index >= 0) {
+                    mCodec.queueInputBuffer(index, 0, 0, 0,
+                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    drain(true);
+                } else {
+                    // The frames still in the encoder are lost.
+                    Log.w(TAG, "Cannot end the stream");
+                    drain(false);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write the video", e);
+            mError = e;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Cannot end the stream", e);
+            mError = new IOException("Encoder error: " + e);
+        }
+        try {
+            mCodec.stop();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Cannot stop the encoder", e);
+        }
+        mCodec.release();
+        mCodec = null;
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            if (mError == null) mError = e;
+        }
+        mWriter = null;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * Decides which preview frames a time lapse takes.
+ *
+ * <p>Frame n is due at n intervals after the start, so the delay of one
+ * capture does not move the later ones. The first frame at or after the due
+ * time is taken. Due times which pass without a frame being taken, for
+ * example while the encoder is busy, are skipped. The schedule is not
+ * thread safe.
+ */
+public class TimeLapseSchedule {
+    private final int mIntervalMs;
+    private long mStartTime;
+    private long mNextFrame;
+    private int mTakenCount;
+    private int mSkippedCount;
+    private long mTotalDelayMs;
+
+    public TimeLapseSchedule(int intervalMs) {
+        if (intervalMs <= 0) throw new IllegalArgumentException("interval " + intervalMs);
+        mIntervalMs = intervalMs;
+    }
+
+    /** Starts the schedule with the first frame due at {@code startTime}. */
+    public void start(long startTime) {
+        mStartTime = startTime;
+        mNextFrame = 0;
+        mTakenCount = 0;
+        mSkippedCount = 0;
+        mTotalDelayMs = 0;
+    }
+
+    /**
+     * Returns true if the frame at {@code timestamp} is taken. It is taken
+     * for the latest due time it has passed, and the earlier ones are
+     * skipped.
+     */
+    public boolean take(long timestamp) {
+        if (timestamp < getDueTime()) return false;
+        long latest = (timestamp - mStartTime) / mIntervalMs;
+        mSkippedCount += (int) (latest - mNextFrame);
+        mTotalDelayMs += timestamp - (mStartTime + latest * mIntervalMs);
+        mNextFrame = latest + 1;
+        mTakenCount++;
+        return true;
+    }
+
+    /** Counts the due time of a frame which was taken, but not used. */
+    public void skip() {
+        mSkippedCount++;
+    }
+
+    // Returns the time the next frame is due.
+    public long getDueTime() {
+        return mStartTime + mNextFrame * mIntervalMs;
+    }
+
+    public int getTakenCount() {
+        return mTakenCount;
+    }
+
+    // Returns the number of due times for which no frame was used.
+    public int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    // Returns the average time in ms between the due times and the frames
+    // which were taken for them.
+    public long getAverageDelay() {
+        return (mTakenCount == 0) ? 0 : mTotalDelayMs / mTakenCount;
+    }
+}
@@ -168,6 +168,9 @@ public class Util {
     // Samsung ZSL mode
     private static boolean sEnableZSL;
 
+    // Software ZSL from recent preview frames
+    private static boolean sEnableSoftwareZSL;
+
     // Workaround for QC cameras with broken face detection on front camera
     private static boolean sNoFaceDetectOnFrontCamera;
 
@@ -216,6 +219,8 @@ public class Util {
         sProfileVideoSize = context.getResources().getBoolean(R.bool.useProfileVideoSize);
         sEarlyVideoSize = context.getResources().getBoolean(R.bool.needsEarlyVideoSize);
         sEnableZSL = context.getResources().getBoolean(R.bool.enableZSL);
+        sEnableSoftwareZSL = !sEnableZSL
+                && context.getResources().getBoolean(R.bool.enableSoftwareZSL);
         sNoFaceDetectOnFrontCamera = context.getResources().getBoolean(
                 R.bool.noFaceDetectOnFrontCamera);
 
@@ -279,6 +284,10 @@ public class Util {
         return sEnableZSL;
     }
 
+    public static boolean enableSoftwareZSL() {
+        return sEnableSoftwareZSL;
+    }
+
     public static boolean useSoftwareHDR() {
         return sEnableSoftwareHDR;
     }
@@ -104,6 +104,8 @@ public class VideoController extends PieController
                 CameraSettings.KEY_VIDEO_EFFECT,
                 CameraSettings.KEY_VIDEO_TIME_LAPSE_FRAME_INTERVAL,
                 CameraSettings.KEY_VIDEO_QUALITY,
+                CameraSettings.KEY_VIDEO_SEGMENT,
+                CameraSettings.KEY_VIDEO_PREROLL,
                 CameraSettings.KEY_RECORD_LOCATION,
                 CameraSettings.KEY_POWER_SHUTTER,
                 CameraSettings.KEY_VIDEOCAMERA_COLOR_EFFECT,
@@ -43,6 +43,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Video;
@@ -80,6 +81,7 @@ import com.android.gallery3d.common.ApiHelper;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
@@ -108,6 +110,21 @@ public class VideoModule implements CameraModule,
 
     private static final int SCREEN_DELAY = 2 * 60 * 1000;
 
+    // The size at which a segmented recording goes on to the next file.
+    // Files of 4GB cannot be written to FAT file systems.
+    private static final long MAX_SEGMENT_SIZE = 4000L * 1024 * 1024;
+
+    // MediaRecorder.OutputFormat.MPEG_2_TS, which is hidden.
+    private static final int OUTPUT_FORMAT_MPEG_2_TS = 8;
+
+    // Time lapse intervals from which the frames are taken by the time lapse
+    // engine rather than the recorder.
+    private static final int TIME_LAPSE_ENGINE_MIN_INTERVAL_MS = 10000;
+
+    // The time the video file may not grow before the storage is reported
+    // to be too slow.
+    private static final int WRITE_STALL_TIMEOUT_MS = 3000;
+
     private static final long SHUTTER_BUTTON_TIMEOUT = 500L; // 500ms
 
     /**
@@ -127,6 +144,9 @@ public class VideoModule implements CameraModule,
     private Parameters mParameters;
 
     private boolean mSnapshotInProgress = false;
+    private SnapshotSaver mSnapshotSaver;
+    // The snapshot being taken, whose picture has not arrived yet.
+    private SnapshotRequest mPendingSnapshot;
 
     private static final String EFFECT_BG_FROM_GALLERY = "gallery";
 
@@ -167,12 +187,33 @@ public class VideoModule implements CameraModule,
     private String mPrefVideoEffectDefault;
     private boolean mResetEffect = true;
 
+    // The software stabilizer of the stabilizer effect, which registers
+    // preview frames while the effect preview runs.
+    private PreviewAnalysisPipeline mStabilizerPipeline;
+    private VideoStabilizer mVideoStabilizer;
+    private final VideoStabilizer.Listener mStabilizerListener =
+            new VideoStabilizer.Listener() {
+        @Override
+        public void onStabilizedRegion(float[] corners) {
+            if (mEffectsRecorder != null) mEffectsRecorder.setStabilizedRegion(corners);
+        }
+
+        @Override
+        public void onStabilizerTooSlow(float averageCostMs, float budgetMs) {
+            stopVideoStabilizer();
+            new RotateTextToast(mActivity, R.string.video_stabilizer_too_slow,
+                    mOrientation).show();
+        }
+    };
+
     private boolean mSwitchingCamera;
     private boolean mMediaRecorderRecording = false;
     private long mRecordingStartTime;
     private boolean mRecordingTimeCountsDown = false;
     private RotateLayout mRecordingTimeRect;
     private long mOnResumeTime;
+    // This latency time is for the CameraLatency test.
+    public long mEffectSwitchTime = -1;
     // The video file that the hardware camera is about to record into
     // (or is recording into.)
     private String mVideoFilename;
@@ -189,16 +230,52 @@ public class VideoModule implements CameraModule,
     // The video duration limit. 0 menas no limit.
     private int mMaxVideoDurationInMs;
 
+    // Segmented recording. If the segment duration is larger than 0, a
+    // recording is split into files of that length, and a recording which
+    // reaches the size limit of a file continues in the next one.
+    private int mSegmentDurationMs;
+    private long mSegmentStartTime;
+    // True if the recorder stops at the size limit of a file, rather than
+    // because the storage is running out.
+    private boolean mSegmentSizeLimited;
+    // The segments of the recording which are not yet in the media store.
+    private ArrayList<VideoSegment> mFinishedSegments = new ArrayList<VideoSegment>();
+
+    // Pre-roll. If the pre-roll is larger than 0 and the user has armed it
+    // with the label, a recorder streams into the pre-roll buffer while the
+    // preview runs, and a recording is copied from the buffer starting that
+    // long before it is started. It is disarmed whenever the module resumes.
+    private int mPrerollMs;
+    private boolean mPrerollArmed;
+    private TextView mPrerollLabel;
+    private MediaRecorder mPrerollRecorder;
+    private PrerollBuffer mPrerollBuffer;
+    private boolean mRecordingFromPreroll;
+    // The rotation of a recording from the pre-roll, whose stream is copied
+    // into an MP4 file with this rotation when it is saved, or -1.
+    private int mRemuxRotation = -1;
+
     // Time Lapse parameters.
     private boolean mCaptureTimeLapse = false;
     // Default 0. If it is larger than 0, the camcorder is in time lapse mode.
     private int mTimeBetweenTimeLapseFrameCaptureMs = 0;
     private View mTimeLapseLabel;
+    // Records a time lapse with a long interval from the preview frames.
+    // Not null while such a recording is running.
+    private TimeLapseEngine mTimeLapseEngine;
+
+    // Watches the file and the free space of the running or the last
+    // recording.
+    private RecordingMonitor mRecordingMonitor;
+    private boolean mWriteStallShown;
 
     private int mDesiredPreviewWidth;
     private int mDesiredPreviewHeight;
 
     boolean mPreviewing = false; // True if preview is started.
+    // True if the preview handed off by the previous module is running with
+    // our parameters, so startPreview() does not need to restart it.
+    private boolean mPreviewAdopted = false;
     // The display rotation in degrees. This is only valid when mPreviewing is
     // true.
     private int mDisplayRotation;
@@ -209,6 +286,9 @@ public class VideoModule implements CameraModule,
     private LocationManager mLocationManager;
 
     private VideoNamer mVideoNamer;
+    private VideoSaver mVideoSaver;
+    // The video whose thumbnail is to be shown in the review.
+    private VideoSegment mPendingReviewThumbnail;
 
     private RenderOverlay mRenderOverlay;
     private PieRenderer mPieRenderer;
@@ -776,6 +856,28 @@ public class VideoModule implements CameraModule,
             mTimeBetweenTimeLapseFrameCaptureMs = Integer.parseInt(frameIntervalStr);
             mCaptureTimeLapse = (mTimeBetweenTimeLapseFrameCaptureMs != 0);
         }
+        // Read the segment duration. The effects recorder and the capture
+        // intents always record one file, and so does a recording which has
+        // to switch the preview to a SurfaceView.
+        mSegmentDurationMs = 0;
+        if (!mIsVideoCaptureIntent && mMaxVideoDurationInMs == 0
+                && mEffectType == EffectsRecorder.EFFECT_NONE
+                && ApiHelper.HAS_SURFACE_TEXTURE_RECORDING) {
+            String segmentStr = mPreferences.getString(CameraSettings.KEY_VIDEO_SEGMENT,
+                    mActivity.getString(R.string.pref_video_segment_default));
+            mSegmentDurationMs = Integer.parseInt(segmentStr) * 60 * 1000;
+        }
+        // Read the pre-roll. It needs a recorder which runs at the normal
+        // rate, and does not split the recording.
+        mPrerollMs = 0;
+        if (!mIsVideoCaptureIntent && mMaxVideoDurationInMs == 0
+                && mEffectType == EffectsRecorder.EFFECT_NONE
+                && ApiHelper.HAS_SURFACE_TEXTURE_RECORDING
+                && !mCaptureTimeLapse && mSegmentDurationMs == 0) {
+            String prerollStr = mPreferences.getString(CameraSettings.KEY_VIDEO_PREROLL,
+                    mActivity.getString(R.string.pref_video_preroll_default));
+            mPrerollMs = Integer.parseInt(prerollStr) * 1000;
+        }
         // TODO: This should be checked instead directly +1000.
         if (mCaptureTimeLapse) quality += 1000;
         mProfile = CamcorderProfile.get(mCameraId, quality);
@@ -843,6 +945,7 @@ public class VideoModule implements CameraModule,
     @Override
     public void onResumeBeforeSuper() {
         mPaused = false;
+        mPrerollArmed = false;
     }
 
     @Override
@@ -853,6 +956,7 @@ public class VideoModule implements CameraModule,
         mZoomValue = 0;
 
         showVideoSnapshotUI(false);
+        mSnapshotSaver = new SnapshotSaver();
 
 
         if (!mPreviewing) {
@@ -892,6 +996,7 @@ public class VideoModule implements CameraModule,
         PopupManager.getInstance(mActivity).notifyShowPopup(null);
 
         mVideoNamer = new VideoNamer();
+        mVideoSaver = new VideoSaver();
     }
 
     private void setDisplayOrientation() {
@@ -924,7 +1029,11 @@ public class VideoModule implements CameraModule,
         setCameraParameters();
 
         try {
-            if (!effectsActive()) {
+            if (mPreviewAdopted) {
+                // The handed off preview is already running with our parameters.
+                mPreviewAdopted = false;
+                Log.v(TAG, "adopted handed off preview");
+            } else if (!effectsActive()) {
                 if (ApiHelper.HAS_SURFACE_TEXTURE) {
                     SurfaceTexture sT = null;
 
@@ -948,9 +1057,12 @@ public class VideoModule implements CameraModule,
         }
 
         mPreviewing = true;
+        startPreroll();
+        updatePrerollLabel();
     }
 
     private void stopPreview() {
+        stopPreroll();
         mActivity.mCameraDevice.stopPreview();
         mPreviewing = false;
     }
@@ -958,6 +1070,7 @@ public class VideoModule implements CameraModule,
     // Closing the effects out. Will shut down the effects graph.
     private void closeEffects() {
         Log.v(TAG, "Closing effects");
+        stopVideoStabilizer();
         mEffectType = EffectsRecorder.EFFECT_NONE;
         if (mEffectsRecorder == null) {
             Log.d(TAG, "Effects are already closed. Nothing to do");
@@ -992,6 +1105,9 @@ public class VideoModule implements CameraModule,
             return;
         }
 
+        // The stabilizer receives preview frames from the camera.
+        stopVideoStabilizer();
+        stopPreroll();
         if (mEffectsRecorder != null) {
             // Disconnect the camera from effects so that camera is ready to
             // be released to the outside world.
@@ -1030,6 +1146,8 @@ public class VideoModule implements CameraModule,
             closeCamera();
             if (!effectsActive()) releaseMediaRecorder();
         }
+        // The camera is closed, so the pre-roll has stopped.
+        mPrerollBuffer = null;
         if (effectsActive()) {
             // If the effects are active, make sure we tell the graph that the
             // surfacetexture is not valid anymore. Disconnect the graph from
@@ -1044,11 +1162,25 @@ public class VideoModule implements CameraModule,
             // call to not call closeCamera if the effects are active, because
             // that will close down the effects are well, thus making this if
             // condition invalid.
+            clearVideoSaver();
             closeVideoFileDescriptor();
             clearVideoNamer();
         }
 
-        releasePreviewResources();
+        if (mSnapshotSaver != null) {
+            // The camera is closed, so the picture of a pending snapshot
+            // will not come.
+            if (mPendingSnapshot != null) {
+                mSnapshotSaver.cancel(mPendingSnapshot);
+                mPendingSnapshot = null;
+            }
+            mSnapshotSaver.finish();
+            mSnapshotSaver = null;
+        }
+
+        // Leave the surface texture alone if the next module adopts the
+        // running preview.
+        if (!CameraHolder.instance().isKeepingPreview()) releasePreviewResources();
 
         if (mReceiver != null) {
             mActivity.unregisterReceiver(mReceiver);
@@ -1252,7 +1384,11 @@ public class VideoModule implements CameraModule,
         }
         mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
         mMediaRecorder.setProfile(mProfile);
-        mMediaRecorder.setMaxDuration(mMaxVideoDurationInMs);
+        if (mSegmentDurationMs > 0) {
+            mMediaRecorder.setMaxDuration(mSegmentDurationMs);
+        } else {
+            mMediaRecorder.setMaxDuration(mMaxVideoDurationInMs);
+        }
         if (mCaptureTimeLapse) {
             double fps = 1000 / (double) mTimeBetweenTimeLapseFrameCaptureMs;
             setCaptureRate(mMediaRecorder, fps);
@@ -1275,6 +1411,11 @@ public class VideoModule implements CameraModule,
         if (requestedSizeLimit > 0 && requestedSizeLimit < maxFileSize) {
             maxFileSize = requestedSizeLimit;
         }
+        mSegmentSizeLimited = false;
+        if (mSegmentDurationMs > 0 && maxFileSize > MAX_SEGMENT_SIZE) {
+            maxFileSize = MAX_SEGMENT_SIZE;
+            mSegmentSizeLimited = true;
+        }
 
         try {
             mMediaRecorder.setMaxFileSize(maxFileSize);
@@ -1285,6 +1426,23 @@ public class VideoModule implements CameraModule,
             // on the size restriction.
         }
 
+        mMediaRecorder.setOrientationHint(getRecordingRotation());
+
+        try {
+            mMediaRecorder.prepare();
+        } catch (IOException e) {
+            Log.e(TAG, "prepare failed for " + mVideoFilename, e);
+            releaseMediaRecorder();
+            throw new RuntimeException(e);
+        }
+
+        mMediaRecorder.setOnErrorListener(this);
+        mMediaRecorder.setOnInfoListener(this);
+    }
+
+    // Returns the clockwise rotation in degrees of the video which is
+    // recorded in the current orientation.
+    private int getRecordingRotation() {
         // See android.hardware.Camera.Parameters.setRotation for
         // documentation.
         // Note that mOrientation here is the device orientation, which is the opposite of
@@ -1299,18 +1457,7 @@ public class VideoModule implements CameraModule,
                 rotation = (info.orientation + mOrientation) % 360;
             }
         }
-        mMediaRecorder.setOrientationHint(rotation);
-
-        try {
-            mMediaRecorder.prepare();
-        } catch (IOException e) {
-            Log.e(TAG, "prepare failed for " + mVideoFilename, e);
-            releaseMediaRecorder();
-            throw new RuntimeException(e);
-        }
-
-        mMediaRecorder.setOnErrorListener(this);
-        mMediaRecorder.setOnInfoListener(this);
+        return rotation;
     }
 
     @TargetApi(ApiHelper.VERSION_CODES.HONEYCOMB)
@@ -1438,6 +1585,7 @@ public class VideoModule implements CameraModule,
 
     private void releaseEffectsRecorder() {
         Log.v(TAG, "Releasing effects recorder.");
+        stopVideoStabilizer();
         if (mEffectsRecorder != null) {
             cleanupEmptyFile();
             mEffectsRecorder.release();
@@ -1477,50 +1625,72 @@ public class VideoModule implements CameraModule,
     private boolean addVideoToMediaStore() {
         boolean fail = false;
         if (mVideoFileDescriptor == null) {
-            mCurrentVideoValues.put(Video.Media.SIZE,
-                    new File(mCurrentVideoFilename).length());
-            long duration = SystemClock.uptimeMillis() - mRecordingStartTime;
-            if (duration > 0) {
-                if (mCaptureTimeLapse) {
-                    duration = getTimeLapseVideoLength(duration);
-                }
-                mCurrentVideoValues.put(Video.Media.DURATION, duration);
-            } else {
-                Log.w(TAG, "Video duration <= 0 : " + duration);
+            if (mCurrentVideoFilename != null) {
+                finishSegment(mCurrentVideoFilename,
+                        SystemClock.uptimeMillis() - mSegmentStartTime);
             }
-            try {
-                mCurrentVideoUri = mVideoNamer.getUri();
-                mActivity.addSecureAlbumItemIfNeeded(true, mCurrentVideoUri);
+            fail = addSegmentsToMediaStore();
+        }
+        mCurrentVideoValues = null;
+        return fail;
+    }
 
-                // Rename the video file to the final name. This avoids other
-                // apps reading incomplete data.  We need to do it after the
-                // above mVideoNamer.getUri() call, so we are certain that the
-                // previous insert to MediaProvider is completed.
-                String finalName = mCurrentVideoValues.getAsString(
-                        Video.Media.DATA);
-                if (new File(mCurrentVideoFilename).renameTo(new File(finalName))) {
-                    mCurrentVideoFilename = finalName;
-                }
+    // Queues the file which has just been recorded to be added to the media
+    // store. This claims the uri which the namer has inserted for the file,
+    // so that the namer is free to prepare the uri of the next file.
+    private void finishSegment(String filename, long duration) {
+        VideoSegment segment = new VideoSegment();
+        segment.filename = filename;
+        segment.values = mCurrentVideoValues;
+        if (mCaptureTimeLapse && duration > 0) {
+            duration = getTimeLapseVideoLength(duration);
+        }
+        segment.duration = duration;
+        segment.uri = mVideoNamer.getUri();
+        segment.remuxRotation = mRemuxRotation;
+        mFinishedSegments.add(segment);
+        mCurrentVideoValues = null;
+    }
 
-                mContentResolver.update(mCurrentVideoUri, mCurrentVideoValues
-                        , null, null);
-                mActivity.sendBroadcast(new Intent(Util.ACTION_NEW_VIDEO,
-                        mCurrentVideoUri));
-            } catch (Exception e) {
-                // We failed to insert into the database. This can happen if
-                // the SD card is unmounted.
-                Log.e(TAG, "failed to add video to media store", e);
-                mCurrentVideoUri = null;
-                mCurrentVideoFilename = null;
-                fail = true;
-            } finally {
-                Log.v(TAG, "Current video URI: " + mCurrentVideoUri);
+    // Hands the finished segments to the saver, which adds them to the
+    // media store in the order in which they were recorded. The last one
+    // becomes the current video. A capture intent waits for them to be
+    // saved, so that it returns a complete video; otherwise the next
+    // recording can start while they are saved. Returns true if saving any
+    // of them failed.
+    private boolean addSegmentsToMediaStore() {
+        for (VideoSegment segment : mFinishedSegments) {
+            mVideoSaver.save(segment);
+            mCurrentVideoUri = segment.uri;
+        }
+        boolean fail = false;
+        if (mIsVideoCaptureIntent) {
+            mVideoSaver.waitDone();
+            for (VideoSegment segment : mFinishedSegments) {
+                mCurrentVideoFilename = segment.filename;
+                if (!segment.saved) {
+                    mCurrentVideoUri = null;
+                    mCurrentVideoFilename = null;
+                    fail = true;
+                }
             }
         }
-        mCurrentVideoValues = null;
+        mFinishedSegments.clear();
         return fail;
     }
 
+    // Runs in main thread, in the order in which the saver finished.
+    private void onVideoSaved(VideoSegment segment) {
+        if (segment.saved) mActivity.addSecureAlbumItemIfNeeded(true, segment.uri);
+        if (segment == mPendingReviewThumbnail) {
+            mPendingReviewThumbnail = null;
+            if (segment.thumbnail != null) {
+                mReviewImage.setImageBitmap(segment.thumbnail);
+                mReviewImage.setVisibility(View.VISIBLE);
+            }
+        }
+    }
+
     private void deleteCurrentVideo() {
         // Remove the video and the uri if the uri is not passed in by intent.
         if (mCurrentVideoFilename != null) {
@@ -1554,6 +1724,13 @@ public class VideoModule implements CameraModule,
             CameraSettings.removePreferenceFromScreen(screen,
                     CameraSettings.KEY_VIDEO_QUALITY);
         }
+
+        if (mIsVideoCaptureIntent) {
+            CameraSettings.removePreferenceFromScreen(screen,
+                    CameraSettings.KEY_VIDEO_SEGMENT);
+            CameraSettings.removePreferenceFromScreen(screen,
+                    CameraSettings.KEY_VIDEO_PREROLL);
+        }
         return screen;
     }
 
@@ -1572,9 +1749,19 @@ public class VideoModule implements CameraModule,
     @Override
     public void onInfo(MediaRecorder mr, int what, int extra) {
         if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED) {
-            if (mMediaRecorderRecording) onStopVideoRecording();
+            if (!mMediaRecorderRecording) return;
+            if (mSegmentDurationMs > 0) {
+                startNextSegment();
+            } else {
+                onStopVideoRecording();
+            }
         } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
-            if (mMediaRecorderRecording) onStopVideoRecording();
+            if (!mMediaRecorderRecording) return;
+            if (mSegmentSizeLimited) {
+                startNextSegment();
+                return;
+            }
+            onStopVideoRecording();
 
             // Show the toast.
             Toast.makeText(mActivity, R.string.video_reach_size_limit,
@@ -1582,6 +1769,316 @@ public class VideoModule implements CameraModule,
         }
     }
 
+    // Moves a segmented recording whose file has reached its limit on to
+    // the next file. The camera can only be given to one recorder at a
+    // time, so the next recorder cannot be prepared before this one stops.
+    // Everything else is kept out of the gap between the files: the uri of
+    // the next file is inserted by the namer while it records, and the
+    // finished file is added to the media store once the next has started.
+    private void startNextSegment() {
+        long stopTime = SystemClock.uptimeMillis();
+        String filename = mVideoFilename;
+        mMediaRecorder.setOnErrorListener(null);
+        mMediaRecorder.setOnInfoListener(null);
+        boolean stopped = false;
+        try {
+            mMediaRecorder.stop();
+            stopped = true;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "stop fail", e);
+            if (filename != null) deleteVideoFile(filename);
+        }
+        // The uri of a file which failed is deleted by the namer when it
+        // prepares the next one.
+        if (stopped) finishSegment(filename, stopTime - mSegmentStartTime);
+        releaseMediaRecorder();
+        mActivity.mCameraDevice.lock();
+
+        mActivity.updateStorageSpaceAndHint();
+        if (mActivity.getStorageSpace() > Storage.LOW_STORAGE_THRESHOLD) {
+            try {
+                initializeRecorder();
+                if (mMediaRecorder != null) mMediaRecorder.start();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Could not start the next segment. ", e);
+                releaseMediaRecorder();
+                mActivity.mCameraDevice.lock();
+            }
+        }
+        if (mMediaRecorder == null) {
+            // End the recording with the segments recorded so far, which
+            // stopVideoRecording() adds to the media store.
+            discardNextSegment();
+            onStopVideoRecording();
+            return;
+        }
+        mSegmentStartTime = SystemClock.uptimeMillis();
+        mRecordingMonitor.setFile(mVideoFilename);
+        Log.v(TAG, "Switched segments in " + (mSegmentStartTime - stopTime) + "ms");
+        if (addSegmentsToMediaStore()) {
+            Log.w(TAG, "Failed to add a segment to the media store");
+        }
+    }
+
+    // Drops the file of a segment which failed to start, and the uri which
+    // the namer has inserted for it, so that stopping the recording does
+    // not add it to the media store.
+    private void discardNextSegment() {
+        if (mVideoFilename != null) {
+            deleteVideoFile(mVideoFilename);
+            mVideoFilename = null;
+        }
+        // The values are cleared when a segment is finished, so they are
+        // only left if a file was named after the last finished one.
+        if (mCurrentVideoValues != null) {
+            Uri uri = mVideoNamer.getUri();
+            if (uri != null) mContentResolver.delete(uri, null, null);
+            mCurrentVideoValues = null;
+        }
+    }
+
+    // Starts recording into the pre-roll buffer, if it is armed. The
+    // recorder keeps the camera and the microphone until stopPreroll().
+    private void startPreroll() {
+        if (mPrerollMs == 0 || !mPrerollArmed || mPrerollRecorder != null || effectsActive()
+                || mActivity.mCameraDevice == null) {
+            return;
+        }
+        // The transport stream writer only takes H.264 and AAC. The stream
+        // has no orientation hint, so the saver remuxes the recording.
+        if (mProfile.videoCodec != MediaRecorder.VideoEncoder.H264
+                || mProfile.audioCodec != MediaRecorder.AudioEncoder.AAC) {
+            Log.w(TAG, "The profile cannot be streamed for the pre-roll");
+            return;
+        }
+        if (mPrerollBuffer == null) {
+            mPrerollBuffer = new PrerollBuffer(1024 * mActivity.getResources()
+                    .getInteger(R.integer.prerollBufferSizeKb));
+        }
+        ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            Log.e(TAG, "Fail to create the pre-roll pipe", e);
+            return;
+        }
+
+        MediaRecorder recorder = new MediaRecorder();
+        mActivity.mCameraDevice.unlock();
+        try {
+            recorder.setCamera(mActivity.mCameraDevice.getCamera());
+            recorder.setAudioSource(MediaRecorder.AudioSource.CAMCORDER);
+            recorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
+            recorder.setOutputFormat(OUTPUT_FORMAT_MPEG_2_TS);
+            recorder.setVideoFrameRate(mProfile.videoFrameRate);
+            recorder.setVideoSize(mProfile.videoFrameWidth, mProfile.videoFrameHeight);
+            recorder.setVideoEncodingBitRate(mProfile.videoBitRate);
+            recorder.setVideoEncoder(mProfile.videoCodec);
+            recorder.setAudioEncodingBitRate(mProfile.audioBitRate);
+            recorder.setAudioChannels(mProfile.audioChannels);
+            recorder.setAudioSamplingRate(mProfile.audioSampleRate);
+            recorder.setAudioEncoder(mProfile.audioCodec);
+            recorder.setOutputFile(pipe[1].getFileDescriptor());
+            recorder.prepare();
+            recorder.setOnErrorListener(mPrerollErrorListener);
+            recorder.start();
+        } catch (Exception e) {
+            Log.e(TAG, "Could not start the pre-roll", e);
+            recorder.reset();
+            recorder.release();
+            closeQuietly(pipe[0]);
+            closeQuietly(pipe[1]);
+            mActivity.mCameraDevice.lock();
+            return;
+        }
+        // The recorder has its own copy of the write end. The stream ends
+        // when the recorder is released.
+        closeQuietly(pipe[1]);
+        mPrerollBuffer.start(pipe[0], mPrerollMs);
+        mPrerollRecorder = recorder;
+        Log.v(TAG, "Started the pre-roll, buffer size " + mPrerollBuffer.getCapacity());
+    }
+
+    private void stopPreroll() {
+        if (mPrerollRecorder == null) {
+            updatePrerollLabel();
+            return;
+        }
+        if (mRecordingFromPreroll) stopPrerollRecording();
+        mPrerollRecorder.setOnErrorListener(null);
+        try {
+            mPrerollRecorder.stop();
+        } catch (RuntimeException e) {
+            // Nothing has been recorded yet.
+        }
+        mPrerollRecorder.reset();
+        mPrerollRecorder.release();
+        mPrerollRecorder = null;
+        mPrerollBuffer.stop();
+        if (mActivity.mCameraDevice != null) mActivity.mCameraDevice.lock();
+        updatePrerollLabel();
+    }
+
+    // Arms the pre-roll and starts it, or stops it and disarms it.
+    private void onPrerollLabelClicked() {
+        if (mPaused || mMediaRecorderRecording || !mPreviewing) return;
+        if (mPrerollRecorder == null) {
+            mPrerollArmed = true;
+            startPreroll();
+            // It stays disarmed if it cannot be started.
+            mPrerollArmed = (mPrerollRecorder != null);
+            updatePrerollLabel();
+        } else {
+            mPrerollArmed = false;
+            stopPreroll();
+        }
+    }
+
+    // The label is shown if the pre-roll is turned on, and not during a
+    // recording, which has its own indicator. It shows the recording
+    // indicator while the pre-roll records.
+    private void updatePrerollLabel() {
+        if (mPrerollLabel == null) return;
+        if (mPrerollMs == 0 || mMediaRecorderRecording) {
+            mPrerollLabel.setVisibility(View.GONE);
+            return;
+        }
+        boolean running = (mPrerollRecorder != null);
+        mPrerollLabel.setText(running ? R.string.preroll_recording : R.string.preroll_arm);
+        mPrerollLabel.setCompoundDrawablesWithIntrinsicBounds(
+                running ? R.drawable.ic_recording_indicator : 0, 0, 0, 0);
+        mPrerollLabel.setVisibility(View.VISIBLE);
+    }
+
+    // Starts a recording from the pre-roll buffer. Returns the length of
+    // the pre-roll, or -1 if the file cannot be written.
+    private long startPrerollRecording() {
+        long maxFileSize = mActivity.getStorageSpace() - Storage.LOW_STORAGE_THRESHOLD;
+        generateVideoFilename(OUTPUT_FORMAT_MPEG_2_TS);
+        try {
+            long prerollMs = mPrerollBuffer.startWriting(mVideoFilename, maxFileSize,
+                    mPrerollBufferListener);
+            mRecordingFromPreroll = true;
+            mRemuxRotation = getRecordingRotation();
+            return prerollMs;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + mVideoFilename, e);
+            mVideoFilename = null;
+            return -1;
+        }
+    }
+
+    // Throws if the file could not be written, like MediaRecorder.stop().
+    private void stopPrerollRecording() {
+        mRecordingFromPreroll = false;
+        try {
+            mPrerollBuffer.stopWriting();
+        } catch (IOException e) {
+            throw new RuntimeException("Fail to write " + mVideoFilename, e);
+        }
+    }
+
+    private final MediaRecorder.OnErrorListener mPrerollErrorListener =
+            new MediaRecorder.OnErrorListener() {
+        @Override
+        public void onError(MediaRecorder mr, int what, int extra) {
+            Log.e(TAG, "Pre-roll recorder error. what=" + what + ". extra=" + extra);
+            if (mRecordingFromPreroll && mMediaRecorderRecording) {
+                onStopVideoRecording();
+            }
+            mPrerollArmed = false;
+            stopPreroll();
+        }
+    };
+
+    private final PrerollBuffer.Listener mPrerollBufferListener =
+            new PrerollBuffer.Listener() {
+        @Override
+        public void onWriteStopped(final boolean error) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mRecordingFromPreroll || !mMediaRecorderRecording) return;
+                    onStopVideoRecording();
+                    if (!error) {
+                        Toast.makeText(mActivity, R.string.video_reach_size_limit,
+                                Toast.LENGTH_LONG).show();
+                    }
+                }
+            });
+        }
+    };
+
+    // Long time lapse intervals are taken by the engine, which does not keep
+    // a recorder running between the frames, and counts the frames exactly.
+    // The recorder takes the shorter ones at the full video size.
+    private boolean useTimeLapseEngine() {
+        return mCaptureTimeLapse && !mIsVideoCaptureIntent && !effectsActive()
+                && mTimeBetweenTimeLapseFrameCaptureMs >= TIME_LAPSE_ENGINE_MIN_INTERVAL_MS
+                && TimeLapseEngine.isSupported();
+    }
+
+    // Starts a time lapse recording from the preview frames. Returns false
+    // if it cannot be started.
+    private boolean startTimeLapseEngine() {
+        TimeLapseEngine engine = new TimeLapseEngine(mTimeBetweenTimeLapseFrameCaptureMs,
+                mProfile.videoFrameRate, mProfile.videoBitRate, mProfile.videoFrameWidth,
+                mProfile.videoFrameHeight, getRecordingRotation());
+        long maxFileSize = mActivity.getStorageSpace() - Storage.LOW_STORAGE_THRESHOLD;
+        generateVideoFilename(OUTPUT_FORMAT_MPEG_2_TS);
+        try {
+            engine.start(mActivity.mCameraDevice, mParameters, mVideoFilename, maxFileSize,
+                    mTimeLapseEngineListener);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start the time lapse engine", e);
+            deleteVideoFile(mVideoFilename);
+            mVideoFilename = null;
+            return false;
+        }
+        mCurrentVideoValues.put(Video.Media.RESOLUTION,
+                engine.getVideoWidth() + "x" + engine.getVideoHeight());
+        // The engine rotates the frames itself, so the stream is copied into
+        // an MP4 file without a rotation.
+        mRemuxRotation = 0;
+        mTimeLapseEngine = engine;
+        return true;
+    }
+
+    // Throws if the file could not be written, like MediaRecorder.stop().
+    private void stopTimeLapseEngine() {
+        try {
+            mTimeLapseEngine.stop();
+        } catch (IOException e) {
+            throw new RuntimeException("Fail to write " + mVideoFilename, e);
+        }
+    }
+
+    private final TimeLapseEngine.Listener mTimeLapseEngineListener =
+            new TimeLapseEngine.Listener() {
+        @Override
+        public void onRecordingStopped(final boolean error) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mTimeLapseEngine == null || !mMediaRecorderRecording) return;
+                    onStopVideoRecording();
+                    if (!error) {
+                        Toast.makeText(mActivity, R.string.video_reach_size_limit,
+                                Toast.LENGTH_LONG).show();
+                    }
+                }
+            });
+        }
+    };
+
+    private static void closeQuietly(ParcelFileDescriptor fd) {
+        try {
+            fd.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
     /*
      * Make sure we're not recording music playing in the background, ask the
      * MediaPlaybackService to pause playback.
@@ -1600,6 +2097,54 @@ public class VideoModule implements CameraModule,
         return mMediaRecorderRecording;
     }
 
+    // For logs and bug reports. Returns the metrics of the running or the
+    // last recording, or null if there has been none.
+    public String dumpRecordingHealth() {
+        return (mRecordingMonitor == null) ? null : mRecordingMonitor.dump();
+    }
+
+    private void startRecordingMonitor() {
+        RecordingMonitor.FrameCounter frameCounter = null;
+        if (mTimeLapseEngine != null) {
+            final TimeLapseEngine engine = mTimeLapseEngine;
+            frameCounter = new RecordingMonitor.FrameCounter() {
+                @Override
+                public int getDroppedFrameCount() {
+                    return engine.getSkippedCount();
+                }
+            };
+        }
+        // A time lapse file grows only once in a while, so it is not
+        // checked for stalls.
+        int stallTimeout = mCaptureTimeLapse ? 0 : WRITE_STALL_TIMEOUT_MS;
+        mRecordingMonitor = new RecordingMonitor(getExpectedWriteRate(), stallTimeout,
+                mRecordingMonitorListener, frameCounter);
+        mWriteStallShown = false;
+        // The file given by a capture intent has no path, so only the free
+        // space is sampled.
+        mRecordingMonitor.start((mVideoFileDescriptor != null) ? null : mVideoFilename);
+    }
+
+    // Returns the rate in bytes per second at which the profile writes.
+    private long getExpectedWriteRate() {
+        if (mCaptureTimeLapse) {
+            // A frame is taken every interval, and there is no audio.
+            return (long) mProfile.videoBitRate * 1000 / 8
+                    / ((long) mTimeBetweenTimeLapseFrameCaptureMs * mProfile.videoFrameRate);
+        }
+        return ((long) mProfile.videoBitRate + mProfile.audioBitRate) / 8;
+    }
+
+    private final RecordingMonitor.Listener mRecordingMonitorListener =
+            new RecordingMonitor.Listener() {
+        @Override
+        public void onWriteStalled(long stallMs) {
+            if (!mMediaRecorderRecording || mWriteStallShown) return;
+            mWriteStallShown = true;
+            new RotateTextToast(mActivity, R.string.video_write_stalled, mOrientation).show();
+        }
+    };
+
     private void startVideoRecording() {
         Log.v(TAG, "startVideoRecording");
         mActivity.setSwipingEnabled(false);
@@ -1611,7 +2156,14 @@ public class VideoModule implements CameraModule,
         }
 
         mCurrentVideoUri = null;
-        if (effectsActive()) {
+        mRemuxRotation = -1;
+        long prerollMs = 0;
+        if (mPrerollRecorder != null) {
+            prerollMs = startPrerollRecording();
+            if (prerollMs < 0) return;
+        } else if (useTimeLapseEngine()) {
+            if (!startTimeLapseEngine()) return;
+        } else if (effectsActive()) {
             initializeEffectsRecording();
             if (mEffectsRecorder == null) {
                 Log.e(TAG, "Fail to initialize effect recorder");
@@ -1627,7 +2179,9 @@ public class VideoModule implements CameraModule,
 
         pauseAudioPlayback();
 
-        if (effectsActive()) {
+        if (mRecordingFromPreroll || mTimeLapseEngine != null) {
+            // The pre-roll recorder or the engine is already running.
+        } else if (effectsActive()) {
             try {
                 mEffectsRecorder.startRecording();
             } catch (RuntimeException e) {
@@ -1659,7 +2213,10 @@ public class VideoModule implements CameraModule,
 
         mMediaRecorderRecording = true;
         mActivity.getOrientationManager().lockOrientation();
-        mRecordingStartTime = SystemClock.uptimeMillis();
+        // The recording starts with the pre-roll.
+        mRecordingStartTime = SystemClock.uptimeMillis() - prerollMs;
+        mSegmentStartTime = mRecordingStartTime;
+        startRecordingMonitor();
         showRecordingUI(true);
 
         updateRecordingTime();
@@ -1667,6 +2224,7 @@ public class VideoModule implements CameraModule,
     }
 
     private void showRecordingUI(boolean recording) {
+        updatePrerollLabel();
         mMenu.setVisibility(recording ? View.GONE : View.VISIBLE);
         mOnScreenIndicators.setVisibility(recording ? View.GONE : View.VISIBLE);
         if (recording) {
@@ -1697,23 +2255,7 @@ public class VideoModule implements CameraModule,
     }
 
     private void showAlert() {
-        Bitmap bitmap = null;
-        if (mVideoFileDescriptor != null) {
-            bitmap = Thumbnail.createVideoThumbnailBitmap(mVideoFileDescriptor.getFileDescriptor(),
-                    mPreviewFrameLayout.getWidth());
-        } else if (mCurrentVideoFilename != null) {
-            bitmap = Thumbnail.createVideoThumbnailBitmap(mCurrentVideoFilename,
-                    mPreviewFrameLayout.getWidth());
-        }
-        if (bitmap != null) {
-            // MetadataRetriever already rotates the thumbnail. We should rotate
-            // it to match the UI orientation (and mirror if it is front-facing camera).
-            CameraInfo[] info = CameraHolder.instance().getCameraInfo();
-            boolean mirror = (info[mCameraId].facing == CameraInfo.CAMERA_FACING_FRONT);
-            bitmap = Util.rotateAndMirror(bitmap, 0, mirror);
-            mReviewImage.setImageBitmap(bitmap);
-            mReviewImage.setVisibility(View.VISIBLE);
-        }
+        requestReviewThumbnail();
 
         Util.fadeOut(mShutterButton);
 
@@ -1726,7 +2268,33 @@ public class VideoModule implements CameraModule,
         showTimeLapseUI(false);
     }
 
+    // Makes the thumbnail of the video under review on the saver thread,
+    // once the video is saved. onVideoSaved() shows it.
+    private void requestReviewThumbnail() {
+        VideoSegment segment = new VideoSegment();
+        if (mVideoFileDescriptor != null) {
+            segment.fd = mVideoFileDescriptor;
+        } else if (mCurrentVideoFilename != null) {
+            segment.filename = mCurrentVideoFilename;
+            segment.uri = mCurrentVideoUri;
+        } else {
+            return;
+        }
+        // The review image is no wider than the preview, and the frame is
+        // not scaled up. Either side of the video may be its width, as the
+        // frame is rotated by the recording rotation.
+        segment.thumbnailWidth = Math.min(mPreviewFrameLayout.getWidth(),
+                Math.max(mProfile.videoFrameWidth, mProfile.videoFrameHeight));
+        // MetadataRetriever already rotates the thumbnail. We should rotate
+        // it to match the UI orientation (and mirror if it is front-facing camera).
+        CameraInfo[] info = CameraHolder.instance().getCameraInfo();
+        segment.mirror = (info[mCameraId].facing == CameraInfo.CAMERA_FACING_FRONT);
+        mPendingReviewThumbnail = segment;
+        mVideoSaver.save(segment);
+    }
+
     private void hideAlert() {
+        mPendingReviewThumbnail = null;
         mReviewImage.setVisibility(View.GONE);
         mShutterButton.setEnabled(true);
         mMenu.setVisibility(View.VISIBLE);
@@ -1751,6 +2319,8 @@ public class VideoModule implements CameraModule,
         boolean fail = false;
         if (mMediaRecorderRecording) {
             boolean shouldAddToMediaStoreNow = false;
+            mRecordingMonitor.stop();
+            Log.v(TAG, "stopVideoRecording: " + dumpRecordingHealth());
 
             try {
                 if (effectsActive()) {
@@ -1759,10 +2329,20 @@ public class VideoModule implements CameraModule,
                     // through a callback from the MediaEncoderFilter to EffectsRecorder,
                     // and then to the VideoModule.
                     mEffectsRecorder.stopRecording();
+                } else if (mRecordingFromPreroll) {
+                    stopPrerollRecording();
+                    shouldAddToMediaStoreNow = true;
+                } else if (mTimeLapseEngine != null) {
+                    stopTimeLapseEngine();
+                    shouldAddToMediaStoreNow = true;
                 } else {
-                    mMediaRecorder.setOnErrorListener(null);
-                    mMediaRecorder.setOnInfoListener(null);
-                    mMediaRecorder.stop();
+                    // There is no recorder if the next segment of a
+                    // segmented recording failed to start.
+                    if (mMediaRecorder != null) {
+                        mMediaRecorder.setOnErrorListener(null);
+                        mMediaRecorder.setOnInfoListener(null);
+                        mMediaRecorder.stop();
+                    }
                     shouldAddToMediaStoreNow = true;
                 }
                 mCurrentVideoFilename = mVideoFilename;
@@ -1772,6 +2352,9 @@ public class VideoModule implements CameraModule,
                 Log.e(TAG, "stop fail",  e);
                 if (mVideoFilename != null) deleteVideoFile(mVideoFilename);
                 fail = true;
+                // The segments recorded before are still added.
+                mCurrentVideoFilename = null;
+                shouldAddToMediaStoreNow = !mFinishedSegments.isEmpty();
             }
             mMediaRecorderRecording = false;
             mActivity.getOrientationManager().unlockOrientation();
@@ -1803,11 +2386,14 @@ public class VideoModule implements CameraModule,
             if (shouldAddToMediaStoreNow) {
                 if (addVideoToMediaStore()) fail = true;
             }
+            // The length of the video has been taken from the engine.
+            mTimeLapseEngine = null;
         }
         // always release media recorder if no effects running
         if (!effectsActive()) {
             releaseMediaRecorder();
-            if (!mPaused) {
+            // The pre-roll recorder keeps the camera for the next recording.
+            if (!mPaused && mPrerollRecorder == null) {
                 mActivity.mCameraDevice.lock();
                 if (ApiHelper.HAS_SURFACE_TEXTURE &&
                     !ApiHelper.HAS_SURFACE_TEXTURE_RECORDING) {
@@ -1887,10 +2473,13 @@ public class VideoModule implements CameraModule,
     }
 
     private long getTimeLapseVideoLength(long deltaMs) {
-        // For better approximation calculate fractional number of frames captured.
-        // This will update the video time at a higher resolution.
-        double numberOfFrames = (double) deltaMs / mTimeBetweenTimeLapseFrameCaptureMs;
-        return (long) (numberOfFrames / mProfile.videoFrameRate * 1000);
+        // The engine counts the frames it has encoded.
+        if (mTimeLapseEngine != null) return mTimeLapseEngine.getVideoLength();
+        // The recorder takes a frame at the start and one at the end of each
+        // interval. Count only the frames which have been taken, so that the
+        // length does not run ahead of the video.
+        long numberOfFrames = deltaMs / mTimeBetweenTimeLapseFrameCaptureMs + 1;
+        return numberOfFrames * 1000 / mProfile.videoFrameRate;
     }
 
     private void updateRecordingTime() {
@@ -1900,14 +2489,20 @@ public class VideoModule implements CameraModule,
         long now = SystemClock.uptimeMillis();
         long delta = now - mRecordingStartTime;
 
-        // Starting a minute before reaching the max duration
-        // limit, we'll countdown the remaining time instead.
-        boolean countdownRemainingTime = (mMaxVideoDurationInMs != 0
-                && delta >= mMaxVideoDurationInMs - 60000);
+        // The recording ends at the max duration limit, or when the storage
+        // is full at the rate it is written.
+        long remaining = Long.MAX_VALUE;
+        if (mMaxVideoDurationInMs != 0) remaining = mMaxVideoDurationInMs - delta;
+        long storageRemaining = mRecordingMonitor.getRemainingTime();
+        if (storageRemaining >= 0) remaining = Math.min(remaining, storageRemaining);
+
+        // Starting a minute before reaching the end, we'll countdown the
+        // remaining time instead.
+        boolean countdownRemainingTime = (remaining <= 60000);
 
         long deltaAdjusted = delta;
         if (countdownRemainingTime) {
-            deltaAdjusted = Math.max(0, mMaxVideoDurationInMs - deltaAdjusted) + 999;
+            deltaAdjusted = Math.max(0, remaining) + 999;
         }
         String text;
 
@@ -1920,7 +2515,10 @@ public class VideoModule implements CameraModule,
             // of the actual wall clock time elapsed. Display the video length
             // only in format hh:mm:ss.dd, where dd are the centi seconds.
             text = millisecondToTimeString(getTimeLapseVideoLength(delta), true);
-            targetNextUpdateDelay = mTimeBetweenTimeLapseFrameCaptureMs;
+            // The engine takes a frame a little after it is due, so check
+            // its count every second rather than at the due times.
+            targetNextUpdateDelay = (mTimeLapseEngine != null)
+                    ? 1000 : mTimeBetweenTimeLapseFrameCaptureMs;
         }
 
         mRecordingTimeView.setText(text);
@@ -2059,7 +2657,12 @@ public class VideoModule implements CameraModule,
 
         CameraSettings.dumpParameters(mParameters);
 
-        mActivity.mCameraDevice.setParameters(mParameters);
+        if (CameraHolder.instance().hasKeptPreview() && !effectsActive()) {
+            // The handed off preview only gets the parameters if they changed.
+            mPreviewAdopted = CameraHolder.instance().adoptPreview(mParameters);
+        } else {
+            mActivity.mCameraDevice.setParameters(mParameters);
+        }
         // Keep preview size up to date.
         mParameters = mActivity.mCameraDevice.getParameters();
 
@@ -2132,12 +2735,20 @@ public class VideoModule implements CameraModule,
             // In onPause, these were not called if the effects were active. We
             // had to wait till the effects recording is complete to do this.
             if (mPaused) {
+                clearVideoSaver();
                 closeVideoFileDescriptor();
                 clearVideoNamer();
             }
         } else if (effectMsg == EffectsRecorder.EFFECT_MSG_PREVIEW_RUNNING) {
             // Enable the shutter button once the preview is complete.
             mShutterButton.setEnabled(true);
+            if (mEffectsRecorder != null) {
+                mEffectSwitchTime = mEffectsRecorder.getEffectSwitchTime();
+            }
+            if (effectId == EffectsRecorder.EFFECT_STABILIZER) startVideoStabilizer();
+        } else if (effectMsg == EffectsRecorder.EFFECT_MSG_SWITCHING_EFFECT
+                && effectId == EffectsRecorder.EFFECT_STABILIZER) {
+            stopVideoStabilizer();
         } else if (effectId == EffectsRecorder.EFFECT_BACKDROPPER) {
             switch (effectMsg) {
                 case EffectsRecorder.EFFECT_MSG_STARTED_LEARNING:
@@ -2157,6 +2768,29 @@ public class VideoModule implements CameraModule,
         }
     }
 
+    private void startVideoStabilizer() {
+        if (mVideoStabilizer != null || mPaused || mActivity.mCameraDevice == null) return;
+        float margin = ((Integer) mEffectParameter) / 100f;
+        mVideoStabilizer = new VideoStabilizer(mStabilizerListener, margin,
+                mProfile.videoFrameRate);
+        // Frames are registered in order, so one worker is enough.
+        mStabilizerPipeline = new PreviewAnalysisPipeline(1);
+        mStabilizerPipeline.addAnalyzer(mVideoStabilizer, 0);
+        mStabilizerPipeline.start(mActivity.mCameraDevice, mParameters);
+    }
+
+    private void stopVideoStabilizer() {
+        if (mVideoStabilizer == null) return;
+        Log.v(TAG, "Stabilizer cost: last " + mVideoStabilizer.getLastCostMs()
+                + " ms, average " + mVideoStabilizer.getAverageCostMs() + " ms, latency "
+                + mVideoStabilizer.getAverageLatencyMs() + " ms");
+        mStabilizerPipeline.removeAnalyzer(mVideoStabilizer);
+        mStabilizerPipeline.stop();
+        mStabilizerPipeline = null;
+        mVideoStabilizer.release();
+        mVideoStabilizer = null;
+    }
+
     public void onCancelBgTraining(View v) {
         // Remove training message
         mBgLearningMessageFrame.setVisibility(View.GONE);
@@ -2264,6 +2898,15 @@ public class VideoModule implements CameraModule,
         mRecordingTimeView = (TextView) mRootView.findViewById(R.id.recording_time);
         mRecordingTimeRect = (RotateLayout) mRootView.findViewById(R.id.recording_time_rect);
         mTimeLapseLabel = mRootView.findViewById(R.id.time_lapse_label);
+        mPrerollLabel = (TextView) mRootView.findViewById(R.id.preroll_label);
+        mPrerollLabel.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                onPrerollLabelClicked();
+            }
+        });
+        // The gestures only let the touches through to the receivers.
+        if (mGestures != null) mGestures.addTouchReceiver(mPrerollLabel);
         // The R.id.labels can only be found in phone layout.
         // That is, mLabelsLinearLayout should be null in tablet layout.
         mLabelsLinearLayout = (LinearLayout) mRootView.findViewById(R.id.labels);
@@ -2344,6 +2987,12 @@ public class VideoModule implements CameraModule,
         return (mEffectType != EffectsRecorder.EFFECT_NONE);
     }
 
+    // The preview can only be handed off to the next module if it is drawn
+    // to the camera screen nail directly.
+    boolean canHandOffPreview() {
+        return mPreviewing && !effectsActive() && !mMediaRecorderRecording;
+    }
+
     @Override
     public void onSharedPreferenceChanged() {
         // ignore the events after "onPause()" or preview has not started yet
@@ -2382,7 +3031,12 @@ public class VideoModule implements CameraModule,
                 resizeForPreviewAspectRatio();
                 startPreview(); // Parameters will be set in startPreview().
             } else {
+                // Restart the pre-roll, which may have been turned on or
+                // off, around the new parameters.
+                stopPreroll();
                 setCameraParameters();
+                startPreroll();
+                updatePrerollLabel();
             }
             updateOnScreenIndicators();
             mActivity.initPowerShutter(mPreferences);
@@ -2646,7 +3300,11 @@ public class VideoModule implements CameraModule,
         mActivity.mCameraDevice.setParameters(mParameters);
 
         Log.v(TAG, "Video snapshot start");
-        mActivity.mCameraDevice.takePicture(null, null, null, new JpegPictureCallback(loc));
+        Size size = mParameters.getPictureSize();
+        mPendingSnapshot = mSnapshotSaver.reserve(System.currentTimeMillis(),
+                size.width, size.height, rotation);
+        mActivity.mCameraDevice.takePicture(null, null, null,
+                new JpegPictureCallback(loc, mPendingSnapshot));
         showVideoSnapshotUI(true);
         mSnapshotInProgress = true;
     }
@@ -2713,9 +3371,11 @@ public class VideoModule implements CameraModule,
 
     private final class JpegPictureCallback implements PictureCallback {
         Location mLocation;
+        SnapshotRequest mRequest;
 
-        public JpegPictureCallback(Location loc) {
+        public JpegPictureCallback(Location loc, SnapshotRequest request) {
             mLocation = loc;
+            mRequest = request;
         }
 
         @Override
@@ -2723,19 +3383,195 @@ public class VideoModule implements CameraModule,
             Log.v(TAG, "onPictureTaken");
             mSnapshotInProgress = false;
             showVideoSnapshotUI(false);
-            storeImage(jpegData, mLocation);
+            // The request is cancelled if the module paused meanwhile.
+            if (mRequest != mPendingSnapshot) return;
+            mPendingSnapshot = null;
+            mSnapshotSaver.save(mRequest, jpegData, mLocation);
+        }
+    }
+
+    // A video snapshot. Its MediaStore row is reserved when the snapshot is
+    // taken, and the picture is written into it when it arrives.
+    private static class SnapshotRequest {
+        long dateTaken;
+        // Size of the picture, and the rotation it is taken with.
+        int width, height;
+        int rotation;
+        String title;
+        Uri uri;
+        byte[] data;
+        Location loc;
+        boolean cancelled;
+        // Set by the saver thread once the row is reserved.
+        boolean reserved;
+    }
+
+    // Saves the video snapshots in a background thread, like the ImageSaver
+    // and ImageNamer of PhotoModule do for photos, so that taking a snapshot
+    // never blocks the main thread on storage during a recording. Each
+    // request goes through the queue twice: once when the snapshot is taken,
+    // to reserve its title and MediaStore row, and once when the picture
+    // arrives, to write it. The thread runs at background priority so that
+    // it does not take time from the recorder.
+    //
+    // The main thread waits for the queue to be done in onPause(), so that
+    // other programs (like Gallery) can see all the snapshots. If the queue
+    // becomes too long, adding a request blocks the main thread until the
+    // queue length drops below QUEUE_LIMIT, so that the pictures held in
+    // memory are bounded.
+    private class SnapshotSaver extends Thread {
+        private static final int QUEUE_LIMIT = 3;
+
+        private ArrayList<SnapshotRequest> mQueue;
+        private boolean mStop;
+
+        // Runs in main thread
+        public SnapshotSaver() {
+            super("VideoSnapshotSaver");
+            mQueue = new ArrayList<SnapshotRequest>();
+            start();
         }
-    }
 
-    private void storeImage(final byte[] data, Location loc) {
-        long dateTaken = System.currentTimeMillis();
-        String title = Util.createJpegName(dateTaken);
-        int orientation = Exif.getOrientation(data);
-        Size s = mParameters.getPictureSize();
-        Uri uri = Storage.getStorage().addImage(mContentResolver, title, dateTaken, loc, orientation, data,
-                s.width, s.height);
-        if (uri != null) {
-            Util.broadcastNewPicture(mActivity, uri);
+        // Runs in main thread
+        public SnapshotRequest reserve(long dateTaken, int width, int height, int rotation) {
+            SnapshotRequest r = new SnapshotRequest();
+            r.dateTaken = dateTaken;
+            r.width = width;
+            r.height = height;
+            r.rotation = rotation;
+            addRequest(r);
+            return r;
+        }
+
+        // Runs in main thread
+        public void save(SnapshotRequest r, byte[] data, Location loc) {
+            r.data = data;
+            r.loc = (loc == null) ? null : new Location(loc);  // make a copy
+            addRequest(r);
+        }
+
+        // Runs in main thread. Deletes the reserved row of a snapshot whose
+        // picture will not come.
+        public void cancel(SnapshotRequest r) {
+            r.cancelled = true;
+            addRequest(r);
+        }
+
+        // Runs in main thread
+        private void addRequest(SnapshotRequest r) {
+            synchronized (this) {
+                while (mQueue.size() >= QUEUE_LIMIT) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        // ignore.
+                    }
+                }
+                mQueue.add(r);
+                notifyAll();  // Tell saver thread there is new work to do.
+            }
+        }
+
+        // Runs in saver thread
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                SnapshotRequest r;
+                boolean cancelled;
+                byte[] data;
+                synchronized (this) {
+                    if (mQueue.isEmpty()) {
+                        notifyAll();  // notify main thread in waitDone
+
+                        // Note that we can only stop after we saved all
+                        // snapshots in the queue.
+                        if (mStop) break;
+
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            // ignore.
+                        }
+                        continue;
+                    }
+                    r = mQueue.get(0);
+                    cancelled = r.cancelled;
+                    data = r.data;
+                }
+
+                if (!r.reserved) {
+                    reserveUri(r);
+                    r.reserved = true;
+                } else if (cancelled) {
+                    if (r.uri != null) Storage.getStorage().deleteImage(mContentResolver, r.uri);
+                } else if (data != null) {
+                    storeImage(r);
+                }
+                synchronized (this) {
+                    mQueue.remove(0);
+                    notifyAll();  // the main thread may wait in addRequest
+                }
+            }
+        }
+
+        // Runs in main thread
+        public void waitDone() {
+            synchronized (this) {
+                while (!mQueue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        // ignore.
+                    }
+                }
+            }
+        }
+
+        // Runs in main thread
+        public void finish() {
+            waitDone();
+            synchronized (this) {
+                mStop = true;
+                notifyAll();
+            }
+            try {
+                join();
+            } catch (InterruptedException ex) {
+                // ignore.
+            }
+        }
+
+        // Runs in saver thread
+        private void reserveUri(SnapshotRequest r) {
+            int width = r.width, height = r.height;
+            if (r.rotation % 180 != 0) {
+                width = r.height;
+                height = r.width;
+            }
+            r.title = Util.createJpegName(r.dateTaken);
+            r.uri = Storage.getStorage().newImage(mContentResolver, r.title, r.dateTaken,
+                    width, height);
+        }
+
+        // Runs in saver thread
+        private void storeImage(SnapshotRequest r) {
+            int orientation = Exif.getOrientation(r.data);
+            Uri uri = r.uri;
+            boolean ok;
+            if (uri != null) {
+                ok = Storage.getStorage().updateImage(mContentResolver, uri, r.title, r.loc,
+                        orientation, r.data, r.width, r.height);
+                if (!ok) Storage.getStorage().deleteImage(mContentResolver, uri);
+            } else {
+                // The row could not be reserved. Try to add it again.
+                uri = Storage.getStorage().addImage(mContentResolver, r.title, r.dateTaken,
+                        r.loc, orientation, r.data, r.width, r.height);
+                ok = (uri != null);
+            }
+            if (ok) {
+                Util.broadcastNewPicture(mActivity, uri);
+            }
         }
     }
 
@@ -2755,6 +3591,8 @@ public class VideoModule implements CameraModule,
     private String convertOutputFormatToMimeType(int outputFileFormat) {
         if (outputFileFormat == MediaRecorder.OutputFormat.MPEG_4) {
             return "video/mp4";
+        } else if (outputFileFormat == OUTPUT_FORMAT_MPEG_2_TS) {
+            return "video/mp2ts";
         }
         return "video/3gpp";
     }
@@ -2762,12 +3600,16 @@ public class VideoModule implements CameraModule,
     private String convertOutputFormatToFileExt(int outputFileFormat) {
         if (outputFileFormat == MediaRecorder.OutputFormat.MPEG_4) {
             return ".mp4";
+        } else if (outputFileFormat == OUTPUT_FORMAT_MPEG_2_TS) {
+            return ".ts";
         }
         return ".3gp";
     }
 
     private void closeVideoFileDescriptor() {
         if (mVideoFileDescriptor != null) {
+            // The saver may be making a thumbnail from it.
+            if (mVideoSaver != null) mVideoSaver.waitDone();
             try {
                 mVideoFileDescriptor.close();
             } catch (IOException e) {
@@ -2793,6 +3635,200 @@ public class VideoModule implements CameraModule,
         }
     }
 
+    // A file of the recording which has been recorded, and is waiting to
+    // be added to the media store.
+    // A video which has no values is not saved, only thumbnailed.
+    private static class VideoSegment {
+        String filename;
+        ContentValues values;
+        Uri uri;
+        long duration;
+        // If not negative, the file is a transport stream, which is copied
+        // into an MP4 file with this rotation before it is stored.
+        int remuxRotation = -1;
+        // Set by the saver.
+        boolean saved;
+
+        // The review thumbnail, if the width is larger than 0. The file
+        // descriptor is used instead of the file name if it is set.
+        ParcelFileDescriptor fd;
+        int thumbnailWidth;
+        boolean mirror;
+        Bitmap thumbnail;
+    }
+
+    private void clearVideoSaver() {
+        if (mVideoSaver != null) {
+            mVideoSaver.finish();
+            mVideoSaver = null;
+        }
+    }
+
+    // Finishes the recorded videos in the background: renames each file to
+    // its final name, updates the media store and makes the review
+    // thumbnail. The videos are finished one by one in the order in which
+    // they are saved, and onVideoSaved() is called for each in that order.
+    private class VideoSaver extends Thread {
+        private ArrayList<VideoSegment> mQueue;
+        private boolean mStop;
+
+        // Runs in main thread
+        public VideoSaver() {
+            super("VideoSaver");
+            mQueue = new ArrayList<VideoSegment>();
+            start();
+        }
+
+        // Runs in main thread
+        public void save(VideoSegment segment) {
+            synchronized (this) {
+                mQueue.add(segment);
+                notifyAll();  // Tell saver thread there is new work to do.
+            }
+        }
+
+        // Runs in saver thread
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                final VideoSegment segment;
+                synchronized (this) {
+                    if (mQueue.isEmpty()) {
+                        notifyAll();  // notify main thread in waitDone
+
+                        // Note that we can only stop after we saved all
+                        // videos in the queue.
+                        if (mStop) break;
+
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            // ignore.
+                        }
+                        continue;
+                    }
+                    segment = mQueue.get(0);
+                }
+                if (segment.values != null) storeVideo(segment);
+                if (segment.thumbnailWidth > 0) createThumbnail(segment);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onVideoSaved(segment);
+                    }
+                });
+                synchronized (this) {
+                    mQueue.remove(0);
+                    notifyAll();
+                }
+            }
+        }
+
+        // Runs in main thread
+        public void waitDone() {
+            synchronized (this) {
+                while (!mQueue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        // ignore.
+                    }
+                }
+            }
+        }
+
+        // Runs in main thread
+        public void finish() {
+            waitDone();
+            synchronized (this) {
+                mStop = true;
+                notifyAll();
+            }
+            try {
+                join();
+            } catch (InterruptedException ex) {
+                // ignore.
+            }
+        }
+
+        // Runs in saver thread
+        private void storeVideo(VideoSegment segment) {
+            if (segment.remuxRotation >= 0) remuxVideo(segment);
+            ContentValues values = segment.values;
+            values.put(Video.Media.SIZE, new File(segment.filename).length());
+            if (segment.duration > 0) {
+                values.put(Video.Media.DURATION, segment.duration);
+            } else {
+                Log.w(TAG, "Video duration <= 0 : " + segment.duration);
+            }
+            try {
+                // Rename the video file to the final name. This avoids other
+                // apps reading incomplete data. The uri has been claimed from
+                // the namer, so we are certain that the insert to
+                // MediaProvider is completed.
+                String finalName = values.getAsString(Video.Media.DATA);
+                if (new File(segment.filename).renameTo(new File(finalName))) {
+                    segment.filename = finalName;
+                }
+
+                mContentResolver.update(segment.uri, values, null, null);
+                mActivity.sendBroadcast(new Intent(Util.ACTION_NEW_VIDEO, segment.uri));
+                segment.saved = true;
+            } catch (Exception e) {
+                // We failed to insert into the database. This can happen if
+                // the SD card is unmounted.
+                Log.e(TAG, "failed to add video to media store", e);
+            } finally {
+                Log.v(TAG, "Saved video URI: " + segment.uri);
+            }
+        }
+
+        // Runs in saver thread
+        // Replaces the transport stream with an MP4 file, which carries the
+        // rotation. The stream is stored as it is if that fails.
+        private void remuxVideo(VideoSegment segment) {
+            ContentValues values = segment.values;
+            String path = values.getAsString(Video.Media.DATA);
+            String mp4Path = path.substring(0, path.lastIndexOf('.'))
+                    + convertOutputFormatToFileExt(MediaRecorder.OutputFormat.MPEG_4);
+            String tmpPath = mp4Path + ".tmp";
+            long start = SystemClock.uptimeMillis();
+            try {
+                Mp4Remuxer.remux(segment.filename, tmpPath, segment.remuxRotation);
+            } catch (IOException e) {
+                Log.e(TAG, "Fail to remux " + segment.filename, e);
+                new File(tmpPath).delete();
+                return;
+            }
+            new File(segment.filename).delete();
+            segment.filename = tmpPath;
+            values.put(Video.Media.DATA, mp4Path);
+            values.put(Video.Media.DISPLAY_NAME, new File(mp4Path).getName());
+            values.put(Video.Media.MIME_TYPE,
+                    convertOutputFormatToMimeType(MediaRecorder.OutputFormat.MPEG_4));
+            Log.v(TAG, "Remuxed " + mp4Path + " in " + (SystemClock.uptimeMillis() - start)
+                    + "ms");
+        }
+
+        // Runs in saver thread
+        private void createThumbnail(VideoSegment segment) {
+            Bitmap bitmap = null;
+            if (segment.fd != null) {
+                bitmap = Thumbnail.createVideoThumbnailBitmap(segment.fd.getFileDescriptor(),
+                        segment.thumbnailWidth);
+                if (bitmap != null) {
+                    bitmap = Util.rotateAndMirror(bitmap, 0, segment.mirror);
+                }
+            } else if (segment.filename != null) {
+                bitmap = VideoThumbnailLoader.instance(mActivity).getThumbnail(
+                        segment.filename, segment.uri, segment.thumbnailWidth,
+                        segment.mirror);
+            }
+            segment.thumbnail = bitmap;
+        }
+    }
+
     private static class VideoNamer extends Thread {
         private boolean mRequestPending;
         private ContentResolver mResolver;
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.camera.PreviewFramePool.Frame;
+
+/**
+ * Software video stabilization. Preview frames are registered against each
+ * other by the dbreg engine of the native library, and the smoothed camera
+ * motion gives the region of each frame to show and record. The region is
+ * the frame less a margin on each side, moved and rotated within the frame
+ * to follow the hand shake, so that the content of the region stays still.
+ *
+ * <p>It runs as an analyzer of a {@code PreviewAnalysisPipeline}, so a
+ * region reaches the display and the recorder some frames after the frame
+ * it was computed for, and frames which come while the analyzer is busy are
+ * skipped. Each region is therefore tagged with the time of its frame, and
+ * extrapolated by the latency from the motion of the region between the
+ * last two analyzed frames. The cost of each frame is measured, and if the
+ * average cost exceeds the frame interval of the recording the stabilizer
+ * turns itself off, since it would then fall behind the frames. Only one
+ * stabilizer can run at a time.
+ */
+public class VideoStabilizer implements PreviewAnalysisPipeline.Analyzer {
+    private static final String TAG = "CAM_VideoStabilizer";
+
+    // Frames wider than this are downsampled before registration.
+    private static final int MAX_REGISTRATION_WIDTH = 320;
+    // Weight of the previous position of the display reference when it
+    // follows the camera. Higher values remove slower motion.
+    private static final float SMOOTHING_GAIN = 0.9f;
+    // Frames whose cost is averaged before it is compared with the budget.
+    private static final int WARMUP_FRAMES = 30;
+    // Weight of each frame in the average cost and latency.
+    private static final float COST_WEIGHT = 0.05f;
+    // The region is not extrapolated further than this, nor from frames
+    // further apart than this.
+    private static final long MAX_PREDICTION_MS = 100;
+
+    static {
+        System.loadLibrary("jni_mosaic");
+    }
+
+    public interface Listener {
+        // Called on the UI thread with the region to show for the frames
+        // which come now, in the corner order and coordinates of
+        // getRegion().
+        public void onStabilizedRegion(float[] corners);
+
+        // Called on the UI thread when the stabilizer has turned itself off
+        // because it cannot keep up with the frame rate.
+        public void onStabilizerTooSlow(float averageCostMs, float budgetMs);
+    }
+
+    private static class Result {
+        final float[] corners;
+        // The uptime of the frame the region was computed for.
+        final long timestamp;
+        // True if the frame became the new reference, so the motion since
+        // the previous frame is not known.
+        final boolean newReference;
+        final float costMs;
+
+        Result(float[] corners, long timestamp, boolean newReference, float costMs) {
+            this.corners = corners;
+            this.timestamp = timestamp;
+            this.newReference = newReference;
+            this.costMs = costMs;
+        }
+    }
+
+    private final Listener mListener;
+    private final float mMargin;
+    private final float mBudgetMs;
+    private final float[] mTransform = new float[9];
+
+    // Size of the frames the native registration was initialized for.
+    private int mWidth;
+    private int mHeight;
+    private boolean mReleased;
+
+    // Accessed on the UI thread.
+    private volatile boolean mDisabled;
+    private int mFrameCount;
+    private float mLastCostMs;
+    private float mAverageCostMs;
+    private float mAverageLatencyMs;
+    // The result of the previous analyzed frame.
+    private Result mPrevious;
+
+    /**
+     * @param margin fraction of the width and of the height of the frames
+     *        which is left out on each side of the region.
+     * @param frameRate frame rate of the recording, which sets the budget
+     *        of each frame.
+     */
+    public VideoStabilizer(Listener listener, float margin, int frameRate) {
+        if (margin <= 0 || margin >= 0.5f) {
+            throw new IllegalArgumentException("margin=" + margin);
+        }
+        mListener = listener;
+        mMargin = margin;
+        mBudgetMs = 1000f / frameRate;
+    }
+
+    /**
+     * Returns the corners of the region of a frame with no motion: the
+     * bottom left, bottom right, top left and top right corners, as x and y
+     * pairs in texture coordinates, which go from 0 to 1 upwards.
+     */
+    public static float[] getRegion(float margin) {
+        float lo = margin, hi = 1 - margin;
+        return new float[] {lo, lo, hi, lo, lo, hi, hi, hi};
+    }
+
+    public float getLastCostMs() {
+        return mLastCostMs;
+    }
+
+    public float getAverageCostMs() {
+        return mAverageCostMs;
+    }
+
+    // Returns the average time in ms from a frame to the use of its region.
+    public float getAverageLatencyMs() {
+        return mAverageLatencyMs;
+    }
+
+    public boolean isDisabled() {
+        return mDisabled;
+    }
+
+    /**
+     * Frees the native registration. Frames offered afterwards are ignored.
+     */
+    public synchronized void release() {
+        mReleased = true;
+        if (mWidth != 0) freeRegistration();
+        mWidth = mHeight = 0;
+        Log.v(TAG, "average cost " + mAverageCostMs + " ms over " + mFrameCount
+                + " frames, budget " + mBudgetMs + " ms, latency " + mAverageLatencyMs + " ms");
+    }
+
+    @Override
+    public synchronized Object analyze(Frame frame) {
+        if (mReleased || mDisabled) return null;
+        long start = System.nanoTime();
+        if (frame.width != mWidth || frame.height != mHeight) {
+            mWidth = frame.width;
+            mHeight = frame.height;
+            initRegistration(mWidth, mHeight, MAX_REGISTRATION_WIDTH, SMOOTHING_GAIN);
+        }
+        boolean registered = addFrame(frame.data, mTransform);
+        float[] corners = registered ? mapRegion(mTransform) : getRegion(mMargin);
+        return new Result(corners, frame.timestamp, !registered,
+                (System.nanoTime() - start) / 1000000f);
+    }
+
+    @Override
+    public void onAnalysisResult(Object result) {
+        if (result == null || mDisabled) return;
+        Result r = (Result) result;
+        long latencyMs = SystemClock.uptimeMillis() - r.timestamp;
+        mLastCostMs = r.costMs;
+        if (mFrameCount == 0) {
+            mAverageCostMs = r.costMs;
+            mAverageLatencyMs = latencyMs;
+        } else {
+            mAverageCostMs += COST_WEIGHT * (r.costMs - mAverageCostMs);
+            mAverageLatencyMs += COST_WEIGHT * (latencyMs - mAverageLatencyMs);
+        }
+        mFrameCount++;
+        Result previous = mPrevious;
+        mPrevious = r;
+        if (mFrameCount >= WARMUP_FRAMES && mAverageCostMs > mBudgetMs) {
+            Log.w(TAG, "too slow: " + mAverageCostMs + " ms per frame, budget "
+                    + mBudgetMs + " ms");
+            mDisabled = true;
+            // Keep the crop, so that the framing does not jump.
+            mListener.onStabilizedRegion(getRegion(mMargin));
+            mListener.onStabilizerTooSlow(mAverageCostMs, mBudgetMs);
+            return;
+        }
+        mListener.onStabilizedRegion(predictRegion(previous, r, latencyMs));
+    }
+
+    // Extrapolates the region of the frame of r by latencyMs, at the speed
+    // it moved since the previous analyzed frame. The speed is per ms, so
+    // skipped frames do not change it.
+    private float[] predictRegion(Result previous, Result r, long latencyMs) {
+        if (previous == null || r.newReference) return r.corners;
+        long intervalMs = r.timestamp - previous.timestamp;
+        if (intervalMs <= 0 || intervalMs > MAX_PREDICTION_MS) return r.corners;
+        float t = (float) Math.min(latencyMs, MAX_PREDICTION_MS) / intervalMs;
+        float[] region = getRegion(mMargin);
+        float[] motion = new float[8];
+        for (int i = 0; i < 8; i++) {
+            motion[i] = r.corners[i] - region[i] + t * (r.corners[i] - previous.corners[i]);
+        }
+        return moveRegion(region, motion);
+    }
+
+    // Maps the corners of the region by the transformation from the display
+    // reference to the frame. The transformation works in coordinates which
+    // go from 0 to 1 downwards, like the rows of the frame.
+    private float[] mapRegion(float[] h) {
+        float[] region = getRegion(mMargin);
+        float[] motion = new float[8];
+        for (int i = 0; i < 8; i += 2) {
+            float x = region[i];
+            float y = 1 - region[i + 1];
+            float w = h[6] * x + h[7] * y + h[8];
+            motion[i] = (h[0] * x + h[1] * y + h[2]) / w - x;
+            motion[i + 1] = -((h[3] * x + h[4] * y + h[5]) / w - y);
+        }
+        return moveRegion(region, motion);
+    }
+
+    // Moves the corners of the region by motion, which is overwritten. If a
+    // corner would leave the frame, the motion of all the corners is scaled
+    // down so that the region stays in the frame.
+    private static float[] moveRegion(float[] region, float[] motion) {
+        float scale = 1;
+        for (int i = 0; i < 8; i++) {
+            scale = Math.min(scale, maxScale(region[i], motion[i]));
+        }
+        for (int i = 0; i < 8; i++) {
+            motion[i] = region[i] + scale * motion[i];
+        }
+        return motion;
+    }
+
+    // Returns the largest scale, up to 1, of the motion d which keeps the
+    // coordinate p in [0, 1].
+    private static float maxScale(float p, float d) {
+        if (d > 0) return Math.min(1, (1 - p) / d);
+        if (d < 0) return Math.min(1, p / -d);
+        return 1;
+    }
+
+    /**
+     * Initializes the registration of frames of the given size, which are
+     * downsampled to at most maxWidth pixels wide.
+     *
+     * @param smoothingGain weight of the previous position of the display
+     *        reference when it follows the camera, between 0 and 1.
+     */
+    private native void initRegistration(int width, int height, int maxWidth, float smoothingGain);
+
+    /**
+     * Registers an NV21 frame.
+     *
+     * @param transform receives the 3x3 transformation, in row major order,
+     *        from the display reference to the frame, in coordinates
+     *        normalized by the frame size.
+     * @return false if the frame became the new reference, in which case
+     *         the transformation is the identity.
+     */
+    private native boolean addFrame(byte[] frame, float[] transform);
+
+    /**
+     * Frees the memory allocated by initRegistration().
+     */
+    private native void freeRegistration();
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.MediaStore.Video;
+import android.util.Log;
+
+/**
+ * Makes the thumbnails of videos which have just been recorded.
+ *
+ * <p>The thumbnail is taken from the media provider if the video is in the
+ * media store and the thumbnail which is needed is no larger than the
+ * provider's, so that the full frame is never decoded in this process.
+ * Otherwise the frame is extracted with
+ * {@code Thumbnail.createVideoThumbnailBitmap()}. MediaMetadataRetriever
+ * only returns the full frame, so a thumbnail wider than the provider's
+ * briefly takes a full frame in this process, which is recycled as soon as
+ * it is scaled. The thumbnails are not kept, as a video is reviewed only
+ * once.
+ */
+public class VideoThumbnailLoader {
+    private static final String TAG = "CAM_VideoThumbnailLoader";
+    // The width of the MINI_KIND thumbnails of the media provider.
+    private static final int MINI_THUMBNAIL_WIDTH = 512;
+
+    // Use a singleton.
+    private static VideoThumbnailLoader sLoader;
+
+    private final ContentResolver mResolver;
+    // The thumbnails made so far, and the time they took.
+    private int mLoadCount;
+    private long mLoadTimeMs;
+
+    public static synchronized VideoThumbnailLoader instance(Context context) {
+        if (sLoader == null) {
+            sLoader = new VideoThumbnailLoader(context.getApplicationContext());
+        }
+        return sLoader;
+    }
+
+    private VideoThumbnailLoader(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Returns the thumbnail of the video at {@code path}, at most
+     * {@code targetWidth} wide, or null if the video cannot be read.
+     * {@code uri} is the uri of the video in the media store, or null.
+     * The target width should be the width the thumbnail is shown at, but
+     * no more than the width of the video. This may extract a frame of the
+     * video, so it should not be called on the main thread.
+     */
+    public Bitmap getThumbnail(String path, Uri uri, int targetWidth, boolean mirror) {
+        long start = SystemClock.uptimeMillis();
+        String source = "provider";
+        Bitmap bitmap = null;
+        if (uri != null && targetWidth <= MINI_THUMBNAIL_WIDTH) {
+            bitmap = getProviderThumbnail(uri, targetWidth);
+        }
+        if (bitmap == null) {
+            source = "retriever";
+            bitmap = Thumbnail.createVideoThumbnailBitmap(path, targetWidth);
+        }
+        if (bitmap == null) return null;
+        bitmap = Util.rotateAndMirror(bitmap, 0, mirror);
+
+        long elapsed = SystemClock.uptimeMillis() - start;
+        synchronized (this) {
+            mLoadCount++;
+            mLoadTimeMs += elapsed;
+            Log.v(TAG, "Thumbnail of " + path + " from " + source + " in " + elapsed
+                    + "ms, average " + (mLoadTimeMs / mLoadCount) + "ms");
+        }
+        return bitmap;
+    }
+
+    // Decodes the provider's thumbnail with the largest sampling which
+    // keeps it at least as wide as needed.
+    private Bitmap getProviderThumbnail(Uri uri, int targetWidth) {
+        long id;
+        try {
+            id = ContentUris.parseId(uri);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (MINI_THUMBNAIL_WIDTH / (options.inSampleSize * 2) >= targetWidth) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = Video.Thumbnails.getThumbnail(mResolver, id,
+                    Video.Thumbnails.MINI_KIND, options);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Fail to get the thumbnail of " + uri, e);
+            return null;
+        }
+        if (bitmap == null || bitmap.getWidth() <= targetWidth) return bitmap;
+        int height = Math.round((float) targetWidth * bitmap.getHeight() / bitmap.getWidth());
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, targetWidth, height, true);
+        if (scaled != bitmap) bitmap.recycle();
+        return scaled;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.hardware.Camera.Parameters;
+import android.util.Log;
+
+import com.android.camera.CameraManager.CameraProxy;
+import com.android.camera.PreviewFramePool.Frame;
+
+/**
+ * Keeps the last few preview frames for software zero shutter lag.
+ *
+ * <p>This is used on cameras whose HAL has no ZSL mode. The frames stay in
+ * the buffers of a {@code PreviewFramePool}. When the shutter is pressed,
+ * {@code takeFrame()} picks the frame closest to the press time, preferring
+ * sharp frames with little motion, so the picture does not need to wait for
+ * {@code takePicture()}.
+ */
+public class ZslFrameRing implements PreviewFramePool.FrameListener {
+    private static final String TAG = "CAM_ZslFrameRing";
+    private static final int DEFAULT_FRAME_COUNT = 4;
+    // Frames within this time of the shutter press are candidates.
+    private static final long SELECT_WINDOW_MS = 150;
+    // Luma is sampled on a grid of this step to score the frames.
+    private static final int SAMPLE_STEP = 16;
+
+    private final Frame[] mFrames;
+    private final float[] mSharpness;
+    private final float[] mMotion;
+    private final PreviewFramePool mFramePool;
+    private int mNewest = -1;
+    private int[] mLastSamples;
+    private int[] mSamples;
+
+    public ZslFrameRing() {
+        this(DEFAULT_FRAME_COUNT);
+    }
+
+    public ZslFrameRing(int frameCount) {
+        mFrames = new Frame[frameCount];
+        mSharpness = new float[frameCount];
+        mMotion = new float[frameCount];
+        // The pool drops a frame when all but one buffer are held. Besides
+        // the ring, a frame may be held while it is saved, and a new frame
+        // is held before the oldest one in the ring is released.
+        mFramePool = new PreviewFramePool(frameCount + 3);
+    }
+
+    public void start(CameraProxy camera, Parameters params) {
+        mFramePool.start(camera, params, this);
+    }
+
+    public void stop() {
+        mFramePool.stop();
+        synchronized (this) {
+            for (int i = 0; i < mFrames.length; i++) {
+                if (mFrames[i] != null) {
+                    mFrames[i].release();
+                    mFrames[i] = null;
+                }
+            }
+            mNewest = -1;
+            mLastSamples = null;
+        }
+    }
+
+    public boolean isStarted() {
+        return mFramePool.isStarted();
+    }
+
+    public int getDroppedFrameCount() {
+        return mFramePool.getDroppedFrameCount();
+    }
+
+    @Override
+    public void onPreviewFrame(Frame frame) {
+        int samples = (frame.width / SAMPLE_STEP) * (frame.height / SAMPLE_STEP);
+        if (mSamples == null || mSamples.length != samples) {
+            mSamples = new int[samples];
+            mLastSamples = null;
+        }
+        float sharpness = sampleLuma(frame, mSamples);
+        float motion = 0;
+        if (mLastSamples != null) {
+            for (int i = 0; i < samples; i++) {
+                motion += Math.abs(mSamples[i] - mLastSamples[i]);
+            }
+            motion /= samples;
+        }
+        int[] tmp = mLastSamples;
+        mLastSamples = mSamples;
+        mSamples = (tmp != null) ? tmp : new int[samples];
+
+        synchronized (this) {
+            int index = (mNewest + 1) % mFrames.length;
+            if (mFrames[index] != null) mFrames[index].release();
+            mFrames[index] = frame;
+            mSharpness[index] = sharpness;
+            mMotion[index] = motion;
+            mNewest = index;
+        }
+    }
+
+    /**
+     * Returns the best frame for a shutter press at {@code pressTime} in
+     * SystemClock.uptimeMillis() base, or null if there is no frame. The
+     * frame is removed from the ring and the caller must release it.
+     */
+    public synchronized Frame takeFrame(long pressTime) {
+        int best = -1;
+        float bestScore = 0;
+        int nearest = -1;
+        long nearestDelta = Long.MAX_VALUE;
+        for (int i = 0; i < mFrames.length; i++) {
+            Frame frame = mFrames[i];
+            if (frame == null) continue;
+            long delta = Math.abs(frame.timestamp - pressTime);
+            if (delta < nearestDelta) {
+                nearestDelta = delta;
+                nearest = i;
+            }
+            if (delta > SELECT_WINDOW_MS) continue;
+            float score = mSharpness[i] - mMotion[i];
+            if (best == -1 || score > bestScore) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        if (best == -1) best = nearest;
+        if (best == -1) return null;
+        Frame frame = mFrames[best];
+        mFrames[best] = null;
+        Log.v(TAG, "take frame " + (frame.timestamp - pressTime) + "ms from press, sharpness="
+                + mSharpness[best] + ", motion=" + mMotion[best]);
+        return frame;
+    }
+
+    // Samples the luma plane on a coarse grid and returns the mean absolute
+    // horizontal gradient as a sharpness measure.
+    private static float sampleLuma(Frame frame, int[] samples) {
+        byte[] data = frame.data;
+        int cols = frame.width / SAMPLE_STEP;
+        int rows = frame.height / SAMPLE_STEP;
+        long gradient = 0;
+        int n = 0;
+        for (int y = 0; y < rows; y++) {
+            int offset = y * SAMPLE_STEP * frame.width;
+            for (int x = 0; x < cols; x++) {
+                int pos = offset + x * SAMPLE_STEP;
+                int luma = data[pos] & 0xff;
+                samples[n++] = luma;
+                gradient += Math.abs(luma - (data[pos + 1] & 0xff));
+            }
+        }
+        return (n == 0) ? 0 : (float) gradient / n;
+    }
+}
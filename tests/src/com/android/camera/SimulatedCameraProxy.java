@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.graphics.YuvImage;
+import android.hardware.Camera.AutoFocusCallback;
+import android.hardware.Camera.AutoFocusMoveCallback;
+import android.hardware.Camera.ErrorCallback;
+import android.hardware.Camera.FaceDetectionListener;
+import android.hardware.Camera.OnZoomChangeListener;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.PictureCallback;
+import android.hardware.Camera.PreviewCallback;
+import android.hardware.Camera.ShutterCallback;
+import android.hardware.Camera.Size;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import com.android.camera.CameraManager.CameraProxy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * A simulated camera for performance tests on devices or emulators without
+ * a usable camera.
+ *
+ * <p>Every call takes a fixed, configurable time, so the measured latencies
+ * of the app are deterministic. Preview frames are generated from PPM files
+ * such as the ones in perftests/panorama/input, scaled to the preview size
+ * and converted to NV21. JPEG pictures are encoded from the current preview
+ * frame.
+ *
+ * Inject it with {@code CameraHolder.injectMockCamera()}.
+ */
+public class SimulatedCameraProxy extends CameraProxy {
+    private static final String TAG = "SimulatedCameraProxy";
+
+    /** The simulated HAL latencies in milliseconds. */
+    public static class Latencies {
+        public int reconnect = 100;
+        public int setParameters = 10;
+        public int startPreview = 150;
+        public int stopPreview = 50;
+        public int autoFocus = 300;
+        public int shutter = 50;
+        public int jpeg = 250;
+    }
+
+    private final Latencies mLatencies;
+    private final Handler mHandler;
+    private final Handler mCallbackHandler;
+    private final ArrayList<byte[]> mSourceFrames = new ArrayList<byte[]>();
+    private final ArrayList<int[]> mSourceSizes = new ArrayList<int[]>();
+    private final LinkedList<byte[]> mCallbackBuffers = new LinkedList<byte[]>();
+    private Parameters mParameters;
+    private PreviewCallback mPreviewCallback;
+    private boolean mWithBuffer;
+    private boolean mPreviewing;
+    private int mFrameIndex;
+    private byte[] mCurrentFrame;
+    private int mFrameCount;
+    private int mDroppedFrameCount;
+
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliverFrame();
+        }
+    };
+
+    /**
+     * @param params the parameters reported by getParameters().
+     * @param frameDir a directory of PPM files used for the preview frames in
+     *        file name order. If it is null or empty, a test pattern is used.
+     */
+    public SimulatedCameraProxy(Parameters params, File frameDir, Latencies latencies) {
+        CameraManager.instance().super(true);
+        mParameters = android.hardware.Camera.getEmptyParameters();
+        mParameters.unflatten(params.flatten());
+        mLatencies = latencies;
+        HandlerThread ht = new HandlerThread("SimulatedCamera");
+        ht.start();
+        mHandler = new Handler(ht.getLooper());
+        // Callbacks are delivered on the main thread like the real camera
+        // opened from a thread without a looper.
+        mCallbackHandler = new Handler(Looper.getMainLooper());
+        loadFrames(frameDir);
+    }
+
+    public synchronized int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public synchronized int getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    private void loadFrames(File dir) {
+        File[] files = (dir == null) ? null : dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File f : files) {
+                if (!f.getName().endsWith(".ppm")) continue;
+                try {
+                    int[] size = new int[2];
+                    mSourceFrames.add(readPpm(f, size));
+                    mSourceSizes.add(size);
+                } catch (IOException e) {
+                    Log.w(TAG, "cannot read " + f, e);
+                }
+            }
+        }
+        if (mSourceFrames.isEmpty()) {
+            // A horizontal gradient test pattern.
+            int width = 64, height = 48;
+            byte[] rgb = new byte[width * height * 3];
+            for (int i = 0; i < width * height; i++) {
+                byte v = (byte) (i % width * 255 / width);
+                rgb[i * 3] = rgb[i * 3 + 1] = rgb[i * 3 + 2] = v;
+            }
+            mSourceFrames.add(rgb);
+            mSourceSizes.add(new int[] {width, height});
+        }
+        Log.v(TAG, mSourceFrames.size() + " frames loaded");
+    }
+
+    // Reads a binary (P6) PPM file with 8-bit samples.
+    private static byte[] readPpm(File f, int[] size) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(f));
+        try {
+            if (!"P6".equals(readToken(in))) throw new IOException("not a P6 file");
+            size[0] = Integer.parseInt(readToken(in));
+            size[1] = Integer.parseInt(readToken(in));
+            if (Integer.parseInt(readToken(in)) > 255) throw new IOException("16-bit PPM");
+            byte[] rgb = new byte[size[0] * size[1] * 3];
+            int n = 0;
+            while (n < rgb.length) {
+                int count = in.read(rgb, n, rgb.length - n);
+                if (count < 0) throw new IOException("truncated");
+                n += count;
+            }
+            return rgb;
+        } finally {
+            in.close();
+        }
+    }
+
+    // Reads a header token. The single whitespace after the last one is
+    // consumed as well.
+    private static String readToken(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '#' && sb.length() == 0) {
+                while ((c = in.read()) != -1 && c != '\n');
+            } else if (Character.isWhitespace(c)) {
+                if (sb.length() > 0) break;
+            } else {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Scales the next source frame to the preview size and converts it to
+    // NV21.
+    private byte[] nextFrame(int width, int height) {
+        int index = mFrameIndex++ % mSourceFrames.size();
+        byte[] rgb = mSourceFrames.get(index);
+        int srcWidth = mSourceSizes.get(index)[0];
+        int srcHeight = mSourceSizes.get(index)[1];
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        int uvOffset = width * height;
+        for (int y = 0; y < height; y++) {
+            int sy = y * srcHeight / height;
+            for (int x = 0; x < width; x++) {
+                int pos = (sy * srcWidth + x * srcWidth / width) * 3;
+                int r = rgb[pos] & 0xff, g = rgb[pos + 1] & 0xff, b = rgb[pos + 2] & 0xff;
+                nv21[y * width + x] = (byte) ((66 * r + 129 * g + 25 * b + 128 >> 8) + 16);
+                if ((x & 1) == 0 && (y & 1) == 0) {
+                    int uv = uvOffset + (y / 2) * width + x;
+                    nv21[uv] = (byte) ((112 * r - 94 * g - 18 * b + 128 >> 8) + 128);
+                    nv21[uv + 1] = (byte) ((-38 * r - 74 * g + 112 * b + 128 >> 8) + 128);
+                }
+            }
+        }
+        return nv21;
+    }
+
+    private void deliverFrame() {
+        final PreviewCallback cb;
+        byte[] buffer = null;
+        Size size;
+        synchronized (this) {
+            if (!mPreviewing) return;
+            size = mParameters.getPreviewSize();
+            mCurrentFrame = nextFrame(size.width, size.height);
+            mFrameCount++;
+            cb = mPreviewCallback;
+            if (cb != null && mWithBuffer) {
+                buffer = mCallbackBuffers.poll();
+                if (buffer == null || buffer.length < mCurrentFrame.length) {
+                    mDroppedFrameCount++;
+                    cb = null;
+                } else {
+                    System.arraycopy(mCurrentFrame, 0, buffer, 0, mCurrentFrame.length);
+                }
+            } else if (cb != null) {
+                buffer = mCurrentFrame.clone();
+            }
+            int fps = Math.max(1, mParameters.getPreviewFrameRate());
+            mHandler.postDelayed(mFrameRunnable, 1000 / fps);
+        }
+        if (cb != null) {
+            final byte[] data = buffer;
+            mCallbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    cb.onPreviewFrame(data, null);
+                }
+            });
+        }
+    }
+
+    private static void sleep(int ms) {
+        SystemClock.sleep(ms);
+    }
+
+    @Override
+    public android.hardware.Camera getCamera() {
+        return null;
+    }
+
+    @Override
+    public void release() {
+        stopPreview();
+        mHandler.getLooper().quit();
+    }
+
+    @Override
+    public void reconnect() throws IOException {
+        sleep(mLatencies.reconnect);
+    }
+
+    @Override
+    public void unlock() {
+    }
+
+    @Override
+    public void lock() {
+    }
+
+    @Override
+    public void setPreviewTextureAsync(final SurfaceTexture surfaceTexture) {
+    }
+
+    @Override
+    public void setPreviewDisplayAsync(final SurfaceHolder surfaceHolder) {
+    }
+
+    @Override
+    public void startPreviewAsync() {
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedCameraProxy.this) {
+                    if (mPreviewing) return;
+                    mPreviewing = true;
+                }
+                deliverFrame();
+            }
+        }, mLatencies.startPreview);
+    }
+
+    @Override
+    public void stopPreview() {
+        synchronized (this) {
+            mPreviewing = false;
+            mHandler.removeCallbacks(mFrameRunnable);
+        }
+        sleep(mLatencies.stopPreview);
+    }
+
+    @Override
+    public synchronized void setPreviewCallback(final PreviewCallback cb) {
+        mPreviewCallback = cb;
+        mWithBuffer = false;
+    }
+
+    @Override
+    public synchronized void setPreviewCallbackWithBuffer(final PreviewCallback cb) {
+        mPreviewCallback = cb;
+        mWithBuffer = true;
+        mCallbackBuffers.clear();
+    }
+
+    @Override
+    public synchronized void addCallbackBuffer(byte[] callbackBuffer) {
+        mCallbackBuffers.add(callbackBuffer);
+    }
+
+    @Override
+    public void autoFocus(final AutoFocusCallback cb) {
+        mCallbackHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                cb.onAutoFocus(true, null);
+            }
+        }, mLatencies.autoFocus);
+    }
+
+    @Override
+    public void cancelAutoFocus() {
+    }
+
+    @Override
+    public void setAutoFocusMoveCallback(AutoFocusMoveCallback cb) {
+    }
+
+    @Override
+    public void takePicture(final ShutterCallback shutter, final PictureCallback raw,
+            final PictureCallback postview, final PictureCallback jpeg) {
+        final byte[] frame;
+        final Size size;
+        synchronized (this) {
+            // The real camera stops the preview to take a picture.
+            mPreviewing = false;
+            mHandler.removeCallbacks(mFrameRunnable);
+            size = mParameters.getPreviewSize();
+            frame = (mCurrentFrame != null) ? mCurrentFrame : nextFrame(size.width, size.height);
+        }
+        final int quality = mParameters.getJpegQuality();
+        mCallbackHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (shutter != null) shutter.onShutter();
+                if (raw != null) raw.onPictureTaken(null, null);
+            }
+        }, mLatencies.shutter);
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new YuvImage(frame, ImageFormat.NV21, size.width, size.height, null)
+                        .compressToJpeg(new Rect(0, 0, size.width, size.height), quality, out);
+                final byte[] data = out.toByteArray();
+                mCallbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (jpeg != null) jpeg.onPictureTaken(data, null);
+                    }
+                });
+            }
+        }, mLatencies.shutter + mLatencies.jpeg);
+    }
+
+    @Override
+    public void takePicture2(final ShutterCallback shutter, final PictureCallback raw,
+            final PictureCallback postview, final PictureCallback jpeg,
+            final int cameraState, final int focusState) {
+        takePicture(shutter, raw, postview, jpeg);
+    }
+
+    @Override
+    public void setDisplayOrientation(int degrees) {
+    }
+
+    @Override
+    public void setZoomChangeListener(OnZoomChangeListener listener) {
+    }
+
+    @Override
+    public void setFaceDetectionListener(FaceDetectionListener listener) {
+    }
+
+    @Override
+    public void startFaceDetection() {
+    }
+
+    @Override
+    public void stopFaceDetection() {
+    }
+
+    @Override
+    public void setErrorCallback(ErrorCallback cb) {
+    }
+
+    @Override
+    public void setParameters(Parameters params) {
+        sleep(mLatencies.setParameters);
+        synchronized (this) {
+            mParameters.unflatten(params.flatten());
+        }
+    }
+
+    @Override
+    public void setParametersAsync(final Parameters params) {
+        final String flattened = params.flatten();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedCameraProxy.this) {
+                    mParameters.unflatten(flattened);
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized Parameters getParameters() {
+        Parameters params = android.hardware.Camera.getEmptyParameters();
+        params.unflatten(mParameters.flatten());
+        return params;
+    }
+
+    @Override
+    public void enableShutterSound(boolean enable) {
+    }
+
+    @Override
+    public void waitForIdle() {
+    }
+
+    @Override
+    public void sendMagicSamsungZSLCommand() {
+    }
+}
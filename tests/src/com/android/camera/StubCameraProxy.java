@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.hardware.Camera.PreviewCallback;
+
+import com.android.camera.CameraManager.CameraProxy;
+
+import java.util.LinkedList;
+
+/**
+ * A camera for unit tests of preview frame consumers. Only the preview
+ * callback buffers are supported, and frames are delivered synchronously
+ * on the calling thread by {@code deliverFrame()}.
+ */
+public class StubCameraProxy extends CameraProxy {
+    private final LinkedList<byte[]> mCallbackBuffers = new LinkedList<byte[]>();
+    private PreviewCallback mPreviewCallback;
+
+    public StubCameraProxy() {
+        CameraManager.instance().super(true);
+    }
+
+    @Override
+    public android.hardware.Camera getCamera() {
+        return null;
+    }
+
+    @Override
+    public void setPreviewCallbackWithBuffer(PreviewCallback cb) {
+        // Like the real camera, the queued buffers are discarded.
+        mPreviewCallback = cb;
+        mCallbackBuffers.clear();
+    }
+
+    @Override
+    public void addCallbackBuffer(byte[] callbackBuffer) {
+        mCallbackBuffers.add(callbackBuffer);
+    }
+
+    public PreviewCallback getPreviewCallback() {
+        return mPreviewCallback;
+    }
+
+    /** Returns the buffers queued to the camera, oldest first. */
+    public LinkedList<byte[]> getCallbackBuffers() {
+        return mCallbackBuffers;
+    }
+
+    /**
+     * Hands the oldest queued buffer to the callback as a new frame. Returns
+     * the buffer, or null if no buffer is queued.
+     */
+    public byte[] deliverFrame() {
+        if (mPreviewCallback == null) return null;
+        byte[] buffer = mCallbackBuffers.poll();
+        if (buffer == null) return null;
+        mPreviewCallback.onPreviewFrame(buffer, null);
+        return buffer;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.activity;
+
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.PictureCallback;
+import android.hardware.Camera.PreviewCallback;
+import android.hardware.Camera.ShutterCallback;
+import android.hardware.Camera.Size;
+import android.os.Environment;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import com.android.camera.CameraActivity;
+import com.android.camera.CameraHolder;
+import com.android.camera.CameraManager.CameraProxy;
+import com.android.camera.R;
+import com.android.camera.SimulatedCameraProxy;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Measures the start up and capture latencies of the app with a simulated
+ * camera, so the numbers only depend on the app. The simulated camera
+ * itself is checked as well, because the numbers are only meaningful if it
+ * behaves like a real one.
+ *
+ * Preview frames are read from /sdcard/panorama_input if it exists, e.g.
+ * adb push perftests/panorama/input /sdcard/panorama_input
+ */
+public class SimulatedCameraTest extends CameraTestCase <CameraActivity> {
+    private static final String TAG = "SimulatedCameraTest";
+    private static final int NUMBER_OF_CAPTURES = 10;
+    private static final long WAIT_FOR_CAPTURE = 2000;
+    private static final long TIMEOUT = 5000;
+
+    private SimulatedCameraProxy mCamera;
+    private SimulatedCameraProxy.Latencies mLatencies;
+
+    public SimulatedCameraTest() {
+        super(CameraActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File frameDir = new File(Environment.getExternalStorageDirectory(), "panorama_input");
+        mLatencies = new SimulatedCameraProxy.Latencies();
+        mCamera = new SimulatedCameraProxy(getParameters(), frameDir, mLatencies);
+        CameraHolder.injectMockCamera(mOneCameraInfo, new CameraProxy[] {mCamera});
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCamera.release();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testStartUpAndCapture() throws Exception {
+        long start = SystemClock.uptimeMillis();
+        getActivity();
+        getInstrumentation().waitForIdleSync();
+        waitForFrames(mCamera, 1);
+        long startUpTime = SystemClock.uptimeMillis() - start;
+        Log.v(TAG, "Start up time to first preview frame: " + startUpTime + " ms");
+        assertTrue(startUpTime >= mLatencies.startPreview);
+
+        long totalShutterLag = 0;
+        long totalJpegCallbackFinishTime = 0;
+        for (int i = 0; i < NUMBER_OF_CAPTURES; i++) {
+            performClick(R.id.shutter_button);
+            Thread.sleep(WAIT_FOR_CAPTURE);
+            long shutterLag = getActivity().getShutterLag();
+            long jpegCallbackFinishTime = getActivity().getJpegCallbackFinishTime();
+            // The shutter callback cannot come before the simulated latency.
+            assertTrue("shutter lag " + shutterLag, shutterLag >= mLatencies.shutter);
+            assertTrue(jpegCallbackFinishTime >= 0);
+            totalShutterLag += shutterLag;
+            totalJpegCallbackFinishTime += jpegCallbackFinishTime;
+        }
+        Log.v(TAG, "Average shutter lag: " + totalShutterLag / NUMBER_OF_CAPTURES + " ms");
+        Log.v(TAG, "Average jpeg callback finish time: "
+                + totalJpegCallbackFinishTime / NUMBER_OF_CAPTURES + " ms");
+        Log.v(TAG, "Preview frames: " + mCamera.getFrameCount() + ", dropped: "
+                + mCamera.getDroppedFrameCount());
+        assertTrue(mCamera.getFrameCount() > mCamera.getDroppedFrameCount());
+
+        getActivity().finish();
+        getInstrumentation().waitForIdleSync();
+    }
+
+    @MediumTest
+    public void testPreviewFramesWithBuffer() throws Exception {
+        // The test pattern is a horizontal gradient.
+        SimulatedCameraProxy camera = new SimulatedCameraProxy(getParameters(), null,
+                mLatencies);
+        try {
+            Size size = camera.getParameters().getPreviewSize();
+            int frameSize = size.width * size.height * 3 / 2;
+            final ArrayList<byte[]> frames = new ArrayList<byte[]>();
+            final boolean[] onMainThread = {true};
+            camera.setPreviewCallbackWithBuffer(new PreviewCallback() {
+                @Override
+                public void onPreviewFrame(byte[] data, Camera camera) {
+                    synchronized (frames) {
+                        onMainThread[0] &= (Looper.myLooper() == Looper.getMainLooper());
+                        frames.add(data);
+                        frames.notifyAll();
+                    }
+                }
+            });
+            byte[] buffer1 = new byte[frameSize];
+            byte[] buffer2 = new byte[frameSize];
+            camera.addCallbackBuffer(buffer1);
+            camera.addCallbackBuffer(buffer2);
+            camera.startPreviewAsync();
+
+            synchronized (frames) {
+                long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+                while (frames.size() < 2 && SystemClock.uptimeMillis() < deadline) {
+                    frames.wait(TIMEOUT);
+                }
+                assertEquals(2, frames.size());
+                // The frames are written to the buffers, in the order they
+                // were added.
+                assertSame(buffer1, frames.get(0));
+                assertSame(buffer2, frames.get(1));
+                assertTrue(onMainThread[0]);
+            }
+            byte[] frame = frames.get(0);
+            assertTrue((frame[0] & 0xff) < (frame[size.width - 1] & 0xff));
+
+            // Without buffers the next frames are dropped.
+            long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+            while (camera.getDroppedFrameCount() == 0 && SystemClock.uptimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(camera.getDroppedFrameCount() > 0);
+            synchronized (frames) {
+                assertEquals(2, frames.size());
+            }
+
+            camera.stopPreview();
+            int count = camera.getFrameCount();
+            Thread.sleep(200);
+            assertEquals(count, camera.getFrameCount());
+        } finally {
+            camera.release();
+        }
+    }
+
+    @MediumTest
+    public void testTakePictureCallbackOrder() throws Exception {
+        SimulatedCameraProxy camera = new SimulatedCameraProxy(getParameters(), null,
+                mLatencies);
+        try {
+            camera.startPreviewAsync();
+            waitForFrames(camera, 1);
+
+            final ArrayList<String> calls = new ArrayList<String>();
+            final byte[][] jpegData = new byte[1][];
+            final long start = SystemClock.uptimeMillis();
+            final long[] shutterTime = new long[1];
+            PictureCallback raw = new PictureCallback() {
+                @Override
+                public void onPictureTaken(byte[] data, Camera camera) {
+                    addCall(calls, "raw");
+                }
+            };
+            PictureCallback jpeg = new PictureCallback() {
+                @Override
+                public void onPictureTaken(byte[] data, Camera camera) {
+                    synchronized (calls) {
+                        jpegData[0] = data;
+                    }
+                    addCall(calls, "jpeg");
+                }
+            };
+            camera.takePicture(new ShutterCallback() {
+                @Override
+                public void onShutter() {
+                    shutterTime[0] = SystemClock.uptimeMillis() - start;
+                    addCall(calls, "shutter");
+                }
+            }, raw, null, jpeg);
+
+            synchronized (calls) {
+                long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+                while (calls.size() < 3 && SystemClock.uptimeMillis() < deadline) {
+                    calls.wait(TIMEOUT);
+                }
+                assertEquals("[shutter, raw, jpeg]", calls.toString());
+                assertTrue(shutterTime[0] >= mLatencies.shutter);
+                // A JPEG starts with the SOI marker.
+                assertNotNull(jpegData[0]);
+                assertEquals(0xff, jpegData[0][0] & 0xff);
+                assertEquals(0xd8, jpegData[0][1] & 0xff);
+            }
+
+            // Taking a picture stops the preview.
+            int count = camera.getFrameCount();
+            Thread.sleep(200);
+            assertEquals(count, camera.getFrameCount());
+        } finally {
+            camera.release();
+        }
+    }
+
+    @MediumTest
+    public void testParameters() throws Exception {
+        Parameters initial = getParameters();
+        Parameters current = mCamera.getParameters();
+        assertEquals(initial.getPreviewSize(), current.getPreviewSize());
+        assertEquals(initial.getPreviewFrameRate(), current.getPreviewFrameRate());
+        assertEquals(initial.getJpegQuality(), current.getJpegQuality());
+
+        // The returned parameters are a copy.
+        Parameters params = mCamera.getParameters();
+        params.setPreviewSize(320, 240);
+        assertEquals(initial.getPreviewSize().width,
+                mCamera.getParameters().getPreviewSize().width);
+
+        mCamera.setParameters(params);
+        Size size = mCamera.getParameters().getPreviewSize();
+        assertEquals(320, size.width);
+        assertEquals(240, size.height);
+
+        params.setJpegQuality(50);
+        mCamera.setParametersAsync(params);
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        while (mCamera.getParameters().getJpegQuality() != 50
+                && SystemClock.uptimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(50, mCamera.getParameters().getJpegQuality());
+    }
+
+    // Records a callback, marked if it is not called on the main thread.
+    private static void addCall(ArrayList<String> calls, String call) {
+        synchronized (calls) {
+            boolean onMainThread = (Looper.myLooper() == Looper.getMainLooper());
+            calls.add(onMainThread ? call : call + " off the main thread");
+            calls.notifyAll();
+        }
+    }
+
+    private static void waitForFrames(SimulatedCameraProxy camera, int count)
+            throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        while (camera.getFrameCount() < count && SystemClock.uptimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(camera.getFrameCount() >= count);
+    }
+}
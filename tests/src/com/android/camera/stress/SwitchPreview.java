@@ -114,4 +114,39 @@ public class SwitchPreview extends ActivityInstrumentationTestCase2 <CameraActiv
             Log.v(TAG, "Got exception", e);
         }
     }
+
+    @LargeTest
+    public void testSwitchModule() {
+        //Switching between the photo and the video module in the same activity.
+        //The running preview is handed off, so the switch time is recorded.
+        final CameraActivity activity = getActivity();
+        long totalSwitchTime = 0;
+        try{
+            mOut.write("Camera Switch Module:\n");
+            mOut.write("No of loops :" + TOTAL_NUMBER_OF_SWITCHING + "\n");
+            mOut.write("loop: ");
+            for (int i=0; i< TOTAL_NUMBER_OF_SWITCHING; i++) {
+                Thread.sleep(WAIT_FOR_PREVIEW);
+                final int index = (i % 2 == 0)
+                        ? CameraActivity.VIDEO_MODULE_INDEX
+                        : CameraActivity.PHOTO_MODULE_INDEX;
+                getInstrumentation().runOnMainSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        activity.onCameraSelected(index);
+                    }
+                });
+                Thread.sleep(WAIT_FOR_PREVIEW);
+                long switchTime = activity.getModuleSwitchTime();
+                Log.v(TAG, "Module switch time: " + switchTime);
+                totalSwitchTime += switchTime;
+                mOut.write(" ," + i);
+                mOut.flush();
+            }
+            mOut.write("\nAverage module switch time: "
+                    + totalSwitchTime / TOTAL_NUMBER_OF_SWITCHING + " ms");
+        } catch (Exception e){
+            Log.v(TAG, "Got exception", e);
+        }
+    }
 }
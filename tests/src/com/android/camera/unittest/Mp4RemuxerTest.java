@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.Mp4Remuxer;
+import com.android.camera.MpegTsWriter;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+@SmallTest
+public class Mp4RemuxerTest extends TestCase {
+    // The SPS of a 1920x1080 baseline stream, which is cropped from 1088
+    // lines, and a PPS.
+    private static final byte[] CONFIG = {
+        0, 0, 0, 1, 0x67, 0x42, 0x00, 0x28, (byte) 0xf4, 0x03, (byte) 0xc0, 0x11, 0x3f, 0x2a,
+        0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80,
+    };
+    private static final int FRAME_COUNT = 10;
+    private static final int SYNC_INTERVAL = 5;
+    private static final long FRAME_INTERVAL_US = 40000;
+
+    private File mStream;
+    private File mMovie;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStream = File.createTempFile("remux", ".ts");
+        mMovie = File.createTempFile("remux", ".mp4");
+        MpegTsWriter writer = new MpegTsWriter(new FileOutputStream(mStream));
+        writer.setConfig(CONFIG);
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            byte[] frame = createFrame(i, i % SYNC_INTERVAL == 0);
+            writer.writeAccessUnit(frame, frame.length, i * FRAME_INTERVAL_US,
+                    i % SYNC_INTERVAL == 0);
+        }
+        writer.close();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStream.delete();
+        mMovie.delete();
+        super.tearDown();
+    }
+
+    // A slice of a size which depends on the frame, with its start code.
+    private static byte[] createFrame(int index, boolean sync) {
+        byte[] frame = new byte[4 + 300 + index * 50];
+        frame[3] = 1;
+        frame[4] = (byte) (sync ? 0x65 : 0x41);
+        for (int i = 5; i < frame.length; i++) frame[i] = (byte) (i % 250 + 1);
+        return frame;
+    }
+
+    public void testRotation() throws IOException {
+        Mp4Remuxer.remux(mStream.getPath(), mMovie.getPath(), 90);
+        ByteBuffer tkhd = findBox(readMovie(), "moov", "trak", "tkhd");
+        // The matrix turns the video clockwise.
+        assertEquals(0, tkhd.getInt(40));
+        assertEquals(0x10000, tkhd.getInt(44));
+        assertEquals(-0x10000, tkhd.getInt(52));
+        assertEquals(0, tkhd.getInt(56));
+        // The size is taken from the SPS.
+        assertEquals(1920, tkhd.getInt(76) >> 16);
+        assertEquals(1080, tkhd.getInt(80) >> 16);
+    }
+
+    public void testSamples() throws IOException {
+        Mp4Remuxer.remux(mStream.getPath(), mMovie.getPath(), 0);
+        ByteBuffer movie = readMovie();
+        ByteBuffer stbl = findBox(movie, "moov", "trak", "mdia", "minf", "stbl");
+
+        ByteBuffer stsz = findBox(stbl, "stsz");
+        assertEquals(FRAME_COUNT, stsz.getInt(8));
+        ByteBuffer stss = findBox(stbl, "stss");
+        assertEquals(FRAME_COUNT / SYNC_INTERVAL, stss.getInt(4));
+        assertEquals(1, stss.getInt(8));
+        assertEquals(SYNC_INTERVAL + 1, stss.getInt(12));
+        // The frames are evenly spaced.
+        ByteBuffer stts = findBox(stbl, "stts");
+        assertEquals(1, stts.getInt(4));
+        assertEquals(FRAME_COUNT, stts.getInt(8));
+        assertEquals(FRAME_INTERVAL_US * 9 / 100, stts.getInt(12));
+
+        // Each sample holds its slice with the length in front, without
+        // the parameter sets and the delimiter.
+        ByteBuffer stco = findBox(stbl, "stco");
+        assertEquals(FRAME_COUNT, stco.getInt(4));
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            byte[] frame = createFrame(i, i % SYNC_INTERVAL == 0);
+            int offset = stco.getInt(8 + 4 * i);
+            assertEquals(frame.length, stsz.getInt(12 + 4 * i));
+            assertEquals(frame.length - 4, movie.getInt(offset));
+            assertEquals(frame[4], movie.get(offset + 4));
+            assertEquals(frame[frame.length - 1], movie.get(offset + frame.length - 1));
+        }
+
+        // The parameter sets are in the sample description, which starts
+        // after the count of the descriptions and the fields of the entry.
+        ByteBuffer avc1 = findBox(findBox(stbl, "stsd"), 8, "avc1");
+        ByteBuffer avcC = findBox(avc1, 78, "avcC");
+        assertEquals(0x42, avcC.get(1));
+        assertEquals(10, avcC.getShort(6));
+        assertEquals(0x67, avcC.get(8));
+        assertEquals(4, avcC.getShort(19));
+        assertEquals(0x68, avcC.get(21));
+    }
+
+    public void testNoVideo() throws IOException {
+        FileOutputStream out = new FileOutputStream(mStream);
+        out.write(new byte[188 * 4]);
+        out.close();
+        try {
+            Mp4Remuxer.remux(mStream.getPath(), mMovie.getPath(), 0);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private ByteBuffer readMovie() throws IOException {
+        byte[] data = new byte[(int) mMovie.length()];
+        FileInputStream in = new FileInputStream(mMovie);
+        try {
+            int n = 0;
+            while (n < data.length) n += in.read(data, n, data.length - n);
+        } finally {
+            in.close();
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    private static ByteBuffer findBox(ByteBuffer parent, String... path) {
+        ByteBuffer box = parent;
+        for (String type : path) box = findBox(box, 0, type);
+        return box;
+    }
+
+    // Returns the body of the first box of the type, looking from offset
+    // in the parent.
+    private static ByteBuffer findBox(ByteBuffer parent, int offset, String type) {
+        int p = offset;
+        while (p + 8 <= parent.limit()) {
+            long size = parent.getInt(p) & 0xffffffffL;
+            int header = 8;
+            if (size == 1) {
+                size = parent.getLong(p + 8);
+                header = 16;
+            }
+            byte[] name = new byte[4];
+            for (int i = 0; i < 4; i++) name[i] = parent.get(p + 4 + i);
+            if (type.equals(new String(name))) {
+                ByteBuffer body = parent.duplicate();
+                body.limit((int) (p + size));
+                body.position(p + header);
+                return body.slice();
+            }
+            p += size;
+        }
+        fail("no " + type);
+        return null;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.MpegTsWriter;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+@SmallTest
+public class MpegTsWriterTest extends TestCase {
+    private static final int PACKET_SIZE = 188;
+    private static final int PMT_PID = 0x1000;
+    private static final int VIDEO_PID = 0x100;
+    private static final byte[] CONFIG = {0, 0, 0, 1, 0x67, 0x42, 0, 0, 0, 1, 0x68, (byte) 0xce};
+
+    private ByteArrayOutputStream mOut;
+    private MpegTsWriter mWriter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mOut = new ByteArrayOutputStream();
+        mWriter = new MpegTsWriter(mOut);
+        mWriter.setConfig(CONFIG);
+    }
+
+    // An access unit which takes several packets.
+    private static byte[] createFrame(int length) {
+        byte[] frame = new byte[length];
+        frame[3] = 1;
+        frame[4] = 0x41;
+        return frame;
+    }
+
+    public void testTables() throws IOException {
+        byte[] frame = createFrame(1000);
+        mWriter.writeAccessUnit(frame, frame.length, 0, true);
+        byte[] stream = mOut.toByteArray();
+        assertEquals(0, stream.length % PACKET_SIZE);
+        assertEquals(stream.length, mWriter.getSize());
+
+        // The PAT points to the PMT.
+        assertEquals(0, getPid(stream, 0));
+        assertTrue(isUnitStart(stream, 0));
+        int pat = 5;
+        assertEquals(0x00, stream[pat]);
+        assertEquals(PMT_PID, ((stream[pat + 10] & 0x1f) << 8) | (stream[pat + 11] & 0xff));
+        assertEquals(0, crc32(stream, pat, 16));
+
+        // The PMT has the video, which carries the clock reference.
+        int offset = PACKET_SIZE;
+        assertEquals(PMT_PID, getPid(stream, offset));
+        int pmt = offset + 5;
+        assertEquals(0x02, stream[pmt]);
+        assertEquals(VIDEO_PID, ((stream[pmt + 8] & 0x1f) << 8) | (stream[pmt + 9] & 0xff));
+        assertEquals(0x1b, stream[pmt + 12]);
+        assertEquals(VIDEO_PID, ((stream[pmt + 13] & 0x1f) << 8) | (stream[pmt + 14] & 0xff));
+        assertEquals(0, crc32(stream, pmt, 21));
+
+        // The video follows, with the parameter sets.
+        offset += PACKET_SIZE;
+        assertEquals(VIDEO_PID, getPid(stream, offset));
+        assertTrue(isUnitStart(stream, offset));
+        assertTrue(isRandomAccess(stream, offset));
+        assertEquals(0, getPcr(stream, offset));
+        int pes = offset + 4 + 8;
+        assertEquals(0, stream[pes]);
+        assertEquals(0, stream[pes + 1]);
+        assertEquals(1, stream[pes + 2]);
+        assertEquals((byte) 0xe0, stream[pes + 3]);
+        // The delimiter comes after the header, then the SPS.
+        assertEquals(0x09, stream[pes + 14 + 4]);
+        assertEquals(0x67, stream[pes + 14 + 6 + 4]);
+    }
+
+    public void testContinuityCounter() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            byte[] frame = createFrame(500 + i * 37);
+            mWriter.writeAccessUnit(frame, frame.length, i * 33333L, i % 10 == 0);
+        }
+        byte[] stream = mOut.toByteArray();
+        HashMap<Integer, Integer> counters = new HashMap<Integer, Integer>();
+        for (int offset = 0; offset < stream.length; offset += PACKET_SIZE) {
+            assertEquals(0x47, stream[offset]);
+            int pid = getPid(stream, offset);
+            int counter = stream[offset + 3] & 0x0f;
+            Integer last = counters.get(pid);
+            if (last != null) {
+                // Packets without a payload repeat the counter.
+                int expected = hasPayload(stream, offset) ? (last + 1) & 0x0f : last;
+                assertEquals("packet " + offset / PACKET_SIZE, expected, counter);
+            }
+            counters.put(pid, counter);
+        }
+        assertEquals(3, counters.size());
+    }
+
+    public void testPcrOnEveryAccessUnit() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            byte[] frame = createFrame(300);
+            // Only the first frame is a sync frame.
+            mWriter.writeAccessUnit(frame, frame.length, i * 40000L, i == 0);
+        }
+        byte[] stream = mOut.toByteArray();
+        int units = 0;
+        for (int offset = 0; offset < stream.length; offset += PACKET_SIZE) {
+            if (getPid(stream, offset) != VIDEO_PID || !isUnitStart(stream, offset)) continue;
+            assertEquals(units * 40000L * 9 / 100, getPcr(stream, offset));
+            assertEquals(units == 0, isRandomAccess(stream, offset));
+            units++;
+        }
+        assertEquals(10, units);
+    }
+
+    public void testPcrBetweenDistantAccessUnits() throws IOException {
+        // One frame every 2.5 seconds, as in a time lapse.
+        for (int i = 0; i < 4; i++) {
+            byte[] frame = createFrame(1000);
+            mWriter.writeAccessUnit(frame, frame.length, i * 2500000L, i == 0);
+        }
+        byte[] stream = mOut.toByteArray();
+        long last = -1;
+        int count = 0;
+        for (int offset = 0; offset < stream.length; offset += PACKET_SIZE) {
+            long pcr = getPcr(stream, offset);
+            if (pcr < 0) continue;
+            if (last >= 0) {
+                assertTrue(pcr > last);
+                assertTrue("gap " + (pcr - last), pcr - last <= 9000);
+            }
+            last = pcr;
+            count++;
+        }
+        assertEquals(3 * 2500000L * 9 / 100, last);
+        assertTrue(count >= 3 * 25 + 1);
+    }
+
+    private static int getPid(byte[] stream, int offset) {
+        return ((stream[offset + 1] & 0x1f) << 8) | (stream[offset + 2] & 0xff);
+    }
+
+    private static boolean isUnitStart(byte[] stream, int offset) {
+        return (stream[offset + 1] & 0x40) != 0;
+    }
+
+    private static boolean hasPayload(byte[] stream, int offset) {
+        return (stream[offset + 3] & 0x10) != 0;
+    }
+
+    private static boolean hasAdaptationField(byte[] stream, int offset) {
+        return (stream[offset + 3] & 0x20) != 0 && (stream[offset + 4] & 0xff) > 0;
+    }
+
+    private static boolean isRandomAccess(byte[] stream, int offset) {
+        return hasAdaptationField(stream, offset) && (stream[offset + 5] & 0x40) != 0;
+    }
+
+    // Returns the base of the clock reference in the packet, or -1.
+    private static long getPcr(byte[] stream, int offset) {
+        if (!hasAdaptationField(stream, offset) || (stream[offset + 5] & 0x10) == 0) return -1;
+        long pcr = 0;
+        for (int i = 0; i < 4; i++) pcr = (pcr << 8) | (stream[offset + 6 + i] & 0xff);
+        return (pcr << 1) | ((stream[offset + 10] & 0x80) >> 7);
+    }
+
+    // The CRC of a section including its own CRC is 0.
+    private static int crc32(byte[] data, int offset, int length) {
+        int crc = 0xffffffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (data[i] & 0xff) << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc < 0) ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.PreviewFramePool;
+import com.android.camera.PreviewFramePool.Frame;
+import com.android.camera.StubCameraProxy;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+@SmallTest
+public class PreviewFramePoolTest extends TestCase {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int BUFFER_COUNT = 3;
+
+    private StubCameraProxy mCamera;
+    private Parameters mParameters;
+    private PreviewFramePool mPool;
+    // The frames delivered to the listener, which are not released.
+    private ArrayList<Frame> mFrames;
+    private PreviewFramePool.FrameListener mListener;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCamera = new StubCameraProxy();
+        mParameters = Camera.getEmptyParameters();
+        mParameters.setPreviewSize(WIDTH, HEIGHT);
+        mParameters.setPreviewFormat(ImageFormat.NV21);
+        mPool = new PreviewFramePool(BUFFER_COUNT);
+        mFrames = new ArrayList<Frame>();
+        mListener = new PreviewFramePool.FrameListener() {
+            @Override
+            public void onPreviewFrame(Frame frame) {
+                mFrames.add(frame);
+            }
+        };
+    }
+
+    public void testStart() {
+        mPool.start(mCamera, mParameters, mListener);
+        assertTrue(mPool.isStarted());
+        assertSame(mPool, mCamera.getPreviewCallback());
+        assertEquals(BUFFER_COUNT, mCamera.getCallbackBuffers().size());
+        int size = PreviewFramePool.getBufferSize(WIDTH, HEIGHT, ImageFormat.NV21);
+        assertEquals(WIDTH * HEIGHT * 3 / 2, size);
+        for (byte[] buffer : mCamera.getCallbackBuffers()) {
+            assertEquals(size, buffer.length);
+        }
+    }
+
+    public void testFrame() {
+        mPool.start(mCamera, mParameters, mListener);
+        byte[] buffer = mCamera.deliverFrame();
+        assertEquals(1, mFrames.size());
+        Frame frame = mFrames.get(0);
+        assertSame(buffer, frame.data);
+        assertEquals(WIDTH, frame.width);
+        assertEquals(HEIGHT, frame.height);
+        assertEquals(ImageFormat.NV21, frame.format);
+        assertTrue(frame.timestamp > 0);
+        assertEquals(1, mPool.getDeliveredFrameCount());
+    }
+
+    public void testRefCount() {
+        mPool.start(mCamera, mParameters, mListener);
+        byte[] buffer = mCamera.deliverFrame();
+        Frame frame = mFrames.get(0);
+        assertFalse(mCamera.getCallbackBuffers().contains(buffer));
+
+        // The buffer goes back to the camera when the last consumer is done.
+        frame.acquire();
+        frame.release();
+        assertFalse(mCamera.getCallbackBuffers().contains(buffer));
+        frame.release();
+        assertSame(buffer, mCamera.getCallbackBuffers().getLast());
+        assertEquals(BUFFER_COUNT, mCamera.getCallbackBuffers().size());
+    }
+
+    public void testDoubleRelease() {
+        mPool.start(mCamera, mParameters, mListener);
+        mCamera.deliverFrame();
+        Frame frame = mFrames.get(0);
+        frame.release();
+        try {
+            frame.release();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // The buffer is queued to the camera only once.
+        assertEquals(BUFFER_COUNT, mCamera.getCallbackBuffers().size());
+    }
+
+    public void testDropWhenConsumersHoldBuffers() {
+        mPool.start(mCamera, mParameters, mListener);
+        // Consumers may hold all but one buffer.
+        for (int i = 0; i < BUFFER_COUNT - 1; i++) {
+            mCamera.deliverFrame();
+        }
+        assertEquals(BUFFER_COUNT - 1, mFrames.size());
+        assertEquals(1, mCamera.getCallbackBuffers().size());
+
+        // The next frames are dropped, and the camera keeps its buffer.
+        for (int i = 0; i < 3; i++) {
+            byte[] buffer = mCamera.deliverFrame();
+            assertNotNull(buffer);
+            assertSame(buffer, mCamera.getCallbackBuffers().getLast());
+        }
+        assertEquals(BUFFER_COUNT - 1, mFrames.size());
+        assertEquals(BUFFER_COUNT - 1, mPool.getDeliveredFrameCount());
+        assertEquals(3, mPool.getDroppedFrameCount());
+
+        // Frames are delivered again once a consumer is done.
+        mFrames.remove(0).release();
+        mCamera.deliverFrame();
+        assertEquals(BUFFER_COUNT - 1, mFrames.size());
+        assertEquals(BUFFER_COUNT, mPool.getDeliveredFrameCount());
+    }
+
+    public void testReuseAfterStopAndStart() {
+        mPool.start(mCamera, mParameters, mListener);
+        ArrayList<byte[]> buffers = new ArrayList<byte[]>(mCamera.getCallbackBuffers());
+        mCamera.deliverFrame();
+        Frame held = mFrames.get(0);
+
+        mPool.stop();
+        assertFalse(mPool.isStarted());
+        assertNull(mCamera.getPreviewCallback());
+        assertNull(mCamera.deliverFrame());
+        assertEquals(1, mFrames.size());
+
+        // The same buffers are queued again, except the one still held.
+        mPool.start(mCamera, mParameters, mListener);
+        assertEquals(BUFFER_COUNT - 1, mCamera.getCallbackBuffers().size());
+        assertFalse(mCamera.getCallbackBuffers().contains(held.data));
+        held.release();
+        assertEquals(BUFFER_COUNT, mCamera.getCallbackBuffers().size());
+        for (byte[] buffer : mCamera.getCallbackBuffers()) {
+            assertTrue(buffers.contains(buffer));
+        }
+        assertEquals(0, mPool.getDeliveredFrameCount());
+        assertEquals(0, mPool.getDroppedFrameCount());
+
+        // All the buffers can be used again.
+        mFrames.clear();
+        mCamera.deliverFrame();
+        mCamera.deliverFrame();
+        assertEquals(BUFFER_COUNT - 1, mFrames.size());
+    }
+
+    public void testReleaseAfterStop() {
+        mPool.start(mCamera, mParameters, mListener);
+        mCamera.deliverFrame();
+        mPool.stop();
+        mFrames.get(0).release();
+        // Nothing is queued to the stopped camera.
+        assertTrue(mCamera.getCallbackBuffers().isEmpty());
+
+        mPool.start(mCamera, mParameters, mListener);
+        assertEquals(BUFFER_COUNT, mCamera.getCallbackBuffers().size());
+    }
+
+    public void testReallocateOnSizeChange() {
+        mPool.start(mCamera, mParameters, mListener);
+        mCamera.deliverFrame();
+        Frame old = mFrames.get(0);
+        mPool.stop();
+
+        mParameters.setPreviewSize(WIDTH * 2, HEIGHT * 2);
+        mPool.start(mCamera, mParameters, mListener);
+        assertEquals(BUFFER_COUNT, mCamera.getCallbackBuffers().size());
+        // A buffer of the previous size is left to the GC.
+        old.release();
+        assertEquals(BUFFER_COUNT, mCamera.getCallbackBuffers().size());
+        assertFalse(mCamera.getCallbackBuffers().contains(old.data));
+
+        mFrames.clear();
+        mCamera.deliverFrame();
+        assertEquals(WIDTH * 2, mFrames.get(0).width);
+    }
+
+    public void testInvalidBufferCount() {
+        try {
+            new PreviewFramePool(1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
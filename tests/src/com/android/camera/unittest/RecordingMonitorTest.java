@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.RecordingMonitor;
+import com.android.camera.Storage;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class RecordingMonitorTest extends TestCase {
+    private static final String PATH = "/sdcard/DCIM/Camera/VID.mp4";
+    private static final long EXPECTED_RATE = 500000;
+    private static final long STALL_TIMEOUT = 3000;
+
+    // A clock, file and storage which the test moves forward by hand.
+    private static class FakeSource implements RecordingMonitor.Source {
+        long mNow;
+        long mFileSize;
+        long mAvailableSpace = -1;
+
+        @Override
+        public long uptimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        public long getFileSize(String path) {
+            return mFileSize;
+        }
+
+        @Override
+        public long getAvailableSpace() {
+            return mAvailableSpace;
+        }
+    }
+
+    private static final RecordingMonitor.Listener LISTENER = new RecordingMonitor.Listener() {
+        @Override
+        public void onWriteStalled(long stallMs) {
+        }
+    };
+
+    private FakeSource mSource;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSource = new FakeSource();
+    }
+
+    private RecordingMonitor createMonitor(long stallTimeoutMs) {
+        RecordingMonitor monitor = new RecordingMonitor(EXPECTED_RATE, stallTimeoutMs,
+                LISTENER, null, mSource);
+        monitor.setFile(PATH);
+        return monitor;
+    }
+
+    // Moves the clock on by a second, with the file grown by the bytes.
+    private void sample(RecordingMonitor monitor, long bytes) {
+        mSource.mNow += 1000;
+        mSource.mFileSize += bytes;
+        monitor.sample();
+    }
+
+    public void testRate() {
+        RecordingMonitor monitor = createMonitor(STALL_TIMEOUT);
+        assertEquals(-1, monitor.getCurrentRate());
+        for (int i = 0; i < 10; i++) sample(monitor, (i < 5) ? 100000 : 300000);
+        assertEquals(2000000, monitor.getBytesWritten());
+        assertEquals(300000, monitor.getCurrentRate());
+        assertEquals(200000, monitor.getAverageRate());
+        assertEquals(-1, monitor.getDroppedFrameCount());
+    }
+
+    public void testNextFile() {
+        RecordingMonitor monitor = createMonitor(STALL_TIMEOUT);
+        sample(monitor, 100000);
+        monitor.setFile(PATH + ".2");
+        mSource.mFileSize = 0;
+        sample(monitor, 50000);
+        assertEquals(150000, monitor.getBytesWritten());
+    }
+
+    public void testStall() {
+        RecordingMonitor monitor = createMonitor(STALL_TIMEOUT);
+        sample(monitor, 100000);
+        sample(monitor, 100000);
+        for (int i = 0; i < 2; i++) sample(monitor, 0);
+        assertFalse(monitor.isStalled());
+        sample(monitor, 0);
+        assertTrue(monitor.isStalled());
+        assertEquals(1, monitor.getStallCount());
+        // A stall is counted once, however long it is.
+        sample(monitor, 0);
+        assertEquals(1, monitor.getStallCount());
+        assertEquals(4000, monitor.getLongestStall());
+
+        sample(monitor, 100000);
+        assertFalse(monitor.isStalled());
+        for (int i = 0; i < 3; i++) sample(monitor, 0);
+        assertTrue(monitor.isStalled());
+        assertEquals(2, monitor.getStallCount());
+        assertEquals(4000, monitor.getLongestStall());
+    }
+
+    public void testNoStallWithoutTimeout() {
+        RecordingMonitor monitor = createMonitor(0);
+        sample(monitor, 100000);
+        for (int i = 0; i < 10; i++) sample(monitor, 0);
+        assertFalse(monitor.isStalled());
+        assertEquals(0, monitor.getStallCount());
+    }
+
+    public void testRemainingTime() {
+        RecordingMonitor monitor = createMonitor(STALL_TIMEOUT);
+        mSource.mAvailableSpace = Storage.LOW_STORAGE_THRESHOLD + 10000000;
+        sample(monitor, 0);
+        // Before there is a rate, the expected one is used.
+        assertEquals(20000, monitor.getRemainingTime());
+        sample(monitor, 1000000);
+        // At 500000 bytes per second since the start, less the time since
+        // the free space was sampled.
+        assertEquals(19000, monitor.getRemainingTime());
+        mSource.mNow += 500;
+        assertEquals(18500, monitor.getRemainingTime());
+    }
+
+    public void testNoHeadroom() {
+        RecordingMonitor monitor = createMonitor(STALL_TIMEOUT);
+        mSource.mAvailableSpace = Storage.LOW_STORAGE_THRESHOLD - 1;
+        sample(monitor, 100000);
+        assertEquals(0, monitor.getRemainingTime());
+    }
+
+    public void testUnknownSpace() {
+        RecordingMonitor monitor = createMonitor(STALL_TIMEOUT);
+        sample(monitor, 100000);
+        sample(monitor, 100000);
+        assertEquals(-1, monitor.getRemainingTime());
+    }
+}
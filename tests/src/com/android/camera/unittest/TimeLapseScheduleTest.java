@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.TimeLapseSchedule;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class TimeLapseScheduleTest extends TestCase {
+    private static final int INTERVAL = 1000;
+    private static final long START = 5000;
+
+    private TimeLapseSchedule mSchedule;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSchedule = new TimeLapseSchedule(INTERVAL);
+        mSchedule.start(START);
+    }
+
+    public void testFirstFrameIsDueAtStart() {
+        assertFalse(mSchedule.take(START - 1));
+        assertTrue(mSchedule.take(START));
+        assertEquals(START + INTERVAL, mSchedule.getDueTime());
+        assertEquals(1, mSchedule.getTakenCount());
+    }
+
+    public void testFramesBeforeDueTimeAreNotTaken() {
+        assertTrue(mSchedule.take(START + 10));
+        assertFalse(mSchedule.take(START + 500));
+        assertFalse(mSchedule.take(START + INTERVAL - 1));
+        assertTrue(mSchedule.take(START + INTERVAL + 30));
+        assertEquals(2, mSchedule.getTakenCount());
+        assertEquals(0, mSchedule.getSkippedCount());
+        assertEquals(20, mSchedule.getAverageDelay());
+    }
+
+    public void testDelayDoesNotMoveLaterFrames() {
+        assertTrue(mSchedule.take(START + 900));
+        // The next frame is still due one interval after the start.
+        assertEquals(START + INTERVAL, mSchedule.getDueTime());
+        assertTrue(mSchedule.take(START + INTERVAL));
+    }
+
+    public void testLateFrameSkipsPassedDueTimes() {
+        assertTrue(mSchedule.take(START));
+        // Frames 1 and 2 were due before this one, which is taken for 3.
+        assertTrue(mSchedule.take(START + 3 * INTERVAL + 100));
+        assertEquals(2, mSchedule.getSkippedCount());
+        assertEquals(START + 4 * INTERVAL, mSchedule.getDueTime());
+        assertEquals(50, mSchedule.getAverageDelay());
+    }
+
+    public void testSkip() {
+        assertTrue(mSchedule.take(START));
+        mSchedule.skip();
+        assertEquals(1, mSchedule.getSkippedCount());
+        assertEquals(START + INTERVAL, mSchedule.getDueTime());
+    }
+
+    public void testRestart() {
+        assertTrue(mSchedule.take(START + 2 * INTERVAL));
+        mSchedule.start(0);
+        assertEquals(0, mSchedule.getDueTime());
+        assertEquals(0, mSchedule.getTakenCount());
+        assertEquals(0, mSchedule.getSkippedCount());
+        assertEquals(0, mSchedule.getAverageDelay());
+    }
+
+    public void testInvalidInterval() {
+        try {
+            new TimeLapseSchedule(0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
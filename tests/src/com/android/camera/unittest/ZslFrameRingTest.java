@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.PreviewFramePool.Frame;
+import com.android.camera.StubCameraProxy;
+import com.android.camera.ZslFrameRing;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.hardware.Camera.Parameters;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+@SmallTest
+public class ZslFrameRingTest extends TestCase {
+    private static final int FRAME_COUNT = 4;
+    private static final int BURST_COUNT = 10;
+
+    private StubCameraProxy mCamera;
+    private ZslFrameRing mRing;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCamera = new StubCameraProxy();
+        Parameters params = Camera.getEmptyParameters();
+        params.setPreviewSize(64, 48);
+        params.setPreviewFormat(ImageFormat.NV21);
+        mRing = new ZslFrameRing(FRAME_COUNT);
+        mRing.start(mCamera, params);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRing.stop();
+        super.tearDown();
+    }
+
+    public void testEmpty() {
+        assertTrue(mRing.isStarted());
+        assertNull(mRing.takeFrame(SystemClock.uptimeMillis()));
+    }
+
+    public void testTakeWhileSaving() {
+        for (int i = 0; i < FRAME_COUNT * 2; i++) {
+            assertNotNull(mCamera.deliverFrame());
+        }
+        assertEquals(0, mRing.getDroppedFrameCount());
+
+        // The preview goes on while the taken frame is saved.
+        Frame saving = mRing.takeFrame(SystemClock.uptimeMillis());
+        assertNotNull(saving);
+        byte[] last = null;
+        for (int i = 0; i < FRAME_COUNT * 2; i++) {
+            last = mCamera.deliverFrame();
+            assertNotNull(last);
+        }
+        assertEquals(0, mRing.getDroppedFrameCount());
+        assertFalse(mCamera.getCallbackBuffers().contains(saving.data));
+        // The newest frame is kept in the ring.
+        assertFalse(mCamera.getCallbackBuffers().contains(last));
+
+        // The saved frame goes back to the camera.
+        saving.release();
+        assertTrue(mCamera.getCallbackBuffers().contains(saving.data));
+        for (int i = 0; i < FRAME_COUNT * 2; i++) {
+            mCamera.deliverFrame();
+        }
+        assertEquals(0, mRing.getDroppedFrameCount());
+    }
+
+    public void testTakeEveryFrame() {
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            mCamera.deliverFrame();
+        }
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            Frame frame = mRing.takeFrame(SystemClock.uptimeMillis());
+            assertNotNull(frame);
+            frame.release();
+        }
+        assertNull(mRing.takeFrame(SystemClock.uptimeMillis()));
+    }
+
+    // The shots of a burst each take a frame of their own while the preview
+    // goes on, and the saver holds up to two frames.
+    public void testBurst() {
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            mCamera.deliverFrame();
+        }
+        ArrayList<Frame> saving = new ArrayList<Frame>();
+        for (int shot = 0; shot < BURST_COUNT; shot++) {
+            Frame frame = mRing.takeFrame(SystemClock.uptimeMillis());
+            assertNotNull("shot " + shot, frame);
+            for (Frame other : saving) {
+                assertNotSame(other.data, frame.data);
+            }
+            saving.add(frame);
+            if (saving.size() > 2) saving.remove(0).release();
+            mCamera.deliverFrame();
+        }
+        assertEquals(0, mRing.getDroppedFrameCount());
+        for (Frame frame : saving) {
+            frame.release();
+        }
+    }
+
+    public void testStopReleasesFrames() {
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            mCamera.deliverFrame();
+        }
+        mRing.stop();
+        assertFalse(mRing.isStarted());
+        assertNull(mRing.takeFrame(SystemClock.uptimeMillis()));
+    }
+}